@@ -16,18 +16,37 @@
 
 package edu.ucla.cs.starai.forclift.learning.structure;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
+import edu.ucla.cs.starai.forclift.learning.CandidateLearningContext;
+import edu.ucla.cs.starai.forclift.learning.PrefilterVerdict;
 import edu.ucla.cs.starai.forclift.learning.structure.model.Clause;
 import edu.ucla.cs.starai.forclift.learning.structure.model.ClauseBuilder;
 import edu.ucla.cs.starai.forclift.learning.structure.model.Model;
 import edu.ucla.cs.starai.forclift.learning.structure.model.ModelBuilder;
+import edu.ucla.cs.starai.forclift.learning.structure.task.CandidateScoreTask;
+import edu.ucla.cs.starai.forclift.learning.structure.task.PrefilterTask;
 import edu.ucla.cs.starai.forclift.learning.structure.task.Score;
+import edu.ucla.cs.starai.forclift.learning.structure.task.ScoreCache;
+import edu.ucla.cs.starai.forclift.learning.structure.task.ScoreListener;
 import edu.ucla.cs.starai.forclift.learning.structure.task.ScoreTask;
 import edu.ucla.cs.starai.forclift.learning.structure.task.TaskExecutor;
 import edu.ucla.cs.starai.forclift.learning.structure.util.FileBuilder;
@@ -48,38 +67,293 @@ public class StructureLearner {
 
 	private final String formulas;
 
-	public StructureLearner(final List<File> databases, final String header, final String formulas, final boolean normalizeLikelihood, final boolean normalizeObjectiveFunction, final int searchStrategy, final double complexityPenalty, final int maximumNumberOfClauses, final double stepSize, final int timeout,
-			final int numberOfAdditionalThreads, final File outputDirectory) {
+	private static final String CHECKPOINT_ITERATION = "iteration ";
+
+	private static final String CHECKPOINT_CLAUSE = "clause ";
+
+	private static final String CHECKPOINT_BEAM = "beam ";
+
+	private static final String CHECKPOINT_BEAM_MODEL = "beamModel ";
+
+	private static final String CHECKPOINT_BEAM_CLAUSE = "beamClause ";
+
+	// shared by all in-process score tasks of a run, null otherwise
+	private CandidateLearningContext learningContext;
+
+	// the prefilter verdicts on rejected models, by model fingerprint
+	private final Map<String, PrefilterVerdict> prefilterRejections = new HashMap<String, PrefilterVerdict>();
+
+	/**
+	 * The options of a structure learning run. Options that are not set keep
+	 * their default value.
+	 */
+	public static class Options {
+
+		private boolean normalizeLikelihood = false;
+
+		private boolean normalizeObjectiveFunction = false;
+
+		private int searchStrategy = Settings.GREEDY_SEARCH;
+
+		private double complexityPenalty = 0.01;
+
+		private int maximumNumberOfClauses = 15;
+
+		private double stepSize = 0.99;
+
+		private int timeout = 910;
+
+		private int numberOfAdditionalThreads = 2;
+
+		private File outputDirectory = new File(System.getProperty("java.io.tmpdir"));
+
+		private boolean inProcessScoring = false;
+
+		private int racingIterations = 0;
+
+		private double racingFraction = 0.5;
+
+		private File scoreCacheDirectory = null;
+
+		private int beamWidth = 4;
+
+		private long prefilterTimeout = 0;
+
+		private int maximumCircuitSize = Integer.MAX_VALUE;
+
+		private int maximumCircuitOrder = Integer.MAX_VALUE;
+
+		public Options normalizeLikelihood(final boolean normalizeLikelihood) {
+			this.normalizeLikelihood = normalizeLikelihood;
+			return this;
+		}
+
+		public Options normalizeObjectiveFunction(final boolean normalizeObjectiveFunction) {
+			this.normalizeObjectiveFunction = normalizeObjectiveFunction;
+			return this;
+		}
+
+		public Options searchStrategy(final int searchStrategy) {
+			this.searchStrategy = searchStrategy;
+			return this;
+		}
+
+		public Options complexityPenalty(final double complexityPenalty) {
+			this.complexityPenalty = complexityPenalty;
+			return this;
+		}
+
+		public Options maximumNumberOfClauses(final int maximumNumberOfClauses) {
+			this.maximumNumberOfClauses = maximumNumberOfClauses;
+			return this;
+		}
+
+		public Options stepSize(final double stepSize) {
+			this.stepSize = stepSize;
+			return this;
+		}
+
+		/**
+		 * The timeout of a score task, in seconds.
+		 */
+		public Options timeout(final int timeout) {
+			this.timeout = timeout;
+			return this;
+		}
+
+		public Options numberOfAdditionalThreads(final int numberOfAdditionalThreads) {
+			this.numberOfAdditionalThreads = numberOfAdditionalThreads;
+			return this;
+		}
+
+		public Options outputDirectory(final File outputDirectory) {
+			this.outputDirectory = outputDirectory;
+			return this;
+		}
+
+		public Options inProcessScoring(final boolean inProcessScoring) {
+			this.inProcessScoring = inProcessScoring;
+			return this;
+		}
+
+		/**
+		 * Racing candidates requires in-process scoring.
+		 */
+		public Options racing(final int racingIterations, final double racingFraction) {
+			this.racingIterations = racingIterations;
+			this.racingFraction = racingFraction;
+			return this;
+		}
+
+		/**
+		 * When a score cache directory is given, scores are stored in it and
+		 * reused, and the search resumes from the last completed iteration of
+		 * an identical earlier run.
+		 */
+		public Options scoreCacheDirectory(final File scoreCacheDirectory) {
+			this.scoreCacheDirectory = scoreCacheDirectory;
+			return this;
+		}
+
+		/**
+		 * The beam width is only used by the beam search strategy.
+		 */
+		public Options beamWidth(final int beamWidth) {
+			this.beamWidth = beamWidth;
+			return this;
+		}
+
+		/**
+		 * When a prefilter timeout is given, candidates are only scored when
+		 * their partition function compiles within that time (in milliseconds)
+		 * to a circuit of at most the given size and order.
+		 */
+		public Options prefilter(final long prefilterTimeout, final int maximumCircuitSize, final int maximumCircuitOrder) {
+			this.prefilterTimeout = prefilterTimeout;
+			this.maximumCircuitSize = maximumCircuitSize;
+			this.maximumCircuitOrder = maximumCircuitOrder;
+			return this;
+		}
+
+	}
+
+	public StructureLearner(final List<File> databases, final String header, final String formulas, final Options options) {
+		if (options.racingIterations > 0 && !options.inProcessScoring) {
+			throw new IllegalArgumentException("Racing candidates requires in-process scoring.");
+		}
 		this.databases = databases;
 		this.header = header;
 		this.formulas = formulas;
-		Settings.setNormalizeLikelihood(normalizeLikelihood);
-		Settings.setNormalizeObjectiveFunction(normalizeObjectiveFunction);
-		Settings.setSearchStrategy(searchStrategy);
-		Settings.setComplexityPenalty(complexityPenalty);
-		Settings.setMaximumNumberOfClauses(maximumNumberOfClauses);
-		Settings.setStepSize(stepSize);
-		Settings.setTimeoutInSeconds(timeout);
-		Settings.setNumberOfAdditionalThreads(numberOfAdditionalThreads);
-		Settings.setOutputDirectory(outputDirectory);
+		Settings.setNormalizeLikelihood(options.normalizeLikelihood);
+		Settings.setNormalizeObjectiveFunction(options.normalizeObjectiveFunction);
+		Settings.setSearchStrategy(options.searchStrategy);
+		Settings.setComplexityPenalty(options.complexityPenalty);
+		Settings.setMaximumNumberOfClauses(options.maximumNumberOfClauses);
+		Settings.setStepSize(options.stepSize);
+		Settings.setTimeoutInSeconds(options.timeout);
+		Settings.setNumberOfAdditionalThreads(options.numberOfAdditionalThreads);
+		Settings.setOutputDirectory(options.outputDirectory);
+		Settings.setInProcessScoring(options.inProcessScoring);
+		Settings.setRacingIterations(options.racingIterations);
+		Settings.setRacingFraction(options.racingFraction);
+		Settings.setScoreCacheDirectory(options.scoreCacheDirectory);
+		Settings.setBeamWidth(options.beamWidth);
+		Settings.setPrefilterTimeoutInMilliseconds(options.prefilterTimeout);
+		Settings.setPrefilterMaximumCircuitSize(options.maximumCircuitSize);
+		Settings.setPrefilterMaximumCircuitOrder(options.maximumCircuitOrder);
 	}
 
 	private Set<Model> constructModels(Model initialModel, Set<Clause> clauses) {
 		Set<Model> result = new HashSet<Model>();
 
+		int numberOfDuplicates = 0;
 		for (Clause clause : clauses) {
+			// clauses are canonical, so an equivalent clause would be equal
+			if (initialModel.getClauses().contains(clause)) {
+				numberOfDuplicates++;
+				continue;
+			}
 			Model model = new Model(initialModel);
 			model.addClause(clause);
-			result.add(model);
+			if (!result.add(model)) {
+				numberOfDuplicates++;
+			}
+		}
+
+		if (numberOfDuplicates > 0) {
+			Utils.reportMessage("Dropped " + numberOfDuplicates + " duplicate candidate models");
 		}
 
 		return result;
 	}
 
+	/**
+	 * Compiles the partition functions of the given models under a budget and
+	 * removes the models that are rejected, if prefiltering is enabled. The
+	 * verdict on a rejected model is kept, and the same model is rejected
+	 * without compiling it when it is constructed again, for example from
+	 * another model in the beam. Verdicts of compilations that ran out of
+	 * time are not kept, since they depend on the load of the machine. The
+	 * clauses of a rejected model remain candidate clauses.
+	 */
+	private void prefilterModels(Set<Model> models) {
+		if (Settings.getPrefilterTimeoutInMilliseconds() == 0 || models.isEmpty()) {
+			return;
+		}
+
+		int numberOfModels = models.size();
+		int numberOfRejections = 0;
+
+		// reject the models that were rejected before
+		Iterator<Model> iterator = models.iterator();
+		while (iterator.hasNext()) {
+			Model model = iterator.next();
+			if (this.prefilterRejections.containsKey(model.getFingerprint())) {
+				iterator.remove();
+				numberOfRejections++;
+			}
+		}
+
+		// create prefilter tasks
+		Set<PrefilterTask> prefilterTasks = new HashSet<PrefilterTask>();
+		for (Model model : models) {
+			prefilterTasks.add(new PrefilterTask(model));
+		}
+
+		// execute prefilter tasks
+		TaskExecutor.getInstance().executePrefilterTasks(prefilterTasks);
+
+		for (PrefilterTask task : prefilterTasks) {
+			PrefilterVerdict verdict = task.getVerdict();
+			// a check that failed leaves the decision to scoring
+			if (verdict != null && !verdict.accepted()) {
+				Model model = task.getModel();
+				models.remove(model);
+				if (!verdict.timedOut()) {
+					this.prefilterRejections.put(model.getFingerprint(), verdict);
+				}
+				Utils.reportMessage("Prefilter rejected " + model.getLastClause() + ": " + verdict);
+				numberOfRejections++;
+			}
+		}
+
+		Utils.reportMessage("Prefilter rejected " + numberOfRejections + " of " + numberOfModels + " candidate models (" + (numberOfModels - prefilterTasks.size()) + " by earlier verdicts)");
+	}
+
 	public void run() {
 
+		long startTime = System.currentTimeMillis();
+
+		Model model = this.learn();
+
+		// output final model
+		if (model != null) {
+			Utils.reportMessage("----------");
+			Utils.reportMessage(model.getFinalScoreObject().getLearnedModelAsString());
+			Utils.reportMessage("----------");
+			Utils.reportMessage("Final model hashcode: " + model.hashCode());
+			Utils.reportMessage("Final model: " + FileBuilder.storeModel(model, this.getDatabases(), "final"));
+		}
+
+		// report runtime
+		long endTime = System.currentTimeMillis();
+		long runTime = endTime - startTime;
+		if (this.getLearningContext() != null) {
+			Utils.reportMessage("Circuit cache: " + this.getLearningContext().nnfCache());
+		}
+		Utils.reportMessage("Total runtime: " + runTime + " ms");
+
+		System.exit(0);
+	}
+
+	/**
+	 * Runs the configured search and returns the learned model.
+	 */
+	Model learn() {
+
 		// report debugging information
 		Utils.reportMessage("Search strategy: " + Settings.getSearchStrategy());
+		Utils.reportMessage("Beam width: " + Settings.getBeamWidth());
 		Utils.reportMessage("Normalize likelihood: " + Settings.getNormalizeLikelihood());
 		Utils.reportMessage("Normalize objective function: " + Settings.getNormalizeObjectiveFunction());
 		Utils.reportMessage("Complexity penalty: " + Settings.getComplexityPenalty());
@@ -87,49 +361,85 @@ public class StructureLearner {
 		Utils.reportMessage("Step size: " + Settings.getStepSize());
 		Utils.reportMessage("Timeout: " + Settings.getTimeoutInSeconds());
 		Utils.reportMessage("Number of additional threads: " + Settings.getNumberOfAdditionalThreads());
+		Utils.reportMessage("In-process scoring: " + Settings.getInProcessScoring());
+		Utils.reportMessage("Racing iterations: " + Settings.getRacingIterations());
+		Utils.reportMessage("Racing fraction: " + Settings.getRacingFraction());
+		Utils.reportMessage("Score cache directory: " + Settings.getScoreCacheDirectory());
+		Utils.reportMessage("Prefilter timeout: " + Settings.getPrefilterTimeoutInMilliseconds());
+		Utils.reportMessage("Prefilter maximum circuit size: " + Settings.getPrefilterMaximumCircuitSize());
+		Utils.reportMessage("Prefilter maximum circuit order: " + Settings.getPrefilterMaximumCircuitOrder());
 		Utils.reportMessage("Output directory: " + Settings.getOutputDirectory());
 
-		long startTime = System.currentTimeMillis();
+		if (Settings.getInProcessScoring()) {
+			this.learningContext = new CandidateLearningContext(this.getHeader());
+		}
 
 		// read clauses from theory and construct empty model
 		Set<Clause> clauses = ClauseBuilder.buildClausesFromTheory(this.getFormulas());
 		Model model = ModelBuilder.buildEmptyModelFromTheory(this.getHeader());
 
-		this.runScoreTask(model);
+		// equivalent formulas result in equal clauses, which are only scored once
+		int numberOfFormulas = 0;
+		for (String formula : this.getFormulas().split(Utils.getNewLine())) {
+			if (!formula.isEmpty()) {
+				numberOfFormulas++;
+			}
+		}
+		Utils.reportMessage("Candidate clauses: " + clauses.size() + " (" + (numberOfFormulas - clauses.size()) + " duplicates dropped)");
 
 		int numberOfClauses = 0;
 		int maximumNumberOfClauses = Math.min(clauses.size(), Settings.getMaximumNumberOfClauses());
 
 		int iteration = 0;
 
+		// resume from the last completed iteration of an identical run
+		File checkpointFile = this.getCheckpointFile();
+		Checkpoint checkpoint = null;
+		if (checkpointFile != null && checkpointFile.exists()) {
+			checkpoint = readCheckpoint(checkpointFile, clauses);
+			if (checkpoint != null) {
+				Model emptyModel = model;
+				model = extendModel(emptyModel, checkpoint.getClauses());
+				if (Settings.getSearchStrategy() != Settings.BEAM_SEARCH) {
+					clauses.removeAll(checkpoint.getClauses());
+				}
+				numberOfClauses = model.getClauses().size();
+				iteration = checkpoint.getIteration() + 1;
+				Utils.reportMessage("Resuming after iteration " + checkpoint.getIteration() + " from " + checkpointFile.getAbsolutePath());
+			}
+		}
+
+		this.runScoreTask(model, null);
+
+		if (Settings.getSearchStrategy() == Settings.BEAM_SEARCH) {
+			List<List<Clause>> checkpointBeam = (checkpoint == null) ? null : checkpoint.getBeam();
+			model = this.runBeamSearch(model, clauses, numberOfClauses, maximumNumberOfClauses, iteration, checkpointFile, checkpointBeam);
+		}
+		else {
+			model = this.runGreedySearch(model, clauses, numberOfClauses, maximumNumberOfClauses, iteration, checkpointFile);
+		}
+
+		return model;
+	}
+
+	/**
+	 * Extends the model greedily with the candidate clause that results in the
+	 * best scoring model, as long as this improves the log likelihood. Returns
+	 * the final model.
+	 */
+	private Model runGreedySearch(Model model, Set<Clause> clauses, int numberOfClauses, int maximumNumberOfClauses, int iteration, File checkpointFile) {
+
 		while (!clauses.isEmpty() && numberOfClauses < maximumNumberOfClauses) {
 
 			// construct models
 			Set<Model> models = this.constructModels(model, clauses);
+			this.prefilterModels(models);
 
 			// compute scores
-			this.runScoreTasks(models);
+			this.runScoreTasks(models, model);
 
 			// compute minimum and maximum circuit size and log likelihood
-			int minimumCircuitSize = Integer.MAX_VALUE;
-			int maximumCircuitSize = 0;
-			double minimumLogLikelihood = Double.MAX_VALUE;
-			double maximumLogLikelihood = -Double.MAX_VALUE;
-
-			for (Model m : models) {
-				if (!m.getScores().isEmpty()) {
-					Score s = m.getScores().get(0);
-					minimumCircuitSize = Math.min(minimumCircuitSize, s.getMinimumCircuitSize());
-					maximumCircuitSize = Math.max(maximumCircuitSize, s.getMaximumCircuitSize());
-					minimumLogLikelihood = Math.min(minimumLogLikelihood, s.getLogLikelihood());
-					maximumLogLikelihood = Math.max(maximumLogLikelihood, s.getLogLikelihood());
-				}
-			}
-
-			Model.setMinimumCircuitSize(minimumCircuitSize);
-			Model.setMaximumCircuitSize(maximumCircuitSize);
-			Model.setMinimumLogLikelihood(minimumLogLikelihood);
-			Model.setMaximumLogLikelihood(maximumLogLikelihood);
+			updateNormalization(models);
 
 			// sort models
 			List<Model> modelsList = sortModels(models, this.getNumberOfDatabases());
@@ -139,7 +449,9 @@ public class StructureLearner {
 			if (!modelsList.isEmpty()) {
 				bestModel = modelsList.get(0);
 
-				this.runScoreTask(bestModel);
+				this.runScoreTask(bestModel, getLearnedWeights(model));
+
+				reportTelemetry(models, Collections.singleton(bestModel), iteration);
 
 				File iterationRanking = FileBuilder.storeRanking(modelsList, "iteration" + iteration);
 				Utils.reportMessage("Iteration " + iteration + " ranking: " + iterationRanking.getAbsolutePath());
@@ -164,6 +476,11 @@ public class StructureLearner {
 			File iterationModel = FileBuilder.storeModel(model, this.getDatabases(), "iteration" + iteration);
 			Utils.reportMessage("Iteration " + iteration + " model: " + iterationModel.getAbsolutePath());
 
+			// write checkpoint
+			if (checkpointFile != null) {
+				writeCheckpoint(checkpointFile, iteration, model);
+			}
+
 			// increase number of clauses
 			numberOfClauses++;
 
@@ -171,21 +488,196 @@ public class StructureLearner {
 			iteration++;
 		}
 
-		// output final model
-		if (model != null) {
-			Utils.reportMessage("----------");
-			Utils.reportMessage(model.getFinalScoreObject().getLearnedModelAsString());
-			Utils.reportMessage("----------");
-			Utils.reportMessage("Final model hashcode: " + model.hashCode());
-			Utils.reportMessage("Final model: " + FileBuilder.storeModel(model, this.getDatabases(), "final"));
+		return model;
+	}
+
+	/**
+	 * Extends the best models found so far in a beam of the configured width.
+	 * Every level computes the final scores of the models in the beam and only
+	 * extends the models that improve on the model they extend, see
+	 * BeamLevel. The candidates of such a model are scored as soon as its
+	 * final score is known, while the final scores of the other models are
+	 * still being computed. Returns the best model found.
+	 *
+	 * A checkpoint stores the best model and the beam after every level. When
+	 * the given beam of a checkpoint is not null, the search resumes with that
+	 * beam; its models extend the model without their last clause.
+	 *
+	 * As in the greedy search, models and checkpoints are numbered by the
+	 * iteration whose ranking they were chosen from.
+	 */
+	private Model runBeamSearch(Model initialModel, Set<Clause> clauses, int numberOfClauses, int maximumNumberOfClauses, int iteration, File checkpointFile, List<List<Clause>> checkpointBeam) {
+
+		Model bestModel = initialModel;
+
+		// the iteration whose ranking filled the beam
+		int beamIteration = iteration - 1;
+
+		// the models on the current level and the models they extend
+		List<Model> beam = new ArrayList<Model>();
+		Map<Model, Model> parentModels = new IdentityHashMap<Model, Model>();
+		if (checkpointBeam == null) {
+			beam.add(initialModel);
+		}
+		else {
+			Model emptyModel = ModelBuilder.buildEmptyModelFromTheory(this.getHeader());
+			Map<Model, Model> distinctParentModels = new HashMap<Model, Model>();
+			for (List<Clause> beamClauses : checkpointBeam) {
+				Model parentModel = extendModel(emptyModel, beamClauses.subList(1, beamClauses.size()));
+				if (distinctParentModels.containsKey(parentModel)) {
+					parentModel = distinctParentModels.get(parentModel);
+				}
+				else {
+					distinctParentModels.put(parentModel, parentModel);
+					this.runScoreTask(parentModel, null);
+				}
+				Model model = new Model(parentModel);
+				model.addClause(beamClauses.get(0));
+				beam.add(model);
+				parentModels.put(model, parentModel);
+			}
+			if (!beam.isEmpty()) {
+				numberOfClauses = beam.get(0).getClauses().size();
+			}
 		}
 
-		// report runtime
-		long endTime = System.currentTimeMillis();
-		long runTime = endTime - startTime;
-		Utils.reportMessage("Total runtime: " + runTime + " ms");
+		while (!beam.isEmpty()) {
 
-		System.exit(0);
+			// compute the final scores of the beam, extending every model that
+			// improves as soon as its final score is known
+			final BeamLevel level = new BeamLevel(clauses, numberOfClauses < maximumNumberOfClauses);
+			final Map<Model, Model> beamParentModels = parentModels;
+			Set<ScoreTask> finalScoreTasks = new HashSet<ScoreTask>();
+			for (Model model : beam) {
+				if (model.getFinalScoreObject() == null) {
+					finalScoreTasks.add(new ScoreTask(model, this.getDatabases(), this.getLearningContext(), getLearnedWeights(beamParentModels.get(model))));
+				}
+				else {
+					level.finalScoreAvailable(model, beamParentModels.get(model));
+				}
+			}
+			TaskExecutor.getInstance().executeScoreTasks(finalScoreTasks, new ScoreListener() {
+				@Override
+				public boolean scoreAvailable(Score score) {
+					score.getModel().addFinalScore(score);
+					level.finalScoreAvailable(score.getModel(), beamParentModels.get(score.getModel()));
+					return true;
+				}
+			});
+			level.awaitCandidates();
+			Set<Model> models = level.getCandidates();
+
+			Set<Model> finalScoreModels = new HashSet<Model>();
+			for (ScoreTask task : finalScoreTasks) {
+				finalScoreModels.add(task.getModel());
+			}
+			reportTelemetry(models, finalScoreModels, iteration);
+
+			// only models that improve on the model they extend can be the best
+			Model previousBestModel = bestModel;
+			for (Model model : beam) {
+				if (level.isImproved(model) && model.getFinalLogLikelihood() > bestModel.getFinalLogLikelihood()) {
+					bestModel = model;
+				}
+			}
+
+			if (bestModel != previousBestModel) {
+				// write model to file
+				File iterationModel = FileBuilder.storeModel(bestModel, this.getDatabases(), "iteration" + beamIteration);
+				Utils.reportMessage("Iteration " + beamIteration + " model: " + iterationModel.getAbsolutePath());
+			}
+
+			parentModels = level.getParentModels();
+
+			// compute minimum and maximum circuit size and log likelihood
+			updateNormalization(models);
+
+			// sort models and fill the beam of the next level
+			List<Model> modelsList = sortModels(models, this.getNumberOfDatabases());
+			if (!modelsList.isEmpty()) {
+				File iterationRanking = FileBuilder.storeRanking(modelsList, "iteration" + iteration);
+				Utils.reportMessage("Iteration " + iteration + " ranking: " + iterationRanking.getAbsolutePath());
+			}
+			beam = new ArrayList<Model>(modelsList.subList(0, Math.min(Settings.getBeamWidth(), modelsList.size())));
+			beamIteration = iteration;
+
+			// write checkpoint
+			if (checkpointFile != null) {
+				writeCheckpoint(checkpointFile, beamIteration, bestModel, beam);
+			}
+
+			// increase number of clauses
+			numberOfClauses++;
+
+			// increase iteration
+			iteration++;
+		}
+
+		return bestModel;
+	}
+
+	/**
+	 * Appends the telemetry records of the fold scores of the given candidate
+	 * models and of the final scores of the given models to the telemetry
+	 * file, and reports the totals of the iteration.
+	 */
+	private static void reportTelemetry(Set<Model> candidateModels, Set<Model> finalScoreModels, int iteration) {
+		List<Score> scores = new ArrayList<Score>();
+		for (Model model : candidateModels) {
+			scores.addAll(model.getScores());
+		}
+		for (Model model : finalScoreModels) {
+			if (model.getFinalScoreObject() != null) {
+				scores.add(model.getFinalScoreObject());
+			}
+		}
+
+		int numberOfCachedScores = 0;
+		long compileTime = 0;
+		long countTime = 0;
+		long learnTime = 0;
+		long iterations = 0;
+		for (Score score : scores) {
+			if (score.isCached()) {
+				numberOfCachedScores++;
+			}
+			compileTime += score.getCompileTime();
+			countTime += score.getCountTime();
+			learnTime += score.getLearnTime();
+			iterations += score.getIterations();
+		}
+
+		Utils.reportMessage("Iteration " + iteration + " telemetry: " + scores.size() + " scores (" + numberOfCachedScores + " cached), compiling " + compileTime + " ms, counting " + countTime + " ms, learning " + learnTime + " ms, " + iterations + " optimizer iterations");
+
+		try {
+			FileBuilder.appendTelemetryToFile(scores, iteration);
+		}
+		catch (IOException e) {
+			Utils.reportMessage("Could not write telemetry: " + e.getMessage());
+		}
+	}
+
+	// sets the bounds that normalize the objective function of the given models
+	private static void updateNormalization(Set<Model> models) {
+		int minimumCircuitSize = Integer.MAX_VALUE;
+		int maximumCircuitSize = 0;
+		double minimumLogLikelihood = Double.MAX_VALUE;
+		double maximumLogLikelihood = -Double.MAX_VALUE;
+
+		for (Model m : models) {
+			if (!m.getScores().isEmpty()) {
+				Score s = m.getScores().get(0);
+				minimumCircuitSize = Math.min(minimumCircuitSize, s.getMinimumCircuitSize());
+				maximumCircuitSize = Math.max(maximumCircuitSize, s.getMaximumCircuitSize());
+				minimumLogLikelihood = Math.min(minimumLogLikelihood, s.getLogLikelihood());
+				maximumLogLikelihood = Math.max(maximumLogLikelihood, s.getLogLikelihood());
+			}
+		}
+
+		Model.setMinimumCircuitSize(minimumCircuitSize);
+		Model.setMaximumCircuitSize(maximumCircuitSize);
+		Model.setMinimumLogLikelihood(minimumLogLikelihood);
+		Model.setMaximumLogLikelihood(maximumLogLikelihood);
 	}
 
 	private static List<Model> sortModels(Set<Model> models, int numberOfDatabases) {
@@ -200,33 +692,441 @@ public class StructureLearner {
 	}
 
 	// score on ALL-BUT-ONE database and repeat
-	private void runScoreTasks(Set<Model> models) {
+	private void runScoreTasks(Set<Model> models, Model parentModel) {
+		Map<Model, Model> parentModels = new IdentityHashMap<Model, Model>();
+		for (Model model : models) {
+			parentModels.put(model, parentModel);
+		}
+		this.runScoreTasks(models, parentModels);
+	}
+
+	// score on ALL-BUT-ONE database and repeat, given the model that every model extends
+	private void runScoreTasks(Set<Model> models, Map<Model, Model> parentModels) {
+
+		if (Settings.getInProcessScoring()) {
+			this.runCandidateScoreTasks(models, parentModels);
+			return;
+		}
 
-		// create score tasks
+		// execute score tasks
+		TaskExecutor.getInstance().executeScoreTasks(this.createScoreTasks(models, parentModels), false);
+	}
+
+	// one score task per model and left-out database, warm-started from the
+	// weights of the model that it extends
+	private Set<ScoreTask> createScoreTasks(Set<Model> models, Map<Model, Model> parentModels) {
 		Set<ScoreTask> scoreTasks = new HashSet<ScoreTask>();
 		for (Model model : models) {
+			Map<String, Double> initialWeights = getLearnedWeights(parentModels.get(model));
 			for (int i = 0; i < this.getNumberOfDatabases(); i++) {
 				List<File> databases = new ArrayList<File>(this.getDatabases());
 				databases.remove(i);
-				scoreTasks.add(new ScoreTask(model, databases));
+				scoreTasks.add(new ScoreTask(model, databases, null, initialWeights));
 			}
 		}
+		return scoreTasks;
+	}
 
-		// execute score tasks
-		TaskExecutor.getInstance().executeScoreTasks(scoreTasks, false);
+	// score on ALL-BUT-ONE database and repeat, compiling every model once
+	private void runCandidateScoreTasks(Set<Model> models, Map<Model, Model> parentModels) {
+
+		Set<CandidateScoreTask> candidateScoreTasks = this.createCandidateScoreTasks(models, parentModels);
+
+		if (Settings.getRacingIterations() > 0) {
+			candidateScoreTasks = this.raceCandidateScoreTasks(candidateScoreTasks);
+		}
+
+		// execute candidate score tasks
+		TaskExecutor.getInstance().executeCandidateScoreTasks(candidateScoreTasks);
+	}
+
+	// one candidate score task per model, warm-started from the weights of the
+	// model that it extends
+	private Set<CandidateScoreTask> createCandidateScoreTasks(Set<Model> models, Map<Model, Model> parentModels) {
+		Set<CandidateScoreTask> candidateScoreTasks = new HashSet<CandidateScoreTask>();
+		for (Model model : models) {
+			candidateScoreTasks.add(new CandidateScoreTask(model, this.getDatabases(), this.getLearningContext(), getLearnedWeights(parentModels.get(model))));
+		}
+		return candidateScoreTasks;
+	}
+
+	/**
+	 * Races the given tasks by successive halving. Every round learns the
+	 * weights of the remaining candidates for a limited number of iterations,
+	 * ranks the candidates on this partial objective, and only promotes the
+	 * best fraction of them to the next round, which gets a proportionally
+	 * larger budget. Returns the tasks of the finalists, which continue from
+	 * the weights reached in the race.
+	 */
+	private Set<CandidateScoreTask> raceCandidateScoreTasks(Set<CandidateScoreTask> tasks) {
+
+		double fraction = Settings.getRacingFraction();
+		int numberOfFinalists = (int) Math.ceil(1 / fraction);
+		int iterations = Settings.getRacingIterations();
+
+		Set<CandidateScoreTask> remainingTasks = tasks;
+		int round = 0;
+
+		while (remainingTasks.size() > numberOfFinalists) {
+
+			// execute the round
+			final Map<Model, List<Score>> partialScores = new IdentityHashMap<Model, List<Score>>();
+			for (CandidateScoreTask task : remainingTasks) {
+				task.setMaximumNumberOfIterations(iterations);
+				partialScores.put(task.getModel(), new ArrayList<Score>());
+			}
+			TaskExecutor.getInstance().executeCandidateScoreTasks(remainingTasks, new ScoreListener() {
+				@Override
+				public boolean scoreAvailable(Score score) {
+					partialScores.get(score.getModel()).add(score);
+					return true;
+				}
+			});
+
+			// rank the candidates that were scored on every fold
+			List<CandidateScoreTask> rankedTasks = new ArrayList<CandidateScoreTask>();
+			final Map<CandidateScoreTask, Double> objectives = new HashMap<CandidateScoreTask, Double>();
+			for (CandidateScoreTask task : remainingTasks) {
+				List<Score> scores = partialScores.get(task.getModel());
+				if (scores.size() == this.getNumberOfDatabases()) {
+					rankedTasks.add(task);
+					objectives.put(task, Model.getScore(scores));
+				}
+			}
+			Collections.sort(rankedTasks, new Comparator<CandidateScoreTask>() {
+				@Override
+				public int compare(CandidateScoreTask task, CandidateScoreTask otherTask) {
+					return Double.compare(objectives.get(otherTask), objectives.get(task));
+				}
+			});
+
+			// promote the best candidates
+			int numberOfPromotions = Math.max(numberOfFinalists, (int) Math.ceil(fraction * rankedTasks.size()));
+			remainingTasks = new HashSet<CandidateScoreTask>(rankedTasks.subList(0, Math.min(numberOfPromotions, rankedTasks.size())));
+
+			Utils.reportMessage("Racing round " + round + ": " + iterations + " iterations, " + rankedTasks.size() + " candidates scored, " + remainingTasks.size() + " promoted");
+
+			iterations = (int) Math.min(Integer.MAX_VALUE, Math.ceil(iterations / fraction));
+			round++;
+		}
+
+		// the finalists learn their weights until convergence
+		for (CandidateScoreTask task : remainingTasks) {
+			task.setMaximumNumberOfIterations(Integer.MAX_VALUE);
+		}
+
+		return remainingTasks;
 	}
 
 	// score on ALL databases
-	private void runScoreTask(Model model) {
+	private void runScoreTask(Model model, Map<String, Double> initialWeights) {
 
 		// create score task
 		Set<ScoreTask> scoreTasks = new HashSet<ScoreTask>();
-		scoreTasks.add(new ScoreTask(model, this.getDatabases()));
+		scoreTasks.add(new ScoreTask(model, this.getDatabases(), this.getLearningContext(), initialWeights));
 
 		// execute score task
 		TaskExecutor.getInstance().executeScoreTasks(scoreTasks, true);
 	}
 
+	/**
+	 * The candidates of one level of the beam search. A model of the beam is
+	 * only extended when its final score improves on the model that it
+	 * extends, and its candidates are submitted for scoring right away, so
+	 * that they share the threads with the final scores of the other models
+	 * of the beam. Candidates shared by several models are scored once,
+	 * warm-started from the first of those models that improved. Racing ranks
+	 * all candidates of a level together, so raced candidates are only scored
+	 * once the final scores of the whole beam are known.
+	 */
+	private class BeamLevel {
+
+		private final Set<Clause> clauses;
+
+		private final boolean extend;
+
+		private final Set<Model> improvedModels = Collections.newSetFromMap(new IdentityHashMap<Model, Boolean>());
+
+		// every candidate constructed so far, including the rejected ones
+		private final Set<Model> constructedModels = new HashSet<Model>();
+
+		private final Set<Model> candidates = new HashSet<Model>();
+
+		private final Map<Model, Model> parentModels = new IdentityHashMap<Model, Model>();
+
+		private final Map<ScoreTask, Future<Score>> scores = new HashMap<ScoreTask, Future<Score>>();
+
+		private final Map<CandidateScoreTask, Future<List<Score>>> candidateScores = new HashMap<CandidateScoreTask, Future<List<Score>>>();
+
+		public BeamLevel(Set<Clause> clauses, boolean extend) {
+			this.clauses = clauses;
+			this.extend = extend;
+		}
+
+		/**
+		 * Extends the given model of the beam if it improves on the given
+		 * model that it extends, which is null for the initial model.
+		 */
+		public void finalScoreAvailable(Model model, Model parentModel) {
+			if (parentModel != null && !(model.getFinalLogLikelihood() > parentModel.getFinalLogLikelihood())) {
+				return;
+			}
+			this.improvedModels.add(model);
+			if (!this.extend) {
+				return;
+			}
+
+			Set<Clause> remainingClauses = new HashSet<Clause>(this.clauses);
+			remainingClauses.removeAll(model.getClauses());
+			Set<Model> models = new HashSet<Model>();
+			for (Model candidate : constructModels(model, remainingClauses)) {
+				if (this.constructedModels.add(candidate)) {
+					models.add(candidate);
+					this.parentModels.put(candidate, model);
+				}
+			}
+			prefilterModels(models);
+			this.candidates.addAll(models);
+
+			if (Settings.getRacingIterations() > 0) {
+				return;
+			}
+			if (Settings.getInProcessScoring()) {
+				this.candidateScores.putAll(TaskExecutor.getInstance().submitCandidateScoreTasks(createCandidateScoreTasks(models, this.parentModels)));
+			}
+			else {
+				this.scores.putAll(TaskExecutor.getInstance().submitScoreTasks(createScoreTasks(models, this.parentModels)));
+			}
+		}
+
+		/**
+		 * Waits for the scores of all candidates.
+		 */
+		public void awaitCandidates() {
+			if (Settings.getRacingIterations() > 0) {
+				runScoreTasks(this.candidates, this.parentModels);
+			}
+			TaskExecutor.getInstance().awaitScoreTasks(this.scores, false);
+			TaskExecutor.getInstance().awaitCandidateScoreTasks(this.candidateScores);
+		}
+
+		public boolean isImproved(Model model) {
+			return this.improvedModels.contains(model);
+		}
+
+		public Set<Model> getCandidates() {
+			return this.candidates;
+		}
+
+		// the model of the beam that every candidate extends
+		public Map<Model, Model> getParentModels() {
+			return this.parentModels;
+		}
+
+	}
+
+	private static class Checkpoint {
+
+		private final int iteration;
+
+		private final List<Clause> clauses;
+
+		private final List<List<Clause>> beam;
+
+		/**
+		 * The beam holds the clauses of every model on the beam, its last
+		 * clause first, and is null when the checkpoint has no beam.
+		 */
+		public Checkpoint(int iteration, List<Clause> clauses, List<List<Clause>> beam) {
+			this.iteration = iteration;
+			this.clauses = clauses;
+			this.beam = beam;
+		}
+
+		public int getIteration() {
+			return this.iteration;
+		}
+
+		public List<Clause> getClauses() {
+			return this.clauses;
+		}
+
+		public List<List<Clause>> getBeam() {
+			return this.beam;
+		}
+
+	}
+
+	/**
+	 * Returns the checkpoint file of this run, or null when no score cache
+	 * directory is set. Checkpoints are named by a fingerprint of everything
+	 * that determines the course of the search, so that a run only resumes
+	 * from checkpoints of an identical run.
+	 */
+	private File getCheckpointFile() {
+		ScoreCache scoreCache = ScoreCache.getInstance();
+		if (!scoreCache.isEnabled()) {
+			return null;
+		}
+
+		StringBuilder key = new StringBuilder();
+		key.append(this.getHeader()).append('\n');
+		key.append(this.getFormulas()).append('\n');
+		try {
+			key.append(scoreCache.getDatabasesFingerprint(this.getDatabases())).append('\n');
+		}
+		catch (IOException e) {
+			Utils.reportMessage("Cannot read databases, not using checkpoints: " + e.getMessage());
+			return null;
+		}
+		key.append(Settings.getNormalizeLikelihood()).append('\n');
+		key.append(Settings.getNormalizeObjectiveFunction()).append('\n');
+		key.append(Settings.getInProcessScoring()).append('\n');
+		key.append(Settings.getSearchStrategy()).append('\n');
+		key.append(Settings.getBeamWidth()).append('\n');
+		key.append(Settings.getComplexityPenalty()).append('\n');
+		key.append(Settings.getStepSize()).append('\n');
+		key.append(Settings.getRacingIterations()).append('\n');
+		key.append(Settings.getRacingFraction()).append('\n');
+		key.append(Settings.getPrefilterTimeoutInMilliseconds()).append('\n');
+		key.append(Settings.getPrefilterCompilationSteps()).append('\n');
+		key.append(Settings.getPrefilterMaximumCircuitSize()).append('\n');
+		key.append(Settings.getPrefilterMaximumCircuitOrder()).append('\n');
+
+		return new File(Settings.getScoreCacheDirectory(), "checkpoint-" + Utils.getFingerprint(key.toString()) + ".txt");
+	}
+
+	// returns null when the checkpoint cannot be used
+	private static Checkpoint readCheckpoint(File checkpointFile, Set<Clause> clauses) {
+		int iteration = -1;
+		List<Clause> checkpointClauses = new ArrayList<Clause>();
+		List<List<Clause>> beam = null;
+
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(checkpointFile), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith(CHECKPOINT_ITERATION)) {
+						iteration = Integer.parseInt(line.substring(CHECKPOINT_ITERATION.length()));
+					}
+					else if (line.startsWith(CHECKPOINT_CLAUSE)) {
+						Clause checkpointClause = findClause(clauses, line.substring(CHECKPOINT_CLAUSE.length()));
+						if (checkpointClause == null) {
+							return null;
+						}
+						checkpointClauses.add(checkpointClause);
+					}
+					else if (line.startsWith(CHECKPOINT_BEAM)) {
+						beam = new ArrayList<List<Clause>>();
+					}
+					else if (line.startsWith(CHECKPOINT_BEAM_MODEL) || line.startsWith(CHECKPOINT_BEAM_CLAUSE)) {
+						boolean isLastClause = line.startsWith(CHECKPOINT_BEAM_MODEL);
+						String clauseString = line.substring(isLastClause ? CHECKPOINT_BEAM_MODEL.length() : CHECKPOINT_BEAM_CLAUSE.length());
+						Clause checkpointClause = findClause(clauses, clauseString);
+						if (checkpointClause == null || beam == null || (!isLastClause && beam.isEmpty())) {
+							return null;
+						}
+						if (isLastClause) {
+							beam.add(new ArrayList<Clause>());
+						}
+						beam.get(beam.size() - 1).add(checkpointClause);
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (IOException e) {
+			Utils.reportMessage("Cannot read checkpoint: " + e.getMessage());
+			return null;
+		}
+		catch (NumberFormatException e) {
+			Utils.reportMessage("Cannot read checkpoint: " + e.getMessage());
+			return null;
+		}
+
+		if (iteration < 0) {
+			return null;
+		}
+		return new Checkpoint(iteration, checkpointClauses, beam);
+	}
+
+	// returns null when none of the given clauses is written as the given string
+	private static Clause findClause(Set<Clause> clauses, String clauseString) {
+		for (Clause clause : clauses) {
+			if (clause.toString().equals(clauseString)) {
+				return clause;
+			}
+		}
+		return null;
+	}
+
+	private static Model extendModel(Model model, List<Clause> clauses) {
+		for (Clause clause : clauses) {
+			Model nextModel = new Model(model);
+			nextModel.addClause(clause);
+			model = nextModel;
+		}
+		return model;
+	}
+
+	private static void writeCheckpoint(File checkpointFile, int iteration, Model model) {
+		writeCheckpoint(checkpointFile, iteration, model, null);
+	}
+
+	// a beam of null is not written
+	private static void writeCheckpoint(File checkpointFile, int iteration, Model model, List<Model> beam) {
+		File temporaryFile = new File(checkpointFile.getPath() + ".tmp");
+		try {
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporaryFile), "UTF-8"));
+			try {
+				writer.write(CHECKPOINT_ITERATION + iteration + "\n");
+				for (Clause clause : model.getClauses()) {
+					writer.write(CHECKPOINT_CLAUSE + clause + "\n");
+				}
+				if (beam != null) {
+					writer.write(CHECKPOINT_BEAM + beam.size() + "\n");
+					for (Model beamModel : beam) {
+						writer.write(CHECKPOINT_BEAM_MODEL + beamModel.getLastClause() + "\n");
+						for (Clause clause : beamModel.getClauses()) {
+							if (!clause.equals(beamModel.getLastClause())) {
+								writer.write(CHECKPOINT_BEAM_CLAUSE + clause + "\n");
+							}
+						}
+					}
+				}
+			}
+			finally {
+				writer.close();
+			}
+			// a crash while writing leaves the previous checkpoint intact
+			if (!temporaryFile.renameTo(checkpointFile)) {
+				checkpointFile.delete();
+				temporaryFile.renameTo(checkpointFile);
+			}
+		}
+		catch (IOException e) {
+			Utils.reportMessage("Cannot write checkpoint: " + e.getMessage());
+		}
+	}
+
+	// the weights learned for the given model on all databases, or else on its first fold, if known
+	private static Map<String, Double> getLearnedWeights(Model model) {
+		if (model == null) {
+			return null;
+		}
+		Score finalScore = model.getFinalScoreObject();
+		if (finalScore != null) {
+			return finalScore.getLearnedWeights();
+		}
+		if (!model.getScores().isEmpty()) {
+			return model.getScores().get(0).getLearnedWeights();
+		}
+		return null;
+	}
+
 	private List<File> getDatabases() {
 		return this.databases;
 	}
@@ -243,4 +1143,8 @@ public class StructureLearner {
 		return this.formulas;
 	}
 
+	private CandidateLearningContext getLearningContext() {
+		return this.learningContext;
+	}
+
 }
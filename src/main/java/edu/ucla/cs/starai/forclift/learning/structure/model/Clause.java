@@ -39,20 +39,21 @@ public class Clause {
 		return Collections.unmodifiableList(this.literals);
 	}
 
+	/**
+	 * Clauses are built in canonical form, so two clauses are equal if they
+	 * have equal literals in the same order.
+	 * 
+	 * @see ClauseBuilder#buildClauseFromString(String)
+	 */
 	@Override
 	public boolean equals(Object object) {
-		if (!Clause.class.isAssignableFrom(object.getClass())) {
+		if (!(object instanceof Clause)) {
 			return false;
 		}
 
 		Clause otherClause = (Clause) object;
 
-		if (this.hashCode() == otherClause.hashCode()) {
-			return true;
-		}
-		else {
-			return false;
-		}
+		return this.getLiterals().equals(otherClause.getLiterals());
 	}
 
 	@Override
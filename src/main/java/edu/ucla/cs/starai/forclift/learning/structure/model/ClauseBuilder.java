@@ -19,6 +19,7 @@ package edu.ucla.cs.starai.forclift.learning.structure.model;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -81,6 +82,10 @@ public class ClauseBuilder {
 	 * This method transforms the string representation of a first-order formula
 	 * in the BUSL or MSL format into a Clause object.
 	 * 
+	 * The resulting clause is in canonical form: clauses that only differ in
+	 * the order of their literals or in the names of their variables result in
+	 * equal Clause objects.
+	 * 
 	 * Example BUSL: workedUnder(-1,-2) v !workedUnder(-3,-2) v !actor(-1)
 	 * Example MSL: !workedUnder(v0,v1) v !movie(v2,v0) v !movie(v2,v1)
 	 */
@@ -89,15 +94,65 @@ public class ClauseBuilder {
 		// 1. split into literals
 		Set<String> literals = splitIntoLiterals(clause);
 
-		// 2. sort literals according to their natural order
+		// 2. sort literals according to the natural order of their patterns,
+		// which do not depend on the names of the variables
 		List<String> literalsList = new ArrayList<String>(literals);
-		Collections.sort(literalsList);
+		Collections.sort(literalsList, new Comparator<String>() {
+			@Override
+			public int compare(String literal, String otherLiteral) {
+				return extractPattern(literal).compareTo(extractPattern(otherLiteral));
+			}
+		});
+
+		// 3. try all orders of literals with equal patterns and keep the
+		// smallest resulting clause
+		List<Literal> literalObjects = buildCanonicalLiterals(literalsList, new ArrayList<String>(), new boolean[literalsList.size()], null);
+
+		return new Clause(literalObjects);
+	}
+
+	/**
+	 * This method extends the given partial order of literals in all possible
+	 * ways that respect the order of the patterns, and returns the smallest
+	 * list of literals found so far. Clauses are short, so the number of
+	 * orders that is tried remains small.
+	 */
+	private static List<Literal> buildCanonicalLiterals(final List<String> literals, final List<String> order, final boolean[] used, final List<Literal> best) {
+
+		if (order.size() == literals.size()) {
+			List<Literal> candidate = buildLiterals(order);
+			if (best == null || new Clause(candidate).toString().compareTo(new Clause(best).toString()) < 0) {
+				return candidate;
+			}
+			return best;
+		}
+
+		List<Literal> result = best;
+		String pattern = extractPattern(literals.get(order.size()));
+
+		for (int i = 0; i < literals.size(); i++) {
+			if (!used[i] && extractPattern(literals.get(i)).equals(pattern)) {
+				used[i] = true;
+				order.add(literals.get(i));
+				result = buildCanonicalLiterals(literals, order, used, result);
+				order.remove(order.size() - 1);
+				used[i] = false;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * This method constructs Literal objects for the given literals, and
+	 * renames their arguments in the order in which they appear.
+	 */
+	private static List<Literal> buildLiterals(final List<String> literals) {
 
-		// 3. construct Literal objects
 		List<Literal> literalObjects = new ArrayList<Literal>();
 		List<String> argumentsCache = new ArrayList<String>();
 
-		for (String literal : literalsList) {
+		for (String literal : literals) {
 
 			boolean truthValue = isPositiveLiteral(literal);
 			String name = extractName(literal);
@@ -117,7 +172,37 @@ public class ClauseBuilder {
 			literalObjects.add(new Literal(name, truthValue, argumentsList));
 		}
 
-		return new Clause(literalObjects);
+		return literalObjects;
+	}
+
+	/**
+	 * This method extracts the pattern of the given literal, which consists of
+	 * its truth value, its name, and the positions of repeated arguments.
+	 * 
+	 * Example: !workedUnder(-1,-1) has pattern !workedUnder(0,0)
+	 */
+	private static String extractPattern(final String literal) {
+		StringBuilder stringBuilder = new StringBuilder();
+
+		if (!isPositiveLiteral(literal)) {
+			stringBuilder.append(Settings.NEGATION);
+		}
+		stringBuilder.append(extractName(literal));
+		stringBuilder.append(Settings.START_ARGUMENTS);
+
+		List<String> argumentsCache = new ArrayList<String>();
+		String infix = "";
+		for (String argument : extractArguments(literal)) {
+			if (!argumentsCache.contains(argument)) {
+				argumentsCache.add(argument);
+			}
+			stringBuilder.append(infix);
+			stringBuilder.append(argumentsCache.indexOf(argument));
+			infix = Settings.ARGUMENT_SEPARATOR;
+		}
+		stringBuilder.append(Settings.END_ARGUMENTS);
+
+		return stringBuilder.toString();
 	}
 
 	/**
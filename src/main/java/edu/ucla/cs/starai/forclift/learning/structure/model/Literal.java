@@ -57,6 +57,17 @@ public class Literal {
 		return this.getArguments().size();
 	}
 
+	@Override
+	public boolean equals(Object object) {
+		if (!(object instanceof Literal)) {
+			return false;
+		}
+
+		Literal otherLiteral = (Literal) object;
+
+		return this.getName().equals(otherLiteral.getName()) && this.getTruthValue() == otherLiteral.getTruthValue() && this.getArguments().equals(otherLiteral.getArguments());
+	}
+
 	@Override
 	public int hashCode() {
 		int result = 1;
@@ -144,12 +144,21 @@ public class Model implements Comparable<Model> {
 	}
 
 	public double getScore() {
-		if (this.getScores().isEmpty()) {
+		return getScore(this.getScores());
+	}
+
+	/**
+	 * Returns the objective of a model with the given scores, as in
+	 * getScore(). Structure learning also ranks candidates on the scores of
+	 * partially learned weights with it.
+	 */
+	public static double getScore(List<Score> scores) {
+		if (scores.isEmpty()) {
 			return -Double.MAX_VALUE;
 		}
 
 		double result = 0.00;
-		for (Score score : this.getScores()) {
+		for (Score score : scores) {
 			double value = 0;
 			if (Settings.getNormalizeObjectiveFunction()) {
 				double normalizedLogLikelihood = normalize(MINIMUM_LOGLIKELIHOOD, MAXIMUM_LOGLIKELIHOOD, score.getLogLikelihood());
@@ -161,7 +170,7 @@ public class Model implements Comparable<Model> {
 			}
 			result += value;
 		}
-		return result / this.getScores().size();
+		return result / scores.size();
 	}
 
 	public Score getFinalScoreObject() {
@@ -186,26 +195,21 @@ public class Model implements Comparable<Model> {
 
 	@Override
 	public boolean equals(Object object) {
-		if (!Model.class.isAssignableFrom(object.getClass())) {
+		if (!(object instanceof Model)) {
 			return false;
 		}
 
 		Model otherModel = (Model) object;
 
-		if (this.hashCode() == otherModel.hashCode()) {
-			return true;
-		}
-		else {
-			return false;
-		}
+		return this.getClauses().equals(otherModel.getClauses()) && this.getTypings().equals(otherModel.getTypings());
 	}
 
 	@Override
 	public int hashCode() {
+		// independent of the iteration order of the clauses
 		int result = 1;
 
 		for (Clause clause : this.getClauses()) {
-			result *= 31;
 			result += clause.hashCode();
 		}
 
@@ -234,6 +238,31 @@ public class Model implements Comparable<Model> {
 		return stringBuilder.toString();
 	}
 
+	/**
+	 * Returns a fingerprint of the typings and clauses of this model that does
+	 * not depend on the order in which they were added, and that is stable
+	 * across runs. Since clauses are in canonical form, equal models have
+	 * equal fingerprints.
+	 */
+	public String getFingerprint() {
+		List<String> lines = new ArrayList<String>(this.getTypings());
+		Collections.sort(lines);
+		List<String> clauseLines = new ArrayList<String>();
+		for (Clause clause : this.getClauses()) {
+			clauseLines.add(clause.toString());
+		}
+		Collections.sort(clauseLines);
+		lines.add("");
+		lines.addAll(clauseLines);
+
+		StringBuilder stringBuilder = new StringBuilder();
+		for (String line : lines) {
+			stringBuilder.append(line);
+			stringBuilder.append('\n');
+		}
+		return Utils.getFingerprint(stringBuilder.toString());
+	}
+
 	@Override
 	public int compareTo(Model otherModel) {
 		if (this.getScore() > otherModel.getScore()) {
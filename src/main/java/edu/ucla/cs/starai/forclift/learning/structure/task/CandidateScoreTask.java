@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Jan Van Haaren (KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.learning.structure.task;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import edu.ucla.cs.starai.forclift.learning.CancellationToken;
+import edu.ucla.cs.starai.forclift.learning.CandidateLearner;
+import edu.ucla.cs.starai.forclift.learning.CandidateLearningContext;
+import edu.ucla.cs.starai.forclift.learning.CandidateScore;
+import edu.ucla.cs.starai.forclift.learning.structure.model.Model;
+import edu.ucla.cs.starai.forclift.learning.structure.util.Settings;
+
+/**
+ * This class represents the data likelihood calculation of a model on all
+ * leave-one-out folds of the databases. The model is compiled only once and
+ * the score of every fold is computed in-process.
+ *
+ * The number of weight learning iterations per fold can be bounded. A task
+ * that is executed again continues learning the weights where the previous
+ * execution stopped, which is how candidates are raced.
+ */
+public class CandidateScoreTask implements Callable<List<Score>> {
+
+	private final Model model;
+
+	private final List<File> databases;
+
+	private final CandidateLearningContext learningContext;
+
+	private final Map<String, Double> initialWeights;
+
+	private int maximumNumberOfIterations;
+
+	// kept between executions, so that later executions continue learning
+	private CandidateLearner learner;
+
+	/**
+	 * The initial weights warm-start weight learning on every fold and can be
+	 * null.
+	 */
+	public CandidateScoreTask(Model model, List<File> databases, CandidateLearningContext learningContext, Map<String, Double> initialWeights) {
+		this.model = model;
+		this.databases = databases;
+		this.learningContext = learningContext;
+		this.initialWeights = initialWeights;
+		this.maximumNumberOfIterations = Integer.MAX_VALUE;
+		this.learner = null;
+	}
+
+	@Override
+	public List<Score> call() throws Exception {
+
+		List<Score> scores = new ArrayList<Score>();
+
+		// only completely learned weights are stored and reused
+		ScoreCache scoreCache = ScoreCache.getInstance();
+		boolean useScoreCache = this.getMaximumNumberOfIterations() == Integer.MAX_VALUE;
+
+		// score on ALL-BUT-ONE database and repeat
+		for (int i = 0; i < this.getDatabases().size(); i++) {
+
+			List<File> databases = new ArrayList<File>(this.getDatabases());
+			databases.remove(i);
+
+			// reuse a stored score
+			if (useScoreCache) {
+				Score cachedScore = scoreCache.get(this.getModel(), databases, this.getDatabases(), this.getInitialWeights());
+				if (cachedScore != null) {
+					scores.add(cachedScore);
+					continue;
+				}
+			}
+
+			// schedule task killer, which only cancels learning this fold
+			CancellationToken cancellationToken = new CancellationToken();
+			Future<?> timeout = TaskExecutor.getInstance().scheduleTimeout(new TaskMonitor(cancellationToken));
+
+			CandidateScore candidateScore;
+			try {
+				candidateScore = this.getLearner().learnAllBut(i, this.getMaximumNumberOfIterations(), cancellationToken);
+			}
+			finally {
+				timeout.cancel(false);
+			}
+
+			Score score = ScoreTask.createScore(this.getModel(), candidateScore);
+			if (useScoreCache) {
+				scoreCache.put(score, databases, this.getDatabases(), this.getInitialWeights());
+			}
+			scores.add(score);
+		}
+
+		return scores;
+	}
+
+	public Model getModel() {
+		return this.model;
+	}
+
+	private List<File> getDatabases() {
+		return this.databases;
+	}
+
+	private CandidateLearningContext getLearningContext() {
+		return this.learningContext;
+	}
+
+	private Map<String, Double> getInitialWeights() {
+		return this.initialWeights;
+	}
+
+	public int getMaximumNumberOfIterations() {
+		return this.maximumNumberOfIterations;
+	}
+
+	/**
+	 * Bounds the number of weight learning iterations per fold of the next
+	 * execution. Integer.MAX_VALUE learns the weights until convergence.
+	 */
+	public void setMaximumNumberOfIterations(int maximumNumberOfIterations) {
+		if (maximumNumberOfIterations < 0) {
+			throw new IllegalArgumentException("The maximum number of iterations cannot be negative.");
+		}
+		this.maximumNumberOfIterations = maximumNumberOfIterations;
+	}
+
+	private CandidateLearner getLearner() {
+		if (this.learner == null) {
+			this.learner = new CandidateLearner(this.getModel().toString(), this.getDatabases(), Settings.getNormalizeLikelihood(), this.getLearningContext(), this.getInitialWeights(), Settings.getQueryCircuitStatistics());
+		}
+		return this.learner;
+	}
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Jan Van Haaren (KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.learning.structure.task;
+
+import java.util.concurrent.Callable;
+
+import edu.ucla.cs.starai.forclift.learning.CandidatePrefilter;
+import edu.ucla.cs.starai.forclift.learning.PrefilterVerdict;
+import edu.ucla.cs.starai.forclift.learning.structure.model.Model;
+import edu.ucla.cs.starai.forclift.learning.structure.util.Settings;
+
+/**
+ * This class represents the compilation of the partition function of a model
+ * under a budget, which decides whether the model is worth scoring. It always
+ * runs in-process, since it neither counts nor learns.
+ *
+ * @see CandidatePrefilter
+ */
+public class PrefilterTask implements Callable<PrefilterVerdict> {
+
+	private final Model model;
+
+	// null until the task finished
+	private volatile PrefilterVerdict verdict;
+
+	public PrefilterTask(Model model) {
+		this.model = model;
+		this.verdict = null;
+	}
+
+	@Override
+	public PrefilterVerdict call() throws Exception {
+		this.verdict = CandidatePrefilter.check(this.getModel().toString(), Settings.getPrefilterMaximumCircuitSize(), Settings.getPrefilterMaximumCircuitOrder(), Settings.getPrefilterCompilationSteps(),
+				Settings.getPrefilterTimeoutInMilliseconds());
+		return this.verdict;
+	}
+
+	public Model getModel() {
+		return this.model;
+	}
+
+	/**
+	 * Returns the verdict on the model, or null when the task failed or did not
+	 * run.
+	 */
+	public PrefilterVerdict getVerdict() {
+		return this.verdict;
+	}
+
+}
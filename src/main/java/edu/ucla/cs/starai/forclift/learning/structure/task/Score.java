@@ -17,7 +17,9 @@
 package edu.ucla.cs.starai.forclift.learning.structure.task;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import edu.ucla.cs.starai.forclift.learning.structure.model.Model;
 import edu.ucla.cs.starai.forclift.learning.structure.util.Utils;
@@ -40,6 +42,20 @@ public class Score implements Comparable<Score> {
 
 	private boolean compilable;
 
+	private Map<String, Double> learnedWeights;
+
+	private long compileTime;
+
+	private long countTime;
+
+	private long learnTime;
+
+	private int iterations;
+
+	private int gradientEvaluations;
+
+	private boolean cached;
+
 	public Score(Model model) {
 		this.model = model;
 		this.learnedModel = new ArrayList<String>();
@@ -49,6 +65,13 @@ public class Score implements Comparable<Score> {
 		this.partitionCircuitSize = Integer.MAX_VALUE;
 		this.queryCircuitSizes = new ArrayList<Integer>();
 		this.compilable = false;
+		this.learnedWeights = Collections.emptyMap();
+		this.compileTime = 0;
+		this.countTime = 0;
+		this.learnTime = 0;
+		this.iterations = 0;
+		this.gradientEvaluations = 0;
+		this.cached = false;
 	}
 
 	public Model getModel() {
@@ -131,6 +154,106 @@ public class Score implements Comparable<Score> {
 		return this.compilable;
 	}
 
+	/**
+	 * Returns the learned weights by formula, which can warm-start weight
+	 * learning for models that extend this one. Only known when the model
+	 * was scored in-process.
+	 */
+	public Map<String, Double> getLearnedWeights() {
+		return this.learnedWeights;
+	}
+
+	public void setLearnedWeights(Map<String, Double> learnedWeights) {
+		this.learnedWeights = learnedWeights;
+	}
+
+	/**
+	 * Returns the time in milliseconds spent compiling the circuits of the
+	 * model. Circuits are compiled once for all folds of a model, so only one
+	 * of its fold scores reports this time.
+	 */
+	public long getCompileTime() {
+		return this.compileTime;
+	}
+
+	public void setCompileTime(long compileTime) {
+		this.compileTime = compileTime;
+	}
+
+	/**
+	 * Returns the time in milliseconds spent counting the groundings in the
+	 * databases, which is reported like the compile time.
+	 */
+	public long getCountTime() {
+		return this.countTime;
+	}
+
+	public void setCountTime(long countTime) {
+		this.countTime = countTime;
+	}
+
+	/**
+	 * Returns the time in milliseconds spent optimizing the weights.
+	 */
+	public long getLearnTime() {
+		return this.learnTime;
+	}
+
+	public void setLearnTime(long learnTime) {
+		this.learnTime = learnTime;
+	}
+
+	public int getIterations() {
+		return this.iterations;
+	}
+
+	public void setIterations(int iterations) {
+		this.iterations = iterations;
+	}
+
+	public int getGradientEvaluations() {
+		return this.gradientEvaluations;
+	}
+
+	public void setGradientEvaluations(int gradientEvaluations) {
+		this.gradientEvaluations = gradientEvaluations;
+	}
+
+	/**
+	 * Indicates whether this score was read from the score cache, in which
+	 * case it took no time at all.
+	 */
+	public boolean isCached() {
+		return this.cached;
+	}
+
+	public void setCached(boolean cached) {
+		this.cached = cached;
+	}
+
+	/**
+	 * Returns the statistics of this score as a single line of tab-separated
+	 * key=value fields.
+	 */
+	public String getTelemetryRecord() {
+		StringBuilder stringBuilder = new StringBuilder();
+		stringBuilder.append("model=").append(this.getModel().hashCode());
+		stringBuilder.append("\tclauses=").append(this.getModel().getClauses().size());
+		stringBuilder.append("\tcompilable=").append(this.isCompilable());
+		stringBuilder.append("\tcached=").append(this.isCached());
+		stringBuilder.append("\tobjective=").append(this.getLogLikelihood());
+		stringBuilder.append("\tpartitionCircuitSize=").append(this.getPartitionCircuitSize());
+		stringBuilder.append("\tpartitionCircuitOrder=").append(this.getPartitionCircuitOrder());
+		stringBuilder.append("\tmaximumCircuitSize=").append(this.getMaximumCircuitSize());
+		stringBuilder.append("\tmaximumCircuitOrder=").append(this.getMaximumCircuitOrder());
+		stringBuilder.append("\tcompileTime=").append(this.getCompileTime());
+		stringBuilder.append("\tcountTime=").append(this.getCountTime());
+		stringBuilder.append("\tlearnTime=").append(this.getLearnTime());
+		stringBuilder.append("\titerations=").append(this.getIterations());
+		stringBuilder.append("\tgradientEvaluations=").append(this.getGradientEvaluations());
+		return stringBuilder.toString();
+	}
+
 	public String getLearnedModelAsString() {
 		StringBuilder result = new StringBuilder();
 
@@ -155,7 +278,7 @@ public class Score implements Comparable<Score> {
 		}
 	}
 
-	private List<String> getLearnedModel() {
+	List<String> getLearnedModel() {
 		return this.learnedModel;
 	}
 
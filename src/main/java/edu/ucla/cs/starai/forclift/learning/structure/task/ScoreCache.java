@@ -0,0 +1,274 @@
+/*
+ * Copyright 2016 Jan Van Haaren (KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.learning.structure.task;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.ucla.cs.starai.forclift.learning.structure.model.Model;
+import edu.ucla.cs.starai.forclift.learning.structure.util.Settings;
+import edu.ucla.cs.starai.forclift.learning.structure.util.Utils;
+
+/**
+ * This class stores the scores of models on disk, so that they can be reused
+ * by later tasks and later runs.
+ *
+ * A score is stored under a fingerprint of the clauses of the model, of the
+ * contents of the databases it was learned on and of all databases that
+ * were parsed to learn it, of the weights that learning started from, and of
+ * the settings that influence the score. Renaming or moving a database file
+ * therefore does not invalidate its scores, but changing its contents does.
+ *
+ * Only scores of completed weight learning are stored. Failed and timed out
+ * tasks are not, so that they are retried.
+ */
+public class ScoreCache {
+
+	private static ScoreCache INSTANCE;
+
+	// increase when the stored format or the meaning of a score changes
+	private static final String VERSION = "2";
+
+	private static final String LOG_LIKELIHOOD = "logLikelihood ";
+
+	private static final String PARTITION_CIRCUIT_ORDER = "partitionCircuitOrder ";
+
+	private static final String PARTITION_CIRCUIT_SIZE = "partitionCircuitSize ";
+
+	private static final String QUERY_CIRCUIT_ORDER = "queryCircuitOrder ";
+
+	private static final String QUERY_CIRCUIT_SIZE = "queryCircuitSize ";
+
+	private static final String LEARNED_WEIGHT = "learnedWeight ";
+
+	private static final String LEARNED_MODEL = "learnedModel ";
+
+	private final File directory;
+
+	private final Map<File, String> databaseFingerprints;
+
+	private ScoreCache(File directory) {
+		this.directory = directory;
+		this.databaseFingerprints = new ConcurrentHashMap<File, String>();
+	}
+
+	public static synchronized ScoreCache getInstance() {
+		if (ScoreCache.INSTANCE == null || !isSameDirectory(ScoreCache.INSTANCE.getDirectory(), Settings.getScoreCacheDirectory())) {
+			ScoreCache.INSTANCE = new ScoreCache(Settings.getScoreCacheDirectory());
+		}
+
+		return ScoreCache.INSTANCE;
+	}
+
+	private static boolean isSameDirectory(File directory, File otherDirectory) {
+		if (directory == null || otherDirectory == null) {
+			return directory == otherDirectory;
+		}
+		try {
+			return directory.getCanonicalFile().equals(otherDirectory.getCanonicalFile());
+		}
+		catch (IOException e) {
+			return directory.getAbsoluteFile().equals(otherDirectory.getAbsoluteFile());
+		}
+	}
+
+	public boolean isEnabled() {
+		return this.getDirectory() != null;
+	}
+
+	/**
+	 * Returns the stored score of the given model on the given databases, or
+	 * null when there is none. The parsed databases are all databases that
+	 * learning parsed, which can include databases that it was not learned
+	 * on, and the initial weights are the weights that learning started from,
+	 * which can be null.
+	 */
+	public Score get(Model model, List<File> databases, List<File> parsedDatabases, Map<String, Double> initialWeights) {
+		if (!this.isEnabled()) {
+			return null;
+		}
+
+		try {
+			File file = this.getScoreFile(model, databases, parsedDatabases, initialWeights);
+			if (!file.exists()) {
+				return null;
+			}
+			return readScore(model, file);
+		}
+		catch (IOException e) {
+			// an unreadable score is recomputed
+			return null;
+		}
+		catch (RuntimeException e) {
+			// so is a corrupt one
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the given score of its model on the given databases, see get.
+	 */
+	public void put(Score score, List<File> databases, List<File> parsedDatabases, Map<String, Double> initialWeights) {
+		if (!this.isEnabled() || !score.isCompilable()) {
+			return;
+		}
+
+		try {
+			File file = this.getScoreFile(score.getModel(), databases, parsedDatabases, initialWeights);
+			File temporaryFile = new File(file.getPath() + ".tmp" + Thread.currentThread().getId());
+			writeScore(score, temporaryFile);
+			// readers never see a partially written score
+			if (!temporaryFile.renameTo(file)) {
+				file.delete();
+				temporaryFile.renameTo(file);
+			}
+		}
+		catch (IOException e) {
+			Utils.reportMessage("Could not store score: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns a fingerprint of the contents of the given databases, in the
+	 * given order.
+	 */
+	public String getDatabasesFingerprint(List<File> databases) throws IOException {
+		StringBuilder stringBuilder = new StringBuilder();
+		for (File database : databases) {
+			String fingerprint = this.databaseFingerprints.get(database);
+			if (fingerprint == null) {
+				fingerprint = Utils.getFingerprint(database);
+				this.databaseFingerprints.put(database, fingerprint);
+			}
+			stringBuilder.append(fingerprint);
+			stringBuilder.append('\n');
+		}
+		return Utils.getFingerprint(stringBuilder.toString());
+	}
+
+	private File getScoreFile(Model model, List<File> databases, List<File> parsedDatabases, Map<String, Double> initialWeights) throws IOException {
+		if (!this.getDirectory().isDirectory() && !this.getDirectory().mkdirs()) {
+			throw new IOException("Cannot create score cache directory " + this.getDirectory());
+		}
+
+		StringBuilder key = new StringBuilder();
+		key.append(VERSION).append('\n');
+		key.append(model.getFingerprint()).append('\n');
+		key.append(this.getDatabasesFingerprint(databases)).append('\n');
+		key.append(this.getDatabasesFingerprint(parsedDatabases)).append('\n');
+		if (initialWeights != null) {
+			for (Map.Entry<String, Double> initialWeight : new TreeMap<String, Double>(initialWeights).entrySet()) {
+				key.append(initialWeight.getValue()).append('\t').append(initialWeight.getKey()).append('\n');
+			}
+		}
+		key.append(Settings.getInProcessScoring()).append('\n');
+		key.append(TaskCollection.SCORE.getCommand()).append('\n');
+		key.append(Settings.getNormalizeLikelihood()).append('\n');
+		key.append(Settings.getQueryCircuitStatistics()).append('\n');
+
+		return new File(this.getDirectory(), "score-" + Utils.getFingerprint(key.toString()) + ".txt");
+	}
+
+	private static Score readScore(Model model, File file) throws IOException {
+		Score score = new Score(model);
+		Map<String, Double> learnedWeights = new HashMap<String, Double>();
+		boolean hasLogLikelihood = false;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(LOG_LIKELIHOOD)) {
+					score.setLogLikelihood(Double.parseDouble(line.substring(LOG_LIKELIHOOD.length())));
+					hasLogLikelihood = true;
+				}
+				else if (line.startsWith(PARTITION_CIRCUIT_ORDER)) {
+					score.setPartitionCircuitOrder(Integer.parseInt(line.substring(PARTITION_CIRCUIT_ORDER.length())));
+				}
+				else if (line.startsWith(PARTITION_CIRCUIT_SIZE)) {
+					score.setPartitionCircuitSize(Integer.parseInt(line.substring(PARTITION_CIRCUIT_SIZE.length())));
+				}
+				else if (line.startsWith(QUERY_CIRCUIT_ORDER)) {
+					score.addQueryCircuitOrder(Integer.parseInt(line.substring(QUERY_CIRCUIT_ORDER.length())));
+				}
+				else if (line.startsWith(QUERY_CIRCUIT_SIZE)) {
+					score.addQueryCircuitSize(Integer.parseInt(line.substring(QUERY_CIRCUIT_SIZE.length())));
+				}
+				else if (line.startsWith(LEARNED_WEIGHT)) {
+					String[] fields = line.substring(LEARNED_WEIGHT.length()).split("\t", 2);
+					learnedWeights.put(fields[1], Double.parseDouble(fields[0]));
+				}
+				else if (line.startsWith(LEARNED_MODEL)) {
+					score.addLineToLearnedModel(line.substring(LEARNED_MODEL.length()));
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		if (!hasLogLikelihood) {
+			throw new IOException("Incomplete score in " + file);
+		}
+
+		score.setLearnedWeights(learnedWeights);
+		score.setCompilable(true);
+		score.setCached(true);
+		return score;
+	}
+
+	private static void writeScore(Score score, File file) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			writer.write(PARTITION_CIRCUIT_ORDER + score.getPartitionCircuitOrder() + "\n");
+			writer.write(PARTITION_CIRCUIT_SIZE + score.getPartitionCircuitSize() + "\n");
+			for (int queryCircuitOrder : score.getQueryCircuitOrders()) {
+				writer.write(QUERY_CIRCUIT_ORDER + queryCircuitOrder + "\n");
+			}
+			for (int queryCircuitSize : score.getQueryCircuitSizes()) {
+				writer.write(QUERY_CIRCUIT_SIZE + queryCircuitSize + "\n");
+			}
+			for (Map.Entry<String, Double> learnedWeight : score.getLearnedWeights().entrySet()) {
+				writer.write(LEARNED_WEIGHT + learnedWeight.getValue() + "\t" + learnedWeight.getKey() + "\n");
+			}
+			for (String line : score.getLearnedModel()) {
+				writer.write(LEARNED_MODEL + line + "\n");
+			}
+			// written last, so that a truncated file is detected
+			writer.write(LOG_LIKELIHOOD + score.getLogLikelihood() + "\n");
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+	private File getDirectory() {
+		return this.directory;
+	}
+
+}
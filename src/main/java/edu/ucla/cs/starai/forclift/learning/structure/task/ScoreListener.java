@@ -0,0 +1,32 @@
+/*
+ * Copyright 2016 Jan Van Haaren (KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.learning.structure.task;
+
+/**
+ * This interface receives the scores of executed tasks in the order in which
+ * the tasks finish. Scores are delivered on the thread that executes the
+ * tasks, one at a time.
+ */
+public interface ScoreListener {
+
+	/**
+	 * Handles the given score. Returns false when the scores of the remaining
+	 * tasks are no longer needed, in which case those tasks are cancelled.
+	 */
+	boolean scoreAvailable(Score score);
+
+}
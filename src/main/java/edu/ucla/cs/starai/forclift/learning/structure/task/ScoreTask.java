@@ -16,16 +16,18 @@
 
 package edu.ucla.cs.starai.forclift.learning.structure.task;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.StringTokenizer;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
+import edu.ucla.cs.starai.forclift.learning.CancellationToken;
+import edu.ucla.cs.starai.forclift.learning.CandidateLearningContext;
+import edu.ucla.cs.starai.forclift.learning.CandidateScore;
 import edu.ucla.cs.starai.forclift.learning.structure.model.Model;
 import edu.ucla.cs.starai.forclift.learning.structure.util.FileBuilder;
 import edu.ucla.cs.starai.forclift.learning.structure.util.Settings;
@@ -41,116 +43,184 @@ public class ScoreTask extends Task implements Callable<Score> {
 
 	private final Model model;
 
+	private final CandidateLearningContext learningContext;
+
+	private final Map<String, Double> initialWeights;
+
+	// the running subprocess, if any
+	private volatile Process process;
+
 	public ScoreTask(Model model, List<File> databases) {
+		this(model, databases, null, null);
+	}
+
+	/**
+	 * The learning context is only used when scoring in-process. The initial
+	 * weights warm-start learning, in-process as well as in a subprocess.
+	 * Both can be null.
+	 */
+	public ScoreTask(Model model, List<File> databases, CandidateLearningContext learningContext, Map<String, Double> initialWeights) {
 		super(databases, TaskCollection.SCORE);
 		this.model = model;
+		this.learningContext = learningContext;
+		this.initialWeights = initialWeights;
 	}
 
 	@Override
 	public Score call() throws Exception {
-		this.runScoreTask();
-		return this.readScoreFromFile();
-	}
 
-	private Score readScoreFromFile() throws Exception {
+		// reuse a stored score
+		ScoreCache scoreCache = ScoreCache.getInstance();
+		Score cachedScore = scoreCache.get(this.getModel(), this.getDatabases(), this.getDatabases(), this.getInitialWeights());
+		if (cachedScore != null) {
+			FileBuilder.writeLearnedModelToFile(this.getModel(), this.getDatabases(), cachedScore.getLearnedModelAsString());
+			return cachedScore;
+		}
 
-		// create score
-		Score score = new Score(this.getModel());
+		Score score;
+		if (Settings.getInProcessScoring()) {
+			score = this.runInProcessScoreTask();
+		}
+		else {
+			this.runScoreTask();
+			score = this.readScoreFromFile();
+		}
 
-		// create output files
-		File modelLogFile = FileBuilder.createModelLogFile(this.getModel(), this.getDatabases());
+		scoreCache.put(score, this.getDatabases(), this.getDatabases(), this.getInitialWeights());
 
-		// read the process output
-		BufferedReader reader = new BufferedReader(new FileReader(modelLogFile));
+		return score;
+	}
 
-		String line = null;
-		boolean lineBelongsToModel = false;
+	private Score runInProcessScoreTask() throws Exception {
 
-		while ((line = reader.readLine()) != null) {
+		// schedule task killer, which only cancels learning this model
+		CancellationToken cancellationToken = new CancellationToken();
+		Future<?> timeout = TaskExecutor.getInstance().scheduleTimeout(new TaskMonitor(cancellationToken));
 
-			// extract learned models
-			if (line.trim().equals(Settings.MODEL_END_INDICATOR)) {
-				lineBelongsToModel = false;
-			}
+		CandidateScore candidateScore;
+		try {
+			candidateScore = CandidateScore.learn(this.getModel().toString(), this.getDatabases(), Settings.getNormalizeLikelihood(), this.getLearningContext(), this.getInitialWeights(), cancellationToken, Settings.getQueryCircuitStatistics());
+		}
+		finally {
+			timeout.cancel(false);
+		}
 
-			if (lineBelongsToModel) {
-				score.addLineToLearnedModel(line);
-			}
+		// write learned model to file
+		FileBuilder.writeLearnedModelToFile(this.getModel(), this.getDatabases(), candidateScore.learnedModel());
 
-			if (line.trim().equals(Settings.MODEL_START_INDICATOR)) {
-				lineBelongsToModel = true;
-			}
+		return ScoreTask.createScore(this.getModel(), candidateScore);
+	}
 
-			// extract statistics
-			if (line.startsWith(Settings.PARTITION_CIRCUIT_ORDER)) {
-				int partitionCircuitOrder = Integer.valueOf(line.replaceAll("\\D+", "").trim());
-				score.setPartitionCircuitOrder(partitionCircuitOrder);
-			}
+	static Score createScore(Model model, CandidateScore candidateScore) {
 
-			if (line.startsWith(Settings.PARTITION_CIRCUIT_SIZE)) {
-				int partitionCircuitSize = Integer.valueOf(line.replaceAll("\\D+", "").trim());
-				score.setPartitionCircuitSize(partitionCircuitSize);
-			}
+		// create score
+		Score score = new Score(model);
 
-			if (line.startsWith(Settings.QUERY_CIRCUIT_ORDER)) {
-				int queryCircuitOrder = Integer.valueOf(line.replaceAll("\\D+", "").trim());
-				score.addQueryCircuitOrder(queryCircuitOrder);
-			}
+		for (String line : candidateScore.learnedModel().split("\\r?\\n")) {
+			score.addLineToLearnedModel(line);
+		}
 
-			if (line.startsWith(Settings.QUERY_CIRCUIT_SIZE)) {
-				int queryCircuitSize = Integer.valueOf(line.replaceAll("\\D+", "").trim());
-				score.addQueryCircuitSize(queryCircuitSize);
-			}
+		score.setPartitionCircuitOrder(candidateScore.partitionCircuitOrder());
+		score.setPartitionCircuitSize(candidateScore.partitionCircuitSize());
 
-			if (line.startsWith(Settings.OBJECTIVE_FUNCTION)) {
-				String[] fields = line.split(" ");
-				double logLikelihood = -Double.valueOf(fields[2]);
-				score.setLogLikelihood(logLikelihood);
-				score.setCompilable(true);
-			}
+		for (int queryCircuitOrder : candidateScore.javaQueryCircuitOrders()) {
+			score.addQueryCircuitOrder(queryCircuitOrder);
+		}
 
+		for (int queryCircuitSize : candidateScore.javaQueryCircuitSizes()) {
+			score.addQueryCircuitSize(queryCircuitSize);
 		}
 
-		// flush and close the reader and writer
-		reader.close();
+		score.setLogLikelihood(candidateScore.logLikelihood());
+		score.setLearnedWeights(candidateScore.javaLearnedWeights());
+		score.setCompileTime(candidateScore.compileTime());
+		score.setCountTime(candidateScore.countTime());
+		score.setLearnTime(candidateScore.learnTime());
+		score.setIterations(candidateScore.iterations());
+		score.setGradientEvaluations(candidateScore.gradientEvaluations());
+		score.setCompilable(true);
 
 		return score;
 	}
 
+	private Score readScoreFromFile() throws Exception {
+
+		// read the result that the process wrote, if it finished
+		File modelResultFile = FileBuilder.createModelResultFile(this.getModel(), this.getDatabases());
+		if (!modelResultFile.exists()) {
+			return new Score(this.getModel());
+		}
+
+		try {
+			return ScoreTask.createScore(this.getModel(), CandidateScore.read(modelResultFile));
+		}
+		catch (Exception e) {
+			// an unreadable result counts as a failed run
+			Utils.reportMessage("Could not read the result of " + this.getModel().getClauses() + " from " + modelResultFile.getAbsolutePath() + ": " + e);
+			return new Score(this.getModel());
+		}
+	}
+
 	private void runScoreTask() throws Exception {
 
 		// create output files
 		File modelFile = FileBuilder.writeModelToFile(this.getModel(), this.getDatabases());
 		File modelLogFile = FileBuilder.createModelLogFile(this.getModel(), this.getDatabases());
 		File modelErrorFile = FileBuilder.createModelErrorFile(this.getModel(), this.getDatabases());
+		File modelResultFile = FileBuilder.createModelResultFile(this.getModel(), this.getDatabases());
 
-		// execute the command
-		Runtime runtime = Runtime.getRuntime();
-		Process process = runtime.exec(this.generateCommand(modelFile));
+		// a result of an earlier process must not be mistaken for this one
+		modelResultFile.delete();
 
-		// schedule task killer
-		Timer timer = new Timer();
-		TimerTask timerTask = new TaskMonitor(process);
-		timer.schedule(timerTask, 1000 * Settings.getTimeoutInSeconds());
+		// execute the command, letting the system write its output to file
+		List<String> command = new ArrayList<String>();
+		StringTokenizer tokenizer = new StringTokenizer(this.generateCommand(modelFile));
+		while (tokenizer.hasMoreTokens()) {
+			command.add(tokenizer.nextToken());
+		}
+		command.add("--wl-result");
+		command.add(modelResultFile.getAbsolutePath());
+		if (!Settings.getQueryCircuitStatistics()) {
+			command.add("--wl-no-query-circuits");
+		}
+		if (this.getInitialWeights() != null && !this.getInitialWeights().isEmpty()) {
+			File initialWeightsFile = FileBuilder.writeInitialWeightsToFile(this.getModel(), this.getDatabases(), this.getInitialWeights());
+			command.add("--wl-initial-weights");
+			command.add(initialWeightsFile.getAbsolutePath());
+		}
 
-		// read input streams
-		InputStream inputStream = process.getInputStream();
-		InputStream errorStream = process.getErrorStream();
+		ProcessBuilder processBuilder = new ProcessBuilder(command);
+		processBuilder.redirectOutput(modelLogFile);
+		processBuilder.redirectError(modelErrorFile);
+		Process process = processBuilder.start();
+		this.process = process;
 
-		// write input streams to file
-		FileBuilder.writeInputStreamToFile(inputStream, modelLogFile);
-		FileBuilder.writeInputStreamToFile(errorStream, modelErrorFile);
+		// schedule task killer
+		Future<?> timeout = TaskExecutor.getInstance().scheduleTimeout(new TaskMonitor(process));
 
-		// close the streams
-		inputStream.close();
-		errorStream.close();
-		process.getOutputStream().close();
+		try {
+			process.getOutputStream().close();
 
-		// retrieve exit value
-		process.waitFor();
+			// retrieve exit value
+			process.waitFor();
+		}
+		finally {
+			// cancel task killer
+			timeout.cancel(false);
+			this.process = null;
+		}
+	}
 
-		// cancel task killer
-		timerTask.cancel();
+	/**
+	 * Kills the process of this task, if it is still running. Used to cancel
+	 * the task, since interrupting the thread that waits for the process
+	 * does not stop the process itself.
+	 */
+	void destroyProcess() {
+		Process process = this.process;
+		if (process != null) {
+			process.destroy();
+		}
 	}
 
 	@Override
@@ -160,7 +230,6 @@ public class ScoreTask extends Task implements Callable<Score> {
 		commandString.append("java -jar");
 		commandString.append(" " + Utils.getCodeLocation());
 		commandString.append(" " + this.getTask().getCommand());
-		commandString.append(" -v");
 
 		if (Settings.getNormalizeLikelihood()) {
 			commandString.append(" --normalizell");
@@ -180,4 +249,12 @@ public class ScoreTask extends Task implements Callable<Score> {
 		return this.model;
 	}
 
+	private CandidateLearningContext getLearningContext() {
+		return this.learningContext;
+	}
+
+	private Map<String, Double> getInitialWeights() {
+		return this.initialWeights;
+	}
+
 }
@@ -17,17 +17,34 @@
 package edu.ucla.cs.starai.forclift.learning.structure.task;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import edu.ucla.cs.starai.forclift.learning.PrefilterVerdict;
 import edu.ucla.cs.starai.forclift.learning.structure.util.Settings;
 
 /**
  * This class controls the execution of WFOMC tasks in multi-threaded mode.
- * 
+ *
+ * Results are handed out as soon as their tasks finish. When a listener no
+ * longer needs the remaining results, the outstanding tasks are cancelled.
+ * The timeouts of all tasks are enforced by one shared scheduler.
+ *
  * @author Jan Van Haaren <jan.vanhaaren@cs.kuleuven.be>
  * @date Friday 5 July 2013
  */
@@ -35,13 +52,30 @@ public class TaskExecutor {
 
 	private static TaskExecutor INSTANCE;
 
-	private final ScheduledExecutorService taskExecutorService;
+	private final ExecutorService taskExecutorService;
+
+	private final ScheduledExecutorService timeoutService;
 
 	private TaskExecutor() {
-		this.taskExecutorService = Executors.newScheduledThreadPool(Settings.getNumberOfAdditionalThreads());
+		this(Math.max(1, Settings.getNumberOfAdditionalThreads()));
 	}
 
-	public static TaskExecutor getInstance() {
+	/**
+	 * An executor with its own threads, apart from the shared instance.
+	 */
+	TaskExecutor(int numberOfThreads) {
+		this.taskExecutorService = Executors.newFixedThreadPool(numberOfThreads);
+		this.timeoutService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "task-timeouts");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public static synchronized TaskExecutor getInstance() {
 		if (TaskExecutor.INSTANCE == null) {
 			TaskExecutor.INSTANCE = new TaskExecutor();
 		}
@@ -49,54 +83,261 @@ public class TaskExecutor {
 		return TaskExecutor.INSTANCE;
 	}
 
-	private ScheduledExecutorService getTaskExecutorService() {
+	/**
+	 * Stops the shared instance, if any. The next call of getInstance creates
+	 * a new instance with the current settings.
+	 */
+	public static synchronized void shutdownInstance() {
+		if (TaskExecutor.INSTANCE != null) {
+			TaskExecutor.INSTANCE.shutdownNow();
+			TaskExecutor.INSTANCE = null;
+		}
+	}
+
+	private ExecutorService getTaskExecutorService() {
 		return this.taskExecutorService;
 	}
 
-	public void executeScoreTasks(Set<ScoreTask> tasks, boolean isFinal) {
+	private ScheduledExecutorService getTimeoutService() {
+		return this.timeoutService;
+	}
+
+	/**
+	 * Runs the given monitor once the task timeout has passed, unless the
+	 * returned future is cancelled before.
+	 */
+	public ScheduledFuture<?> scheduleTimeout(TaskMonitor monitor) {
+		return this.scheduleTimeout(monitor, Settings.getTimeoutInSeconds(), TimeUnit.SECONDS);
+	}
+
+	ScheduledFuture<?> scheduleTimeout(TaskMonitor monitor, long timeout, TimeUnit unit) {
+		return this.getTimeoutService().schedule(monitor, timeout, unit);
+	}
+
+	public void executeScoreTasks(Set<ScoreTask> tasks, final boolean isFinal) {
+		this.executeScoreTasks(tasks, new ScoreListener() {
+			@Override
+			public boolean scoreAvailable(Score score) {
+				storeScore(score, isFinal);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Starts executing the given tasks without waiting for them, so that they
+	 * share the threads with the tasks that are executed next. The scores are
+	 * only stored when the tasks are awaited.
+	 *
+	 * @see #awaitScoreTasks(Map, boolean)
+	 */
+	public Map<ScoreTask, Future<Score>> submitScoreTasks(Set<ScoreTask> tasks) {
+		Map<ScoreTask, Future<Score>> futures = new HashMap<ScoreTask, Future<Score>>();
+		for (ScoreTask task : tasks) {
+			futures.put(task, this.getTaskExecutorService().submit(task));
+		}
+		return futures;
+	}
 
-		List<Future<Score>> futures = new ArrayList<Future<Score>>();
+	/**
+	 * Waits for the given submitted tasks and stores the scores of compilable
+	 * models. Failed and timed out tasks are skipped.
+	 */
+	public void awaitScoreTasks(Map<ScoreTask, Future<Score>> futures, boolean isFinal) {
+		try {
+			for (Future<Score> future : futures.values()) {
+				try {
+					Score score = future.get();
+					if (score.isCompilable()) {
+						storeScore(score, isFinal);
+					}
+				}
+				catch (ExecutionException e) {
+					// do nothing - failed
+				}
+				catch (CancellationException e) {
+					// do nothing - was cancelled
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for (Map.Entry<ScoreTask, Future<Score>> entry : futures.entrySet()) {
+				entry.getValue().cancel(true);
+				entry.getKey().destroyProcess();
+			}
+		}
+	}
 
-		for (final ScoreTask task : tasks) {
-			final Future<Score> future = this.getTaskExecutorService().submit(task);
-			futures.add(future);
+	private static void storeScore(Score score, boolean isFinal) {
+		if (isFinal) {
+			score.getModel().addFinalScore(score);
+		}
+		else {
+			score.getModel().addScore(score);
 		}
+	}
 
-		// wait until all tasks have finished
-		boolean keepWaiting = true;
+	/**
+	 * Executes the given tasks and hands the scores of compilable models to
+	 * the listener as soon as they are available.
+	 */
+	public void executeScoreTasks(Set<ScoreTask> tasks, final ScoreListener listener) {
+		boolean completed = this.executeTasks(tasks, new ResultListener<Score>() {
+			@Override
+			public boolean resultAvailable(Score score) {
+				return !score.isCompilable() || listener.scoreAvailable(score);
+			}
+		});
 
-		while (keepWaiting) {
-			boolean allTasksHaveFinished = true;
-			for (Future<Score> future : futures) {
-				allTasksHaveFinished &= future.isDone();
+		if (!completed) {
+			// interrupting a thread does not stop the process it waits for
+			for (ScoreTask task : tasks) {
+				task.destroyProcess();
 			}
-			keepWaiting = !allTasksHaveFinished;
 		}
+	}
 
-		setScoresFromFutures(futures, isFinal);
+	public void executeCandidateScoreTasks(Set<CandidateScoreTask> tasks) {
+		this.executeCandidateScoreTasks(tasks, new ScoreListener() {
+			@Override
+			public boolean scoreAvailable(Score score) {
+				score.getModel().addScore(score);
+				return true;
+			}
+		});
 	}
 
-	private static void setScoresFromFutures(List<Future<Score>> futures, final boolean isFinal) {
-		for (Future<Score> scoreTaskFuture : futures) {
-			try {
-				Score score = scoreTaskFuture.get();
-				if (score.isCompilable()) {
-					if (isFinal) {
-						score.getModel().addFinalScore(score);
+	/**
+	 * Executes the given tasks and hands the fold scores of compilable models
+	 * to the listener as soon as all folds of a model are scored.
+	 */
+	public void executeCandidateScoreTasks(Set<CandidateScoreTask> tasks, final ScoreListener listener) {
+		this.executeTasks(tasks, new ResultListener<List<Score>>() {
+			@Override
+			public boolean resultAvailable(List<Score> scores) {
+				for (Score score : scores) {
+					if (score.isCompilable() && !listener.scoreAvailable(score)) {
+						return false;
 					}
-					else {
-						score.getModel().addScore(score);
+				}
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Starts executing the given tasks without waiting for them, see
+	 * {@link #submitScoreTasks(Set)}.
+	 *
+	 * @see #awaitCandidateScoreTasks(Map)
+	 */
+	public Map<CandidateScoreTask, Future<List<Score>>> submitCandidateScoreTasks(Set<CandidateScoreTask> tasks) {
+		Map<CandidateScoreTask, Future<List<Score>>> futures = new HashMap<CandidateScoreTask, Future<List<Score>>>();
+		for (CandidateScoreTask task : tasks) {
+			futures.put(task, this.getTaskExecutorService().submit(task));
+		}
+		return futures;
+	}
+
+	/**
+	 * Waits for the given submitted tasks and stores the fold scores of
+	 * compilable models. Failed and timed out tasks are skipped.
+	 */
+	public void awaitCandidateScoreTasks(Map<CandidateScoreTask, Future<List<Score>>> futures) {
+		try {
+			for (Future<List<Score>> future : futures.values()) {
+				try {
+					for (Score score : future.get()) {
+						if (score.isCompilable()) {
+							score.getModel().addScore(score);
+						}
 					}
 				}
+				catch (ExecutionException e) {
+					// do nothing - failed
+				}
+				catch (CancellationException e) {
+					// do nothing - was cancelled
+				}
 			}
-			catch (Exception e) {
-				// do nothing - was cancelled or failed
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for (Future<List<Score>> future : futures.values()) {
+				future.cancel(true);
 			}
 		}
 	}
 
+	/**
+	 * Executes the given tasks, which store their own verdicts.
+	 */
+	public void executePrefilterTasks(Set<PrefilterTask> tasks) {
+		this.executeTasks(tasks, new ResultListener<PrefilterVerdict>() {
+			@Override
+			public boolean resultAvailable(PrefilterVerdict verdict) {
+				return true;
+			}
+		});
+	}
+
+	interface ResultListener<T> {
+
+		boolean resultAvailable(T result);
+
+	}
+
+	/**
+	 * Submits all tasks and hands their results to the listener in order of
+	 * completion. Failed and timed out tasks are skipped. Returns false when
+	 * the remaining tasks were cancelled.
+	 */
+	<T> boolean executeTasks(Collection<? extends Callable<T>> tasks, ResultListener<T> listener) {
+
+		CompletionService<T> completionService = new ExecutorCompletionService<T>(this.getTaskExecutorService());
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+
+		for (Callable<T> task : tasks) {
+			futures.add(completionService.submit(task));
+		}
+
+		boolean completed = false;
+		try {
+			int remaining = futures.size();
+			boolean keepListening = true;
+			while (remaining > 0 && keepListening) {
+				Future<T> future = completionService.take();
+				remaining--;
+				try {
+					keepListening = listener.resultAvailable(future.get());
+				}
+				catch (ExecutionException e) {
+					// do nothing - failed
+				}
+				catch (CancellationException e) {
+					// do nothing - was cancelled
+				}
+			}
+			completed = remaining == 0;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			if (!completed) {
+				for (Future<T> future : futures) {
+					future.cancel(true);
+				}
+			}
+		}
+
+		return completed;
+	}
+
 	public void shutdownNow() {
 		this.getTaskExecutorService().shutdownNow();
+		this.getTimeoutService().shutdownNow();
 	}
 
 }
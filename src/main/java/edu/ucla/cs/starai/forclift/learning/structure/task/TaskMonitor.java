@@ -16,23 +16,68 @@
 
 package edu.ucla.cs.starai.forclift.learning.structure.task;
 
-import java.util.TimerTask;
+import edu.ucla.cs.starai.forclift.learning.CancellationToken;
 
-public class TaskMonitor extends TimerTask {
+/**
+ * This class kills a task that exceeds its timeout. Monitors are scheduled
+ * on the shared timeout scheduler of the task executor.
+ *
+ * @see TaskExecutor#scheduleTimeout(TaskMonitor)
+ */
+public class TaskMonitor implements Runnable {
 
 	private final Process process;
 
+	private final Thread thread;
+
+	private final CancellationToken cancellationToken;
+
 	public TaskMonitor(Process process) {
 		this.process = process;
+		this.thread = null;
+		this.cancellationToken = null;
+	}
+
+	public TaskMonitor(Thread thread) {
+		this.process = null;
+		this.thread = thread;
+		this.cancellationToken = null;
+	}
+
+	/**
+	 * Monitors an in-process task, which stops once the given token is
+	 * cancelled. Unlike interrupting its thread, cancelling the token cannot
+	 * affect whatever the thread runs after the task.
+	 */
+	public TaskMonitor(CancellationToken cancellationToken) {
+		this.process = null;
+		this.thread = null;
+		this.cancellationToken = cancellationToken;
 	}
 
 	private Process getProcess() {
 		return this.process;
 	}
 
+	private Thread getThread() {
+		return this.thread;
+	}
+
+	private CancellationToken getCancellationToken() {
+		return this.cancellationToken;
+	}
+
 	@Override
 	public void run() {
-		this.getProcess().destroy();
+		if (this.getProcess() != null) {
+			this.getProcess().destroy();
+		}
+		if (this.getThread() != null) {
+			this.getThread().interrupt();
+		}
+		if (this.getCancellationToken() != null) {
+			this.getCancellationToken().cancel();
+		}
 	}
 
 }
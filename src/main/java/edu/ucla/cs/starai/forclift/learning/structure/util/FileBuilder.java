@@ -16,18 +16,19 @@
 
 package edu.ucla.cs.starai.forclift.learning.structure.util;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import edu.ucla.cs.starai.forclift.learning.CandidateScore;
 import edu.ucla.cs.starai.forclift.learning.structure.model.Clause;
 import edu.ucla.cs.starai.forclift.learning.structure.model.Model;
+import edu.ucla.cs.starai.forclift.learning.structure.task.Score;
 
 /**
  * This class can be used to write objects to file.
@@ -68,6 +69,47 @@ public class FileBuilder {
 		return modelFile;
 	}
 
+	public static File writeLearnedModelToFile(final Model model, final List<File> databases, final String learnedModel) throws IOException {
+
+		// create learned model file
+		File learnedModelFile = FileBuilder.createLearnedModelFile(model, databases);
+
+		// create writer
+		BufferedWriter writer = new BufferedWriter(new FileWriter(learnedModelFile));
+
+		// learned model
+		writer.write(learnedModel);
+
+		// close writer
+		writer.close();
+
+		return learnedModelFile;
+	}
+
+	/**
+	 * Writes the given initial weights of a model to file, one weight and its
+	 * formula per line, see CandidateScore.weightLine.
+	 */
+	public static File writeInitialWeightsToFile(final Model model, final List<File> databases, final Map<String, Double> initialWeights) throws IOException {
+
+		// create initial weights file
+		File initialWeightsFile = FileBuilder.createModelInitialWeightsFile(model, databases);
+
+		// create writer
+		BufferedWriter writer = new BufferedWriter(new FileWriter(initialWeightsFile));
+
+		// initial weights
+		for (Map.Entry<String, Double> initialWeight : initialWeights.entrySet()) {
+			writer.write(CandidateScore.weightLine(initialWeight.getKey(), initialWeight.getValue()));
+			writer.write(Utils.getNewLine());
+		}
+
+		// close writer
+		writer.close();
+
+		return initialWeightsFile;
+	}
+
 	public static void writeMessageToFile(final String message, boolean append) throws IOException {
 
 		// create message file
@@ -83,22 +125,23 @@ public class FileBuilder {
 		writer.close();
 	}
 
-	public static void writeInputStreamToFile(final InputStream inputStream, final File file) throws IOException {
-
-		// write input stream to file
-		BufferedReader inputStreamReader = new BufferedReader(new InputStreamReader(inputStream));
-		BufferedWriter inputStreamWriter = new BufferedWriter(new FileWriter(file));
+	/**
+	 * Appends the telemetry records of the given scores to the telemetry
+	 * file, prefixed with the given iteration of the search.
+	 */
+	public static void appendTelemetryToFile(final Collection<Score> scores, int iteration) throws IOException {
 
-		String line;
+		// create writer
+		BufferedWriter writer = new BufferedWriter(new FileWriter(FileBuilder.createTelemetryFile(), true));
 
-		while ((line = inputStreamReader.readLine()) != null) {
-			inputStreamWriter.write(line);
-			inputStreamWriter.write(Utils.getNewLine());
+		// write records
+		for (Score score : scores) {
+			writer.write("iteration=" + iteration + "\t" + score.getTelemetryRecord());
+			writer.write(Utils.getNewLine());
 		}
 
-		// close reader and writer
-		inputStreamReader.close();
-		inputStreamWriter.close();
+		// close writer
+		writer.close();
 	}
 
 	public static boolean doesModelLogFileExist(final Model model, final List<File> databases) {
@@ -109,26 +152,52 @@ public class FileBuilder {
 		return createLearnedModelFile(model, databases).exists();
 	}
 
+	/**
+	 * Returns the name of the files of a model scored on the given databases.
+	 * The name holds the fingerprint of the model and a fingerprint of the
+	 * paths of the databases, so that different models or folds never share
+	 * files.
+	 */
+	private static String getFileName(final Model model, final List<File> databases) {
+		StringBuilder paths = new StringBuilder();
+		for (File database : databases) {
+			paths.append(database.getAbsolutePath()).append('\n');
+		}
+		return "structure-" + model.getFingerprint() + "-" + Utils.getFingerprint(paths.toString());
+	}
+
 	public static File createModelLogFile(final Model model, final List<File> databases) {
-		return new File(Utils.getTemporaryDirectory(), "structure-" + model.hashCode() + "-" + databases.hashCode() + ".log");
+		return new File(Utils.getTemporaryDirectory(), getFileName(model, databases) + ".log");
 	}
 
 	public static File createModelErrorFile(final Model model, final List<File> databases) {
-		return new File(Utils.getTemporaryDirectory(), "structure-" + model.hashCode() + "-" + databases.hashCode() + ".err");
+		return new File(Utils.getTemporaryDirectory(), getFileName(model, databases) + ".err");
+	}
+
+	public static File createModelResultFile(final Model model, final List<File> databases) {
+		return new File(Utils.getTemporaryDirectory(), getFileName(model, databases) + ".result");
+	}
+
+	public static File createModelInitialWeightsFile(final Model model, final List<File> databases) {
+		return new File(Utils.getTemporaryDirectory(), getFileName(model, databases) + ".weights");
 	}
 
 	private static File createModelFile(final Model model, final List<File> databases) {
-		return new File(Utils.getTemporaryDirectory(), "structure-" + model.hashCode() + "-" + databases.hashCode() + ".mln");
+		return new File(Utils.getTemporaryDirectory(), getFileName(model, databases) + ".mln");
 	}
 
 	public static File createLearnedModelFile(final Model model, final List<File> databases) {
-		return new File(Utils.getTemporaryDirectory(), "structure-" + model.hashCode() + "-" + databases.hashCode() + "_learned.mln");
+		return new File(Utils.getTemporaryDirectory(), getFileName(model, databases) + "_learned.mln");
 	}
 
 	public static File createMessageFile() {
 		return new File(Utils.getTemporaryDirectory(), "output.txt");
 	}
 
+	public static File createTelemetryFile() {
+		return new File(Utils.getTemporaryDirectory(), "telemetry.txt");
+	}
+
 	public static File createStoredModelFile(String suffix) {
 		return new File(Utils.getTemporaryDirectory(), "model-" + suffix + ".mln");
 	}
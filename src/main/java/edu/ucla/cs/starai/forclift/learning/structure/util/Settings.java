@@ -38,7 +38,13 @@ public class Settings {
 		Settings.MAXIMUM_NUMBER_OF_CLAUSES = maximumNumberOfClauses;
 	}
 
-	private static int SEARCH_STRATEGY = 0;
+	public static final int GREEDY_SEARCH = 0;
+
+	public static final int STEPPED_SEARCH = 1;
+
+	public static final int BEAM_SEARCH = 2;
+
+	private static int SEARCH_STRATEGY = GREEDY_SEARCH;
 
 	public static int getSearchStrategy() {
 		return Settings.SEARCH_STRATEGY;
@@ -48,6 +54,23 @@ public class Settings {
 		Settings.SEARCH_STRATEGY = searchStrategy;
 	}
 
+	private static int BEAM_WIDTH = 4;
+
+	/**
+	 * The number of models that the beam search strategy extends on every
+	 * level.
+	 */
+	public static int getBeamWidth() {
+		return Settings.BEAM_WIDTH;
+	}
+
+	public static void setBeamWidth(int beamWidth) {
+		if (beamWidth < 1) {
+			throw new IllegalArgumentException("The beam width should be at least 1.");
+		}
+		Settings.BEAM_WIDTH = beamWidth;
+	}
+
 	private static double STEP_SIZE = 0.99;
 
 	public static double getStepSize() {
@@ -58,6 +81,41 @@ public class Settings {
 		Settings.STEP_SIZE = stepSize;
 	}
 
+	private static int RACING_ITERATIONS = 0;
+
+	/**
+	 * The number of weight learning iterations that every candidate gets in
+	 * the first racing round, or 0 to learn the weights of all candidates
+	 * completely.
+	 */
+	public static int getRacingIterations() {
+		return Settings.RACING_ITERATIONS;
+	}
+
+	public static void setRacingIterations(int racingIterations) {
+		if (racingIterations < 0) {
+			throw new IllegalArgumentException("The number of racing iterations cannot be negative.");
+		}
+		Settings.RACING_ITERATIONS = racingIterations;
+	}
+
+	private static double RACING_FRACTION = 0.5;
+
+	/**
+	 * The fraction of the candidates that is promoted to the next racing
+	 * round.
+	 */
+	public static double getRacingFraction() {
+		return Settings.RACING_FRACTION;
+	}
+
+	public static void setRacingFraction(double racingFraction) {
+		if (racingFraction <= 0 || racingFraction >= 1) {
+			throw new IllegalArgumentException("The racing fraction should lie strictly between 0 and 1.");
+		}
+		Settings.RACING_FRACTION = racingFraction;
+	}
+
 	/** MLN syntax **/
 
 	public static final String DISJUNCTION = " v ";
@@ -94,23 +152,15 @@ public class Settings {
 		Settings.TIMEOUT_IN_SECONDS = timeoutInSeconds;
 	}
 
-	/** Weight learning output **/
-
-	public static final String MODEL_START_INDICATOR = "Learned model:";
-
-	public static final String MODEL_END_INDICATOR = "End learned model";
-
-	/** Likelihood calculation output **/
+	private static boolean IN_PROCESS_SCORING = false;
 
-	public static final String OBJECTIVE_FUNCTION = "Final loglikelihood: ";
-
-	public static final String PARTITION_CIRCUIT_ORDER = "Partition function has order";
-
-	public static final String QUERY_CIRCUIT_ORDER = "Query circuit has order";
-
-	public static final String PARTITION_CIRCUIT_SIZE = "Partition function has size";
+	public static boolean getInProcessScoring() {
+		return Settings.IN_PROCESS_SCORING;
+	}
 
-	public static final String QUERY_CIRCUIT_SIZE = "Query circuit has size";
+	public static void setInProcessScoring(boolean inProcessScoring) {
+		Settings.IN_PROCESS_SCORING = inProcessScoring;
+	}
 
 	/** Normalization **/
 
@@ -146,6 +196,104 @@ public class Settings {
 		Settings.COMPLEXITY_PENALTY = complexityPenalty;
 	}
 
+	/**
+	 * Whether scores need the sizes of the query circuits, which only the
+	 * complexity penalty of the objective function uses.
+	 */
+	public static boolean getQueryCircuitStatistics() {
+		return Settings.getComplexityPenalty() != 0;
+	}
+
+	/** Score cache **/
+
+	private static File SCORE_CACHE_DIRECTORY = null;
+
+	/**
+	 * The directory in which scores and search checkpoints are stored, or
+	 * null to store nothing.
+	 */
+	public static File getScoreCacheDirectory() {
+		return Settings.SCORE_CACHE_DIRECTORY;
+	}
+
+	public static void setScoreCacheDirectory(File scoreCacheDirectory) {
+		if (scoreCacheDirectory != null && scoreCacheDirectory.exists() && !scoreCacheDirectory.isDirectory()) {
+			throw new IllegalArgumentException("The given score cache directory is invalid.");
+		}
+		Settings.SCORE_CACHE_DIRECTORY = scoreCacheDirectory;
+	}
+
+	/** Prefilter **/
+
+	private static long PREFILTER_TIMEOUT_IN_MILLISECONDS = 0;
+
+	/**
+	 * The time that compiling the partition function of a candidate may take
+	 * before the candidate is rejected, or 0 to score all candidates without
+	 * prefiltering them.
+	 */
+	public static long getPrefilterTimeoutInMilliseconds() {
+		return Settings.PREFILTER_TIMEOUT_IN_MILLISECONDS;
+	}
+
+	public static void setPrefilterTimeoutInMilliseconds(long prefilterTimeoutInMilliseconds) {
+		if (prefilterTimeoutInMilliseconds < 0) {
+			throw new IllegalArgumentException("The prefilter timeout cannot be negative.");
+		}
+		Settings.PREFILTER_TIMEOUT_IN_MILLISECONDS = prefilterTimeoutInMilliseconds;
+	}
+
+	private static int PREFILTER_COMPILATION_STEPS = 100000;
+
+	/**
+	 * The number of compilation steps that compiling the partition function of
+	 * a candidate may take before the candidate is rejected.
+	 */
+	public static int getPrefilterCompilationSteps() {
+		return Settings.PREFILTER_COMPILATION_STEPS;
+	}
+
+	public static void setPrefilterCompilationSteps(int prefilterCompilationSteps) {
+		if (prefilterCompilationSteps < 1) {
+			throw new IllegalArgumentException("The number of prefilter compilation steps should be at least 1.");
+		}
+		Settings.PREFILTER_COMPILATION_STEPS = prefilterCompilationSteps;
+	}
+
+	private static int PREFILTER_MAXIMUM_CIRCUIT_SIZE = Integer.MAX_VALUE;
+
+	/**
+	 * The largest partition function circuit of a candidate that the
+	 * prefilter accepts.
+	 */
+	public static int getPrefilterMaximumCircuitSize() {
+		return Settings.PREFILTER_MAXIMUM_CIRCUIT_SIZE;
+	}
+
+	public static void setPrefilterMaximumCircuitSize(int prefilterMaximumCircuitSize) {
+		if (prefilterMaximumCircuitSize < 1) {
+			throw new IllegalArgumentException("The maximum circuit size should be at least 1.");
+		}
+		Settings.PREFILTER_MAXIMUM_CIRCUIT_SIZE = prefilterMaximumCircuitSize;
+	}
+
+	private static int PREFILTER_MAXIMUM_CIRCUIT_ORDER = Integer.MAX_VALUE;
+
+	/**
+	 * The highest order of the partition function circuit of a candidate that
+	 * the prefilter accepts.
+	 */
+	public static int getPrefilterMaximumCircuitOrder() {
+		return Settings.PREFILTER_MAXIMUM_CIRCUIT_ORDER;
+	}
+
+	public static void setPrefilterMaximumCircuitOrder(int prefilterMaximumCircuitOrder) {
+		if (prefilterMaximumCircuitOrder < 0) {
+			throw new IllegalArgumentException("The maximum circuit order cannot be negative.");
+		}
+		Settings.PREFILTER_MAXIMUM_CIRCUIT_ORDER = prefilterMaximumCircuitOrder;
+	}
+
 	/** Output directory **/
 
 	private static File OUTPUT_DIRECTORY = new File(System.getProperty("java.io.tmpdir"));
@@ -20,9 +20,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import edu.ucla.cs.starai.forclift.learning.structure.StructureLearner;
 
@@ -61,6 +64,55 @@ public class Utils {
 		return Settings.getOutputDirectory();
 	}
 
+	/**
+	 * Returns a hexadecimal SHA-256 digest of the given string, which is
+	 * stable across runs and platforms.
+	 */
+	public static String getFingerprint(String content) {
+		try {
+			return toHexString(createMessageDigest().digest(content.getBytes("UTF-8")));
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns a hexadecimal SHA-256 digest of the contents of the given file.
+	 */
+	public static String getFingerprint(File file) throws IOException {
+		MessageDigest digest = createMessageDigest();
+		InputStream inputStream = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int length;
+			while ((length = inputStream.read(buffer)) != -1) {
+				digest.update(buffer, 0, length);
+			}
+		}
+		finally {
+			inputStream.close();
+		}
+		return toHexString(digest.digest());
+	}
+
+	private static MessageDigest createMessageDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHexString(byte[] bytes) {
+		StringBuilder stringBuilder = new StringBuilder();
+		for (byte b : bytes) {
+			stringBuilder.append(String.format("%02x", b));
+		}
+		return stringBuilder.toString();
+	}
+
 	public static void copyFile(File sourceFile, File destinationFile) throws IOException {
 		if (!destinationFile.exists()) {
 			destinationFile.createNewFile();
@@ -25,6 +25,14 @@ sealed abstract class Domain {
 
   def nbSplits = nbSplitsVar
 
+  /**
+   * Makes later splits of this domain number their subdomains after the
+   * given split, which was made elsewhere, for example in a saved circuit.
+   */
+  private[forclift] def reserveSplits(nbSplits: Int) {
+    nbSplitsVar = math.max(nbSplitsVar, nbSplits)
+  }
+
   def knownConstants: List[Constant]
 
   def complement: Domain
@@ -134,13 +142,16 @@ class RootDomain(val name: String, val staticConstants: List[Constant] = List.em
    * @todo Is it ok to compile multiple times? Will this insert every time
    * some new constants? Does this cause problems?
    */
-  val dynamicConstants = new mutable.ListBuffer[Constant]
-  def addConstant(c: Constant) = {
+  @volatile private[this] var dynamicConstantList: List[Constant] = Nil
+  def dynamicConstants: List[Constant] = dynamicConstantList
+  // the list is replaced, never mutated, so that readers in other threads
+  // always see a consistent list of constants
+  def addConstant(c: Constant) = synchronized {
     require(!knownConstants.contains(c))
-    dynamicConstants.append(c)
+    dynamicConstantList = dynamicConstantList :+ c
   }
 
-  def knownConstants = staticConstants ::: dynamicConstants.toList
+  def knownConstants = staticConstants ::: dynamicConstants
 
   //    override def hashCode: Int = {
   //        //41 * staticConstants.foldLeft(1)((c,r) => 41*c + r.hashCode) + name.hashCode
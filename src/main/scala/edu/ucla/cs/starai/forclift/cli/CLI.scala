@@ -55,6 +55,7 @@ java -jar forclift.jar -q "smokes(Guy)" ./models/friendsmoker.mln
   try {
     argumentParser.parse(args)
     
+    inferenceCLI.configureEvaluation()
     debugCLI.runDebugging(inputCLI)
     inferenceCLI.runInference()
     learningCLI.runLearning()
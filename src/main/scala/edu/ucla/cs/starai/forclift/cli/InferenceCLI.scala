@@ -37,10 +37,13 @@
 
 package edu.ucla.cs.starai.forclift.cli
 
+import java.io.File
+
 import org.clapper.argot.ArgotConverters._
 import org.clapper.argot.ArgotParser
 import edu.ucla.cs.starai.forclift.Atom
 import edu.ucla.cs.starai.forclift.inference.WeightedCNF
+import edu.ucla.cs.starai.forclift.inference.CompiledWeightedCNF
 import edu.ucla.cs.starai.forclift.compiler.Compiler
 import edu.ucla.cs.starai.forclift.languages.StatRelModel
 import edu.ucla.cs.starai.forclift.languages.ModelParser
@@ -51,6 +54,10 @@ import edu.ucla.cs.starai.forclift.inference.PartitionFunctionC2D
 import edu.ucla.cs.starai.forclift.inference.QueryProbExact
 import edu.ucla.cs.starai.forclift.inference.QueryProbC2D
 import edu.ucla.cs.starai.forclift.inference.PartitionFunctionExact
+import edu.ucla.cs.starai.forclift.nnf.GeneratedCircuit
+import edu.ucla.cs.starai.forclift.nnf.visitors.TruncatedWmc
+import edu.ucla.cs.starai.forclift.nnf.visitors.WmcCache
+import edu.ucla.cs.starai.forclift.nnf.visitors.WmcVisitor
 
 /**
  * Handle all inference logic for CLI
@@ -84,9 +91,71 @@ class InferenceCLI(
     "Compute all marginal probabilities.")    
   def allMarginals = margs.value.getOrElse(false)
   
+  val wmcThreadsFlag = argumentParser.option[Int](
+    List("wmc-threads"),
+    "threads",
+    "Number of threads that evaluate a circuit (default: 1).")
+  def wmcThreads = wmcThreadsFlag.value.getOrElse(1)
+
+  val wmcCodegenFlag = argumentParser.flag[Boolean](
+    List("wmc-codegen"),
+    "Evaluate circuits that are evaluated repeatedly with classes generated at runtime. Requires a JDK; falls back to the default evaluation otherwise.")
+  def wmcCodegen = wmcCodegenFlag.value.getOrElse(false)
+
+  val wmcCacheFlag = argumentParser.option[Int](
+    List("wmc-cache-mb"),
+    "megabytes",
+    "Memory budget of all caches of circuit evaluations together, in megabytes (default: 64).")
+  def wmcCacheMegabytes = wmcCacheFlag.value.getOrElse(64)
+
+  val wmcToleranceFlag = argumentParser.option[Double](
+    List("wmc-tolerance"),
+    "tolerance",
+    "Compute the partition function up to about this relative error by truncating the sums over counts, and report the estimated error. Heuristic: the skipped terms are extrapolated, not bounded (default: 0, exact).")
+  def wmcTolerance = wmcToleranceFlag.value.getOrElse(0.0)
+
+  val saveNnfFlag = argumentParser.option[File](
+    List("save-nnf"),
+    "filename",
+    "Save the compiled circuit of the model to this file, to be loaded later with --load-nnf.") {
+      (s, opt) => new File(s)
+    }
+  def saveNnfFile = saveNnfFlag.value
+
+  val loadNnfFlag = argumentParser.option[File](
+    List("load-nnf"),
+    "filename",
+    "Compute the partition function with the circuit in this file, saved with --save-nnf for the same model, instead of compiling the model.") {
+      (s, opt) =>
+        val file = new File(s)
+        if (!file.exists) argumentParser.usage(s"Circuit file $file does not exist.")
+        file
+    }
+  def loadNnfFile = loadNnfFlag.value
+
   def hasQuery = inputCLI.hasQuery
+
+  def configureEvaluation() {
+    if (wmcThreads < 1) {
+      argumentParser.usage(s"The number of threads given with ${wmcThreadsFlag.names} must be at least 1.")
+    }
+    if (wmcCacheMegabytes < 1) {
+      argumentParser.usage(s"The memory budget given with ${wmcCacheFlag.names} must be at least 1 megabyte.")
+    }
+    if (wmcTolerance < 0) {
+      argumentParser.usage(s"The relative error given with ${wmcToleranceFlag.names} cannot be negative.")
+    }
+    WmcVisitor.parallelism = wmcThreads
+    WmcCache.defaultMaxBytes = wmcCacheMegabytes * 1024L * 1024L
+    GeneratedCircuit.enabled = wmcCodegen
+    GeneratedCircuit.verbose = debugCLI.verbose
+    TruncatedWmc.tolerance = wmcTolerance
+  }
   
   def runInference() {
+    if (loadNnfFile.nonEmpty && (!fokc || allMarginals || hasQuery)) {
+      argumentParser.usage(s"A circuit loaded with ${loadNnfFlag.names} can only compute the partition function with ${zFlag.names}.")
+    }
     // make sure the model is parsed before inference timing starts
     inputCLI.wcnfModel
     inputCLI.queryOpt
@@ -96,6 +165,26 @@ class InferenceCLI(
       if(z) runPartitionFunctionInference()
       if(hasQuery) runQueryInference()
     }("Inference took "+_+" ms")
+    if (saveNnfFile.nonEmpty) saveCompiledModel()
+  }
+
+  lazy val compiledModel: CompiledWeightedCNF = loadNnfFile match {
+    case Some(file) =>
+      Timer {
+        try {
+          CompiledWeightedCNF.load(file, inputCLI.wcnfModel)
+        } catch {
+          case e: IllegalArgumentException =>
+            argumentParser.usage(s"Cannot use the circuit in $file for this model: ${e.getMessage}")
+        }
+      }("Loading the circuit took " + _ + " ms")
+    case None => inputCLI.wcnfModel.compiled
+  }
+
+  def saveCompiledModel() {
+    val file = saveNnfFile.get
+    compiledModel.save(file)
+    println(s"Wrote circuit to $file")
   }
   
   def runAllMarginalsInference(){
@@ -119,7 +208,8 @@ class InferenceCLI(
     println(s"Computing weighted model count/partition function Z")
     if (fokc) {
       val algo = new PartitionFunctionExact(debugCLI.verbose)
-      algo.computePartitionFunction(inputCLI.wcnfModel)
+      if (loadNnfFile.nonEmpty) algo.computePartitionFunction(compiledModel)
+      else algo.computePartitionFunction(inputCLI.wcnfModel)
     }
     if (propositional) {
       val algo = new PartitionFunctionC2D(debugCLI.verbose)
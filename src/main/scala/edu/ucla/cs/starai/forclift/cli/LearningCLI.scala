@@ -22,6 +22,7 @@ import org.clapper.argot.ArgotConverters._
 import edu.ucla.cs.starai.forclift.languages.StatRelModel
 import edu.ucla.cs.starai.forclift.learning.structure.StructureLearner
 import edu.ucla.cs.starai.forclift.learning.WeightLearning
+import edu.ucla.cs.starai.forclift.learning.CandidateScore
 import edu.ucla.cs.starai.forclift.learning.Likelihood
 import edu.ucla.cs.starai.forclift.languages.mln.MLNParser
 import java.io.FileWriter
@@ -47,6 +48,32 @@ class LearningCLI(
     "Learn weights (only for MLN).")
   def doWeightLearning = doWeightLearningFlag.value.getOrElse(false)
 
+  val wlResultFlag = argumentParser.option[File](
+    List("wl-result"),
+    "filename",
+    "File to which weight learning writes its objective and circuit and timing statistics as a machine-readable record, followed by the learned model.") {
+      (s, opt) =>
+        val file = new File(s)
+        file
+    }
+  def wlResult = wlResultFlag.value
+
+  val wlNoQueryCircuitsFlag = argumentParser.flag[Boolean](
+    List("wl-no-query-circuits"),
+    "Leave the query circuits out of the weight learning result, so they are only compiled when learning needs them.")
+  def wlQueryCircuitStatistics = !wlNoQueryCircuitsFlag.value.getOrElse(false)
+
+  val wlInitialWeightsFlag = argumentParser.option[File](
+    List("wl-initial-weights"),
+    "filename",
+    "File with the weights to start weight learning from, one weight and formula per line, separated by a tab.") {
+      (s, opt) =>
+        val file = new File(s)
+        if (!file.exists) argumentParser.usage(s"File $s does not exist.")
+        file
+    }
+  def wlInitialWeights = wlInitialWeightsFlag.value.map(CandidateScore.readWeights).getOrElse(Map.empty[String, Double])
+
   val doStructureLearningFlag = argumentParser.flag[Boolean](
     List("sl"),
     "Learn structure and weights (only for MLN).")
@@ -98,9 +125,15 @@ class LearningCLI(
   val slStrategyFlag = argumentParser.option[Int](
     List("sl-strategy"),
     "integer",
-    "0 = greedy search; 1 = stepped search.")
+    "0 = greedy search; 1 = stepped search; 2 = beam search.")
   def slStrategy = slStrategyFlag.value.getOrElse(0)
 
+  val slBeamWidthFlag = argumentParser.option[Int](
+    List("sl-beam"),
+    "integer",
+    "Number of models that the beam search strategy extends on every level. The default width is 4.")
+  def slBeamWidth = slBeamWidthFlag.value.getOrElse(4)
+
   val slClausesFlag = argumentParser.option[Int](
     List("sl-clauses"),
     "integer",
@@ -118,6 +151,51 @@ class LearningCLI(
     "Step size for the stepped search strategy. The default step size is 0.01.")
   def slStepSize = slStepSizeFlag.value.getOrElse(0.01)
 
+  val slInProcessFlag = argumentParser.flag[Boolean](
+    List("sl-inprocess"),
+    "Score candidate structures inside the running JVM instead of starting a new process for every candidate.")
+  def slInProcess = slInProcessFlag.value.getOrElse(false)
+
+  val slRacingFlag = argumentParser.option[Int](
+    List("sl-racing"),
+    "integer",
+    "Race the candidate structures: learn the weights of all candidates for the given number of iterations, and only continue with the best ones (requires --sl-inprocess). By default, the weights of all candidates are learned completely.")
+  def slRacing = slRacingFlag.value.getOrElse(0)
+
+  val slRacingFractionFlag = argumentParser.option[Double](
+    List("sl-racing-fraction"),
+    "double",
+    "Fraction of the candidates that is promoted to the next racing round. The default fraction is 0.5.")
+  def slRacingFraction = slRacingFractionFlag.value.getOrElse(0.5)
+
+  val slCacheFlag = argumentParser.option[File](
+    List("sl-cache"),
+    "dir",
+    "Directory in which structure learning stores the scores of candidates and a checkpoint after every iteration. Scores are reused by later runs and an identical run resumes from its last checkpoint. By default, nothing is stored.") {
+      (s, opt) =>
+        val file = new File(s)
+        file
+    }
+  def slCache = slCacheFlag.value
+
+  val slPrefilterFlag = argumentParser.option[Int](
+    List("sl-prefilter"),
+    "integer",
+    "Time-out in milliseconds for compiling the partition function of a candidate structure before its weights are learned. Candidates that cannot be compiled without grounding or within this time are not scored. By default, all candidates are scored.")
+  def slPrefilter = slPrefilterFlag.value.getOrElse(0)
+
+  val slMaxCircuitSizeFlag = argumentParser.option[Int](
+    List("sl-max-circuit-size"),
+    "integer",
+    "Maximum size of the partition function circuit of a candidate structure (requires --sl-prefilter). By default, the size is not bounded.")
+  def slMaxCircuitSize = slMaxCircuitSizeFlag.value.getOrElse(Int.MaxValue)
+
+  val slMaxCircuitOrderFlag = argumentParser.option[Int](
+    List("sl-max-circuit-order"),
+    "integer",
+    "Maximum order of the partition function circuit of a candidate structure (requires --sl-prefilter). By default, the order is not bounded.")
+  def slMaxCircuitOrder = slMaxCircuitOrderFlag.value.getOrElse(Int.MaxValue)
+
   def runLearning() {
     if (inputCLI.inputFileFormat != FileFormat.MLN) {
       argumentParser.usage("Learning only supports MLN input structures.")
@@ -145,7 +223,10 @@ class LearningCLI(
       testdbMlns = inputCLI.testDbMlns,
       doLL = doDBLikelihood,
       doPLL = doDBPseudoLikelihood,
-      skolemize = true) //TODO what does it even mean to turn off Skolemization for learning?
+      skolemize = true, //TODO what does it even mean to turn off Skolemization for learning?
+      resultFile = wlResult,
+      initialWeights = wlInitialWeights,
+      queryCircuitStatistics = wlQueryCircuitStatistics)
 
     // Write learned MLN to file
     val learnedMLNstr = learnedMLN.toStringFull
@@ -163,21 +244,46 @@ class LearningCLI(
     if (inputCLI.trainDbMlns.isEmpty) {
       argumentParser.usage("No training database files given for structure learning.")
     }
+    if (slRacing > 0 && !slInProcess) {
+      argumentParser.usage("Racing candidate structures (--sl-racing) requires --sl-inprocess.")
+    }
+    if (slRacingFraction <= 0 || slRacingFraction >= 1) {
+      argumentParser.usage("The racing fraction should lie strictly between 0 and 1.")
+    }
+    if (slBeamWidth < 1) {
+      argumentParser.usage("The beam width should be at least 1.")
+    }
+    if (slPrefilter < 0) {
+      argumentParser.usage("The prefilter time-out cannot be negative.")
+    }
+    if ((slMaxCircuitSizeFlag.value.nonEmpty || slMaxCircuitOrderFlag.value.nonEmpty) && slPrefilter == 0) {
+      argumentParser.usage("Bounding the circuit size or order requires --sl-prefilter.")
+    }
+    if (slMaxCircuitSize < 1 || slMaxCircuitOrder < 0) {
+      argumentParser.usage("The maximum circuit size should be at least 1 and the maximum order cannot be negative.")
+    }
     val mlnCandidateClauses = inputCLI.modelStructure.asInstanceOf[MLN]
     // structure learning requires unparsed files as input :-(
+    val options = new StructureLearner.Options()
+      .normalizeLikelihood(doNormalizeLH)
+      .normalizeObjectiveFunction(slNormalize)
+      .searchStrategy(slStrategy)
+      .complexityPenalty(slComplexityPenalty)
+      .maximumNumberOfClauses(slClauses)
+      .stepSize(slStepSize)
+      .timeout(slTimeout)
+      .numberOfAdditionalThreads(slThreads)
+      .outputDirectory(slOutputDir)
+      .inProcessScoring(slInProcess)
+      .racing(slRacing, slRacingFraction)
+      .scoreCacheDirectory(slCache.orNull)
+      .beamWidth(slBeamWidth)
+      .prefilter(slPrefilter, slMaxCircuitSize, slMaxCircuitOrder)
     val structureLearner = new StructureLearner(
       inputCLI.trainDbFiles.asJava,
       mlnCandidateClauses.toStringHeader,
       mlnCandidateClauses.toStringLearnFormulas,
-      doNormalizeLH,
-      slNormalize,
-      slStrategy,
-      slComplexityPenalty,
-      slClauses,
-      slStepSize,
-      slTimeout,
-      slThreads,
-      slOutputDir);
+      options);
     structureLearner.run();
   }
 
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.compiler
+
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+
+import collection._
+
+import edu.ucla.cs.starai.forclift._
+
+/**
+ * Canonical descriptions of theories, which do not depend on the names of
+ * variables or on the order of literals and clauses. Theories that are equal
+ * up to renaming, such as the sub-theories shared by a theory and that theory
+ * with one extra clause, therefore get the same description.
+ *
+ * Domains are described by the given function. Equal descriptions imply
+ * equal theories up to renaming; equal theories can still get different
+ * descriptions when literals only differ in their variables.
+ */
+class CanonicalCNF(domainKey: Domain => String) {
+
+  def apply(cnf: CNF): String = {
+    cnf.clauses.map(clauseKey).sorted.mkString(" & ")
+  }
+
+  def predicateKey(predicate: Predicate): String = {
+    CanonicalCNF.lengthPrefixed(predicate.name.name) + "/" + predicate.arity + predicate.domains.map(domainKey).mkString("[", ",", "]")
+  }
+
+  /**
+   * Describes the clause completely after renaming its variables to their
+   * order of appearance in the sorted literals.
+   */
+  def clauseKey(clause: Clause): String = {
+    def maskedAtomKey(atom: Atom) = atom.args.map {
+      case v: Var => "_"
+      case c: Constant => CanonicalCNF.constantKey(c)
+    }.mkString(predicateKey(atom.predicate) + "(", ",", ")")
+
+    val literals = (clause.posLits.map { (true, _) } ++ clause.negLits.map { (false, _) }).sortBy {
+      case (sign, atom) => (if (sign) "+" else "-") + maskedAtomKey(atom)
+    }
+
+    val varIds = new mutable.HashMap[Var, Int]
+    def varKey(v: Var) = "v" + varIds.getOrElseUpdate(v, varIds.size)
+    def termKey(t: Term) = t match {
+      case v: Var => varKey(v)
+      case c: Constant => CanonicalCNF.constantKey(c)
+    }
+
+    val literalKeys = literals.map {
+      case (sign, atom) =>
+        (if (sign) "+" else "-") + atom.args.map(termKey).mkString(predicateKey(atom.predicate) + "(", ",", ")")
+    }
+    val constrs = clause.constrs
+    val constrVariables = (constrs.variables -- varIds.keySet).toList.sortBy { v =>
+      constrs.elemConstrs.get(v).map(domainKey).getOrElse("") + constrs.ineqConstrs.getOrElse(v, Set.empty).size
+    }
+    constrVariables.foreach(varKey)
+    val elemKeys = constrs.elemConstrs.toList.map {
+      case (v, domain) => varKey(v) + "∈" + domainKey(domain)
+    }.sorted
+    val ineqKeys = constrs.ineqConstrs.toList.flatMap {
+      case (v, terms) => terms.map { t =>
+        val (first, second) = (varKey(v), termKey(t))
+        t match {
+          case _: Var if second < first => second + "≠" + first
+          case _ => first + "≠" + second
+        }
+      }
+    }.distinct.sorted
+    (literalKeys ++ elemKeys ++ ineqKeys).mkString("{", " ", "}")
+  }
+
+}
+
+object CanonicalCNF {
+
+  /**
+   * Describes domains by the name and constants of their root and by their
+   * place below that root, so that theories over domain objects that were
+   * declared the same way, for example by parsing the same model twice, get
+   * the same description.
+   */
+  val structural = new CanonicalCNF(structuralDomainKey)
+
+  def structuralDomainKey(domain: Domain): String = domain match {
+    case root: RootDomain =>
+      "r" + lengthPrefixed(root.name) + root.staticConstants.map(constantKey).mkString("{", ",", "}")
+    case complement: ComplementDomain =>
+      "~" + structuralDomainKey(complement.complement)
+    case sub: SubDomain =>
+      val excluded = sub.excludedConstants.toList.map(constantKey).sorted
+      (structuralDomainKey(sub.parents.head) + "/" + lengthPrefixed(sub.superScript) + lengthPrefixed(sub.subScript)
+        + excluded.mkString("{", ",", "}"))
+  }
+
+  /**
+   * A hash of the structural description of the given theory together with
+   * the predicates its circuit is smoothed for and the atoms excluded from
+   * smoothing, which identifies its smooth circuit.
+   */
+  def fingerprint(cnf: CNF, predicates: Iterable[Predicate], excluded: Iterable[Clause] = Nil): String = {
+    val description = (structural(cnf)
+      + " | " + predicates.map(structural.predicateKey).toList.sorted.mkString(",")
+      + " | " + excluded.map(structural.clauseKey).toList.sorted.mkString(","))
+    val digest = MessageDigest.getInstance("SHA-256").digest(description.getBytes(StandardCharsets.UTF_8))
+    digest.map { b => "%02x".format(b & 0xff) }.mkString
+  }
+
+  // length-prefixed, because names and quoted constants can contain any character
+  private[compiler] def lengthPrefixed(name: String) = name.length + ":" + name
+
+  private[compiler] def constantKey(constant: Constant): String = "'" + lengthPrefixed(constant.toString)
+
+}
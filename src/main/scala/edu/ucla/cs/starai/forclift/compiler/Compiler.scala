@@ -66,18 +66,93 @@ trait GroundingCompiler extends AbstractCompiler {
 trait LiftedCompiler extends AbstractCompiler {
 
   override def cannotCompile(cnf: CNF): NNFNode = {
-    throw new IllegalArgumentException("Cannot compile " + cnf + " without grounding.")
+    throw new CannotCompileException("Cannot compile " + cnf + " without grounding.")
+  }
+
+}
+
+/**
+ * Thrown by a LiftedCompiler when no inference rule applies to a theory.
+ */
+class CannotCompileException(message: String) extends IllegalArgumentException(message)
+
+/**
+ * Thrown by a BudgetedCompiler that ran out of budget. The budget is timed
+ * out when it ran out of time or was interrupted, which depends on the load
+ * of the machine, and not of steps.
+ */
+class CompilationBudgetExceededException(message: String, val timedOut: Boolean = false) extends RuntimeException(message)
+
+/**
+ * Stops compiling with a CompilationBudgetExceededException once it has
+ * taken more compilation steps, or more time since its first step, than its
+ * budget allows, or once its thread is interrupted. Used to cheaply reject
+ * theories that would result in huge circuits.
+ *
+ * The budget is checked on every compilation step and before every inference
+ * rule that is tried; a single rule that is already running is not cut off.
+ */
+trait BudgetedCompiler extends AbstractCompiler {
+
+  def maxCompilationSteps: Int
+
+  def maxCompilationMillis: Long
+
+  private[this] var steps = 0
+
+  private[this] var deadline = -1L
+
+  override def compile(cnf: CNF): NNFNode = {
+    steps += 1
+    if (steps > maxCompilationSteps) {
+      throw new CompilationBudgetExceededException(s"Compilation takes more than $maxCompilationSteps steps")
+    }
+    checkTime()
+    super.compile(cnf)
+  }
+
+  abstract override def inferenceRules: List[InferenceRule] = super.inferenceRules.map { rule =>
+    (cnf: CNF) => {
+      checkTime()
+      rule(cnf)
+    }
+  }
+
+  /**
+   * Throws a CompilationBudgetExceededException when the time budget, which
+   * starts at the first compilation step, has run out.
+   */
+  def checkTime() {
+    val now = System.currentTimeMillis()
+    if (deadline < 0) deadline = now + maxCompilationMillis
+    if (now > deadline) {
+      throw new CompilationBudgetExceededException(s"Compilation takes more than $maxCompilationMillis ms", timedOut = true)
+    }
+    if (Thread.currentThread.isInterrupted) {
+      throw new CompilationBudgetExceededException("Compilation was interrupted", timedOut = true)
+    }
   }
 
 }
 
 abstract class AbstractCompiler extends Compiler {
 
-  val nnfCache = new mutable.HashMap[CNF, NNFNode]
+  private[this] var cache: NnfCache = new IdentityNnfCache
+
+  def nnfCache: NnfCache = cache
+
+  /**
+   * Use the given cache instead of a fresh one, for example a cache that is
+   * kept between compilations or shared with other compilers.
+   */
+  def withNnfCache(nnfCache: NnfCache): this.type = {
+    cache = nnfCache
+    this
+  }
 
   def updateCache(cnf: CNF, nnf: NNFNode) {
     assume(nnf != null)
-    if (!nnfCache.contains(cnf)) nnfCache(cnf) = nnf
+    nnfCache.update(cnf, nnf)
   }
 
   def tryCache(cnf: CNF) = {
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.compiler
+
+import collection._
+
+import edu.ucla.cs.starai.forclift._
+import edu.ucla.cs.starai.forclift.nnf._
+
+/**
+ * Cache of compiled theories, used by the tryCache rule of the compiler.
+ */
+trait NnfCache {
+
+  def get(cnf: CNF): Option[NNFNode]
+
+  /** Store the circuit for the given theory, unless one is known already. */
+  def update(cnf: CNF, nnf: NNFNode): Unit
+
+  def size: Int
+
+}
+
+/**
+ * Default cache of a single compiler. Theories are looked up by clause
+ * identity, so this cache only hits when the very same clauses are compiled
+ * again. Not thread-safe.
+ */
+class IdentityNnfCache extends NnfCache {
+
+  private[this] val cache = new mutable.HashMap[CNF, NNFNode]
+
+  def get(cnf: CNF) = cache.get(cnf)
+
+  def update(cnf: CNF, nnf: NNFNode) {
+    if (!cache.contains(cnf)) cache(cnf) = nnf
+  }
+
+  def size = cache.size
+
+}
+
+/**
+ * Cache that can outlive a single compilation and be shared by several
+ * compilers, also from different threads.
+ *
+ * Theories are looked up by their structural CanonicalCNF, so theories that
+ * are equal up to renaming hit the same circuit, also when they are over
+ * the domains of separate parses of the same declarations. A circuit that
+ * was compiled over other domain objects than those of the theory that is
+ * looked up is copied over the domains of that theory, see NnfFile.rebind.
+ *
+ * The cache keeps the given number of most recently used circuits. Only the
+ * lookups and insertions hold the lock of the cache.
+ */
+class CanonicalNnfCache(maxSize: Int = CanonicalNnfCache.DefaultMaxSize) extends NnfCache {
+
+  require(maxSize > 0, "The cache needs room for at least one circuit")
+
+  private[this] case class Entry(domains: Set[Domain], nnf: NNFNode)
+
+  private[this] val cache = new java.util.LinkedHashMap[String, Entry](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: java.util.Map.Entry[String, Entry]) = size > maxSize
+  }
+
+  private[this] var hits = 0L
+  private[this] var misses = 0L
+
+  def get(cnf: CNF): Option[NNFNode] = {
+    val cnfKey = key(cnf)
+    val entry = synchronized { Option(cache.get(cnfKey)) }
+    val nnf = entry.flatMap { entry =>
+      val domains = domainsOf(cnf)
+      if (entry.domains == domains) Some(entry.nnf)
+      else {
+        try Some(NnfFile.rebind(entry.nnf, domains))
+        catch {
+          // compile the theory instead
+          case e: IllegalArgumentException => None
+        }
+      }
+    }
+    synchronized { if (nnf.nonEmpty) hits += 1 else misses += 1 }
+    nnf
+  }
+
+  def update(cnf: CNF, nnf: NNFNode) {
+    val cnfKey = key(cnf)
+    val entry = Entry(domainsOf(cnf), nnf)
+    synchronized {
+      if (!cache.containsKey(cnfKey)) cache.put(cnfKey, entry)
+    }
+  }
+
+  def size = synchronized { cache.size }
+
+  def hitCount = synchronized { hits }
+
+  def missCount = synchronized { misses }
+
+  override def toString = s"CanonicalNnfCache(size = $size, hits = $hitCount, misses = $missCount)"
+
+  private[this] def key(cnf: CNF): String = CanonicalCNF.structural(cnf)
+
+  // all domains that the circuit of the theory can refer to
+  private[this] def domainsOf(cnf: CNF): Set[Domain] = {
+    cnf.domains ++ cnf.predicates.flatMap { _.domains } ++ cnf.constants.flatMap { _.domain }
+  }
+
+}
+
+object CanonicalNnfCache {
+
+  final val DefaultMaxSize = 100000
+
+}
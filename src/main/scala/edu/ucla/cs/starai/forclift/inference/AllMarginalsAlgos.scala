@@ -20,6 +20,7 @@ import edu.ucla.cs.starai.forclift._
 import edu.ucla.cs.starai.forclift.compiler._
 import edu.ucla.cs.starai.forclift.inference._
 import edu.ucla.cs.starai.forclift.rcr.NoTruthRCR
+import edu.ucla.cs.starai.forclift.util.LogDouble
 
 trait AllMarginalsAlgorithm{
    
@@ -54,15 +55,32 @@ class AllMarginalsExact(
 
     // compute partition function
     val z = new CNFCircuit(compiler, theoryWmc.cnf);
-    z.cacheWmc(theoryWmc.domainSizes, theoryWmc.predicateWeights)
+    if (z.canDifferentiate(theoryWmc.predicateWeights)) {
+      z.cacheWmcAndGradient(theoryWmc.domainSizes, theoryWmc.predicateWeights)
+    } else {
+      z.cacheWmc(theoryWmc.domainSizes, theoryWmc.predicateWeights)
+    }
     println("Partition function is " + z.cachedWmc)
 
+    // a class that holds all groundings of its predicate gets its marginal
+    // from the gradient of the partition function, which is per predicate
+    val classesPerPredicate = equip.coshatteredFgCAtoms.groupBy { _.atom.predicate }
+    def hasGradientMarginal(queryClass: PositiveUnitClause) = {
+      val predicate = queryClass.atom.predicate
+      (z.hasCachedGradient && z.cachedGradient.predicates.contains(predicate)
+        && classesPerPredicate(predicate).size == 1
+        && queryClass.nbGroundings(theoryWmc.domainSizes) == predicate.toAtom.nbGroundings(theoryWmc.domainSizes))
+    }
+
     // compute individual marginals
     for (queryClass <- equip.coshatteredFgCAtoms) {
       //      println("Running query: "+queryClass.atom.toString())
       if (queryClass.atom.toString.startsWith("sef_") ||
         queryClass.atom.toString.startsWith("zef_")) {
         println(s"Ignoring auxiliary atom $queryClass")
+      } else if (hasGradientMarginal(queryClass)) {
+        val marginal = new LogDouble(math.log(z.cachedGradient.marginal(queryClass.atom.predicate)))
+        println("Probability for class of queries " + queryClass + " is " + marginal)
       } else {
         val circuit = new MarginalCircuits(compiler, z, queryClass, theoryWmc.domainSizes)
         circuit.cacheQueryWmc(theoryWmc.predicateWeights)
@@ -23,7 +23,10 @@ import edu.ucla.cs.starai.forclift.util.SignLogDouble._
 import edu.ucla.cs.starai.forclift.nnf.visitors.SignLogDoubleWmc
 import edu.ucla.cs.starai.forclift.nnf.visitors.WmcVisitor
 import edu.ucla.cs.starai.forclift.PositiveUnitClause
+import edu.ucla.cs.starai.forclift.nnf.FlatCircuit
+import edu.ucla.cs.starai.forclift.nnf.GeneratedCircuit
 import edu.ucla.cs.starai.forclift.nnf.NNFNode
+import edu.ucla.cs.starai.forclift.nnf.WmcGradient
 import edu.ucla.cs.starai.forclift.CNF
 import edu.ucla.cs.starai.forclift.Atom
 import edu.ucla.cs.starai.forclift.Constant
@@ -40,15 +43,63 @@ abstract class CachingCNFCircuit {
 
   def cachedWmc = cachedWmcOption.get
 
-  def clearCache { cachedWmcOption = None }
+  private[this] var cachedGradientOption: Option[WmcGradient] = None
+
+  def hasCachedGradient = cachedGradientOption.nonEmpty
+
+  def cachedGradient = cachedGradientOption.get
+
+  def clearCache {
+    cachedWmcOption = None
+    cachedGradientOption = None
+  }
+
+  /**
+   * The flattened circuit, which evaluates faster than the visitors when the
+   * circuit is evaluated repeatedly, as in learning and RCR.
+   */
+  lazy val flatSmoothNNF: Option[FlatCircuit] = FlatCircuit.flatten(smoothNNF)
+
+  /**
+   * The flattened circuit compiled into a class, when GeneratedCircuit is
+   * enabled.
+   */
+  lazy val generatedSmoothNNF: Option[GeneratedCircuit] = flatSmoothNNF.flatMap { GeneratedCircuit.generate(_) }
 
   def cacheWmc(domainSizes: DomainSizes, weights: PredicateWeights) = {
     require(cachedWmcOption.isEmpty)
-    val wmcVisitor = WmcVisitor(weights)
-    val wmc = wmcVisitor.wmc(smoothNNF,domainSizes,weights)
+    val wmc = flatSmoothNNF match {
+      case Some(flatCircuit) if WmcVisitor.parallelism == 1 && flatCircuit.supportsSigned(weights) =>
+        if (GeneratedCircuit.enabled && flatCircuit.supports(weights) && generatedSmoothNNF.nonEmpty) {
+          generatedSmoothNNF.get.wmc(domainSizes, weights)
+        } else flatCircuit.wmc(domainSizes, weights)
+      case _ =>
+        val wmcVisitor = WmcVisitor(weights)
+        wmcVisitor.wmc(smoothNNF,domainSizes,weights)
+    }
     cachedWmcOption = Some(wmc)
   }
 
+  /**
+   * Whether cacheWmcAndGradient can differentiate this circuit under the
+   * given weights.
+   */
+  def canDifferentiate(weights: PredicateWeights): Boolean = {
+    flatSmoothNNF.exists { flatCircuit => WmcGradient.supports(flatCircuit) && flatCircuit.supports(weights) }
+  }
+
+  /**
+   * Caches the WMC together with its derivatives towards all weights, which
+   * give the expected counts of all predicates, see WmcGradient.
+   */
+  def cacheWmcAndGradient(domainSizes: DomainSizes, weights: PredicateWeights) = {
+    require(cachedWmcOption.isEmpty)
+    require(canDifferentiate(weights))
+    val gradient = WmcGradient(flatSmoothNNF.get, domainSizes, weights)
+    cachedWmcOption = Some(gradient.logWmc: SignLogDouble)
+    cachedGradientOption = Some(gradient)
+  }
+
 }
 
 class PrecompiledCNFCircuit(val smoothNNF: NNFNode) extends CachingCNFCircuit {
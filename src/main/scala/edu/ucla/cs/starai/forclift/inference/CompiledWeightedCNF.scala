@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.inference
+
+import java.io.File
+
+import edu.ucla.cs.starai.forclift.Predicate
+import edu.ucla.cs.starai.forclift.nnf.FlatCircuit
+import edu.ucla.cs.starai.forclift.nnf.NNFNode
+import edu.ucla.cs.starai.forclift.nnf.NnfFile
+import edu.ucla.cs.starai.forclift.nnf.WmcGradient
+import edu.ucla.cs.starai.forclift.nnf.visitors.TruncatedWmc
+import edu.ucla.cs.starai.forclift.nnf.visitors.WmcEstimate
+import edu.ucla.cs.starai.forclift.nnf.visitors.WmcVisitor
+import edu.ucla.cs.starai.forclift.util.SignLogDouble
+
+/**
+ * The compiled and smoothed circuit of a WeightedCNF, separated from its
+ * weights and domain sizes, for evaluating one theory under many weights
+ * or domain sizes without compiling it again.
+ *
+ * The weights and domain sizes given to an evaluation override those of the
+ * theory that was compiled, so they may be partial. The weights can only
+ * change for predicates in the vocabulary of the theory, because the
+ * circuit is smoothed for those predicates only.
+ *
+ * Evaluations do not change the handle and can run on several threads.
+ *
+ * The fingerprint identifies the theory that was compiled, see
+ * CanonicalCNF.fingerprint, so that a saved circuit is only loaded for the
+ * same theory.
+ */
+final class CompiledWeightedCNF(
+  val smoothNnf: NNFNode,
+  val vocabularyPredicates: collection.Set[Predicate],
+  val domainSizes: DomainSizes,
+  val predicateWeights: PredicateWeights,
+  theoryFingerprint: => String) {
+
+  lazy val fingerprint: String = theoryFingerprint
+
+  /**
+   * The flattened smooth circuit, see FlatCircuit.
+   */
+  lazy val flatSmoothNnf: Option[FlatCircuit] = FlatCircuit.flatten(smoothNnf)
+
+  /**
+   * The weights of the theory, overridden by the given weights.
+   */
+  def reweighted(newWeights: PredicateWeights): PredicateWeights = {
+    val unknown = newWeights.predicates -- vocabularyPredicates
+    require(unknown.isEmpty, s"The circuit is not smoothed for predicates ${unknown.mkString(", ")}")
+    predicateWeights ++ newWeights
+  }
+
+  /**
+   * The domain sizes of the theory, overridden by the given domain sizes.
+   */
+  def resized(newDomainSizes: DomainSizes): DomainSizes = {
+    (domainSizes ++ newDomainSizes): DomainSizes
+  }
+
+  def logSmoothWmc(newWeights: PredicateWeights): SignLogDouble = {
+    logSmoothWmc(DomainSizes.empty, newWeights)
+  }
+
+  def logSmoothWmc(newDomainSizes: DomainSizes, newWeights: PredicateWeights): SignLogDouble = {
+    val weights = reweighted(newWeights)
+    val sizes = resized(newDomainSizes)
+    flatSmoothNnf match {
+      case Some(flatCircuit) if WmcVisitor.parallelism == 1 && flatCircuit.supportsSigned(weights) =>
+        flatCircuit.wmc(sizes, weights)
+      case _ =>
+        WmcVisitor(weights).wmc(smoothNnf, sizes, weights)
+    }
+  }
+
+  /**
+   * The weighted model counts for each of the given domain sizes, see
+   * WmcVisitor.sweep.
+   */
+  def logSmoothWmc(sweep: IndexedSeq[DomainSizes], newWeights: PredicateWeights): IndexedSeq[SignLogDouble] = {
+    WmcVisitor.sweep(smoothNnf, sweep.map { resized(_) }, reweighted(newWeights))
+  }
+
+  /**
+   * An estimate of the weighted model count, see TruncatedWmc.
+   */
+  def logSmoothWmcEstimate(tolerance: Double, newDomainSizes: DomainSizes, newWeights: PredicateWeights): WmcEstimate = {
+    TruncatedWmc(tolerance).wmc(smoothNnf, resized(newDomainSizes), reweighted(newWeights))
+  }
+
+  /**
+   * The weighted model count and its derivatives, or None when the circuit
+   * cannot be differentiated under the given weights, see WmcGradient.
+   */
+  def gradient(newDomainSizes: DomainSizes, newWeights: PredicateWeights): Option[WmcGradient] = {
+    val weights = reweighted(newWeights)
+    flatSmoothNnf.filter { flatCircuit => WmcGradient.supports(flatCircuit) && flatCircuit.supports(weights) }.map {
+      WmcGradient(_, resized(newDomainSizes), weights)
+    }
+  }
+
+  /**
+   * Saves the circuit, see NnfFile.
+   */
+  def save(file: File) {
+    NnfFile.save(smoothNnf, fingerprint, file)
+  }
+
+}
+
+object CompiledWeightedCNF {
+
+  /**
+   * The circuit in the given file, which was saved for the given theory or
+   * for another parse of the same theory, see NnfFile. The domain sizes and
+   * weights can differ. Throws an IllegalArgumentException when the file
+   * was saved for another theory.
+   */
+  def load(file: File, wcnf: WeightedCNF): CompiledWeightedCNF = {
+    val domains = wcnf.domainSizes.domains ++ wcnf.cnf.domains
+    val smoothNnf = NnfFile.load(file, wcnf.fingerprint, domains, wcnf.vocabularyPredicates)
+    new CompiledWeightedCNF(smoothNnf, wcnf.vocabularyPredicates, wcnf.domainSizes, wcnf.predicateWeights, wcnf.fingerprint)
+  }
+
+}
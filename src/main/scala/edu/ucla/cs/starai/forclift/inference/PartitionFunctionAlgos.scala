@@ -19,6 +19,7 @@ package edu.ucla.cs.starai.forclift.inference
 import edu.ucla.cs.starai.forclift._
 import edu.ucla.cs.starai.forclift.compiler._
 import edu.ucla.cs.starai.forclift.inference._
+import edu.ucla.cs.starai.forclift.nnf.visitors.TruncatedWmc
 import edu.ucla.cs.starai.forclift.rcr.NoTruthRCR
 import edu.ucla.cs.starai.forclift.util.Timer
 import edu.ucla.cs.starai.forclift.util.SignLogDouble
@@ -53,10 +54,25 @@ class PartitionFunctionExact(
       println("evidence smooth nnf size = " + wcnf.smoothNnf.size)
     }
        
-    val wmc = wcnf.logSmoothWmc
-    println(s"Z = $wmc = ${wmc.toDouble}")
-      
-    wmc
+    computePartitionFunction(wcnf.compiled)
+  }
+
+  /**
+   * Output partition function of a circuit that was compiled before
+   */
+  def computePartitionFunction(compiled: CompiledWeightedCNF): SignLogDouble = {
+    val tolerance = TruncatedWmc.tolerance
+    if (tolerance > 0 && compiled.predicateWeights.values.forall { w => w.posWDouble >= 0 && w.negWDouble >= 0 }) {
+      val estimate = compiled.logSmoothWmcEstimate(tolerance, DomainSizes.empty, PredicateWeights.empty)
+      println(s"Z = ${estimate.truncated} = ${estimate.truncated.toDouble}")
+      println(s"Z is about ${estimate.extrapolated} = ${estimate.extrapolated.toDouble} with the skipped terms extrapolated (estimated relative error ${estimate.relativeError})")
+      estimate.truncated
+    } else {
+      val wmc = compiled.logSmoothWmc(PredicateWeights.empty)
+      println(s"Z = $wmc = ${wmc.toDouble}")
+
+      wmc
+    }
   }
 
 }
@@ -23,7 +23,9 @@ import edu.ucla.cs.starai.forclift.compiler._
 import edu.ucla.cs.starai.forclift.conditioning._
 import edu.ucla.cs.starai.forclift.propositional._
 import edu.ucla.cs.starai.forclift.util._
+import edu.ucla.cs.starai.forclift.nnf.FlatCircuit
 import edu.ucla.cs.starai.forclift.nnf.visitors.SignLogDoubleWmc
+import edu.ucla.cs.starai.forclift.nnf.visitors.WmcEstimate
 import edu.ucla.cs.starai.forclift.nnf.visitors.VerifyWmcVisitor
 import edu.ucla.cs.starai.forclift.nnf.visitors.WmcVisitor
 
@@ -64,9 +66,53 @@ case class WeightedCNF(
 
   lazy val wmcVisitor = WmcVisitor(predicateWeights)
   
-  lazy val logSmoothWmc: SignLogDouble = {
-    //TODO test sign of weights and optimize
-    wmcVisitor.wmc(smoothNnf,domainSizes, predicateWeights)
+  /**
+   * The flattened smooth circuit, which keeps the domain sizes in slots of
+   * an array instead of in DomainSizes maps, see FlatCircuit.
+   */
+  lazy val flatSmoothNnf: Option[FlatCircuit] = compiled.flatSmoothNnf
+
+  /**
+   * The compiled smooth circuit of this theory, which can be evaluated under
+   * other weights and domain sizes without compiling it again. Copies of
+   * this theory with other weights compile their own circuit.
+   */
+  lazy val compiled = new CompiledWeightedCNF(smoothNnf, vocabularyPredicates, domainSizes, predicateWeights, fingerprint)
+
+  /**
+   * Identifies the smooth circuit of this theory, see CanonicalCNF.fingerprint.
+   */
+  lazy val fingerprint: String = CanonicalCNF.fingerprint(cnf, vocabularyPredicates, conditionedAtoms)
+
+  lazy val logSmoothWmc: SignLogDouble = compiled.logSmoothWmc(PredicateWeights.empty)
+
+  /**
+   * The weighted model counts of this theory for each of the given domain
+   * sizes, which override the domain sizes of this theory. One circuit is
+   * compiled and evaluated for all of them, see WmcVisitor.sweep.
+   */
+  def logSmoothWmc(sweep: IndexedSeq[DomainSizes]): IndexedSeq[SignLogDouble] = {
+    compiled.logSmoothWmc(sweep, PredicateWeights.empty)
+  }
+
+  /**
+   * An estimate of the weighted model count of this theory, whose counting
+   * nodes sum only the terms needed for about the given relative error, see
+   * TruncatedWmc. The weights must be non-negative.
+   */
+  def logSmoothWmcEstimate(tolerance: Double): WmcEstimate = {
+    compiled.logSmoothWmcEstimate(tolerance, DomainSizes.empty, PredicateWeights.empty)
+  }
+
+  /**
+   * All combinations of the given sizes for the given domains, with the
+   * domain sizes of this theory for the other domains.
+   */
+  def domainSizesGrid(ranges: (Domain, Seq[Int])*): IndexedSeq[DomainSizes] = {
+    ranges.foldLeft(IndexedSeq(domainSizes)) {
+      case (grid, (domain, sizes)) =>
+        for (gridPoint <- grid; size <- sizes) yield gridPoint + (domain, size)
+    }
   }
 
   lazy val logPropWmc: SignLogDouble = {
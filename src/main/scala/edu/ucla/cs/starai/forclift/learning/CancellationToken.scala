@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.learning
+
+/**
+ * Lets another thread stop weight learning, for example when a candidate
+ * exceeds its time limit in structure learning. Learning checks the token
+ * between evaluations of the objective and throws an InterruptedException
+ * once it is cancelled. Unlike interrupting the learning thread, cancelling
+ * only affects the learning that the token was given to.
+ */
+final class CancellationToken {
+
+  @volatile private[this] var cancelled = false
+
+  def cancel() {
+    cancelled = true
+  }
+
+  def isCancelled: Boolean = cancelled
+
+  def check() {
+    if (cancelled) throw new InterruptedException("Weight learning was cancelled")
+  }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.learning
+
+import edu.ucla.cs.starai.forclift._
+import edu.ucla.cs.starai.forclift.compiler._
+import edu.ucla.cs.starai.forclift.languages.mln._
+
+/**
+ * The verdict of the prefilter on a candidate structure. The circuit size
+ * and order are -1 when compilation did not finish. A verdict is timed out
+ * when compilation ran out of time, so checking the structure again can
+ * reach a different verdict.
+ */
+class PrefilterVerdict(
+  val accepted: Boolean,
+  val reason: String,
+  val circuitSize: Int,
+  val circuitOrder: Int,
+  val compileTime: Long,
+  val timedOut: Boolean = false) {
+
+  override def toString = {
+    if (accepted) s"accepted (size = $circuitSize, order = $circuitOrder, $compileTime ms)"
+    else s"rejected: $reason ($compileTime ms)"
+  }
+
+}
+
+/**
+ * Cheap check of a candidate structure before its weights are learned.
+ *
+ * Only the partition function of the structure is compiled, without
+ * databases, without counting and under a budget of compilation steps and
+ * time, see BudgetedCompiler. Candidates that cannot be compiled without
+ * grounding, that exceed the budget, or whose circuit exceeds the given
+ * size or order are rejected; learning their weights would at best produce
+ * an expensive model and at worst run until the timeout. The time of
+ * smoothing and measuring the circuit counts against the time budget too.
+ *
+ * The partition function is built by LiftedLearning, so it is the theory
+ * that learning compiles, Skolemization included.
+ */
+object CandidatePrefilter {
+
+  def check(
+    structure: String,
+    maxCircuitSize: Int,
+    maxCircuitOrder: Int,
+    maxSteps: Int,
+    maxMillis: Long): PrefilterVerdict = {
+
+    val start = System.currentTimeMillis()
+    def elapsed = System.currentTimeMillis() - start
+    def reject(reason: String, timedOut: Boolean = false) = new PrefilterVerdict(false, reason, -1, -1, elapsed, timedOut)
+
+    val parser = new MLNParser
+    parser.setLearnModus(true)
+    val mln = parser.parseMLN(structure + "\n")
+
+    val compiler = new V1_1Compiler() with LiftedCompiler with BudgetedCompiler {
+      val maxCompilationSteps = maxSteps
+      val maxCompilationMillis = maxMillis
+    }
+    val learner = new LiftedLearning(mln, Seq(), compiler = compiler)
+
+    try {
+      val circuit = compiler.compile(learner.partitionFunctionCNF).smoothWithPredicates(learner.vocabularyPredicates)
+      val size = circuit.size
+      val order = circuit.evalOrder
+      compiler.checkTime()
+      if (size > maxCircuitSize) reject(s"circuit size $size exceeds $maxCircuitSize")
+      else if (order > maxCircuitOrder) reject(s"circuit order $order exceeds $maxCircuitOrder")
+      else new PrefilterVerdict(true, "", size, order, elapsed)
+    } catch {
+      case e: CompilationBudgetExceededException => reject(e.getMessage, e.timedOut)
+      case e: CannotCompileException => reject("not liftable")
+    }
+  }
+
+}
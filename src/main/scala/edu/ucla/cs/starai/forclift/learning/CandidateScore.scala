@@ -0,0 +1,424 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.learning
+
+import java.io.File
+import java.io.PrintWriter
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.io.Source
+
+import breeze.linalg.DenseVector
+
+import edu.ucla.cs.starai.forclift.compiler._
+import edu.ucla.cs.starai.forclift.languages.mln._
+
+/**
+ * The result of learning the weights of a candidate structure: the learned
+ * model together with the statistics that structure learning uses to rank
+ * candidates.
+ *
+ * The log-likelihood is the (regularized) objective that weight learning
+ * maximized, as reported by `--wl -v` on the command line.
+ *
+ * The times are in milliseconds. Compiling and counting are done once per
+ * learner, so only the first score of a learner reports their time.
+ */
+class CandidateScore(
+  val learnedModel: String,
+  val logLikelihood: Double,
+  val partitionCircuitSize: Int,
+  val partitionCircuitOrder: Int,
+  val queryCircuitSizes: IndexedSeq[Int],
+  val queryCircuitOrders: IndexedSeq[Int],
+  val learnedWeights: Map[String, Double] = Map.empty,
+  val compileTime: Long = 0L,
+  val countTime: Long = 0L,
+  val learnTime: Long = 0L,
+  val iterations: Int = 0,
+  val gradientEvaluations: Int = 0) {
+
+  def javaQueryCircuitSizes: java.util.List[Integer] = queryCircuitSizes.map(Int.box).asJava
+
+  def javaQueryCircuitOrders: java.util.List[Integer] = queryCircuitOrders.map(Int.box).asJava
+
+  /** The learned weights by formula, see LearningFormula.weightKey. */
+  def javaLearnedWeights: java.util.Map[String, java.lang.Double] = learnedWeights.mapValues(Double.box).asJava
+
+  /**
+   * The statistics of this score as a single line of tab-separated
+   * `key=value` fields. The learned model and weights are not included.
+   */
+  def toRecord: String = {
+    Seq(
+      "objective" -> logLikelihood,
+      "partitionCircuitSize" -> partitionCircuitSize,
+      "partitionCircuitOrder" -> partitionCircuitOrder,
+      "queryCircuitSizes" -> queryCircuitSizes.mkString(","),
+      "queryCircuitOrders" -> queryCircuitOrders.mkString(","),
+      "compileTime" -> compileTime,
+      "countTime" -> countTime,
+      "learnTime" -> learnTime,
+      "iterations" -> iterations,
+      "gradientEvaluations" -> gradientEvaluations).map { case (key, value) => key + "=" + value }.mkString("\t")
+  }
+
+  /**
+   * Write this score to the given file: the record and the number of
+   * learned weights on the first line, then one line per learned weight,
+   * see CandidateScore.weightLine, followed by the learned model. The file
+   * is replaced atomically, so a reader never sees a partially written
+   * score.
+   */
+  def write(file: File) {
+    val temporaryFile = new File(file.getPath + ".tmp")
+    val writer = new PrintWriter(temporaryFile, "UTF-8")
+    try {
+      writer.println(toRecord + "\tweights=" + learnedWeights.size)
+      for ((key, weight) <- learnedWeights) {
+        writer.println(CandidateScore.weightLine(key, weight))
+      }
+      writer.print(learnedModel)
+    } finally {
+      writer.close()
+    }
+    if (!temporaryFile.renameTo(file)) {
+      file.delete()
+      temporaryFile.renameTo(file)
+    }
+  }
+
+  override def toString = {
+    s"CandidateScore(logLikelihood = $logLikelihood, " +
+      s"partition circuit size = $partitionCircuitSize, order = $partitionCircuitOrder)"
+  }
+
+}
+
+object CandidateScore {
+
+  /**
+   * The score of the weights that the given learner learned last, see
+   * LiftedLearning.learnParameters. The sizes and orders of the query
+   * circuits are only reported when they are requested or when learning
+   * compiled the query circuits anyway, since compiling them is otherwise
+   * wasted, see LearningFormula.queryCircuits.
+   */
+  def apply(
+    learner: LiftedLearning,
+    learnedMLN: MLN,
+    negatedObjective: Double,
+    compileTime: Long,
+    countTime: Long,
+    learnTime: Long,
+    queryCircuitStatistics: Boolean = true): CandidateScore = {
+    val z = learner.zs.head._2.smoothNNF
+    val queryCircuits = learner.learnableClauses.flatMap { clause =>
+      if (queryCircuitStatistics || clause.hasQueryCircuits) clause.queryCircuits.map { _._2 }
+      else IndexedSeq()
+    }
+    new CandidateScore(
+      learnedMLN.toStringFull,
+      -negatedObjective,
+      z.size,
+      z.evalOrder,
+      queryCircuits.map { _.size },
+      queryCircuits.map { _.evalOrder },
+      learner.learnedWeights.toMap,
+      compileTime,
+      countTime,
+      learnTime,
+      learner.numIterations,
+      learner.numGradientComputations)
+  }
+
+  /**
+   * A learned weight as a line of the weight and its key, separated by a
+   * tab. Keys do not contain line breaks, see LearningFormula.weightKey.
+   */
+  def weightLine(key: String, weight: Double): String = weight + "\t" + key
+
+  def parseWeightLine(line: String): (String, Double) = {
+    val separator = line.indexOf('\t')
+    require(separator > 0, s"Malformed weight $line")
+    (line.substring(separator + 1) -> line.substring(0, separator).toDouble)
+  }
+
+  /**
+   * The weights in the given file, one line per weight, see weightLine.
+   */
+  def readWeights(file: File): Map[String, Double] = {
+    val source = Source.fromFile(file, "UTF-8")
+    try source.getLines.filter(_.nonEmpty).map(parseWeightLine).toMap finally source.close()
+  }
+
+  /**
+   * Read a score that was written by CandidateScore.write.
+   */
+  def read(file: File): CandidateScore = {
+    val source = Source.fromFile(file, "UTF-8")
+    val lines = try source.getLines.toList finally source.close()
+    require(lines.nonEmpty, s"No score in $file")
+    val fields = lines.head.split("\t").map { field =>
+      val separator = field.indexOf('=')
+      require(separator > 0, s"Malformed field $field in $file")
+      (field.substring(0, separator) -> field.substring(separator + 1))
+    }.toMap
+    def ints(key: String) = fields(key).split(",").filter(_.nonEmpty).map(_.toInt).toIndexedSeq
+    val (weightLines, modelLines) = lines.tail.splitAt(fields("weights").toInt)
+    new CandidateScore(
+      modelLines.mkString("\n"),
+      fields("objective").toDouble,
+      fields("partitionCircuitSize").toInt,
+      fields("partitionCircuitOrder").toInt,
+      ints("queryCircuitSizes"),
+      ints("queryCircuitOrders"),
+      weightLines.map(parseWeightLine).toMap,
+      fields("compileTime").toLong,
+      fields("countTime").toLong,
+      fields("learnTime").toLong,
+      fields("iterations").toInt,
+      fields("gradientEvaluations").toInt)
+  }
+
+  /**
+   * Learn the weights of the given structure on all given database files
+   * inside the current JVM. This is the in-process counterpart of running
+   * the command line with `--wl -v --train ...` on the structure.
+   */
+  def learn(
+    structure: String,
+    databases: java.util.List[File],
+    normalizeLH: Boolean): CandidateScore = {
+    new CandidateLearner(structure, databases, normalizeLH).learnAll()
+  }
+
+  /**
+   * Learn the weights of the given structure on all given database files,
+   * sharing domains and compiled theories with the other candidates of the
+   * given context. The context can be null.
+   */
+  def learn(
+    structure: String,
+    databases: java.util.List[File],
+    normalizeLH: Boolean,
+    context: CandidateLearningContext): CandidateScore = {
+    new CandidateLearner(structure, databases, normalizeLH, context).learnAll()
+  }
+
+  /**
+   * Learn the weights of the given structure on all given database files,
+   * warm-starting from the given weights, which are typically the learned
+   * weights of the structure without its last clause. The context can be
+   * null.
+   */
+  def learn(
+    structure: String,
+    databases: java.util.List[File],
+    normalizeLH: Boolean,
+    context: CandidateLearningContext,
+    initialWeights: java.util.Map[String, java.lang.Double]): CandidateScore = {
+    new CandidateLearner(structure, databases, normalizeLH, context, initialWeights).learnAll()
+  }
+
+  /**
+   * Learn the weights of the given structure on all given database files,
+   * like the other learn methods, and stop with an InterruptedException once
+   * the given token is cancelled.
+   */
+  def learn(
+    structure: String,
+    databases: java.util.List[File],
+    normalizeLH: Boolean,
+    context: CandidateLearningContext,
+    initialWeights: java.util.Map[String, java.lang.Double],
+    cancellationToken: CancellationToken): CandidateScore = {
+    learn(structure, databases, normalizeLH, context, initialWeights, cancellationToken, true)
+  }
+
+  /**
+   * Learn the weights of the given structure on all given database files,
+   * like the other learn methods, and only report the statistics of the
+   * query circuits when requested, see CandidateScore.apply.
+   */
+  def learn(
+    structure: String,
+    databases: java.util.List[File],
+    normalizeLH: Boolean,
+    context: CandidateLearningContext,
+    initialWeights: java.util.Map[String, java.lang.Double],
+    cancellationToken: CancellationToken,
+    queryCircuitStatistics: Boolean): CandidateScore = {
+    val learner = new CandidateLearner(structure, databases, normalizeLH, context, initialWeights, queryCircuitStatistics)
+    learner.learn(0 until learner.nbDatabases, Int.MaxValue, cancellationToken)
+  }
+
+}
+
+/**
+ * State shared by the learners of all candidate structures of a structure
+ * learning run: the header that declares the domains and a cache of
+ * compiled theories.
+ *
+ * The compiler can reuse the circuits of sub-theories that a candidate
+ * shares with candidates compiled before, for example with the model it
+ * extends by a single clause. Only the parts of the theory that involve new
+ * clauses are compiled again. The cache matches theories by structure, see
+ * CanonicalNnfCache, so every candidate still parses its own domains and
+ * the dynamic constants that learning adds to them are not shared. The
+ * learners of a context run in parallel.
+ */
+class CandidateLearningContext(header: String, cacheSize: Int) {
+
+  def this(header: String) = this(header, CanonicalNnfCache.DefaultMaxSize)
+
+  val nnfCache = new CanonicalNnfCache(cacheSize)
+
+  /**
+   * A parser in learn modus that has parsed the header into new domains.
+   */
+  def newParser(): MLNParser = {
+    val parser = new MLNParser
+    parser.setLearnModus(true)
+    parser.parseMLN(header + "\n")
+    parser
+  }
+
+  def newCompiler(): Compiler = (new V1_1Compiler() with LiftedCompiler).withNnfCache(nnfCache)
+
+}
+
+/**
+ * Learns the weights of a candidate structure on subsets of a fixed list of
+ * database files. The structure is compiled only once: learning on another
+ * subset of the databases only reruns the weight optimization.
+ *
+ * The structure is parsed by every learner anew, because learning adds
+ * dynamic constants to the parsed domains. With a context, the learner
+ * shares the compiled theories of the context. A learner is not
+ * thread-safe, but learners of the same context can run in parallel.
+ *
+ * Weight learning starts from the given initial weights, by
+ * LearningFormula.weightKey. Formulas without an initial weight start at 0.
+ * The scores only report the query circuits when queryCircuitStatistics is
+ * set, see CandidateScore.apply.
+ */
+class CandidateLearner(
+  structure: String,
+  databases: java.util.List[File],
+  normalizeLH: Boolean,
+  context: Option[CandidateLearningContext],
+  initialWeights: Map[String, Double],
+  queryCircuitStatistics: Boolean) {
+
+  def this(structure: String, databases: java.util.List[File], normalizeLH: Boolean) = {
+    this(structure, databases, normalizeLH, None, Map.empty[String, Double], true)
+  }
+
+  def this(structure: String, databases: java.util.List[File], normalizeLH: Boolean, context: CandidateLearningContext) = {
+    this(structure, databases, normalizeLH, Option(context), Map.empty[String, Double], true)
+  }
+
+  def this(structure: String, databases: java.util.List[File], normalizeLH: Boolean, context: CandidateLearningContext,
+    initialWeights: java.util.Map[String, java.lang.Double], queryCircuitStatistics: Boolean) = {
+    this(structure, databases, normalizeLH, Option(context),
+      if (initialWeights == null) Map.empty[String, Double]
+      else initialWeights.asScala.toMap.mapValues(_.doubleValue).toMap,
+      queryCircuitStatistics)
+  }
+
+  def this(structure: String, databases: java.util.List[File], normalizeLH: Boolean, context: CandidateLearningContext,
+    initialWeights: java.util.Map[String, java.lang.Double]) = {
+    this(structure, databases, normalizeLH, context, initialWeights, true)
+  }
+
+  require(!databases.isEmpty, "Learning requires at least one database")
+
+  val nbDatabases = databases.size
+
+  lazy val learner = context match {
+    case Some(sharedContext) => newLearner(sharedContext.newParser(), sharedContext.newCompiler())
+    case None => {
+      val parser = new MLNParser
+      parser.setLearnModus(true)
+      newLearner(parser, Compiler.default)
+    }
+  }
+
+  private[this] def newLearner(parser: MLNParser, compiler: Compiler) = {
+    val mln = parser.parseMLN(structure + "\n")
+    val dbMlns = databases.asScala.toList.map { file =>
+      val source = Source.fromFile(file)
+      try {
+        parser.parseDB(source.mkString)
+      } finally {
+        source.close()
+      }
+    }
+    new LiftedLearning(mln, dbMlns, normalizeLH = normalizeLH, compiler = compiler)
+  }
+
+  /** Learn the weights on all databases. */
+  def learnAll(): CandidateScore = learn(0 until nbDatabases)
+
+  /** Learn the weights on all databases but the one with the given index. */
+  def learnAllBut(leftOut: Int): CandidateScore = learnAllBut(leftOut, Int.MaxValue)
+
+  /**
+   * Learn the weights on all databases but the one with the given index,
+   * running at most the given number of optimizer iterations. When the
+   * weights of this fold were learned before, learning continues from those
+   * weights.
+   */
+  def learnAllBut(leftOut: Int, maxIterations: Int): CandidateScore = {
+    learnAllBut(leftOut, maxIterations, new CancellationToken)
+  }
+
+  /**
+   * Learn the weights on all databases but the one with the given index, see
+   * learnAllBut, until the given token is cancelled.
+   */
+  def learnAllBut(leftOut: Int, maxIterations: Int, cancellationToken: CancellationToken): CandidateScore = {
+    require(0 <= leftOut && leftOut < nbDatabases, s"No database with index $leftOut")
+    learn((0 until nbDatabases).filter(_ != leftOut), maxIterations, cancellationToken)
+  }
+
+  def learn(dbIds: IndexedSeq[Int]): CandidateScore = learn(dbIds, Int.MaxValue)
+
+  // weights reached by bounded learning, per set of training databases
+  private[this] val partialWeights = new mutable.HashMap[IndexedSeq[Int], DenseVector[Double]]
+
+  // whether a score reported the time of compiling and counting already
+  private[this] var reportedSetupTime = false
+
+  def learn(dbIds: IndexedSeq[Int], maxIterations: Int): CandidateScore = {
+    learn(dbIds, maxIterations, new CancellationToken)
+  }
+
+  def learn(dbIds: IndexedSeq[Int], maxIterations: Int, cancellationToken: CancellationToken): CandidateScore = {
+    val startWeights = partialWeights.getOrElse(dbIds, learner.initialWeights(initialWeights))
+    val start = System.currentTimeMillis()
+    val (weights, negatedObjective) = learner.learnParameters(dbIds, startWeights, maxIterations, cancellationToken)
+    val learnTime = System.currentTimeMillis() - start
+    partialWeights(dbIds) = weights
+    val (compileTime, countTime) = if (reportedSetupTime) (0L, 0L) else (learner.compileTime, learner.countTime)
+    reportedSetupTime = true
+    CandidateScore(learner, learner.learnedMLN(), negatedObjective, compileTime, countTime, learnTime, queryCircuitStatistics)
+  }
+
+}
@@ -76,10 +76,11 @@ class Database(val structure: MLN, val db: MLN) {
 
 object Databases {
 
-  def fromMLNs(structure: MLN, dbs: IndexedSeq[MLN], nbtest: Int = 0) = {
+  def fromMLNs(structure: MLN, dbs: IndexedSeq[MLN], nbtest: Int = 0, verbose: Boolean = false) = {
     new Databases(structure,
       dbs.map { new Database(structure, _) },
-      nbtest)
+      nbtest,
+      verbose)
   }
 
 }
@@ -93,11 +94,14 @@ object Databases {
  *        Number that indicates how many of the databases (from the end)
  *        should be used for testing. First length-testdbs are training
  *        databases
+ * @param verbose
+ *        Print the structure when computing the minimal domain sizes
  */
 class Databases(
   structure: MLN,
   val dbs: IndexedSeq[Database],
-  val nbtest: Int = 0) {
+  val nbtest: Int = 0,
+  verbose: Boolean = false) {
 
   require(dbs.forall { _.structure == structure })
 
@@ -109,8 +113,8 @@ class Databases(
    * Create a domainSize which guarantees to have enough elements wrt
    * the arity of the predicates in the databases.
    */
-  val minimalDomainSize = {
-    println(structure)
+  lazy val minimalDomainSize = {
+    if (verbose) println(structure)
     val wmc = structure.toWeightedCNF(false)
     // count all predicates, also those not appearing in a complex formula
     val allPredicates = (wmc.cnf.predicates union this.predicates)
@@ -130,6 +134,9 @@ class Databases(
   def testDbIds = ((dbs.size - nbtest) until dbs.size)
 
   def vocabularySize = dbs.map(_.vocabularySize).sum * 1.0 / dbs.size
+
+  /** Average vocabulary size of the databases with the given ids. */
+  def vocabularySize(ids: Seq[Int]) = ids.map(dbs(_).vocabularySize).sum * 1.0 / ids.size
   
   lazy val traindbs = dbs.slice(0, dbs.length - nbtest)
   lazy val testdbs = dbs.slice(dbs.length - nbtest, dbs.length)
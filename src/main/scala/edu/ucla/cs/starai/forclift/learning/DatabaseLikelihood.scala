@@ -18,6 +18,7 @@ package edu.ucla.cs.starai.forclift.learning
 
 import edu.ucla.cs.starai.forclift.inference.PrecompiledCNFCircuit
 import edu.ucla.cs.starai.forclift.nnf.NNFNode
+import edu.ucla.cs.starai.forclift.nnf.WmcGradient
 import edu.ucla.cs.starai.forclift.GInt
 import edu.ucla.cs.starai.forclift.inference.ExchangeableGroundingsCircuit
 import edu.ucla.cs.starai.forclift.PositiveUnitClause
@@ -46,7 +47,8 @@ case class DatabaseLikelihood(
   // gradients in log-space
 
   def gradientLogLikelihood(weightId: Int): Double = {
-    formulaCircuits(weightId).gradientLogLikelihood
+    if (z.hasCachedGradient) formulaCircuits(weightId).gradientLogLikelihood(z.cachedGradient)
+    else formulaCircuits(weightId).gradientLogLikelihood
   }
 
   def gradientPerVariableLogLikelihood(weightId: Int): Double = {
@@ -97,6 +99,8 @@ abstract class CircuitsForDatabase(val db: Database, lf: LearningFormula) {
   }
 
   def reevaluateQueryCircuits(predicateWeights: PredicateWeights) {
+    // compiles the query circuits on first use
+    lf.queryCircuits
     for (circuit <- queryCircuits) {
       circuit.clearCache
       circuit.cacheWmc(predicateWeights)
@@ -105,6 +109,7 @@ abstract class CircuitsForDatabase(val db: Database, lf: LearningFormula) {
   }
 
   def expectedNumGroundings(): Double = {
+    lf.queryCircuits
     val expectedNumGroundings = queryCircuits.map { circuit =>
       val expectedNumGroundings = circuit.marginal.toDouble * circuit.nbMarginals
       if(lf.verbose) println(s"      ${circuit.queryClass} on $db | "
@@ -137,4 +142,14 @@ abstract class CircuitsForDatabase(val db: Database, lf: LearningFormula) {
     (nbTrueGroundings - expectedNbGroundings)
   }
 
+  /**
+   * Returns dlog(e^{w * n})/dw for this formula and database, with the
+   * expected number of groundings taken from the gradient of Z
+   */
+  def gradientLogLikelihood(zGradient: WmcGradient): Double = {
+    val expectedNbGroundings = zGradient.expectedTrueGroundings(lf.res)
+    if(lf.verbose) println(s"    ${lf.res} on $db | expectedNumGroundings: $expectedNbGroundings, dbNumGroundings: $nbTrueGroundings")
+    (nbTrueGroundings - expectedNbGroundings)
+  }
+
 }
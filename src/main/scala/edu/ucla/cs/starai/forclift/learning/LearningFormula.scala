@@ -20,6 +20,7 @@ import edu.ucla.cs.starai.forclift._
 import edu.ucla.cs.starai.forclift.nnf._
 import edu.ucla.cs.starai.forclift.inference._
 import edu.ucla.cs.starai.forclift.compiler._
+import edu.ucla.cs.starai.forclift.constraints.Constraints
 import edu.ucla.cs.starai.forclift.languages.mln._
 import edu.ucla.cs.starai.forclift.util._
 import edu.ucla.cs.starai.forclift.util.SignLogDouble._
@@ -71,11 +72,40 @@ sealed abstract class LearningFormula(
    */
   def customCircuitsForDatabase(db: Database, evidenceAtom: Option[(Atom, Boolean)]): CircuitsForDatabase
 
+  // compiles the query circuits, set by initializeCircuits
+  private[this] var queryCircuitsCompilation: () => IndexedSeq[(PositiveUnitClause, NNFNode)] = null
+
+  private[this] var compiledQueryCircuits: IndexedSeq[(PositiveUnitClause, NNFNode)] = null
+
+  /**
+   * The smoothed query circuits, one for every query class of this formula.
+   * They are compiled on first use, since learning does not need them when
+   * it takes the expected counts from the gradient of the partition
+   * function. Empty before initializeCircuits.
+   */
+  def queryCircuits: IndexedSeq[(PositiveUnitClause, NNFNode)] = synchronized {
+    if (compiledQueryCircuits == null && queryCircuitsCompilation != null) {
+      compiledQueryCircuits = queryCircuitsCompilation()
+      for (circuitsForDatabase <- circuitsForDatabases) {
+        circuitsForDatabase.initializeCircuits(compiledQueryCircuits)
+      }
+    }
+    if (compiledQueryCircuits == null) IndexedSeq() else compiledQueryCircuits
+  }
+
+  /** Whether the query circuits were compiled already. */
+  def hasQueryCircuits: Boolean = synchronized { compiledQueryCircuits != null }
+
   def initializeCircuits(compiler: Compiler, queryClasses: IndexedSeq[PositiveUnitClause],
     zCircuits: IndexedSeq[(Database, PrecompiledCNFCircuit)], vocabularyPredicates: Set[Predicate]) {
-    val queryCircuits = queryClasses.map { queryClass =>
+    for ((circuitsForDatabase, (db,zCircuit)) <- circuitsForDatabases zip zCircuits) {
+      require(db == circuitsForDatabase.db)
+      circuitsForDatabase.setZCircuit(zCircuit)
+    }
+    val zCNF = zCircuits.head._2.cnf
+    queryCircuitsCompilation = () => queryClasses.map { queryClass =>
       val query = queryClass.getGrounding(dbs.minimalDomainSize)
-      val cnf = zCircuits.head._2.cnf ++ CNF(Clause(List(query), Nil))
+      val cnf = zCNF ++ CNF(Clause(List(query), Nil))
       val startcompilingt = System.currentTimeMillis()
       if (verbose) println("Compiling circuit for " + queryClass)
       val circuit = compiler.compile(cnf).smoothWithPredicates(vocabularyPredicates)
@@ -91,20 +121,53 @@ sealed abstract class LearningFormula(
       }
       (queryClass, circuit)
     }
-    for ((circuitsForDatabase, (db,zCircuit)) <- circuitsForDatabases zip zCircuits) {
-      require(db == circuitsForDatabase.db)
-      circuitsForDatabase.setZCircuit(zCircuit)
-      circuitsForDatabase.initializeCircuits(queryCircuits)
-    }
   }
 
   def reevaluateQueryCircuits(predicateWeights: PredicateWeights) {
+    queryCircuits
     for (circuitsForDatabase <- circuitsForDatabases) {
       circuitsForDatabase.reevaluateQueryCircuits(predicateWeights)
     }
   }
 
+  /** Reevaluate only the query circuits of the databases with the given ids. */
+  def reevaluateQueryCircuits(predicateWeights: PredicateWeights, dbIds: Seq[Int]) {
+    queryCircuits
+    for (id <- dbIds) {
+      circuitsForDatabases(id).reevaluateQueryCircuits(predicateWeights)
+    }
+  }
+
   def learnedFormula: WeightedFormula
+
+  /**
+   * Identifies this formula independently of its weight and of the names of
+   * its variables, so that weights can be carried over to another parse of
+   * the same formula. The literals of a clause are sorted first, so their
+   * order does not matter either. Variables are named by their order of
+   * appearance.
+   */
+  def weightKey: String = {
+    val wf = learnedFormula
+    val literals = wf.formula match {
+      case disjunction: DisjFormula => disjunction.disjunctsToList
+      case formula => List(formula)
+    }
+    if (!literals.forall { _.isLiteral }) wf.copy(weight = 0.0).toString
+    else {
+      val anonymous = new MLNNameSpace {
+        override protected def createName(obj: Any) = obj match {
+          case _: Var => "_"
+          case _ => super.createName(obj)
+        }
+      }
+      val ns = new MLNNameSpace
+      val sortedLiterals = literals.sortBy { _.toStringAlchemy(anonymous) }
+      (sortedLiterals.map { _.toStringAlchemy(ns) }.mkString(" v ") +
+        (if (wf.hard) "." else "") +
+        (if (wf.initialConstrs != Constraints.empty) " , " + wf.initialConstrs.toString(ns) else ""))
+    }
+  }
   
   override def toString = learnedFormula.toString
   
@@ -70,7 +70,8 @@ class LiftedLearning(
 
   val dbs: Databases = Databases.fromMLNs(structure2,
     (traindbMLNs ++ testdbMLNs).toIndexedSeq,
-    testdbMLNs.length)
+    testdbMLNs.length,
+    verbose)
 
   // Check whether there are empty domains. This is not allowed.
   for (db <- dbs.dbs) {
@@ -163,19 +164,43 @@ class LiftedLearning(
     (mlnLearnFormulas, learnableFormulas, indepUnitPreds, cnfFromHardMLN, countTime)
   }
   
+  /**
+   * The training databases of the fold that is being learned, if any.
+   * Structure learning uses folds to learn the weights for every
+   * leave-one-out fold of a candidate structure from a single set of
+   * compiled circuits. Only set during a call of learnParameters for a fold.
+   */
+  private[this] var foldTrainDbIds: Option[IndexedSeq[Int]] = None
+
+  def activeTrainDbIds: IndexedSeq[Int] = foldTrainDbIds.getOrElse(dbs.trainDbIds)
+
+  def vocabularySize: Double = foldTrainDbIds match {
+    case Some(ids) => dbs.vocabularySize(ids)
+    case None => dbs.vocabularySize
+  }
+
   def priorDensity() = learnableClauses.map(_.priorDensity).reduce(_ * _)
-  def perVariablePriorDensity() = priorDensity().root(dbs.vocabularySize)
+  def perVariablePriorDensity() = priorDensity().root(vocabularySize)
   def gradientLogPriorDensity(i: Int) = learnableClauses(i).gradientLogPriorDensity
-  def gradientPerVariableLogPriorDensity(i: Int) = gradientLogPriorDensity(i) / dbs.vocabularySize
+  def gradientPerVariableLogPriorDensity(i: Int) = gradientLogPriorDensity(i) / vocabularySize
+
+  /**
+   * The theory of the partition function, which holds the hard clauses and
+   * the reified soft clauses of the structure, and the predicates that its
+   * circuit is smoothed with.
+   */
+  lazy val (partitionFunctionCNF, vocabularyPredicates): (CNF, Set[Predicate]) = {
+    val cnf = mlnFormulas.foldLeft(hardCNF) { (cnf, formula) => cnf ++ formula.cnf }
+    val vocabularyPredicates = learnableClauses.map { _.res }.toSet
+    assume((cnf.predicates ++ indepUnitPreds).subsetOf(vocabularyPredicates))
+    (cnf, vocabularyPredicates)
+  }
 
   lazy val (zs,compileTime) : 
 	  (IndexedSeq[(Database, PrecompiledCNFCircuit)],Long) = {
     var start = System.currentTimeMillis()
-    val cnfFromMLN = mlnFormulas.foldLeft(hardCNF) { (cnf, formula) => cnf ++ formula.cnf }
-    val cnf = cnfFromMLN
+    val cnf = partitionFunctionCNF
     if (verbose) println("Compiling partition function")
-    val vocabularyPredicates = learnableClauses.map { _.res }.toSet
-    assume((cnf.predicates ++ indepUnitPreds).subsetOf(vocabularyPredicates))
     val circuit = compiler.compile(cnf).smoothWithPredicates(vocabularyPredicates)
     //        circuit.showPDF(DomainSizes.empty, PredicateWeights.empty, false, maxDepth=7)
     if (verbose) {
@@ -189,8 +214,17 @@ class LiftedLearning(
     val queryClasses = queryClassesInCNF.groupBy { _.predicate }
     for (learnable <- learnableClauses) {
       assume(queryClasses.contains(learnable.res), "Problem: CNF does not contain " + learnable.res)
+      // query circuits are only compiled when they are used
       learnable.initializeCircuits(compiler, queryClasses(learnable.res).toIndexedSeq, zs, vocabularyPredicates)
     }
+    // the gradient of the partition function of every database gives all
+    // expected counts, without evaluating a query circuit for every
+    // equiprobable class
+    val weights = getPredicateWeights()
+    gradientFromPartitionFunction = zs.nonEmpty && zs.forall { _._2.canDifferentiate(weights) }
+    if (gradientFromPartitionFunction && verbose) {
+      println("Computing expected counts from the gradient of the partition function")
+    }
     //if (verbose) {
     val compileTime = (System.currentTimeMillis() - start)
     println("Compiling circuits took " + (compileTime / 1000F) + "s")
@@ -212,8 +246,9 @@ class LiftedLearning(
       DatabaseLikelihood(db,formulaCircuits,z)
   }
   
-  lazy val trainDatabaseLikelihoods: IndexedSeq[DatabaseLikelihood] = dbs.trainDbIds.map(buildDatabaseLikelihood(_))
-  lazy val testDatabaseLikelihoods: IndexedSeq[DatabaseLikelihood] = dbs.testDbIds.map(buildDatabaseLikelihood(_))
+  lazy val databaseLikelihoods: IndexedSeq[DatabaseLikelihood] = dbs.dbs.indices.map(buildDatabaseLikelihood(_))
+  def trainDatabaseLikelihoods: IndexedSeq[DatabaseLikelihood] = activeTrainDbIds.map(databaseLikelihoods)
+  def testDatabaseLikelihoods: IndexedSeq[DatabaseLikelihood] = dbs.testDbIds.map(databaseLikelihoods)
   
   def getPredicateWeights(): PredicateWeights = {
     val predws = learnableClauses.map { l => (l.res -> l.weights) }
@@ -223,23 +258,31 @@ class LiftedLearning(
   var cachedMarginals = false
   var cachedZs = false
 
+  /**
+   * Whether the expected counts come from the gradient of the partition
+   * function instead of from query circuits, see WmcGradient.
+   */
+  var gradientFromPartitionFunction = false
+
   def reevaluateZ() {
     if (!cachedZs) {
       if(verbose) println("Reevaluating partition function circuit")
       val weights = getPredicateWeights()
-      for ((db, z) <- zs) {
+      for (id <- activeTrainDbIds ++ dbs.testDbIds) {
+        val (db, z) = zs(id)
         z.clearCache
-        z.cacheWmc(db.domainSizes, weights)
+        if (gradientFromPartitionFunction) z.cacheWmcAndGradient(db.domainSizes, weights)
+        else z.cacheWmc(db.domainSizes, weights)
       }
       cachedZs = true
     }
   }
 
   def reevaluateQueryCircuits() {
-    if (!cachedMarginals) {
+    if (!cachedMarginals && !gradientFromPartitionFunction) {
       if(verbose) println("Reevaluating query circuits")
       val weights = getPredicateWeights()
-      for (clause <- learnableClauses) clause.reevaluateQueryCircuits(weights)
+      for (clause <- learnableClauses) clause.reevaluateQueryCircuits(weights, activeTrainDbIds)
       cachedMarginals = true
     }
   }
@@ -250,10 +293,18 @@ class LiftedLearning(
 
     // cache results to avoid repeated computations
     var lastWeights: DenseVector[Double] = null
+    var lastTrainDbIds: IndexedSeq[Int] = null
     var lastResult: (Double, DenseVector[Double]) = null;
 
     def calculate(weights: DenseVector[Double]): (Double, DenseVector[Double]) = {
-      if (weights == lastWeights) {
+      // allow structure learning to abandon a candidate between iterations,
+      // through its token or by interrupting the thread when it cancels all
+      // of its tasks; the interrupt status stays set for the caller
+      cancellation.foreach { _.check() }
+      if (Thread.currentThread.isInterrupted) {
+        throw new InterruptedException("Weight learning was interrupted")
+      }
+      if (weights == lastWeights && activeTrainDbIds == lastTrainDbIds) {
         if(verbose) println("Reusing computed likelihood and gradient for previous weights.")
         return lastResult;
       } else {
@@ -264,6 +315,7 @@ class LiftedLearning(
         val value = -calculateObjective
         val gradient = -calculateGradient;
         lastWeights = weights.copy;
+        lastTrainDbIds = activeTrainDbIds
         lastResult = (value, gradient);
         return lastResult;
       }
@@ -346,10 +398,29 @@ class LiftedLearning(
   }
 
   var numGradientComputations = 0
+
+  /** The number of optimizer iterations of the last call to learnParameters. */
+  var numIterations = 0
   
   def learnParameters(): (MLN, Double) = {
+    learnParameters(DenseVector.zeros[Double](numOptimizableParameters))
+  }
+
+  /**
+   * Learn the parameters until convergence, starting from the given
+   * weights, see initialWeights.
+   */
+  def learnParameters(initialWeights: DenseVector[Double]): (MLN, Double) = withTrainDbIds(None) {
+    require(initialWeights.length == numOptimizableParameters,
+      s"Expected $numOptimizableParameters initial weights, got ${initialWeights.length}")
     numGradientComputations = 0
-    val learnedParameters = optimizer.minimize(logLikelihoodFunction, DenseVector.zeros(numOptimizableParameters))
+    val states = optimizer.iterations(logLikelihoodFunction, initialWeights)
+    var state = states.next()
+    while (states.hasNext) {
+      state = states.next()
+    }
+    numIterations = state.iter
+    val learnedParameters = state.x
     val ll = logLikelihoodFunction.calculate(learnedParameters)._1
     if(verbose) println("Final weight vector: " + learnedParameters);
     if(verbose) println("Final loglikelihood: " + ll);
@@ -357,6 +428,112 @@ class LiftedLearning(
     (learnedMLN(), ll)
   }
 
+  /**
+   * Learn the parameters using only the given training databases. The
+   * circuits are compiled and the groundings are counted only once for all
+   * databases, so repeated calls for different folds only rerun the
+   * optimization.
+   */
+  def learnParameters(trainDbIds: IndexedSeq[Int]): (MLN, Double) = {
+    require(trainDbIds.nonEmpty, "Learning requires at least one training database")
+    withTrainDbIds(Some(trainDbIds)) {
+      learnParameters()
+    }
+  }
+
+  /**
+   * Run at most `maxIterations` iterations of the optimizer on the given
+   * training databases, starting from the given weights. Returns the
+   * weights that were reached and the negated objective for those weights.
+   * The learned weights are kept, see learnedMLN().
+   *
+   * Calling this again for the same databases with the returned weights
+   * continues the optimization, including the history of the optimizer,
+   * which allows structure learning to race candidates on a partial
+   * objective and to only continue with the promising ones.
+   *
+   * Learning throws an InterruptedException once the given token is
+   * cancelled.
+   */
+  def learnParameters(trainDbIds: IndexedSeq[Int], initialWeights: DenseVector[Double],
+    maxIterations: Int, cancellationToken: CancellationToken = new CancellationToken): (DenseVector[Double], Double) = {
+    require(initialWeights.length == numOptimizableParameters,
+      s"Expected $numOptimizableParameters initial weights, got ${initialWeights.length}")
+    require(maxIterations >= 0, "The number of iterations cannot be negative")
+    require(trainDbIds.nonEmpty, "Learning requires at least one training database")
+    withTrainDbIds(Some(trainDbIds)) {
+      cancellation = Some(cancellationToken)
+      try {
+        numGradientComputations = 0
+        // an optimization that is interrupted halfway cannot be continued
+        val (states, startState) = partialOptimizations.remove(trainDbIds).filter {
+          case (_, reached) => reached.x == initialWeights
+        }.getOrElse {
+          val states = optimizer.iterations(logLikelihoodFunction, initialWeights)
+          (states, states.next())
+        }
+        var state = startState
+        while (state.iter - startState.iter < maxIterations && states.hasNext) {
+          state = states.next()
+        }
+        partialOptimizations(trainDbIds) = (states, state)
+        numIterations = state.iter - startState.iter
+        // sets the learned weights to those of the reached state
+        val ll = logLikelihoodFunction.calculate(state.x)._1
+        if(verbose) println(s"Loglikelihood after ${state.iter} iterations: " + ll);
+        (state.x, ll)
+      } finally {
+        cancellation = None
+      }
+    }
+  }
+
+  // the optimizations that learnParameters can continue, per fold
+  private[this] val partialOptimizations = new mutable.HashMap[IndexedSeq[Int], (Iterator[optimizer.State], optimizer.State)]
+
+  // the token of the running call of learnParameters, if any
+  @volatile private[this] var cancellation: Option[CancellationToken] = None
+
+  /**
+   * Runs the given learning code on the given training databases, or on
+   * all of them for None. The databases of a fold only apply to that call:
+   * afterwards, learning uses all training databases again.
+   */
+  private def withTrainDbIds[T](trainDbIds: Option[IndexedSeq[Int]])(learn: => T): T = {
+    // a nested call, such as learnParameters() for a fold, keeps the fold
+    if (trainDbIds.isEmpty && foldTrainDbIds.nonEmpty) learn
+    else {
+      for (ids <- trainDbIds) {
+        require(ids.forall(dbs.trainDbIds.contains(_)), s"Not all of $ids are training databases")
+      }
+      setTrainDbIds(trainDbIds)
+      try learn
+      finally setTrainDbIds(None)
+    }
+  }
+
+  private def setTrainDbIds(trainDbIds: Option[IndexedSeq[Int]]) {
+    if (foldTrainDbIds != trainDbIds) {
+      foldTrainDbIds = trainDbIds
+      cachedZs = false
+      cachedMarginals = false
+    }
+  }
+
+  /** The current weights of all learnable formulas, by LearningFormula.weightKey. */
+  def learnedWeights: Map[String, Double] = {
+    learnableClauses.map { l => (l.weightKey -> l.logWeight) }.toMap
+  }
+
+  /**
+   * Initial weights for the optimizer that warm-start learning from the
+   * given weights, for example those learned for a structure with one
+   * clause less. Formulas without a given weight start at 0.
+   */
+  def initialWeights(knownWeights: Map[String, Double]): DenseVector[Double] = {
+    DenseVector(learnableClauses.map { l => knownWeights.getOrElse(l.weightKey, 0.0) }.toArray)
+  }
+
   def learnedMLN(): MLN = {
     val learnedFormulas = learnableClauses.map { _.learnedFormula }
     structure.copy(wformulas = learnedFormulas.toList ++ hardFormulas)
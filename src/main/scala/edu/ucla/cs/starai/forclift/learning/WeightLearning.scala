@@ -90,7 +90,9 @@ object WeightLearning {
   }
     
   /**
-   * Learn the weights for a structure given a set of databases.
+   * Learn the weights for a structure given a set of databases. Learning
+   * starts from the given initial weights, by LearningFormula.weightKey,
+   * and from 0 for the other formulas.
    */
   def learnWeights(
     mln_structure: MLN,
@@ -100,7 +102,10 @@ object WeightLearning {
     doLL: Boolean = false,
     doPLL: Boolean = false,
     testdbMlns: Seq[MLN] = Seq(),
-    skolemize: Boolean = true): MLN = {
+    skolemize: Boolean = true,
+    resultFile: Option[File] = None,
+    initialWeights: Map[String, Double] = Map.empty,
+    queryCircuitStatistics: Boolean = true): MLN = {
     
 
     val startLearning = System.currentTimeMillis
@@ -113,11 +118,18 @@ object WeightLearning {
       testdbMLNs = testdbMlns,
       skolemize = skolemize)
     if (verbose) println("Start learning")
-    val learnedMLN = learner.learnParameters()
+    val learnedMLN = learner.learnParameters(learner.initialWeights(initialWeights))
 
     val endLearning = System.currentTimeMillis
     println("Learning took " + (endLearning - startLearning) + " ms")
 
+    // machine-readable result, used by structure learning
+    resultFile.foreach { file =>
+      val learnTime = endLearning - startLearning - learner.compileTime - learner.countTime
+      CandidateScore(learner, learnedMLN._1, learnedMLN._2, learner.compileTime, learner.countTime, learnTime,
+        queryCircuitStatistics).write(file)
+    }
+
     println
     println("Learned model:")
     // Print the full MLN (domain declarations + weighted formulas)
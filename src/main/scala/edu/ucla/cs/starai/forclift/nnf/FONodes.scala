@@ -89,7 +89,7 @@ class CountingNode(val cnf: CNF, val child: NNFNode,
 
   lazy val evalOrder = child.evalOrder + 1
 
-  def smooth = {
+  lazy val smooth = {
     val (childSmooth, childVars) = child.smooth
     // this is fine, but does not mean the result will be non-overlapping
     // two catoms might overlap but not one subsumes the other
@@ -152,7 +152,7 @@ class DomainRecursionNode(val cnf: CNF, val mixedChild: IndependentPartialGround
 
   lazy val evalOrder = mixedChild.evalOrder // assume constant eval
 
-  def smooth = {
+  lazy val smooth = {
     val (mixedChildSmoothed, mixedChildVars) = mixedChild.smooth
     val (groundChildSmoothed, groundChildVars) = groundChild.smooth
     val ungroundedMixedChildvars = mixedChildVars.map { _.inverseSubstitution(c, ineqs, domain) }
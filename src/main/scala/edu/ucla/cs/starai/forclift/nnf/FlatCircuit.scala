@@ -0,0 +1,742 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf
+
+import java.util.IdentityHashMap
+
+import scala.annotation.switch
+import scala.collection.mutable
+
+import edu.ucla.cs.starai.forclift._
+import edu.ucla.cs.starai.forclift.inference.DomainSizes
+import edu.ucla.cs.starai.forclift.inference.PredicateWeights
+import edu.ucla.cs.starai.forclift.nnf.visitors.WmcCache
+import edu.ucla.cs.starai.forclift.nnf.visitors.WmcVisitor
+import edu.ucla.cs.starai.forclift.util.Binomial
+import edu.ucla.cs.starai.forclift.util.LogDouble
+import edu.ucla.cs.starai.forclift.util.SignLogDouble
+
+/**
+ * A smooth circuit flattened into arrays, for repeated evaluation.
+ *
+ * Nodes are numbered in the order in which they are reached from the root,
+ * which is node 0, and refer to their children by number. Ref nodes are
+ * replaced by the number of the node they refer to, so a circuit with domain
+ * recursion has back edges. Domains and predicates are numbered as well.
+ * The number of groundings of a leaf is precompiled into a sum of products
+ * of domain sizes, see `Constraints.nbGroundingsAssumingShatteredDomains`.
+ *
+ * An evaluation keeps the domain sizes in an `Int` array that counting nodes
+ * update and restore, keeps the weights in `Double` arrays, and computes
+ * with LogDouble, which is a `Double` at runtime. Apart from those arrays and
+ * the cache, an evaluation does not allocate. Like CachingLogDoubleWmc, it
+ * caches the weights of the children of And and Forall nodes by the sizes of
+ * their domains, in a WmcCache of the pool, under the ids of the nodes.
+ * Negative weights are evaluated in the same way, with the signs kept apart
+ * from the logarithms, see `SignLogDouble.sumSign`.
+ *
+ * Nodes that cannot be flattened, such as grounding nodes, are kept as they
+ * are and evaluated by the visitor, with the domain sizes of the evaluation.
+ */
+final class FlatCircuit private (
+  private[nnf] val kinds: Array[Int],
+  private[nnf] val child1: Array[Int],
+  private[nnf] val child2: Array[Int],
+  private[nnf] val child3: Array[Int],
+  private[nnf] val sizeSlots: Array[Int],
+  private[nnf] val sizeOffsets: Array[Int],
+  private[nnf] val subdomainSlots: Array[Int],
+  private[nnf] val complementSlots: Array[Int],
+  private[nnf] val predicateSlots: Array[Int],
+  private[nnf] val groundings: Array[Array[Int]],
+  private[nnf] val projectedGroundings: Array[Array[Int]],
+  private[nnf] val cacheSlots: Array[Array[Int]],
+  private[nnf] val visitorNodes: Array[NNFNode],
+  private[nnf] val nodeIds: Array[Int],
+  val domains: IndexedSeq[Domain],
+  val predicates: IndexedSeq[Predicate]) {
+
+  import FlatCircuit._
+  import LogDouble._
+
+  def nbNodes = kinds.length
+
+  /**
+   * Whether this circuit can be evaluated with the given weights: all
+   * weights of its predicates are known and non-negative.
+   */
+  def supports(predicateWeights: PredicateWeights): Boolean = {
+    predicates.forall { predicate =>
+      predicateWeights.get(predicate).exists { w => w.posWDouble >= 0 && w.negWDouble >= 0 }
+    }
+  }
+
+  /**
+   * Whether this circuit can be evaluated with the given weights, which may
+   * be negative: all weights of its predicates are known.
+   */
+  def supportsSigned(predicateWeights: PredicateWeights): Boolean = {
+    predicates.forall { predicateWeights.contains(_) }
+  }
+
+  def wmc(domainSizes: DomainSizes, predicateWeights: PredicateWeights): SignLogDouble = {
+    if (supports(predicateWeights)) {
+      WmcCache.withCache(predicateWeights) { cache => new Evaluation(domainSizes, predicateWeights, cache).eval(0) }
+    } else {
+      require(supportsSigned(predicateWeights), "Flat circuits need the weights of all their predicates")
+      WmcCache.withCache(predicateWeights) { cache =>
+        val evaluation = new SignedEvaluation(domainSizes, predicateWeights, cache)
+        val logWeight = evaluation.eval(0)
+        SignLogDouble.fromSignAndLog(evaluation.pos, logWeight)
+      }
+    }
+  }
+
+  // the slots of the subdomains that counting nodes set during evaluation
+  private[this] lazy val countedSlots: Set[Int] = (subdomainSlots ++ complementSlots).filter { _ >= 0 }.toSet
+
+  /**
+   * The sizes of the domains, by slot. Like the visitor, this fails with a
+   * NoSuchElementException when the size of a domain is not given, unless
+   * a counting node sets it.
+   */
+  private[nnf] def sizesOf(domainSizes: DomainSizes): Array[Int] = {
+    val sizes = new Array[Int](domains.size)
+    for (slot <- 0 until domains.size) {
+      sizes(slot) = {
+        if (countedSlots(slot)) domainSizes.get(domains(slot)).map { _.size }.getOrElse(0)
+        else domainSizes(domains(slot)).size
+      }
+    }
+    sizes
+  }
+
+  /** The logarithms of the weights, by slot. */
+  private[nnf] def logWeightsOf(predicateWeights: PredicateWeights, positive: Boolean, negative: Boolean): Array[Double] = {
+    val logWeights = new Array[Double](predicates.size)
+    for (slot <- 0 until predicates.size) {
+      val weights = predicateWeights(predicates(slot))
+      logWeights(slot) = {
+        if (positive && negative) weights.negWPlusPosWLogDouble.logToDouble
+        else if (positive) weights.posWLogDouble.logToDouble
+        else weights.negWLogDouble.logToDouble
+      }
+    }
+    logWeights
+  }
+
+  /** The signs of the weights, by slot. */
+  private[nnf] def signsOf(predicateWeights: PredicateWeights, positive: Boolean, negative: Boolean): Array[Boolean] = {
+    val signs = new Array[Boolean](predicates.size)
+    for (slot <- 0 until predicates.size) {
+      val weights = predicateWeights(predicates(slot))
+      signs(slot) = {
+        if (positive && negative) weights.negWPlusPosW.pos
+        else if (positive) weights.posW.pos
+        else weights.negW.pos
+      }
+    }
+    signs
+  }
+
+  /** The logarithms of the magnitudes of the weights, by slot. */
+  private[nnf] def magnitudesOf(predicateWeights: PredicateWeights, positive: Boolean, negative: Boolean): Array[Double] = {
+    val logWeights = new Array[Double](predicates.size)
+    for (slot <- 0 until predicates.size) {
+      val weights = predicateWeights(predicates(slot))
+      logWeights(slot) = {
+        if (positive && negative) weights.negWPlusPosW.ld.logToDouble
+        else if (positive) weights.posW.ld.logToDouble
+        else weights.negW.ld.logToDouble
+      }
+    }
+    logWeights
+  }
+
+  /**
+   * Evaluates a node that was not flattened with the visitor. The domain
+   * sizes that counting nodes changed are taken from the given slots.
+   */
+  private[nnf] def signedVisitorWmc(node: Int, sizes: Array[Int], domainSizes: DomainSizes, predicateWeights: PredicateWeights): SignLogDouble = {
+    var currentDomainSizes = domainSizes
+    for (slot <- 0 until domains.size) {
+      domains(slot) match {
+        case _: RootDomain =>
+        case domain => currentDomainSizes = currentDomainSizes + (domain -> sizes(slot))
+      }
+    }
+    WmcVisitor(predicateWeights).wmc(visitorNodes(node), currentDomainSizes, predicateWeights)
+  }
+
+  private[nnf] def visitorWmc(node: Int, sizes: Array[Int], domainSizes: DomainSizes, predicateWeights: PredicateWeights): LogDouble = {
+    signedVisitorWmc(node, sizes, domainSizes, predicateWeights).toLogDouble
+  }
+
+  @inline private[nnf] def size(sizes: Array[Int], slot: Int, offset: Int): Int = {
+    if (slot < 0) 0 else math.max(sizes(slot) - offset, 0)
+  }
+
+  private[nnf] def nbConstraintGroundings(sizes: Array[Int], program: Array[Int]): Int = {
+    var count = 0
+    var p = 1
+    var term = 0
+    while (term < program(0)) {
+      val nbFactors = program(p)
+      p += 1
+      var product = 1
+      var factor = 0
+      while (factor < nbFactors) {
+        product *= size(sizes, program(p), program(p + 1)) - program(p + 2)
+        p += 3
+        factor += 1
+      }
+      count += product
+      term += 1
+    }
+    count
+  }
+
+  private[nnf] def hasConstraintSolution(sizes: Array[Int], program: Array[Int]): Boolean = {
+    var p = 1
+    var term = 0
+    while (term < program(0)) {
+      val nbFactors = program(p)
+      p += 1
+      var hasSolution = true
+      var factor = 0
+      while (factor < nbFactors) {
+        if (size(sizes, program(p), program(p + 1)) == program(p + 2)) hasSolution = false
+        p += 3
+        factor += 1
+      }
+      if (hasSolution) return true
+      term += 1
+    }
+    false
+  }
+
+  private[nnf] def nbGroundings(sizes: Array[Int], node: Int): Int = {
+    if (nbConstraintGroundings(sizes, groundings(node)) == 0) 0
+    else nbConstraintGroundings(sizes, projectedGroundings(node))
+  }
+
+  /**
+   * The sizes of the domains of the given node packed into one key, or -1
+   * when the node is not cached or its sizes do not fit, see WmcCache.pack.
+   */
+  private[nnf] def cacheKey(sizes: Array[Int], node: Int): Long = {
+    val slots = cacheSlots(node)
+    if (slots == null) -1L
+    else {
+      val bits = 63 / slots.length
+      var key = 0L
+      var i = 0
+      while (i < slots.length) {
+        val domainSize = if (slots(i) < 0) 0 else sizes(slots(i))
+        if (domainSize >= (1L << bits)) return -1L
+        key = (key << bits) | domainSize
+        i += 1
+      }
+      key
+    }
+  }
+
+  private final class Evaluation(domainSizes: DomainSizes, predicateWeights: PredicateWeights, cache: WmcCache) {
+
+    private[this] val sizes = sizesOf(domainSizes)
+
+    // logarithms of the weights
+    private[this] val posW = logWeightsOf(predicateWeights, true, false)
+    private[this] val negW = logWeightsOf(predicateWeights, false, true)
+    private[this] val negWPlusPosW = logWeightsOf(predicateWeights, true, true)
+
+    // the weights of the children of the counting nodes that are being
+    // evaluated, as a stack of consecutive ranges
+    private[this] var terms = new Array[Double](64)
+    private[this] var nbTerms = 0
+
+    // returns the offset of a range of the given length on top of the stack
+    private def pushTerms(length: Int): Int = {
+      if (nbTerms + length > terms.length) {
+        terms = java.util.Arrays.copyOf(terms, math.max(nbTerms + length, 2 * terms.length))
+      }
+      nbTerms += length
+      nbTerms - length
+    }
+
+    def eval(node: Int): LogDouble = (kinds(node): @switch) match {
+      case TrueKind => one
+      case FalseKind => zero
+      case PositiveUnitKind => {
+        val n = nbGroundings(sizes, node)
+        if (n == 0) one else fromLog(posW(predicateSlots(node))).pow(n)
+      }
+      case NegativeUnitKind => {
+        val n = nbGroundings(sizes, node)
+        if (n == 0) one else fromLog(negW(predicateSlots(node))).pow(n)
+      }
+      case SmoothingKind => {
+        fromLog(negWPlusPosW(predicateSlots(node))).pow(nbGroundings(sizes, node))
+      }
+      case ContradictionKind => {
+        if (hasConstraintSolution(sizes, groundings(node))) zero else one
+      }
+      case AndKind => {
+        val l = evalCached(child1(node))
+        if (l.isZero) zero
+        else l * evalCached(child2(node))
+      }
+      case OrKind => {
+        val l = eval(child1(node))
+        val r = eval(child2(node))
+        l + r
+      }
+      case InclusionExclusionKind => {
+        val plus1 = eval(child1(node))
+        val plus2 = eval(child2(node))
+        val min = eval(child3(node))
+        plus1 + plus2 - min
+      }
+      case ForallKind => {
+        val child = evalCached(child1(node))
+        val n = size(sizes, sizeSlots(node), sizeOffsets(node))
+        if (n == 0) one else child.pow(n)
+      }
+      case ExistsKind => {
+        val maxSize = size(sizes, sizeSlots(node), sizeOffsets(node))
+        val subdomain = subdomainSlots(node)
+        val complement = complementSlots(node)
+        val oldSubdomainSize = sizes(subdomain)
+        val oldComplementSize = sizes(complement)
+        val offset = pushTerms(maxSize + 1)
+        var nbTrue = 0
+        while (nbTrue <= maxSize) {
+          sizes(subdomain) = nbTrue
+          sizes(complement) = maxSize - nbTrue
+          val childWeight = eval(child1(node)).logToDouble
+          terms(offset + nbTrue) = childWeight
+          nbTrue += 1
+        }
+        sizes(subdomain) = oldSubdomainSize
+        sizes(complement) = oldComplementSize
+        val logWeight = Binomial.logSum(maxSize, terms, offset)
+        nbTerms = offset
+        fromLog(logWeight)
+      }
+      case DomainRecursionKind => {
+        val maxSize = size(sizes, sizeSlots(node), sizeOffsets(node))
+        if (maxSize < 1) one
+        else {
+          val groundChild = eval(child1(node))
+          val childChild = eval(child2(node))
+          groundChild.pow(maxSize) * childChild.pow((maxSize * (maxSize - 1)) / 2)
+        }
+      }
+      case VisitorKind => visitorWmc(node, sizes, domainSizes, predicateWeights)
+    }
+
+    private def evalCached(node: Int): LogDouble = {
+      val key = cacheKey(sizes, node)
+      if (key < 0) eval(node)
+      else {
+        val index = cache.indexOf(nodeIds(node), key)
+        if (index >= 0) fromLog(cache.logValue(index))
+        else {
+          val weight = eval(node)
+          cache.put(nodeIds(node), key, weight.logToDouble, true)
+          weight
+        }
+      }
+    }
+
+  }
+
+  /**
+   * Evaluation with weights that may be negative. A node evaluates to the
+   * logarithm of the magnitude of its weight and leaves the sign of its
+   * weight in `pos`, so that no SignLogDouble is allocated per operation.
+   * The sign must be read right after evaluating a child, before the next
+   * child is evaluated.
+   */
+  private final class SignedEvaluation(domainSizes: DomainSizes, predicateWeights: PredicateWeights, cache: WmcCache) {
+
+    import SignLogDouble.{ sumSign, sumLog, productSign, powSign }
+
+    private[this] val sizes = sizesOf(domainSizes)
+
+    // signs and logarithms of the magnitudes of the weights
+    private[this] val posWSigns = signsOf(predicateWeights, true, false)
+    private[this] val negWSigns = signsOf(predicateWeights, false, true)
+    private[this] val negWPlusPosWSigns = signsOf(predicateWeights, true, true)
+    private[this] val posW = magnitudesOf(predicateWeights, true, false)
+    private[this] val negW = magnitudesOf(predicateWeights, false, true)
+    private[this] val negWPlusPosW = magnitudesOf(predicateWeights, true, true)
+
+    // the sign of the last evaluated node
+    var pos = true
+
+    private def power(sign: Boolean, logWeight: Double, n: Int): Double = {
+      pos = powSign(sign, logWeight, n)
+      logWeight * n
+    }
+
+    private def constant(sign: Boolean, logWeight: Double): Double = {
+      pos = sign
+      logWeight
+    }
+
+    def eval(node: Int): Double = (kinds(node): @switch) match {
+      case TrueKind => constant(true, One)
+      case FalseKind => constant(true, Zero)
+      case PositiveUnitKind => {
+        val n = nbGroundings(sizes, node)
+        val slot = predicateSlots(node)
+        if (n == 0) constant(true, One) else power(posWSigns(slot), posW(slot), n)
+      }
+      case NegativeUnitKind => {
+        val n = nbGroundings(sizes, node)
+        val slot = predicateSlots(node)
+        if (n == 0) constant(true, One) else power(negWSigns(slot), negW(slot), n)
+      }
+      case SmoothingKind => {
+        val slot = predicateSlots(node)
+        power(negWPlusPosWSigns(slot), negWPlusPosW(slot), nbGroundings(sizes, node))
+      }
+      case ContradictionKind => {
+        constant(true, if (hasConstraintSolution(sizes, groundings(node))) Zero else One)
+      }
+      case AndKind => {
+        val l = evalCached(child1(node))
+        val lPos = pos
+        if (l.isNegInfinity) constant(true, Zero)
+        else {
+          val r = evalCached(child2(node))
+          pos = productSign(lPos, l, pos, r)
+          l + r
+        }
+      }
+      case OrKind => {
+        val l = eval(child1(node))
+        val lPos = pos
+        val r = eval(child2(node))
+        val rPos = pos
+        pos = sumSign(lPos, l, rPos, r)
+        sumLog(lPos, l, rPos, r)
+      }
+      case InclusionExclusionKind => {
+        val plus1 = eval(child1(node))
+        val plus1Pos = pos
+        val plus2 = eval(child2(node))
+        val plus2Pos = pos
+        val min = eval(child3(node))
+        val minPos = !pos
+        val plusPos = sumSign(plus1Pos, plus1, plus2Pos, plus2)
+        val plus = sumLog(plus1Pos, plus1, plus2Pos, plus2)
+        pos = sumSign(plusPos, plus, minPos, min)
+        sumLog(plusPos, plus, minPos, min)
+      }
+      case ForallKind => {
+        val child = evalCached(child1(node))
+        val n = size(sizes, sizeSlots(node), sizeOffsets(node))
+        if (n == 0) constant(true, One) else power(pos, child, n)
+      }
+      case ExistsKind => {
+        val maxSize = size(sizes, sizeSlots(node), sizeOffsets(node))
+        val subdomain = subdomainSlots(node)
+        val complement = complementSlots(node)
+        val oldSubdomainSize = sizes(subdomain)
+        val oldComplementSize = sizes(complement)
+        var sumPos = true
+        var logWeight = Zero
+        var nbTrue = 0
+        while (nbTrue <= maxSize) {
+          sizes(subdomain) = nbTrue
+          sizes(complement) = maxSize - nbTrue
+          val term = Binomial.coeff(maxSize, nbTrue).logToDouble + eval(child1(node))
+          val termPos = pos || term.isNegInfinity
+          val newPos = sumSign(sumPos, logWeight, termPos, term)
+          logWeight = sumLog(sumPos, logWeight, termPos, term)
+          sumPos = newPos
+          nbTrue += 1
+        }
+        sizes(subdomain) = oldSubdomainSize
+        sizes(complement) = oldComplementSize
+        constant(sumPos, logWeight)
+      }
+      case DomainRecursionKind => {
+        val maxSize = size(sizes, sizeSlots(node), sizeOffsets(node))
+        if (maxSize < 1) constant(true, One)
+        else {
+          val groundChild = eval(child1(node))
+          val groundChildPos = pos
+          val childChild = eval(child2(node))
+          val childChildPos = pos
+          val childChildExp = (maxSize * (maxSize - 1)) / 2
+          val groundPower = groundChild * maxSize
+          val childPower = childChild * childChildExp
+          pos = productSign(powSign(groundChildPos, groundChild, maxSize), groundPower,
+            powSign(childChildPos, childChild, childChildExp), childPower)
+          groundPower + childPower
+        }
+      }
+      case VisitorKind => {
+        val weight = signedVisitorWmc(node, sizes, domainSizes, predicateWeights)
+        constant(weight.pos, weight.ld.logToDouble)
+      }
+    }
+
+    private def evalCached(node: Int): Double = {
+      val key = cacheKey(sizes, node)
+      if (key < 0) eval(node)
+      else {
+        val index = cache.indexOf(nodeIds(node), key)
+        if (index >= 0) constant(cache.isPositive(index), cache.logValue(index))
+        else {
+          val logWeight = eval(node)
+          cache.put(nodeIds(node), key, logWeight, pos)
+          logWeight
+        }
+      }
+    }
+
+  }
+
+}
+
+object FlatCircuit {
+
+  final val TrueKind = 0
+  final val FalseKind = 1
+  final val PositiveUnitKind = 2
+  final val NegativeUnitKind = 3
+  final val SmoothingKind = 4
+  final val ContradictionKind = 5
+  final val AndKind = 6
+  final val OrKind = 7
+  final val InclusionExclusionKind = 8
+  final val ForallKind = 9
+  final val ExistsKind = 10
+  final val DomainRecursionKind = 11
+  final val VisitorKind = 12
+
+  // logarithms of zero and one
+  private final val Zero = Double.NegativeInfinity
+  private final val One = 0.0
+
+  // nodes with more domains are not cached, so that their key fits in a Long
+  private final val MaxCachedDomains = 7
+
+  /**
+   * Flattens the given smooth circuit, or returns None when it refers to
+   * domains that cannot be flattened, such as the Universe.
+   */
+  def flatten(root: NNFNode): Option[FlatCircuit] = {
+    try {
+      Some(new Builder(root).build())
+    } catch {
+      case e: UnsupportedOperationException => None
+    }
+  }
+
+  private class Builder(root: NNFNode) {
+
+    private[this] val nodes = new mutable.ArrayBuffer[NNFNode]
+    private[this] val nodeIndices = new IdentityHashMap[NNFNode, Integer]
+    private[this] val domains = new mutable.ArrayBuffer[Domain]
+    private[this] val domainSlots = new mutable.HashMap[Domain, Int]
+    private[this] val predicates = new mutable.ArrayBuffer[Predicate]
+    private[this] val predicateSlots = new mutable.HashMap[Predicate, Int]
+
+    private[this] val kinds = new mutable.ArrayBuffer[Int]
+    private[this] val child1 = new mutable.ArrayBuffer[Int]
+    private[this] val child2 = new mutable.ArrayBuffer[Int]
+    private[this] val child3 = new mutable.ArrayBuffer[Int]
+    private[this] val sizeSlots = new mutable.ArrayBuffer[Int]
+    private[this] val sizeOffsets = new mutable.ArrayBuffer[Int]
+    private[this] val subdomainSlots = new mutable.ArrayBuffer[Int]
+    private[this] val complementSlots = new mutable.ArrayBuffer[Int]
+    private[this] val nodePredicateSlots = new mutable.ArrayBuffer[Int]
+    private[this] val groundings = new mutable.ArrayBuffer[Array[Int]]
+    private[this] val projectedGroundings = new mutable.ArrayBuffer[Array[Int]]
+    private[this] val cacheSlots = new mutable.ArrayBuffer[Array[Int]]
+    private[this] val visitorNodes = new mutable.ArrayBuffer[NNFNode]
+    private[this] val nodeIds = new mutable.ArrayBuffer[Int]
+
+    def build(): FlatCircuit = {
+      indexOf(root)
+      var node = 0
+      while (node < nodes.size) {
+        fill(node, nodes(node))
+        node += 1
+      }
+      new FlatCircuit(kinds.toArray, child1.toArray, child2.toArray, child3.toArray,
+        sizeSlots.toArray, sizeOffsets.toArray, subdomainSlots.toArray, complementSlots.toArray,
+        nodePredicateSlots.toArray, groundings.toArray, projectedGroundings.toArray, cacheSlots.toArray,
+        visitorNodes.toArray, nodeIds.toArray, domains.toIndexedSeq, predicates.toIndexedSeq)
+    }
+
+    private def resolve(node: NNFNode): NNFNode = node match {
+      case ref: Ref => resolve(ref.nnfNode)
+      case _ => node
+    }
+
+    private def indexOf(node: NNFNode): Int = {
+      val resolved = resolve(node)
+      val index = nodeIndices.get(resolved)
+      if (index != null) index.intValue
+      else {
+        val newIndex = nodes.size
+        nodeIndices.put(resolved, newIndex)
+        nodes += resolved
+        kinds += -1
+        child1 += -1
+        child2 += -1
+        child3 += -1
+        sizeSlots += -1
+        sizeOffsets += 0
+        subdomainSlots += -1
+        complementSlots += -1
+        nodePredicateSlots += -1
+        groundings += null
+        projectedGroundings += null
+        cacheSlots += null
+        visitorNodes += null
+        nodeIds += resolved.id
+        newIndex
+      }
+    }
+
+    // the weights of the children of And and Forall nodes are cached
+    private def cachedIndexOf(node: NNFNode): Int = {
+      val index = indexOf(node)
+      val resolved = nodes(index)
+      if (resolved.evalOrder > 0 && resolved.orderedDomains.size <= MaxCachedDomains && cacheSlots(index) == null) {
+        cacheSlots(index) = resolved.orderedDomains.map { domainSlot(_) }.toArray
+      }
+      index
+    }
+
+    private def domainSlot(domain: Domain): Int = domain match {
+      case EmptyDomain => -1
+      case Universe => throw new UnsupportedOperationException("Cannot flatten the Universe domain")
+      case _ => domainSlots.getOrElseUpdate(domain, {
+        domains += domain
+        domains.size - 1
+      })
+    }
+
+    // see Domain.size
+    private def sizeOffset(domain: Domain, excluded: collection.Set[Constant]): Int = domain match {
+      case subdomain: SubDomain => excluded.size - subdomain.excludedConstants.size
+      case _ => excluded.size
+    }
+
+    private def predicateSlot(predicate: Predicate): Int = {
+      predicateSlots.getOrElseUpdate(predicate, {
+        predicates += predicate
+        predicates.size - 1
+      })
+    }
+
+    // the number of groundings of the given shattered clauses as a sum of products
+    private def groundingsProgram(clauses: List[Clause]): Array[Int] = {
+      val program = new mutable.ArrayBuffer[Int]
+      program += clauses.size
+      for (clause <- clauses) {
+        val dims = clause.constrs.domainsWithExclusions
+        program += dims.size
+        for ((excluded, excludedLogVars, domain) <- dims) {
+          program += domainSlot(domain)
+          program += sizeOffset(domain, excluded)
+          program += excludedLogVars
+        }
+      }
+      program.toArray
+    }
+
+    private def fillGroundings(index: Int, clause: UnitClause) {
+      groundings(index) = groundingsProgram(clause.shatterIneqDomains)
+      projectedGroundings(index) = groundingsProgram(clause.projectConstraints.shatterIneqDomains)
+    }
+
+    private def setSize(index: Int, domain: Domain, excluded: collection.Set[Constant]) {
+      sizeSlots(index) = domainSlot(domain)
+      sizeOffsets(index) = sizeOffset(domain, excluded)
+    }
+
+    private def fill(index: Int, node: NNFNode): Unit = node match {
+      case TrueNode => kinds(index) = TrueKind
+      case FalseNode => kinds(index) = FalseKind
+      case leaf: UnitLeaf => {
+        kinds(index) = if (leaf.positive) PositiveUnitKind else NegativeUnitKind
+        nodePredicateSlots(index) = predicateSlot(leaf.clause.atom.predicate)
+        fillGroundings(index, leaf.clause)
+      }
+      case leaf: SmoothingNode => {
+        kinds(index) = SmoothingKind
+        nodePredicateSlots(index) = predicateSlot(leaf.clause.atom.predicate)
+        fillGroundings(index, leaf.clause)
+      }
+      case leaf: ContradictionLeaf => {
+        kinds(index) = ContradictionKind
+        groundings(index) = groundingsProgram(leaf.clause.shatterIneqDomains)
+      }
+      case and: And => {
+        kinds(index) = AndKind
+        child1(index) = cachedIndexOf(and.l)
+        child2(index) = cachedIndexOf(and.r)
+      }
+      case or: Or => {
+        kinds(index) = OrKind
+        child1(index) = indexOf(or.l)
+        child2(index) = indexOf(or.r)
+      }
+      case ie: InclusionExclusion => {
+        kinds(index) = InclusionExclusionKind
+        child1(index) = indexOf(ie.plus1)
+        child2(index) = indexOf(ie.plus2)
+        child3(index) = indexOf(ie.min)
+      }
+      case forall: IndependentPartialGroundingNode => {
+        kinds(index) = ForallKind
+        child1(index) = cachedIndexOf(forall.child)
+        setSize(index, forall.d, forall.ineqs)
+      }
+      case exists: CountingNode => {
+        kinds(index) = ExistsKind
+        child1(index) = indexOf(exists.child)
+        setSize(index, exists.domain, exists.excludedConstants)
+        subdomainSlots(index) = domainSlot(exists.subdomain)
+        complementSlots(index) = domainSlot(exists.subdomain.complement)
+      }
+      case dr: DomainRecursionNode => {
+        kinds(index) = DomainRecursionKind
+        child1(index) = indexOf(dr.groundChild)
+        child2(index) = indexOf(dr.mixedChild.child)
+        setSize(index, dr.domain, dr.ineqs)
+      }
+      case _ => {
+        // the visitor needs the sizes of the domains below this node
+        kinds(index) = VisitorKind
+        visitorNodes(index) = node
+        node.domains.foreach { domainSlot(_) }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf
+
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.PrintWriter
+import java.net.URLClassLoader
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicInteger
+
+import javax.tools.ToolProvider
+
+import edu.ucla.cs.starai.forclift.inference.DomainSizes
+import edu.ucla.cs.starai.forclift.inference.PredicateWeights
+import edu.ucla.cs.starai.forclift.nnf.visitors.WmcCache
+import edu.ucla.cs.starai.forclift.util.Binomial
+import edu.ucla.cs.starai.forclift.util.LogDouble
+import edu.ucla.cs.starai.forclift.util.SignLogDouble
+
+/**
+ * A flat circuit compiled into a JVM class, for circuits that are evaluated
+ * many times, as in learning and RCR.
+ *
+ * Every node becomes a static method that evaluates the node as straight-line
+ * arithmetic on the logarithms of the weights and on the domain sizes, and
+ * calls the methods of its children. The number of groundings of leaves is
+ * unrolled into expressions. Without dispatch on the node kind, HotSpot can
+ * inline the methods of small nodes into their parents. Nodes that the flat
+ * circuit evaluates with the visitor, such as grounding nodes, still call the
+ * visitor.
+ *
+ * The methods are split over several classes, because every method that a
+ * class calls takes entries in its constant pool, which holds at most 65535.
+ */
+final class GeneratedCircuit private (
+  val flatCircuit: FlatCircuit,
+  generatedClass: Class[_ <: GeneratedEvaluation]) {
+
+  def supports(predicateWeights: PredicateWeights): Boolean = flatCircuit.supports(predicateWeights)
+
+  def wmc(domainSizes: DomainSizes, predicateWeights: PredicateWeights): SignLogDouble = {
+    require(supports(predicateWeights), "Generated circuits only support non-negative weights")
+    val evaluation = generatedClass.getDeclaredConstructor().newInstance()
+    LogDouble.fromLog(evaluation.evaluate(flatCircuit, domainSizes, predicateWeights))
+  }
+
+}
+
+object GeneratedCircuit {
+
+  /**
+   * Whether CachingCNFCircuit evaluates circuits with generated classes
+   * instead of flat circuits.
+   */
+  @volatile var enabled = false
+
+  /**
+   * Whether to report generated sources that do not compile.
+   */
+  @volatile var verbose = false
+
+  // larger circuits take too long to compile
+  final val MaxNodes = 20000
+
+  // a node defines two methods, calls at most three others and uses few
+  // constants, which take fewer than 20 entries of the constant pool
+  final val NodesPerClass = 2000
+
+  private final val GeneratedPackage = "edu.ucla.cs.starai.forclift.nnf.generated"
+
+  private val classCounter = new AtomicInteger
+
+  /**
+   * Compiles the given flat circuit into classes, or returns None when the
+   * circuit is too large, when no Java compiler is available, as on a JRE,
+   * or when the generated source does not compile, which is reported when
+   * verbose.
+   */
+  def generate(flatCircuit: FlatCircuit): Option[GeneratedCircuit] = generate(flatCircuit, NodesPerClass)
+
+  private[nnf] def generate(flatCircuit: FlatCircuit, nodesPerClass: Int): Option[GeneratedCircuit] = {
+    if (flatCircuit.nbNodes > MaxNodes) None
+    else {
+      val className = "Circuit" + classCounter.incrementAndGet()
+      val nbParts = (flatCircuit.nbNodes + nodesPerClass - 1) / nodesPerClass
+      val classNames = className +: (0 until nbParts).map { partName(className, _) }
+      compile(className, source(flatCircuit, className, nodesPerClass), classNames).map { generatedClass =>
+        new GeneratedCircuit(flatCircuit, generatedClass.asSubclass(classOf[GeneratedEvaluation]))
+      }
+    }
+  }
+
+  private def partName(className: String, part: Int) = className + "_" + part
+
+  private def location(c: Class[_]): Option[String] = {
+    Option(c.getProtectionDomain.getCodeSource).map { source => new File(source.getLocation.toURI).getPath }
+  }
+
+  /**
+   * Compiles the given source and loads all of the given classes from it,
+   * and returns the first.
+   */
+  private def compile(className: String, source: String, classNames: Seq[String]): Option[Class[_]] = {
+    val compiler = ToolProvider.getSystemJavaCompiler
+    if (compiler == null) None
+    else {
+      val directory = Files.createTempDirectory("forclift-circuit").toFile
+      try {
+        val sourceFile = new File(directory, className + ".java")
+        val writer = new PrintWriter(sourceFile)
+        try writer.print(source) finally writer.close()
+
+        val classPath = (location(classOf[GeneratedEvaluation]).toList ++ location(classOf[Option[_]]).toList
+          :+ System.getProperty("java.class.path")).mkString(File.pathSeparator)
+        val messages = new ByteArrayOutputStream
+        val result = compiler.run(null, messages, messages,
+          "-nowarn", "-classpath", classPath, "-d", directory.getPath, sourceFile.getPath)
+        if (result != 0) {
+          if (verbose) println(s"Cannot compile the generated circuit $className, evaluating the flat circuit instead:\n" + messages)
+          None
+        } else {
+          val loader = new URLClassLoader(Array(directory.toURI.toURL), classOf[GeneratedEvaluation].getClassLoader)
+          try {
+            // load every class before their files are deleted, they have no inner classes
+            val classes = classNames.map { name => loader.loadClass(GeneratedPackage + "." + name) }
+            Some(classes.head)
+          } finally loader.close()
+        }
+      } finally deleteRecursively(directory)
+    }
+  }
+
+  private def deleteRecursively(file: File) {
+    if (file.isDirectory) file.listFiles.foreach { deleteRecursively(_) }
+    file.delete()
+  }
+
+  /**
+   * The Java source of the classes that evaluate the given flat circuit. The
+   * class with the given name keeps the state of an evaluation; node `i` is
+   * evaluated by the static method `e<i>`, and through its cache by `c<i>`,
+   * of the part `<className>_<i / nodesPerClass>`.
+   */
+  private[nnf] def source(circuit: FlatCircuit, className: String, nodesPerClass: Int = NodesPerClass): String = {
+    import FlatCircuit._
+    import circuit._
+
+    val out = new StringBuilder
+
+    def sizeExpr(slot: Int, offset: Int) = if (slot < 0) "0" else s"v.size($slot, $offset)"
+
+    // see FlatCircuit.Evaluation.nbConstraintGroundings
+    def countExpr(program: Array[Int]): String = {
+      val terms = new collection.mutable.ArrayBuffer[String]
+      var p = 1
+      for (term <- 0 until program(0)) {
+        val nbFactors = program(p)
+        p += 1
+        val factors = for (factor <- 0 until nbFactors) yield {
+          val expr = s"(${sizeExpr(program(p), program(p + 1))} - ${program(p + 2)})"
+          p += 3
+          expr
+        }
+        terms += (if (factors.isEmpty) "1" else factors.mkString(" * "))
+      }
+      if (terms.isEmpty) "0" else terms.mkString("(", " + ", ")")
+    }
+
+    // see FlatCircuit.Evaluation.hasConstraintSolution
+    def hasSolutionExpr(program: Array[Int]): String = {
+      val terms = new collection.mutable.ArrayBuffer[String]
+      var p = 1
+      for (term <- 0 until program(0)) {
+        val nbFactors = program(p)
+        p += 1
+        val factors = for (factor <- 0 until nbFactors) yield {
+          val expr = s"${sizeExpr(program(p), program(p + 1))} != ${program(p + 2)}"
+          p += 3
+          expr
+        }
+        terms += (if (factors.isEmpty) "true" else factors.mkString("(", " && ", ")"))
+      }
+      if (terms.isEmpty) "false" else terms.mkString(" || ")
+    }
+
+    def nbGroundingsExpr(node: Int) = {
+      s"${countExpr(groundings(node))} == 0 ? 0 : ${countExpr(projectedGroundings(node))}"
+    }
+
+    def part(node: Int) = partName(className, node / nodesPerClass)
+    def call(node: Int) = s"${part(node)}.e$node(v)"
+    def cachedCall(node: Int) = if (cacheSlots(node) == null) call(node) else s"${part(node)}.c$node(v)"
+
+    out ++= s"package $GeneratedPackage;\n\n"
+    out ++= s"public final class $className extends ${classOf[GeneratedEvaluation].getName} {\n\n"
+    out ++= "  int[] s;\n"
+    out ++= "  double[] pos;\n"
+    out ++= "  double[] neg;\n"
+    out ++= "  double[] sum;\n\n"
+    out ++= "  public double run(int[] sizes, double[] posW, double[] negW, double[] negWPlusPosW) {\n"
+    out ++= "    s = sizes;\n"
+    out ++= "    pos = posW;\n"
+    out ++= "    neg = negW;\n"
+    out ++= "    sum = negWPlusPosW;\n"
+    out ++= s"    return ${part(0)}.e0(this);\n"
+    out ++= "  }\n\n"
+    out ++= "  int size(int slot, int offset) {\n"
+    out ++= "    int size = s[slot] - offset;\n"
+    out ++= "    return size < 0 ? 0 : size;\n"
+    out ++= "  }\n\n"
+    out ++= "}\n"
+
+    for (node <- 0 until nbNodes) {
+      if (node % nodesPerClass == 0) {
+        if (node > 0) out ++= "\n}\n"
+        out ++= s"\nfinal class ${part(node)} {\n"
+      }
+      out ++= s"\n  static double e$node($className v) {\n"
+      kinds(node) match {
+        case TrueKind => out ++= "    return 0.0;\n"
+        case FalseKind => out ++= "    return Double.NEGATIVE_INFINITY;\n"
+        case PositiveUnitKind | NegativeUnitKind => {
+          val weights = if (kinds(node) == PositiveUnitKind) "pos" else "neg"
+          out ++= s"    int n = ${nbGroundingsExpr(node)};\n"
+          out ++= s"    return n == 0 ? 0.0 : v.$weights[${predicateSlots(node)}] * n;\n"
+        }
+        case SmoothingKind => {
+          out ++= s"    int n = ${nbGroundingsExpr(node)};\n"
+          out ++= s"    return v.sum[${predicateSlots(node)}] * n;\n"
+        }
+        case ContradictionKind => {
+          out ++= s"    return ${hasSolutionExpr(groundings(node))} ? Double.NEGATIVE_INFINITY : 0.0;\n"
+        }
+        case AndKind => {
+          out ++= s"    double l = ${cachedCall(child1(node))};\n"
+          out ++= "    if (l == Double.NEGATIVE_INFINITY) return l;\n"
+          out ++= s"    return l + ${cachedCall(child2(node))};\n"
+        }
+        case OrKind => {
+          out ++= s"    double l = ${call(child1(node))};\n"
+          out ++= s"    double r = ${call(child2(node))};\n"
+          out ++= "    return v.logAdd(l, r);\n"
+        }
+        case InclusionExclusionKind => {
+          out ++= s"    double plus1 = ${call(child1(node))};\n"
+          out ++= s"    double plus2 = ${call(child2(node))};\n"
+          out ++= s"    double min = ${call(child3(node))};\n"
+          out ++= "    return v.logSubtract(v.logAdd(plus1, plus2), min);\n"
+        }
+        case ForallKind => {
+          out ++= s"    double child = ${cachedCall(child1(node))};\n"
+          out ++= s"    int n = ${sizeExpr(sizeSlots(node), sizeOffsets(node))};\n"
+          out ++= "    return n == 0 ? 0.0 : child * n;\n"
+        }
+        case ExistsKind => {
+          val subdomain = subdomainSlots(node)
+          val complement = complementSlots(node)
+          out ++= s"    int maxSize = ${sizeExpr(sizeSlots(node), sizeOffsets(node))};\n"
+          out ++= s"    int oldSubdomainSize = v.s[$subdomain];\n"
+          out ++= s"    int oldComplementSize = v.s[$complement];\n"
+          // a max-shifted sum, see LogSumExp
+          out ++= "    double max = Double.NEGATIVE_INFINITY;\n"
+          out ++= "    double sum = 0.0;\n"
+          out ++= "    for (int nbTrue = 0; nbTrue <= maxSize; nbTrue++) {\n"
+          out ++= s"      v.s[$subdomain] = nbTrue;\n"
+          out ++= s"      v.s[$complement] = maxSize - nbTrue;\n"
+          out ++= s"      double term = v.logBinomial(maxSize, nbTrue) + ${call(child1(node))};\n"
+          out ++= "      if (term > max) {\n"
+          out ++= "        sum = sum * Math.exp(max - term) + 1.0;\n"
+          out ++= "        max = term;\n"
+          out ++= "      } else if (Double.isNaN(term)) {\n"
+          out ++= "        max = Double.NaN;\n"
+          out ++= "      } else if (term != Double.NEGATIVE_INFINITY) {\n"
+          out ++= "        sum += Math.exp(term - max);\n"
+          out ++= "      }\n"
+          out ++= "    }\n"
+          out ++= s"    v.s[$subdomain] = oldSubdomainSize;\n"
+          out ++= s"    v.s[$complement] = oldComplementSize;\n"
+          out ++= "    return max == Double.NEGATIVE_INFINITY ? max : max + Math.log(sum);\n"
+        }
+        case DomainRecursionKind => {
+          out ++= s"    int maxSize = ${sizeExpr(sizeSlots(node), sizeOffsets(node))};\n"
+          out ++= "    if (maxSize < 1) return 0.0;\n"
+          out ++= s"    double groundChild = ${call(child1(node))};\n"
+          out ++= s"    double childChild = ${call(child2(node))};\n"
+          out ++= "    return groundChild * maxSize + childChild * ((maxSize * (maxSize - 1)) / 2);\n"
+        }
+        case VisitorKind => out ++= s"    return v.visitorWmc($node);\n"
+      }
+      out ++= "  }\n"
+
+      // see FlatCircuit.Evaluation.evalCached
+      val slots = cacheSlots(node)
+      if (slots != null) {
+        val bits = if (slots.isEmpty) 0 else 63 / slots.length
+        out ++= s"\n  static double c$node($className v) {\n"
+        out ++= "    long key = 0L;\n"
+        out ++= "    int size;\n"
+        for (slot <- slots) {
+          out ++= s"    size = ${if (slot < 0) "0" else s"v.s[$slot]"};\n"
+          out ++= s"    if (size >= ${1L << bits}L) return e$node(v);\n"
+          out ++= s"    key = (key << $bits) | size;\n"
+        }
+        out ++= s"    int index = v.cacheIndex($node, key);\n"
+        out ++= s"    if (index >= 0) return v.cacheValue($node, index);\n"
+        out ++= s"    double weight = e$node(v);\n"
+        out ++= s"    v.cachePut($node, key, weight);\n"
+        out ++= "    return weight;\n"
+        out ++= "  }\n"
+      }
+    }
+
+    out ++= "\n}\n"
+    out.toString
+  }
+
+}
+
+/**
+ * Superclass of the classes generated by GeneratedCircuit. An instance
+ * evaluates a circuit once; the generated `run` method keeps the domain sizes
+ * and the logarithms of the weights in fields, and calls the methods below
+ * for the arithmetic that does not fit in an expression.
+ */
+abstract class GeneratedEvaluation {
+
+  private[this] var circuit: FlatCircuit = _
+  private[this] var domainSizes: DomainSizes = _
+  private[this] var predicateWeights: PredicateWeights = _
+  private[this] var sizes: Array[Int] = _
+  private[this] var cache: WmcCache = _
+
+  def run(sizes: Array[Int], posW: Array[Double], negW: Array[Double], negWPlusPosW: Array[Double]): Double
+
+  /** The logarithm of the weighted model count of the given circuit. */
+  final def evaluate(circuit: FlatCircuit, domainSizes: DomainSizes, predicateWeights: PredicateWeights): Double = {
+    this.circuit = circuit
+    this.domainSizes = domainSizes
+    this.predicateWeights = predicateWeights
+    sizes = circuit.sizesOf(domainSizes)
+    WmcCache.withCache(predicateWeights) { evaluationCache =>
+      cache = evaluationCache
+      try {
+        run(sizes,
+          circuit.logWeightsOf(predicateWeights, true, false),
+          circuit.logWeightsOf(predicateWeights, false, true),
+          circuit.logWeightsOf(predicateWeights, true, true))
+      } finally cache = null
+    }
+  }
+
+  final def logAdd(a: Double, b: Double): Double = (LogDouble.fromLog(a) + LogDouble.fromLog(b)).logToDouble
+
+  final def logSubtract(a: Double, b: Double): Double = (LogDouble.fromLog(a) - LogDouble.fromLog(b)).logToDouble
+
+  final def logBinomial(n: Int, k: Int): Double = Binomial.logCoeff(n, k)
+
+  final def visitorWmc(node: Int): Double = {
+    circuit.visitorWmc(node, sizes, domainSizes, predicateWeights).logToDouble
+  }
+
+  /** The index of the given key of the given node in the cache, or -1. */
+  final def cacheIndex(node: Int, key: Long): Int = cache.indexOf(circuit.nodeIds(node), key)
+
+  final def cacheValue(node: Int, index: Int): Double = cache.logValue(index)
+
+  final def cachePut(node: Int, key: Long, value: Double) {
+    cache.put(circuit.nodeIds(node), key, value, true)
+  }
+
+}
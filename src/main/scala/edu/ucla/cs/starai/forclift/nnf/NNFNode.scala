@@ -58,8 +58,17 @@ object Cachestats {
 
 }
 
+object NNFNode {
+
+  private val lastId = new java.util.concurrent.atomic.AtomicInteger
+
+}
+
 abstract class NNFNode {
 
+  /** A number that identifies this node, for caches keyed by primitives. */
+  final val id: Int = NNFNode.lastId.incrementAndGet()
+
   def cnf: CNF
 
   def explanation: String
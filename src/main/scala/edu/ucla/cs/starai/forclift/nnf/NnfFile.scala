@@ -0,0 +1,623 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf
+
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+
+import scala.collection.mutable
+
+import edu.ucla.cs.starai.forclift._
+import edu.ucla.cs.starai.forclift.compiler.CanonicalCNF
+import edu.ucla.cs.starai.forclift.compiler.IJCAI11Compiler
+import edu.ucla.cs.starai.forclift.constraints.Constraints
+import edu.ucla.cs.starai.forclift.constraints.ElemConstr
+import edu.ucla.cs.starai.forclift.constraints.IneqConstr
+
+/**
+ * A binary file format for compiled circuits, so that a circuit can be
+ * compiled once and loaded by later runs.
+ *
+ * The file starts with the fingerprint of the theory that was compiled, see
+ * CanonicalCNF.fingerprint, and is only loaded for a theory with the same
+ * fingerprint. It then holds tables of the constants, domains, variables and predicates
+ * of the circuit, followed by its nodes in topological order, each referring
+ * to earlier entries by their index. Shared nodes, including the targets of
+ * Ref nodes, are written once. The file keeps everything that is needed to
+ * evaluate the circuit: the clauses of its leaves, the CNFs of its grounding
+ * nodes and the constants, inequalities and (sub)domains of its first-order
+ * nodes. The CNFs of the other nodes and the explanations of all nodes only
+ * serve to display circuits and are not saved.
+ *
+ * Root domains are identified by their name and have to have the same
+ * static constants as when the circuit was saved. A loaded circuit uses the
+ * root domains and subdomains of the theory it is evaluated with, so that
+ * their domain sizes apply; the subdomains that compilation introduced are
+ * created anew. Loading does not change the domains of the theory.
+ */
+object NnfFile {
+
+  private final val Magic = 0x464e4e46 // FNNF
+  private final val Version = 2
+
+  // constant kinds
+  private final val StringConstant = 0
+  private final val IntConstant = 1
+  private final val IndexedConstantKind = 2
+
+  // domain kinds
+  private final val UniverseKind = 0
+  private final val EmptyDomainKind = 1
+  private final val RootDomainKind = 2
+  private final val SubDomainKind = 3
+  private final val ComplementDomainKind = 4
+
+  // clause kinds
+  private final val ClauseKind = 0
+  private final val PositiveUnitClauseKind = 1
+  private final val NegativeUnitClauseKind = 2
+  private final val ContradictionClauseKind = 3
+
+  // node kinds
+  private final val TrueKind = 0
+  private final val FalseKind = 1
+  private final val RefKind = 2
+  private final val AndKind = 3
+  private final val OrKind = 4
+  private final val InclusionExclusionKind = 5
+  private final val ForallKind = 6
+  private final val CountingKind = 7
+  private final val DomainRecursionKind = 8
+  private final val GroundingKind = 9
+  private final val ContradictionKind = 10
+  private final val UnitKind = 11
+  private final val SmoothingKind = 12
+
+  /**
+   * Stands in for the grounding constants of the compiler in loaded
+   * circuits. Like those, it equals the constants with the same index.
+   */
+  final case class IndexedConstant(i: Int) {
+    override def toString = "x" + (if (i > 0) ("'" * i) else "")
+  }
+
+  /**
+   * Saves the circuit of the theory with the given fingerprint.
+   */
+  def save(nnf: NNFNode, fingerprint: String, file: File) {
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))
+    try new Writer(out).write(nnf, fingerprint)
+    finally out.close()
+  }
+
+  /**
+   * Loads the circuit in the given file, which has to be saved for a theory
+   * with the given fingerprint. Its root domains are found among the given
+   * domains and their ancestors, which should hold all domains of the theory
+   * that the circuit is evaluated with. Its predicates have to be in the
+   * given vocabulary.
+   *
+   * Throws an IllegalArgumentException when the file does not fit the
+   * theory.
+   */
+  def load(file: File, fingerprint: String, domains: Iterable[Domain], vocabulary: collection.Set[Predicate]): NNFNode = {
+    val raf = new RandomAccessFile(file, "r")
+    try {
+      val channel = raf.getChannel
+      val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size)
+      new Reader(buffer, domains, Some(vocabulary)).read(fingerprint)
+    } finally raf.close()
+  }
+
+  /**
+   * A copy of the given circuit over the root domains and subdomains among
+   * the given domains, which belong to a theory with the same structure as
+   * the theory of the circuit, see CanonicalCNF.structural. This shares
+   * circuits between separate parses of similar theories, see
+   * CanonicalNnfCache. Constants keep their values.
+   *
+   * Throws an IllegalArgumentException when the circuit does not fit the
+   * domains.
+   */
+  def rebind(nnf: NNFNode, domains: Iterable[Domain]): NNFNode = {
+    val bytes = new ByteArrayOutputStream
+    val out = new DataOutputStream(bytes)
+    val writer = new Writer(out)
+    try writer.write(nnf, "")
+    finally out.close()
+    val reader = new Reader(ByteBuffer.wrap(bytes.toByteArray), domains, None, Some(writer.constantValues))
+    reader.read("")
+  }
+
+  private final class Table[T <: AnyRef](byIdentity: Boolean = true) {
+
+    private[this] val indices: java.util.Map[T, Integer] = {
+      if (byIdentity) new java.util.IdentityHashMap[T, Integer]
+      else new java.util.HashMap[T, Integer]
+    }
+
+    val elements = new mutable.ArrayBuffer[T]
+
+    def contains(t: T) = indices.containsKey(t)
+
+    def add(t: T) {
+      if (!contains(t)) {
+        indices.put(t, elements.size)
+        elements += t
+      }
+    }
+
+    def indexOf(t: T): Int = {
+      val index = indices.get(t)
+      assume(index != null, s"$t was not collected")
+      index.intValue
+    }
+
+  }
+
+  private final class Writer(out: DataOutputStream) {
+
+    private[this] val constants = new Table[Constant]
+    private[this] val domains = new Table[Domain]
+    private[this] val vars = new Table[Var]
+    private[this] val predicates = new Table[Predicate](byIdentity = false)
+    private[this] val nodes = new Table[NNFNode]
+
+    def constantValues: IndexedSeq[Any] = constants.elements.map { _.value }
+
+    def write(nnf: NNFNode, fingerprint: String) {
+      collectNode(nnf)
+      out.writeInt(Magic)
+      out.writeInt(Version)
+      writeString(fingerprint)
+      out.writeInt(constants.elements.size)
+      constants.elements.foreach { writeConstantValue(_) }
+      out.writeInt(domains.elements.size)
+      domains.elements.foreach { writeDomain(_) }
+      val constantDomains = constants.elements.filter { _.domain.nonEmpty }
+      out.writeInt(constantDomains.size)
+      for (constant <- constantDomains) {
+        out.writeInt(constants.indexOf(constant))
+        out.writeInt(domains.indexOf(constant.domain.get))
+      }
+      out.writeInt(vars.elements.size)
+      out.writeInt(predicates.elements.size)
+      predicates.elements.foreach { writePredicate(_) }
+      out.writeInt(nodes.elements.size)
+      nodes.elements.foreach { writeNode(_) }
+    }
+
+    // collect the tables, children before their parents
+
+    private def collectNode(node: NNFNode) {
+      if (!nodes.contains(node)) {
+        node match {
+          case TrueNode | FalseNode =>
+          case ref: Ref => collectNode(ref.nnfNode)
+          case and: And =>
+            collectNode(and.l)
+            collectNode(and.r)
+          case or: Or =>
+            collectNode(or.l)
+            collectNode(or.r)
+          case ie: InclusionExclusion =>
+            collectNode(ie.plus1)
+            collectNode(ie.plus2)
+            collectNode(ie.min)
+          case forall: IndependentPartialGroundingNode =>
+            collectNode(forall.child)
+            collectConstant(forall.c)
+            forall.ineqs.foreach { collectConstant(_) }
+            collectDomain(forall.d)
+          case exists: CountingNode =>
+            collectNode(exists.child)
+            collectDomain(exists.domain)
+            collectDomain(exists.subdomain)
+          case dr: DomainRecursionNode =>
+            collectNode(dr.mixedChild)
+            collectNode(dr.groundChild)
+            collectConstant(dr.c)
+            dr.ineqs.foreach { collectConstant(_) }
+            collectDomain(dr.domain)
+          case leaf: GroundingNode => leaf.cnf.clauses.foreach { collectClause(_) }
+          case leaf: ContradictionLeaf => collectClause(leaf.clause)
+          case leaf: UnitLeaf => collectClause(leaf.clause)
+          case leaf: SmoothingNode => collectClause(leaf.clause)
+          case _ => throw new IllegalArgumentException(s"Cannot save node $node")
+        }
+        nodes.add(node)
+      }
+    }
+
+    private def collectConstant(constant: Constant) {
+      if (!constants.contains(constant)) {
+        constants.add(constant)
+        constant.domain.foreach { collectDomain(_) }
+      }
+    }
+
+    private def collectDomain(domain: Domain) {
+      if (!domains.contains(domain)) {
+        domain match {
+          case root: RootDomain => root.staticConstants.foreach { collectConstant(_) }
+          case complement: ComplementDomain => collectDomain(complement.complement)
+          case sub: SubDomain =>
+            collectDomain(sub.parents.head)
+            sub.excludedConstants.foreach { collectConstant(_) }
+        }
+        // constants can refer back to their domain
+        domains.add(domain)
+      }
+    }
+
+    private def collectClause(clause: Clause) {
+      clause.atoms.foreach { collectAtom(_) }
+      for ((v, terms) <- clause.constrs.ineqConstrs.iterator) {
+        vars.add(v)
+        terms.foreach { collectTerm(_) }
+      }
+      for ((v, domain) <- clause.constrs.elemConstrs.iterator) {
+        vars.add(v)
+        collectDomain(domain)
+      }
+    }
+
+    private def collectAtom(atom: Atom) {
+      atom.predicate.domains.foreach { collectDomain(_) }
+      predicates.add(atom.predicate)
+      atom.args.foreach { collectTerm(_) }
+    }
+
+    private def collectTerm(term: Term) = term match {
+      case v: Var => vars.add(v)
+      case c: Constant => collectConstant(c)
+    }
+
+    // write the tables
+
+    private def writeString(s: String) {
+      val bytes = s.getBytes(StandardCharsets.UTF_8)
+      out.writeInt(bytes.length)
+      out.write(bytes)
+    }
+
+    private def writeConstantValue(constant: Constant) = constant.value match {
+      case s: String =>
+        out.writeByte(StringConstant)
+        writeString(s)
+      case i: Int =>
+        out.writeByte(IntConstant)
+        out.writeInt(i)
+      case c: IJCAI11Compiler#IndexedConstant =>
+        out.writeByte(IndexedConstantKind)
+        out.writeInt(c.i)
+      case c: IndexedConstant =>
+        out.writeByte(IndexedConstantKind)
+        out.writeInt(c.i)
+      case value => throw new IllegalArgumentException(s"Cannot save constant $value of ${value.getClass}")
+    }
+
+    private def writeConstants(constants: Iterable[Constant]) {
+      out.writeInt(constants.size)
+      constants.foreach { c => out.writeInt(this.constants.indexOf(c)) }
+    }
+
+    private def writeDomain(domain: Domain) {
+      if (domain eq Universe) out.writeByte(UniverseKind)
+      else if (domain eq EmptyDomain) out.writeByte(EmptyDomainKind)
+      else domain match {
+        case root: RootDomain =>
+          out.writeByte(RootDomainKind)
+          writeString(root.name)
+          writeConstants(root.staticConstants)
+        case complement: ComplementDomain =>
+          out.writeByte(ComplementDomainKind)
+          out.writeInt(domains.indexOf(complement.complement))
+        case sub: SubDomain =>
+          out.writeByte(SubDomainKind)
+          out.writeInt(domains.indexOf(sub.parents.head))
+          writeString(sub.superScript)
+          writeString(sub.subScript)
+          writeString(sub.complement.superScript)
+          writeString(sub.complement.subScript)
+          writeConstants(sub.excludedConstants)
+      }
+    }
+
+    private def writePredicate(predicate: Predicate) {
+      writeString(predicate.name.name)
+      out.writeInt(predicate.arity)
+      out.writeInt(predicate.domains.size)
+      predicate.domains.foreach { d => out.writeInt(domains.indexOf(d)) }
+    }
+
+    // variables are non-negative and constants negative
+    private def writeTerm(term: Term) = term match {
+      case v: Var => out.writeInt(vars.indexOf(v))
+      case c: Constant => out.writeInt(-1 - constants.indexOf(c))
+    }
+
+    private def writeAtoms(atoms: List[Atom]) {
+      out.writeInt(atoms.size)
+      for (atom <- atoms) {
+        out.writeInt(predicates.indexOf(atom.predicate))
+        atom.args.foreach { writeTerm(_) }
+      }
+    }
+
+    private def writeClause(clause: Clause) {
+      clause match {
+        case _: ContradictionClause => out.writeByte(ContradictionClauseKind)
+        case _: PositiveUnitClause => out.writeByte(PositiveUnitClauseKind)
+        case _: NegativeUnitClause => out.writeByte(NegativeUnitClauseKind)
+        case _ => out.writeByte(ClauseKind)
+      }
+      writeAtoms(clause.posLits)
+      writeAtoms(clause.negLits)
+      val ineqs = (for ((v, terms) <- clause.constrs.ineqConstrs.iterator; t <- terms) yield (v, t)).toList
+      out.writeInt(ineqs.size)
+      for ((v, t) <- ineqs) {
+        writeTerm(v)
+        writeTerm(t)
+      }
+      val elems = clause.constrs.elemConstrs.toList
+      out.writeInt(elems.size)
+      for ((v, domain) <- elems) {
+        writeTerm(v)
+        out.writeInt(domains.indexOf(domain))
+      }
+    }
+
+    private def writeNode(node: NNFNode) = node match {
+      case TrueNode => out.writeByte(TrueKind)
+      case FalseNode => out.writeByte(FalseKind)
+      case ref: Ref =>
+        out.writeByte(RefKind)
+        out.writeInt(nodes.indexOf(ref.nnfNode))
+      case and: And =>
+        out.writeByte(AndKind)
+        out.writeInt(nodes.indexOf(and.l))
+        out.writeInt(nodes.indexOf(and.r))
+      case or: Or =>
+        out.writeByte(OrKind)
+        out.writeInt(nodes.indexOf(or.l))
+        out.writeInt(nodes.indexOf(or.r))
+      case ie: InclusionExclusion =>
+        out.writeByte(InclusionExclusionKind)
+        out.writeInt(nodes.indexOf(ie.plus1))
+        out.writeInt(nodes.indexOf(ie.plus2))
+        out.writeInt(nodes.indexOf(ie.min))
+      case forall: IndependentPartialGroundingNode =>
+        out.writeByte(ForallKind)
+        out.writeInt(nodes.indexOf(forall.child))
+        out.writeInt(constants.indexOf(forall.c))
+        writeConstants(forall.ineqs)
+        out.writeInt(domains.indexOf(forall.d))
+      case exists: CountingNode =>
+        out.writeByte(CountingKind)
+        out.writeInt(nodes.indexOf(exists.child))
+        out.writeInt(domains.indexOf(exists.domain))
+        out.writeInt(domains.indexOf(exists.subdomain))
+      case dr: DomainRecursionNode =>
+        out.writeByte(DomainRecursionKind)
+        out.writeInt(nodes.indexOf(dr.mixedChild))
+        out.writeInt(nodes.indexOf(dr.groundChild))
+        out.writeInt(constants.indexOf(dr.c))
+        writeConstants(dr.ineqs)
+        out.writeInt(domains.indexOf(dr.domain))
+      case leaf: GroundingNode =>
+        out.writeByte(GroundingKind)
+        out.writeInt(leaf.cnf.clauses.size)
+        leaf.cnf.clauses.foreach { writeClause(_) }
+      case leaf: ContradictionLeaf =>
+        out.writeByte(ContradictionKind)
+        writeClause(leaf.clause)
+        out.writeBoolean(leaf.positive)
+      case leaf: UnitLeaf =>
+        out.writeByte(UnitKind)
+        writeClause(leaf.clause)
+        out.writeBoolean(leaf.positive)
+      case leaf: SmoothingNode =>
+        out.writeByte(SmoothingKind)
+        writeClause(leaf.clause)
+    }
+
+  }
+
+  // without a vocabulary, predicates are not checked; with constant values,
+  // those replace the values in the file
+  private final class Reader(
+    in: ByteBuffer,
+    knownDomains: Iterable[Domain],
+    vocabulary: Option[collection.Set[Predicate]],
+    constantValues: Option[IndexedSeq[Any]] = None) {
+
+    private[this] val knownRoots: Map[String, RootDomain] = {
+      knownDomains.map { _.root }.map { root => (root.name, root) }.toMap
+    }
+
+    private[this] val knownSubDomains: List[SubDomain] = {
+      knownDomains.flatMap { d => d :: d.parents.toList }.collect {
+        case sub: SubDomain if !sub.isInstanceOf[ComplementDomain] => sub
+      }.toList.distinct
+    }
+
+    private[this] var constants: Array[Constant] = null
+    private[this] var domains: Array[Domain] = null
+    private[this] var vars: Array[Var] = null
+    private[this] var predicates: Array[Predicate] = null
+    private[this] var nodes: Array[NNFNode] = null
+
+    def read(fingerprint: String): NNFNode = {
+      if (in.getInt != Magic) throw new IllegalArgumentException("Not a circuit file")
+      val version = in.getInt
+      if (version != Version) throw new IllegalArgumentException(s"Unsupported circuit file version $version")
+      if (readString() != fingerprint) throw new IllegalArgumentException("The circuit file was saved for another theory")
+      constants = Array.tabulate(in.getInt) { i =>
+        val constant = readConstantValue()
+        constantValues.map { values => Constant(values(i)) }.getOrElse(constant)
+      }
+      domains = new Array[Domain](in.getInt)
+      for (i <- 0 until domains.length) domains(i) = readDomain()
+      for (i <- 0 until in.getInt) {
+        val constant = constants(in.getInt)
+        constant.setDomain(domains(in.getInt))
+      }
+      vars = Array.fill(in.getInt) { new Var }
+      predicates = Array.fill(in.getInt) { readPredicate() }
+      nodes = new Array[NNFNode](in.getInt)
+      require(nodes.nonEmpty, "The circuit file has no nodes")
+      for (i <- 0 until nodes.length) nodes(i) = readNode()
+      nodes.last
+    }
+
+    private def readString(): String = {
+      val bytes = new Array[Byte](in.getInt)
+      in.get(bytes)
+      new String(bytes, StandardCharsets.UTF_8)
+    }
+
+    private def readBoolean(): Boolean = (in.get != 0)
+
+    private def readConstantValue(): Constant = in.get.toInt match {
+      case StringConstant => Constant(readString())
+      case IntConstant => Constant(in.getInt)
+      case IndexedConstantKind => Constant(IndexedConstant(in.getInt))
+      case kind => throw new IllegalArgumentException(s"Unknown constant kind $kind")
+    }
+
+    private def readConstantList(): List[Constant] = {
+      List.fill(in.getInt) { constants(in.getInt) }
+    }
+
+    private def readConstants(): Set[Constant] = readConstantList().toSet
+
+    private def readDomain(): Domain = in.get.toInt match {
+      case UniverseKind => Universe
+      case EmptyDomainKind => EmptyDomain
+      case RootDomainKind =>
+        val name = readString()
+        val root = knownRoots.getOrElse(name, throw new IllegalArgumentException(s"The theory has no domain $name"))
+        if (readConstantList() != root.staticConstants) {
+          throw new IllegalArgumentException(s"The domain $name of the theory has other constants than in the circuit file")
+        }
+        root
+      case SubDomainKind =>
+        val parent = domains(in.getInt)
+        val superScript = readString()
+        val subScript = readString()
+        val complementSuperScript = readString()
+        val complementSubScript = readString()
+        val excludedConstants = readConstants()
+        val matches = knownSubDomains.filter { sub =>
+          (sub.parents.head eq parent) && sub.superScript == superScript && sub.subScript == subScript
+        }
+        if (matches.size > 1) {
+          throw new IllegalArgumentException(s"The theory has several subdomains ${superScript}_$subScript of $parent")
+        }
+        val subdomain = matches.headOption.getOrElse {
+          parent.subdomain(superScript, complementSuperScript, subScript, complementSubScript, excludedConstants)
+        }
+        // compilers number splits with the subscript, see IJCAICompiler, so
+        // later splits of the parent must not reuse it
+        if (subScript.nonEmpty && subScript.length < 10 && subScript.forall { _.isDigit }) parent.reserveSplits(subScript.toInt)
+        subdomain
+      case ComplementDomainKind => domains(in.getInt).asInstanceOf[SubDomain].complement
+      case kind => throw new IllegalArgumentException(s"Unknown domain kind $kind")
+    }
+
+    private def readPredicate(): Predicate = {
+      val name = readString()
+      val arity = in.getInt
+      val predicateDomains = Array.fill(in.getInt) { domains(in.getInt).asInstanceOf[RootDomain] }
+      val predicate = Predicate(Symbol(name), arity, predicateDomains.toList)
+      require(vocabulary.forall { _.contains(predicate) }, s"The theory has no predicate ${predicate.toStringFull}")
+      predicate
+    }
+
+    private def readTerm(): Term = {
+      val index = in.getInt
+      if (index >= 0) vars(index) else constants(-1 - index)
+    }
+
+    private def readAtoms(): List[Atom] = {
+      List.fill(in.getInt) {
+        val predicate = predicates(in.getInt)
+        val args = List.fill(predicate.arity) { readTerm() }
+        predicate(args: _*)
+      }
+    }
+
+    private def readClause(): Clause = {
+      val kind = in.get.toInt
+      val posLits = readAtoms()
+      val negLits = readAtoms()
+      val ineqs = List.fill(in.getInt) { (readTerm().asInstanceOf[Var], readTerm()) }
+      val elems = List.fill(in.getInt) { (readTerm().asInstanceOf[Var], domains(in.getInt)) }
+      val constrs = Constraints(IneqConstr(ineqs: _*), ElemConstr(elems: _*))
+      kind match {
+        case ClauseKind => Clause(posLits, negLits, constrs)
+        case PositiveUnitClauseKind => new PositiveUnitClause(posLits.head, constrs)
+        case NegativeUnitClauseKind => new NegativeUnitClause(negLits.head, constrs)
+        case ContradictionClauseKind => new ContradictionClause(constrs)
+        case _ => throw new IllegalArgumentException(s"Unknown clause kind $kind")
+      }
+    }
+
+    private def readNode(): NNFNode = in.get.toInt match {
+      case TrueKind => TrueNode
+      case FalseKind => FalseNode
+      case RefKind => new Ref(CNF(), nodes(in.getInt))
+      case AndKind => new And(CNF(), nodes(in.getInt), nodes(in.getInt))
+      case OrKind => new Or(CNF(), nodes(in.getInt), nodes(in.getInt))
+      case InclusionExclusionKind => new InclusionExclusion(CNF(), nodes(in.getInt), nodes(in.getInt), nodes(in.getInt))
+      case ForallKind =>
+        val child = nodes(in.getInt)
+        val c = constants(in.getInt)
+        val ineqs = readConstants()
+        new IndependentPartialGroundingNode(CNF(), child, c, ineqs, domains(in.getInt))
+      case CountingKind =>
+        val child = nodes(in.getInt)
+        val domain = domains(in.getInt)
+        new CountingNode(CNF(), child, domain, domains(in.getInt).asInstanceOf[SubDomain])
+      case DomainRecursionKind =>
+        val mixedChild = nodes(in.getInt).asInstanceOf[IndependentPartialGroundingNode]
+        val groundChild = nodes(in.getInt)
+        val c = constants(in.getInt)
+        val ineqs = readConstants()
+        new DomainRecursionNode(CNF(), mixedChild, groundChild, c, ineqs, domains(in.getInt))
+      case GroundingKind => new GroundingNode(new CNF(List.fill(in.getInt) { readClause() }))
+      case ContradictionKind =>
+        val clause = readClause().asInstanceOf[ContradictionClause]
+        new ContradictionLeaf(CNF(clause), clause, readBoolean())
+      case UnitKind =>
+        val clause = readClause().asInstanceOf[UnitClause]
+        new UnitLeaf(CNF(clause), clause, readBoolean())
+      case SmoothingKind => new SmoothingNode(readClause().asInstanceOf[PositiveUnitClause])
+      case kind => throw new IllegalArgumentException(s"Unknown node kind $kind")
+    }
+
+  }
+
+}
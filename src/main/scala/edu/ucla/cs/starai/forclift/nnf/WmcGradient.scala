@@ -0,0 +1,349 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf
+
+import scala.annotation.switch
+import scala.collection.mutable
+
+import edu.ucla.cs.starai.forclift.Predicate
+import edu.ucla.cs.starai.forclift.inference.DomainSizes
+import edu.ucla.cs.starai.forclift.inference.PredicateWeights
+import edu.ucla.cs.starai.forclift.util.Binomial
+import edu.ucla.cs.starai.forclift.util.LogDouble
+
+/**
+ * The weighted model count of a circuit together with its derivatives with
+ * respect to the logarithms of all predicate weights.
+ *
+ * The derivative of log WMC towards the logarithm of the positive weight of
+ * a predicate is the expected number of true groundings of that predicate,
+ * and towards its negative weight the expected number of false groundings.
+ * For the partition function of a theory, these are the expected counts that
+ * weight learning needs for its gradient, and, for predicates whose
+ * groundings are exchangeable, their marginals.
+ */
+final class WmcGradient private (
+  val logWmc: LogDouble,
+  val predicates: IndexedSeq[Predicate],
+  posDerivatives: Array[Double],
+  negDerivatives: Array[Double]) {
+
+  private[this] val slots = predicates.zipWithIndex.toMap
+
+  /** The expected number of true groundings of the given predicate. */
+  def expectedTrueGroundings(predicate: Predicate): Double = slots.get(predicate).map { posDerivatives(_) }.getOrElse(0.0)
+
+  /** The expected number of false groundings of the given predicate. */
+  def expectedFalseGroundings(predicate: Predicate): Double = slots.get(predicate).map { negDerivatives(_) }.getOrElse(0.0)
+
+  /**
+   * The probability that a grounding of the given predicate is true,
+   * assuming that its groundings are exchangeable.
+   */
+  def marginal(predicate: Predicate): Double = {
+    val expectedTrue = expectedTrueGroundings(predicate)
+    expectedTrue / (expectedTrue + expectedFalseGroundings(predicate))
+  }
+
+}
+
+object WmcGradient {
+
+  /**
+   * Whether the derivatives of the given circuit can be computed: it has no
+   * nodes that are evaluated by the visitor, such as grounding nodes.
+   */
+  def supports(circuit: FlatCircuit): Boolean = !circuit.kinds.contains(FlatCircuit.VisitorKind)
+
+  /**
+   * Computes the weighted model count of the given circuit and its
+   * derivatives by reverse-mode differentiation.
+   *
+   * The upward pass evaluates the circuit like FlatCircuit.wmc, and records
+   * every evaluation of a node, with the records of its children, on a tape.
+   * Counting nodes evaluate their child once for every split of their domain,
+   * so one node can have many records. Cached children share their record
+   * between all parents. The downward pass walks the tape backwards and
+   * accumulates the derivative of log WMC towards the logarithm of every
+   * record, which reaches the leaves and thereby the weights.
+   */
+  def apply(circuit: FlatCircuit, domainSizes: DomainSizes, predicateWeights: PredicateWeights): WmcGradient = {
+    require(circuit.supports(predicateWeights), "Gradients are only supported for non-negative weights")
+    if (!supports(circuit)) {
+      throw new UnsupportedOperationException("Cannot differentiate circuits with nodes that are evaluated by the visitor")
+    }
+    val tape = new Tape(circuit, domainSizes, predicateWeights)
+    val root = tape.eval(0)
+    val (posDerivatives, negDerivatives) = tape.backward(root)
+    new WmcGradient(LogDouble.fromLog(tape.value(root)), circuit.predicates, posDerivatives, negDerivatives)
+  }
+
+  // logarithms of zero and one
+  private final val Zero = Double.NegativeInfinity
+  private final val One = 0.0
+
+  private final class Tape(circuit: FlatCircuit, domainSizes: DomainSizes, predicateWeights: PredicateWeights) {
+
+    import FlatCircuit._
+    import circuit._
+
+    private[this] val sizes = sizesOf(domainSizes)
+    private[this] val posW = logWeightsOf(predicateWeights, true, false)
+    private[this] val negW = logWeightsOf(predicateWeights, false, true)
+    private[this] val negWPlusPosW = logWeightsOf(predicateWeights, true, true)
+
+    // the records of the node evaluations, in the order in which they finished
+    private[this] var nodes = new Array[Int](64)
+    private[this] var values = new Array[Double](64)
+    // number of groundings of leaves, domain size of first-order nodes
+    private[this] var counts = new Array[Int](64)
+    private[this] var firstChildren = new Array[Int](65)
+    private[this] var nbRecords = 0
+
+    // the records of the children, with the logarithm of the binomial
+    // coefficient for the children of counting nodes
+    private[this] var children = new Array[Int](64)
+    private[this] var coefficients = new Array[Double](64)
+    private[this] var nbChildren = 0
+
+    // the records of cached nodes by the sizes of their domains
+    private[this] val caches = new Array[mutable.LongMap[Int]](nbNodes)
+
+    def value(record: Int): Double = values(record)
+
+    private def addChild(record: Int, coefficient: Double) {
+      if (nbChildren == children.length) {
+        children = java.util.Arrays.copyOf(children, 2 * nbChildren)
+        coefficients = java.util.Arrays.copyOf(coefficients, 2 * nbChildren)
+      }
+      children(nbChildren) = record
+      coefficients(nbChildren) = coefficient
+      nbChildren += 1
+    }
+
+    // the children of the new record must be added right before
+    private def addRecord(node: Int, value: Double, count: Int): Int = {
+      if (nbRecords == nodes.length) {
+        nodes = java.util.Arrays.copyOf(nodes, 2 * nbRecords)
+        values = java.util.Arrays.copyOf(values, 2 * nbRecords)
+        counts = java.util.Arrays.copyOf(counts, 2 * nbRecords)
+        firstChildren = java.util.Arrays.copyOf(firstChildren, 2 * nbRecords + 1)
+      }
+      nodes(nbRecords) = node
+      values(nbRecords) = value
+      counts(nbRecords) = count
+      firstChildren(nbRecords + 1) = nbChildren
+      nbRecords += 1
+      nbRecords - 1
+    }
+
+    private def logAdd(a: Double, b: Double): Double = (LogDouble.fromLog(a) + LogDouble.fromLog(b)).logToDouble
+
+    private def logSubtract(a: Double, b: Double): Double = (LogDouble.fromLog(a) - LogDouble.fromLog(b)).logToDouble
+
+    /** Evaluates the given node and returns its record. */
+    def eval(node: Int): Int = {
+      // the children of a record are added after all of them are evaluated,
+      // so that they directly follow those of the previous record
+      (kinds(node): @switch) match {
+        case TrueKind => addRecord(node, One, 0)
+        case FalseKind => addRecord(node, Zero, 0)
+        case PositiveUnitKind => {
+          val n = nbGroundings(sizes, node)
+          addRecord(node, if (n == 0) One else posW(predicateSlots(node)) * n, n)
+        }
+        case NegativeUnitKind => {
+          val n = nbGroundings(sizes, node)
+          addRecord(node, if (n == 0) One else negW(predicateSlots(node)) * n, n)
+        }
+        case SmoothingKind => {
+          val n = nbGroundings(sizes, node)
+          addRecord(node, negWPlusPosW(predicateSlots(node)) * n, n)
+        }
+        case ContradictionKind => {
+          addRecord(node, if (hasConstraintSolution(sizes, groundings(node))) Zero else One, 0)
+        }
+        case AndKind => {
+          val l = evalCached(child1(node))
+          if (values(l) == Zero) {
+            addChild(l, 0)
+            addRecord(node, Zero, 0)
+          } else {
+            val r = evalCached(child2(node))
+            addChild(l, 0)
+            addChild(r, 0)
+            addRecord(node, values(l) + values(r), 0)
+          }
+        }
+        case OrKind => {
+          val l = eval(child1(node))
+          val r = eval(child2(node))
+          addChild(l, 0)
+          addChild(r, 0)
+          addRecord(node, logAdd(values(l), values(r)), 0)
+        }
+        case InclusionExclusionKind => {
+          val plus1 = eval(child1(node))
+          val plus2 = eval(child2(node))
+          val min = eval(child3(node))
+          addChild(plus1, 0)
+          addChild(plus2, 0)
+          addChild(min, 0)
+          addRecord(node, logSubtract(logAdd(values(plus1), values(plus2)), values(min)), 0)
+        }
+        case ForallKind => {
+          val child = evalCached(child1(node))
+          val n = size(sizes, sizeSlots(node), sizeOffsets(node))
+          addChild(child, 0)
+          addRecord(node, if (n == 0) One else values(child) * n, n)
+        }
+        case ExistsKind => {
+          val maxSize = size(sizes, sizeSlots(node), sizeOffsets(node))
+          val subdomain = subdomainSlots(node)
+          val complement = complementSlots(node)
+          val oldSubdomainSize = sizes(subdomain)
+          val oldComplementSize = sizes(complement)
+          val childRecords = new Array[Int](maxSize + 1)
+          val childValues = new Array[Double](maxSize + 1)
+          var nbTrue = 0
+          while (nbTrue <= maxSize) {
+            sizes(subdomain) = nbTrue
+            sizes(complement) = maxSize - nbTrue
+            childRecords(nbTrue) = eval(child1(node))
+            childValues(nbTrue) = values(childRecords(nbTrue))
+            nbTrue += 1
+          }
+          sizes(subdomain) = oldSubdomainSize
+          sizes(complement) = oldComplementSize
+          nbTrue = 0
+          while (nbTrue <= maxSize) {
+            addChild(childRecords(nbTrue), Binomial.logCoeff(maxSize, nbTrue))
+            nbTrue += 1
+          }
+          addRecord(node, Binomial.logSum(maxSize, childValues, 0), maxSize)
+        }
+        case DomainRecursionKind => {
+          val maxSize = size(sizes, sizeSlots(node), sizeOffsets(node))
+          if (maxSize < 1) addRecord(node, One, maxSize)
+          else {
+            val groundChild = eval(child1(node))
+            val childChild = eval(child2(node))
+            addChild(groundChild, 0)
+            addChild(childChild, 0)
+            val value = values(groundChild) * maxSize + values(childChild) * ((maxSize * (maxSize - 1)) / 2)
+            addRecord(node, value, maxSize)
+          }
+        }
+      }
+    }
+
+    private def evalCached(node: Int): Int = {
+      val key = cacheKey(sizes, node)
+      if (key < 0) eval(node)
+      else {
+        var cache = caches(node)
+        if (cache == null) {
+          cache = new mutable.LongMap[Int]
+          caches(node) = cache
+        }
+        cache.getOrElse(key, {
+          val record = eval(node)
+          cache.update(key, record)
+          record
+        })
+      }
+    }
+
+    /**
+     * Accumulates the derivatives of log WMC towards the logarithms of all
+     * records, from the given root down, and returns the derivatives towards
+     * the logarithms of the positive and negative weights.
+     */
+    def backward(root: Int): (Array[Double], Array[Double]) = {
+      val posDerivatives = new Array[Double](predicates.size)
+      val negDerivatives = new Array[Double](predicates.size)
+      val derivatives = new Array[Double](nbRecords)
+      derivatives(root) = 1.0
+      var record = root
+      while (record >= 0) {
+        val derivative = derivatives(record)
+        val value = values(record)
+        // records of zero weight do not contribute to the count
+        if (derivative != 0 && value != Zero) {
+          val node = nodes(record)
+          val first = firstChildren(record)
+          val last = firstChildren(record + 1)
+          (kinds(node): @switch) match {
+            case PositiveUnitKind => {
+              posDerivatives(predicateSlots(node)) += derivative * counts(record)
+            }
+            case NegativeUnitKind => {
+              negDerivatives(predicateSlots(node)) += derivative * counts(record)
+            }
+            case SmoothingKind => if (counts(record) > 0) {
+              val slot = predicateSlots(node)
+              val n = derivative * counts(record)
+              posDerivatives(slot) += n * math.exp(posW(slot) - negWPlusPosW(slot))
+              negDerivatives(slot) += n * math.exp(negW(slot) - negWPlusPosW(slot))
+            }
+            case AndKind => {
+              var i = first
+              while (i < last) {
+                derivatives(children(i)) += derivative
+                i += 1
+              }
+            }
+            case OrKind => {
+              var i = first
+              while (i < last) {
+                derivatives(children(i)) += derivative * math.exp(values(children(i)) - value)
+                i += 1
+              }
+            }
+            case InclusionExclusionKind => {
+              derivatives(children(first)) += derivative * math.exp(values(children(first)) - value)
+              derivatives(children(first + 1)) += derivative * math.exp(values(children(first + 1)) - value)
+              derivatives(children(first + 2)) -= derivative * math.exp(values(children(first + 2)) - value)
+            }
+            case ForallKind => {
+              derivatives(children(first)) += derivative * counts(record)
+            }
+            case ExistsKind => {
+              var i = first
+              while (i < last) {
+                derivatives(children(i)) += derivative * math.exp(coefficients(i) + values(children(i)) - value)
+                i += 1
+              }
+            }
+            case DomainRecursionKind => {
+              if (last > first) {
+                val maxSize = counts(record)
+                derivatives(children(first)) += derivative * maxSize
+                derivatives(children(first + 1)) += derivative * ((maxSize * (maxSize - 1)) / 2)
+              }
+            }
+            case _ =>
+          }
+        }
+        record -= 1
+      }
+      (posDerivatives, negDerivatives)
+    }
+
+  }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf.visitors
+
+import scala.collection.mutable
+
+import edu.ucla.cs.starai.forclift.Predicate
+import edu.ucla.cs.starai.forclift.inference.DomainSizes
+import edu.ucla.cs.starai.forclift.inference.PredicateWeights
+import edu.ucla.cs.starai.forclift.inference.WeightedCNF
+import edu.ucla.cs.starai.forclift.inference.Weights
+import edu.ucla.cs.starai.forclift.nnf._
+import edu.ucla.cs.starai.forclift.util.Binomial
+import edu.ucla.cs.starai.forclift.util.LogDouble
+import edu.ucla.cs.starai.forclift.util.LogSumExp
+
+/**
+ * Evaluates a circuit under K non-negative weight functions in one
+ * traversal, as when a line search or a parameter sweep evaluates the same
+ * circuit under many weights.
+ *
+ * Every node yields an array of K logarithms of weights, one for every
+ * weight function. The structural work of a node, such as its number of
+ * groundings, its domain sizes and its binomial coefficients, is done once
+ * for all K weight functions, and the arithmetic on the K values is a plain
+ * loop over arrays. Like CachingLogDoubleWmc, the arrays of the children of
+ * And and Forall nodes are cached by the sizes of their domains.
+ *
+ * The returned arrays are shared with the cache and must not be changed.
+ */
+class BatchLogDoubleWmc(val predicateWeights: IndexedSeq[PredicateWeights]) extends NnfVisitor[DomainSizes, Array[Double]] {
+
+  import BatchLogDoubleWmc._
+
+  private[this] val k = predicateWeights.size
+
+  private[this] val posWs = new mutable.HashMap[Predicate, Array[Double]]
+  private[this] val negWs = new mutable.HashMap[Predicate, Array[Double]]
+  private[this] val negWPlusPosWs = new mutable.HashMap[Predicate, Array[Double]]
+
+  // by node id, then by packed domain sizes
+  private[this] val cache = new mutable.LongMap[mutable.LongMap[Array[Double]]]
+
+  def wmc(nnf: NNFNode, domainSizes: DomainSizes): IndexedSeq[LogDouble] = {
+    cache.clear()
+    visit(nnf, domainSizes).map { LogDouble.fromLog(_) }.toIndexedSeq
+  }
+
+  private def logWeights(predicate: Predicate, logWeights: mutable.HashMap[Predicate, Array[Double]],
+    weight: Weights => LogDouble): Array[Double] = {
+    logWeights.getOrElseUpdate(predicate, predicateWeights.map { w => weight(w(predicate)).logToDouble }.toArray)
+  }
+
+  private def constant(logWeight: Double): Array[Double] = Array.fill(k)(logWeight)
+
+  private def pow(logWeights: Array[Double], exp: Int): Array[Double] = {
+    val result = new Array[Double](k)
+    var i = 0
+    while (i < k) {
+      result(i) = logWeights(i) * exp
+      i += 1
+    }
+    result
+  }
+
+  private def retrieveWmc(node: NNFNode, domainSizes: DomainSizes): Array[Double] = {
+    if (node.evalOrder == 0) visit(node, domainSizes)
+    else {
+      val key = WmcCache.pack(node.orderedDomains, domainSizes)
+      if (key < 0) visit(node, domainSizes)
+      else {
+        val nodeCache = cache.getOrElseUpdate(node.id, new mutable.LongMap[Array[Double]])
+        nodeCache.getOrElse(key, {
+          val childWeights = visit(node, domainSizes)
+          nodeCache.update(key, childWeights)
+          childWeights
+        })
+      }
+    }
+  }
+
+  protected def visitDomainRecursion(dr: DomainRecursionNode, domainSizes: DomainSizes): Array[Double] = {
+    val maxSize = dr.domain.size(domainSizes, dr.ineqs)
+    if (maxSize < 1) constant(One)
+    else {
+      val groundChildWmc = visit(dr.groundChild, domainSizes)
+      val childChildWmc = visit(dr.mixedChild.child, domainSizes)
+      val childChildExp = (maxSize * (maxSize - 1)) / 2
+      val result = new Array[Double](k)
+      var i = 0
+      while (i < k) {
+        result(i) = groundChildWmc(i) * maxSize + childChildWmc(i) * childChildExp
+        i += 1
+      }
+      result
+    }
+  }
+
+  protected def visitExists(exists: CountingNode, domainSizes: DomainSizes): Array[Double] = {
+    val maxSize = exists.domain.size(domainSizes, exists.excludedConstants)
+    val sums = Array.fill(k)(new LogSumExp)
+    for (nbTrue <- 0 to maxSize) {
+      val newDomainSizes = (domainSizes
+        + (exists.subdomain, nbTrue)
+        + (exists.subdomain.complement, (maxSize - nbTrue)))
+      val childWmc = visit(exists.child, newDomainSizes)
+      val binomialCoeff = Binomial.logCoeff(maxSize, nbTrue)
+      var i = 0
+      while (i < k) {
+        sums(i).add(binomialCoeff + childWmc(i))
+        i += 1
+      }
+    }
+    sums.map { _.logSum }
+  }
+
+  protected def visitForallNode(forall: IndependentPartialGroundingNode, domainSizes: DomainSizes): Array[Double] = {
+    val childWmc = retrieveWmc(forall.child, domainSizes)
+    val nbGroundings = forall.d.size(domainSizes, forall.ineqs)
+    if (nbGroundings == 0) constant(One)
+    else pow(childWmc, nbGroundings)
+  }
+
+  protected def visitInclusionExclusionNode(ie: InclusionExclusion, domainSizes: DomainSizes): Array[Double] = {
+    val plus1Wmc = visit(ie.plus1, domainSizes)
+    val plus2Wmc = visit(ie.plus2, domainSizes)
+    val minWmc = visit(ie.min, domainSizes)
+    val result = new Array[Double](k)
+    var i = 0
+    while (i < k) {
+      result(i) = logSubtract(logAdd(plus1Wmc(i), plus2Wmc(i)), minWmc(i))
+      i += 1
+    }
+    result
+  }
+
+  protected def visitOrNode(or: Or, domainSizes: DomainSizes): Array[Double] = {
+    val lWmc = visit(or.l, domainSizes)
+    val rWmc = visit(or.r, domainSizes)
+    val result = new Array[Double](k)
+    var i = 0
+    while (i < k) {
+      result(i) = logAdd(lWmc(i), rWmc(i))
+      i += 1
+    }
+    result
+  }
+
+  protected def visitAndNode(and: And, domainSizes: DomainSizes): Array[Double] = {
+    val lWmc = retrieveWmc(and.l, domainSizes)
+    if (lWmc.forall { _ == Zero }) lWmc
+    else {
+      val rWmc = retrieveWmc(and.r, domainSizes)
+      val result = new Array[Double](k)
+      var i = 0
+      while (i < k) {
+        result(i) = if (lWmc(i) == Zero) Zero else lWmc(i) + rWmc(i)
+        i += 1
+      }
+      result
+    }
+  }
+
+  protected def visitRefNode(ref: Ref, domainSizes: DomainSizes): Array[Double] = {
+    visit(ref.nnfNode, domainSizes)
+  }
+
+  protected def visitSmoothingNode(leaf: SmoothingNode, domainSizes: DomainSizes): Array[Double] = {
+    val weights = logWeights(leaf.clause.atom.predicate, negWPlusPosWs, _.negWPlusPosWLogDouble)
+    pow(weights, leaf.clause.nbGroundings(domainSizes))
+  }
+
+  protected def visitContradictionLeaf(leaf: ContradictionLeaf, domainSizes: DomainSizes): Array[Double] = {
+    val hasSolution = leaf.clause.hasConstraintSolution(domainSizes)
+    //if the clause has no groundings, it resolves to true
+    constant(if (hasSolution) Zero else One)
+  }
+
+  protected def visitUnitLeaf(leaf: UnitLeaf, domainSizes: DomainSizes): Array[Double] = {
+    val nbGroundings = leaf.clause.nbGroundings(domainSizes)
+    //if the unit clause has no groundings, it resolves to true
+    if (nbGroundings == 0) constant(One)
+    else {
+      val predicate = leaf.clause.atom.predicate
+      val weights = {
+        if (leaf.positive) logWeights(predicate, posWs, _.posWLogDouble)
+        else logWeights(predicate, negWs, _.negWLogDouble)
+      }
+      pow(weights, nbGroundings)
+    }
+  }
+
+  protected def visitGroundingNode(leaf: GroundingNode, domainSizes: DomainSizes): Array[Double] = {
+    predicateWeights.map { weights =>
+      val logWmc = WeightedCNF(leaf.cnf, domainSizes, weights).logPropWmc.toLogDouble
+      assume(!logWmc.isNaN)
+      logWmc.logToDouble
+    }.toArray
+  }
+
+  protected def visitFalse(domainSizes: DomainSizes): Array[Double] = constant(Zero)
+  protected def visitTrue(domainSizes: DomainSizes): Array[Double] = constant(One)
+
+}
+
+object BatchLogDoubleWmc {
+
+  // logarithms of zero and one
+  private final val Zero = Double.NegativeInfinity
+  private final val One = 0.0
+
+  @inline private def logAdd(a: Double, b: Double): Double = {
+    (LogDouble.fromLog(a) + LogDouble.fromLog(b)).logToDouble
+  }
+
+  @inline private def logSubtract(a: Double, b: Double): Double = {
+    (LogDouble.fromLog(a) - LogDouble.fromLog(b)).logToDouble
+  }
+
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf.visitors
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.RecursiveTask
+
+import edu.ucla.cs.starai.forclift.Domain
+import edu.ucla.cs.starai.forclift.inference.DomainSizes
+import edu.ucla.cs.starai.forclift.inference.PredicateWeights
+import edu.ucla.cs.starai.forclift.nnf._
+import edu.ucla.cs.starai.forclift.util.Binomial
+import edu.ucla.cs.starai.forclift.util.LogDouble
+import edu.ucla.cs.starai.forclift.util.LogSumExp
+import edu.ucla.cs.starai.forclift.util.SignLogDouble
+
+object ParallelWmc {
+
+  /**
+   * The estimated number of operations below which a subcircuit is not worth
+   * a task of its own and is evaluated on the current thread.
+   */
+  @volatile var threshold: Double = 10000
+
+  private[this] var pools = Map.empty[Int, ForkJoinPool]
+
+  /** One pool per level of parallelism, shared by all parallel visitors. */
+  def pool(parallelism: Int): ForkJoinPool = synchronized {
+    pools.getOrElse(parallelism, {
+      val pool = new ForkJoinPool(parallelism)
+      pools += (parallelism -> pool)
+      pool
+    })
+  }
+
+}
+
+/**
+ * Fork/join evaluation of a circuit. The children of And, Or and inclusion-
+ * exclusion nodes are evaluated in parallel, and so are the terms of the sum
+ * of a counting node, as long as the estimated cost of a subcircuit exceeds
+ * `ParallelWmc.threshold`. The cost of a subcircuit is its size times the
+ * largest of its domain sizes to the power of its evaluation order.
+ */
+trait ParallelWmc {
+
+  def parallelism: Int
+
+  private[this] lazy val pool = ParallelWmc.pool(parallelism)
+
+  // sizes are recomputed recursively by the nodes
+  private[this] val sizes = new ConcurrentHashMap[NNFNode, Integer]
+
+  protected def cost(node: NNFNode, domainSizes: DomainSizes): Double = {
+    var size = sizes.get(node)
+    if (size == null) {
+      size = node.size + 1
+      sizes.put(node, size)
+    }
+    var maxDomainSize = 1
+    for (domain <- node.orderedDomains) {
+      val domainSize = domainSizes.get(domain)
+      if (domainSize.nonEmpty) maxDomainSize = maxDomainSize max domainSize.get.size
+    }
+    size.intValue * math.pow(maxDomainSize, node.evalOrder)
+  }
+
+  protected def shouldFork(cost: Double): Boolean = {
+    cost >= ParallelWmc.threshold && (ForkJoinTask.getPool eq pool)
+  }
+
+  protected def fork[T](body: => T): ForkJoinTask[T] = {
+    new RecursiveTask[T] {
+      def compute = body
+    }.fork()
+  }
+
+  /**
+   * Runs the given evaluation in the pool of this visitor, unless it already
+   * runs there. An evaluation that runs in another fork/join pool, such as
+   * that of Scala futures, is moved to this pool as well.
+   */
+  protected def inPool[T](body: => T): T = {
+    if (ForkJoinTask.getPool eq pool) body
+    else pool.invoke(new RecursiveTask[T] {
+      def compute = body
+    })
+  }
+
+}
+
+protected class ParallelLogDoubleWmc(val parallelism: Int) extends LogDoubleWmc with ParallelWmc {
+
+  import edu.ucla.cs.starai.forclift.util.LogDouble._
+  import NnfVisitorCache._
+
+  // concurrent counterpart of the cache of CachingLogDoubleWmc, holding logarithms
+  val cache = new ConcurrentHashMap[Key, java.lang.Double]
+
+  override def wmc(nnf: NNFNode, domainSizes: DomainSizes, predicateWeights: PredicateWeights): SignLogDouble = {
+    cache.clear()
+    inPool { visit(nnf, (domainSizes, predicateWeights)) }
+  }
+
+  override protected def visitExists(exists: CountingNode, params: (DomainSizes, PredicateWeights)): LogDouble = {
+    val (domainSizes, predicateWeights) = params
+    val maxSize = exists.domain.size(domainSizes, exists.excludedConstants)
+    val termCost = cost(exists.child, domainSizes)
+    def term(nbTrue: Int): LogDouble = {
+      val newDomainSizes = (domainSizes
+        + (exists.subdomain, nbTrue)
+        + (exists.subdomain.complement, (maxSize - nbTrue)))
+      val childWeight = visit(exists.child, (newDomainSizes, predicateWeights))
+      Binomial.coeff(maxSize, nbTrue) * childWeight
+    }
+    // splits the range of terms in halves until they are too cheap to fork
+    def sum(from: Int, to: Int): LogDouble = {
+      if (from == to || !shouldFork(termCost * (to - from + 1))) {
+        val logWeight = new LogSumExp
+        for (nbTrue <- from to to) {
+          logWeight.add(term(nbTrue).logToDouble)
+        }
+        LogDouble.fromLog(logWeight.logSum)
+      } else {
+        val middle = (from + to) / 2
+        val upper = fork { sum(middle + 1, to) }
+        val lower = sum(from, middle)
+        lower + upper.join()
+      }
+    }
+    sum(0, maxSize)
+  }
+
+  override protected def visitInclusionExclusionNode(ie: InclusionExclusion, params: (DomainSizes, PredicateWeights)): LogDouble = {
+    if (!shouldFork(cost(ie, params._1))) super.visitInclusionExclusionNode(ie, params)
+    else {
+      val plus2Task = fork { visit(ie.plus2, params) }
+      val minTask = fork { visit(ie.min, params) }
+      val plus1lwmc = visit(ie.plus1, params)
+      val minlwmc = minTask.join()
+      val plus2lwmc = plus2Task.join()
+      plus1lwmc + plus2lwmc - minlwmc
+    }
+  }
+
+  override protected def visitOrNode(or: Or, params: (DomainSizes, PredicateWeights)): LogDouble = {
+    if (!shouldFork(cost(or, params._1))) super.visitOrNode(or, params)
+    else {
+      val rTask = fork { visit(or.r, params) }
+      val llwmcc = visit(or.l, params)
+      llwmcc + rTask.join()
+    }
+  }
+
+  // only decomposition nodes can reduce the number of relevant domains!
+
+  override protected def visitAndNode(and: And, params: (DomainSizes, PredicateWeights)): LogDouble = {
+    if (!shouldFork(cost(and, params._1))) {
+      val llwmcc = retrieveWmc(and.l, params)
+      if (llwmcc.isZero) zero
+      else {
+        val rlwmcc = retrieveWmc(and.r, params)
+        llwmcc * rlwmcc
+      }
+    } else {
+      val rTask = fork { retrieveWmc(and.r, params) }
+      val llwmcc = retrieveWmc(and.l, params)
+      if (llwmcc.isZero) {
+        // the right child is not needed; it is dropped unless it already
+        // started, in which case it is awaited so that no task outlives the
+        // evaluation
+        if (!rTask.tryUnfork()) rTask.join()
+        zero
+      } else {
+        llwmcc * rTask.join()
+      }
+    }
+  }
+
+  override protected def visitForallNode(forall: IndependentPartialGroundingNode, params: (DomainSizes, PredicateWeights)): LogDouble = {
+    val (domainSizes, predicateWeights) = params
+    val childlwmc = retrieveWmc(forall.child, params)
+    val nbGroundings = forall.d.size(domainSizes, forall.ineqs)
+    if (nbGroundings == 0) {
+      one
+    } else {
+      childlwmc.pow(nbGroundings)
+    }
+  }
+
+  private def retrieveWmc(node: NNFNode, params: (DomainSizes, PredicateWeights)): LogDouble = {
+    if (node.evalOrder == 0) {
+      // there is no point in caching if the computation is O(1)
+      visit(node, params)
+    } else {
+      val domains: IndexedSeq[Domain] = node.orderedDomains
+      val (domainSizes, predicateWeights) = params
+      val key = new Key(node, domains.map(domainSizes(_).size))
+      val result = cache.get(key)
+      if (result != null) {
+        addHit()
+        fromLog(result)
+      } else {
+        // two threads may compute the same weight, which is harmless
+        addMiss()
+        val childWeight = visit(node, params)
+        cache.put(key, childWeight.logToDouble)
+        childWeight
+      }
+    }
+  }
+
+}
+
+protected class ParallelSignLogDoubleWmc(val parallelism: Int) extends SignLogDoubleWmc with ParallelWmc {
+
+  import edu.ucla.cs.starai.forclift.util.SignLogDouble._
+  import NnfVisitorCache._
+
+  // concurrent counterpart of the cache of CachingSignLogDoubleWmc
+  val cache = new ConcurrentHashMap[Key, SignLogDouble]
+
+  override def wmc(nnf: NNFNode, domainSizes: DomainSizes, predicateWeights: PredicateWeights): SignLogDouble = {
+    cache.clear()
+    inPool { visit(nnf, (domainSizes, predicateWeights)) }
+  }
+
+  override protected def visitExists(exists: CountingNode, params: (DomainSizes, PredicateWeights)): SignLogDouble = {
+    val (domainSizes, predicateWeights) = params
+    val maxSize: Int = exists.domain.size(domainSizes, exists.excludedConstants)
+    val termCost = cost(exists.child, domainSizes)
+    def term(nbTrue: Int): SignLogDouble = {
+      val newDomainSizes = (domainSizes
+        + (exists.subdomain, nbTrue)
+        + (exists.subdomain.complement, (maxSize - nbTrue)))
+      val childWeight = visit(exists.child, (newDomainSizes, predicateWeights))
+      Binomial.coeff(maxSize, nbTrue).toSignDouble * childWeight
+    }
+    // splits the range of terms in halves until they are too cheap to fork
+    def sum(from: Int, to: Int): SignLogDouble = {
+      if (from == to || !shouldFork(termCost * (to - from + 1))) {
+        var logWeight = zero
+        for (nbTrue <- from to to) {
+          logWeight += term(nbTrue)
+        }
+        logWeight
+      } else {
+        val middle = (from + to) / 2
+        val upper = fork { sum(middle + 1, to) }
+        val lower = sum(from, middle)
+        lower + upper.join()
+      }
+    }
+    sum(0, maxSize)
+  }
+
+  override protected def visitInclusionExclusionNode(ie: InclusionExclusion, params: (DomainSizes, PredicateWeights)): SignLogDouble = {
+    if (!shouldFork(cost(ie, params._1))) super.visitInclusionExclusionNode(ie, params)
+    else {
+      val plus2Task = fork { visit(ie.plus2, params) }
+      val minTask = fork { visit(ie.min, params) }
+      val plus1lwmc = visit(ie.plus1, params)
+      val minlwmc = minTask.join()
+      val plus2lwmc = plus2Task.join()
+      plus1lwmc + plus2lwmc - minlwmc
+    }
+  }
+
+  override protected def visitOrNode(or: Or, params: (DomainSizes, PredicateWeights)): SignLogDouble = {
+    if (!shouldFork(cost(or, params._1))) super.visitOrNode(or, params)
+    else {
+      val rTask = fork { visit(or.r, params) }
+      val llwmcc = visit(or.l, params)
+      llwmcc + rTask.join()
+    }
+  }
+
+  // only decomposition nodes can reduce the number of relevant domains!
+
+  override protected def visitAndNode(and: And, params: (DomainSizes, PredicateWeights)): SignLogDouble = {
+    if (!shouldFork(cost(and, params._1))) {
+      val llwmcc = retrieveWmc(and.l, params)
+      if (llwmcc.isZero) zero
+      else {
+        val rlwmcc = retrieveWmc(and.r, params)
+        llwmcc * rlwmcc
+      }
+    } else {
+      val rTask = fork { retrieveWmc(and.r, params) }
+      val llwmcc = retrieveWmc(and.l, params)
+      if (llwmcc.isZero) {
+        // the right child is not needed; it is dropped unless it already
+        // started, in which case it is awaited so that no task outlives the
+        // evaluation
+        if (!rTask.tryUnfork()) rTask.join()
+        zero
+      } else {
+        llwmcc * rTask.join()
+      }
+    }
+  }
+
+  override protected def visitForallNode(forall: IndependentPartialGroundingNode,
+      params: (DomainSizes, PredicateWeights)): SignLogDouble = {
+    val (domainSizes, predicateWeights) = params
+    val childlwmc = retrieveWmc(forall.child, params)
+    val nbGroundings = forall.d.size(domainSizes, forall.ineqs)
+    if (nbGroundings == 0) {
+      one
+    } else {
+      childlwmc.pow(nbGroundings)
+    }
+  }
+
+  private def retrieveWmc(node: NNFNode, params: (DomainSizes, PredicateWeights)): SignLogDouble = {
+    if (node.evalOrder == 0) {
+      // there is no point in caching if the computation is O(1)
+      visit(node, params)
+    } else {
+      val domains: IndexedSeq[Domain] = node.orderedDomains
+      val (domainSizes, predicateWeights) = params
+      val key = new Key(node, domains.map(domainSizes(_).size))
+      val result = cache.get(key)
+      if (result != null) {
+        addHit()
+        result
+      } else {
+        // two threads may compute the same weight, which is harmless
+        addMiss()
+        val childWeight = visit(node, params)
+        cache.put(key, childWeight)
+        childWeight
+      }
+    }
+  }
+
+}
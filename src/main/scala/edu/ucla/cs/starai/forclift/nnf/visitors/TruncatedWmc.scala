@@ -0,0 +1,395 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf.visitors
+
+import scala.collection.mutable
+
+import edu.ucla.cs.starai.forclift.inference.DomainSizes
+import edu.ucla.cs.starai.forclift.inference.PredicateWeights
+import edu.ucla.cs.starai.forclift.nnf._
+import edu.ucla.cs.starai.forclift.util.Binomial
+import edu.ucla.cs.starai.forclift.util.LogDouble
+import edu.ucla.cs.starai.forclift.util.LogSumExp
+
+/**
+ * An estimate of a weighted model count, see TruncatedWmc: the count
+ * without the terms that were skipped, and the count with an extrapolation
+ * of those terms.
+ */
+final case class WmcEstimate(truncated: LogDouble, extrapolated: LogDouble) {
+
+  /**
+   * The estimated relative error of the truncated count.
+   */
+  def relativeError: Double = {
+    if (extrapolated <= truncated) 0.0
+    else if (truncated.isZero) Double.PositiveInfinity
+    else math.expm1(extrapolated.logToDouble - truncated.logToDouble)
+  }
+
+  def isExact = (extrapolated <= truncated)
+
+  def + (that: WmcEstimate) = WmcEstimate(truncated + that.truncated, extrapolated + that.extrapolated)
+
+  def * (that: WmcEstimate) = WmcEstimate(truncated * that.truncated, extrapolated * that.extrapolated)
+
+  def pow(exp: Int) = WmcEstimate(truncated.pow(exp), extrapolated.pow(exp))
+
+  override def toString = s"[$truncated, $extrapolated]"
+
+}
+
+object WmcEstimate {
+
+  def exact(wmc: LogDouble) = WmcEstimate(wmc, wmc)
+
+  val zero = exact(LogDouble.zero)
+
+  val one = exact(LogDouble.one)
+
+}
+
+/**
+ * Estimates the weighted model count of a circuit with non-negative weights
+ * by truncating the sums of its counting nodes.
+ *
+ * A counting node sums over the number of true groundings nbTrue. This
+ * visitor first evaluates a few terms spread over all values of nbTrue. When
+ * these are log-concave, it finds the dominant term by bisection next to the
+ * largest of them, evaluates terms outward from it and stops as soon as the
+ * skipped terms are estimated to add up to at most a tolerance times the
+ * evaluated terms. The skipped terms are extrapolated geometrically from the
+ * last two terms on each side, which overestimates them when all terms are
+ * log-concave in nbTrue, such as binomial coefficients times weights that
+ * are exponential in nbTrue. Terms that are found not to be log-concave are
+ * all evaluated.
+ *
+ * This is a heuristic: log-concavity is only checked on the terms that are
+ * evaluated, so a skipped term can be larger than its extrapolation. The
+ * result is therefore an estimate and not a bound. Its truncated count
+ * leaves out the skipped terms, which makes it a lower bound for circuits
+ * without inclusion-exclusion nodes, and its extrapolated count adds the
+ * extrapolated terms.
+ *
+ * The errors of the sums compound through products, powers and nested
+ * counting nodes, so the estimate of the whole count can miss the given
+ * tolerance. The circuit is then evaluated exactly instead. The terms of the
+ * sums that were exact are kept from the truncated evaluation, so no such
+ * term is evaluated twice and the exact evaluation only redoes the sums that
+ * were truncated. The truncated and exact evaluations together therefore do
+ * about the work of a single exact evaluation. They do not redo several
+ * rounds of truncated evaluations with ever smaller tolerances.
+ */
+class TruncatedWmc(val tolerance: Double) extends NnfVisitor[(DomainSizes, PredicateWeights), WmcEstimate] {
+
+  require(tolerance >= 0, s"Negative tolerance $tolerance")
+
+  import TruncatedWmc._
+
+  // the tolerance of each sum in the current evaluation
+  private[this] var sumTolerance = tolerance
+
+  private[this] val cache = new mutable.HashMap[(Int, Long), WmcEstimate]
+
+  // the logs of the exact terms of each counting node by its domain sizes,
+  // NaN for the terms that are not known exactly
+  private[this] val exactTerms = new mutable.HashMap[(Int, Long), Array[Double]]
+
+  private[this] var _skippedTerms = 0L
+
+  private[this] var _evaluatedTerms = 0L
+
+  /**
+   * The number of counting terms that the last evaluation did not evaluate.
+   */
+  def skippedTerms = _skippedTerms
+
+  /**
+   * The number of counting terms that the last call of wmc evaluated, over
+   * its truncated and its exact evaluation.
+   */
+  def evaluatedTerms = _evaluatedTerms
+
+  def wmc(nnf: NNFNode, domainSizes: DomainSizes, predicateWeights: PredicateWeights): WmcEstimate = {
+    require(predicateWeights.values.forall { w => w.posWDouble >= 0 && w.negWDouble >= 0 },
+      "Truncated evaluation requires non-negative weights")
+    val params = (domainSizes, predicateWeights)
+    cache.clear()
+    exactTerms.clear()
+    _evaluatedTerms = 0
+    sumTolerance = tolerance
+    val estimate = evaluate(nnf, params)
+    if (estimate.relativeError <= tolerance) estimate
+    else {
+      // the exact evaluation reuses the exact results of the truncated one
+      cache.retain { (_, wmc) => wmc.isExact }
+      sumTolerance = 0
+      evaluate(nnf, params)
+    }
+  }
+
+  private def evaluate(nnf: NNFNode, params: (DomainSizes, PredicateWeights)): WmcEstimate = {
+    _skippedTerms = 0
+    visit(nnf, params)
+  }
+
+  protected def visitDomainRecursion(dr: DomainRecursionNode, params: (DomainSizes, PredicateWeights)): WmcEstimate = {
+    val (domainSizes, predicateWeights) = params
+    val maxSize = dr.domain.size(domainSizes, dr.ineqs)
+    if (maxSize < 1) WmcEstimate.one
+    else {
+      val groundChildWmc = visit(dr.groundChild, params)
+      val childchildWmc = visit(dr.mixedChild.child, params)
+      groundChildWmc.pow(maxSize) * childchildWmc.pow((maxSize * (maxSize - 1)) / 2)
+    }
+  }
+
+  protected def visitExists(exists: CountingNode, params: (DomainSizes, PredicateWeights)): WmcEstimate = {
+    val (domainSizes, predicateWeights) = params
+    val maxSize = exists.domain.size(domainSizes, exists.excludedConstants)
+    // the estimates of each term of the sum, including its binomial coefficient
+    val truncatedLogs = new Array[Double](maxSize + 1)
+    val extrapolatedLogs = new Array[Double](maxSize + 1)
+    val evaluated = new Array[Boolean](maxSize + 1)
+    var nbEvaluated = 0
+    val key = WmcCache.pack(exists.orderedDomains, domainSizes)
+    val knownTerms = {
+      if (key < 0) Array.fill(maxSize + 1)(Double.NaN)
+      else exactTerms.getOrElseUpdate((exists.id, key), Array.fill(maxSize + 1)(Double.NaN))
+    }
+    def evaluate(nbTrue: Int) {
+      if (!evaluated(nbTrue)) {
+        if (knownTerms(nbTrue).isNaN) {
+          val newDomainSizes = (domainSizes
+            + (exists.subdomain, nbTrue)
+            + (exists.subdomain.complement, (maxSize - nbTrue)))
+          val childWmc = visit(exists.child, (newDomainSizes, predicateWeights))
+          val logCoeff = Binomial.logCoeff(maxSize, nbTrue)
+          truncatedLogs(nbTrue) = logCoeff + childWmc.truncated.logToDouble
+          extrapolatedLogs(nbTrue) = logCoeff + childWmc.extrapolated.logToDouble
+          if (childWmc.isExact) knownTerms(nbTrue) = truncatedLogs(nbTrue)
+          _evaluatedTerms += 1
+        } else {
+          truncatedLogs(nbTrue) = knownTerms(nbTrue)
+          extrapolatedLogs(nbTrue) = knownTerms(nbTrue)
+        }
+        evaluated(nbTrue) = true
+        nbEvaluated += 1
+      }
+    }
+    val wmc = {
+      if (sumTolerance == 0 || maxSize < MinTruncatedSize) {
+        for (nbTrue <- 0 to maxSize) evaluate(nbTrue)
+        sum(truncatedLogs, extrapolatedLogs)
+      } else truncatedSum(maxSize, evaluate, truncatedLogs, extrapolatedLogs)
+    }
+    _skippedTerms += maxSize + 1 - nbEvaluated
+    wmc
+  }
+
+  private def truncatedSum(maxSize: Int, evaluate: Int => Unit,
+    truncatedLogs: Array[Double], extrapolatedLogs: Array[Double]): WmcEstimate = {
+    // terms spread over all counts, to notice terms that are not log-concave
+    // away from the dominant term
+    val samples = (0 to NbSamples).map { i => (i.toLong * maxSize / NbSamples).toInt }
+    samples.foreach(evaluate)
+    val samplesLogConcave = (2 to NbSamples).forall { i =>
+      val (a, b, c) = (samples(i - 2), samples(i - 1), samples(i))
+      isNonIncreasing((extrapolatedLogs(b) - extrapolatedLogs(a)) / (b - a), (extrapolatedLogs(c) - extrapolatedLogs(b)) / (c - b))
+    }
+    if (!samplesLogConcave) {
+      for (nbTrue <- 0 to maxSize) evaluate(nbTrue)
+      sum(truncatedLogs, extrapolatedLogs)
+    } else extrapolatedSum(maxSize, evaluate, truncatedLogs, extrapolatedLogs, samples)
+  }
+
+  private def extrapolatedSum(maxSize: Int, evaluate: Int => Unit,
+    truncatedLogs: Array[Double], extrapolatedLogs: Array[Double], samples: IndexedSeq[Int]): WmcEstimate = {
+    val logTolerance = math.log(sumTolerance)
+    // find the dominant term by bisection next to the largest sample, which
+    // assumes unimodal terms
+    val largest = samples.indices.maxBy { i => extrapolatedLogs(samples(i)) }
+    var from = samples(math.max(largest - 1, 0))
+    var until = samples(math.min(largest + 1, NbSamples))
+    while (from < until) {
+      val mid = (from + until) / 2
+      evaluate(mid)
+      evaluate(mid + 1)
+      if (extrapolatedLogs(mid) < extrapolatedLogs(mid + 1)) from = mid + 1
+      else until = mid
+    }
+    val mode = from
+    evaluate(mode)
+    // the terms from left to right are summed
+    var left = mode
+    var right = mode
+    val truncatedTotal = new LogSumExp
+    val extrapolatedTotal = new LogSumExp
+    truncatedTotal.add(truncatedLogs(mode))
+    extrapolatedTotal.add(extrapolatedLogs(mode))
+    var logConcave = true
+    def leftTail: Double = {
+      if (left == 0) Double.NegativeInfinity
+      else if (!logConcave || left == right) Double.PositiveInfinity
+      else logGeometricTail(extrapolatedLogs(left), extrapolatedLogs(left) - extrapolatedLogs(left + 1), left)
+    }
+    def rightTail: Double = {
+      if (right == maxSize) Double.NegativeInfinity
+      else if (!logConcave || left == right) Double.PositiveInfinity
+      else logGeometricTail(extrapolatedLogs(right), extrapolatedLogs(right) - extrapolatedLogs(right - 1), maxSize - right)
+    }
+    def logTail = {
+      val (l, r) = (leftTail, rightTail)
+      if (l.isPosInfinity || r.isPosInfinity) Double.PositiveInfinity
+      else LogSumExp.sum(Array(l, r))
+    }
+    while (logTail > logTolerance + truncatedTotal.logSum) {
+      if (right < maxSize && (left == 0 || rightTail >= leftTail)) {
+        right += 1
+        evaluate(right)
+        if (right - 2 >= left) {
+          val last = extrapolatedLogs(right) - extrapolatedLogs(right - 1)
+          val previous = extrapolatedLogs(right - 1) - extrapolatedLogs(right - 2)
+          if (!isNonIncreasing(previous, last)) logConcave = false
+        }
+        truncatedTotal.add(truncatedLogs(right))
+        extrapolatedTotal.add(extrapolatedLogs(right))
+      } else {
+        left -= 1
+        evaluate(left)
+        if (left + 2 <= right) {
+          val first = extrapolatedLogs(left + 1) - extrapolatedLogs(left)
+          val next = extrapolatedLogs(left + 2) - extrapolatedLogs(left + 1)
+          if (!isNonIncreasing(first, next)) logConcave = false
+        }
+        truncatedTotal.add(truncatedLogs(left))
+        extrapolatedTotal.add(extrapolatedLogs(left))
+      }
+    }
+    val extrapolated = LogSumExp.sum(Array(extrapolatedTotal.logSum, leftTail, rightTail))
+    WmcEstimate(LogDouble.fromLog(truncatedTotal.logSum), LogDouble.fromLog(extrapolated))
+  }
+
+  protected def visitForallNode(forall: IndependentPartialGroundingNode, params: (DomainSizes, PredicateWeights)): WmcEstimate = {
+    val (domainSizes, predicateWeights) = params
+    val nbGroundings = forall.d.size(domainSizes, forall.ineqs)
+    if (nbGroundings == 0) WmcEstimate.one
+    else retrieveWmc(forall.child, params).pow(nbGroundings)
+  }
+
+  protected def visitInclusionExclusionNode(ie: InclusionExclusion, params: (DomainSizes, PredicateWeights)): WmcEstimate = {
+    val plus1lwmc = visit(ie.plus1, params)
+    val plus2lwmc = visit(ie.plus2, params)
+    val minlwmc = visit(ie.min, params)
+    WmcEstimate(
+      difference(plus1lwmc.truncated + plus2lwmc.truncated, minlwmc.extrapolated),
+      difference(plus1lwmc.extrapolated + plus2lwmc.extrapolated, minlwmc.truncated))
+  }
+
+  protected def visitOrNode(or: Or, params: (DomainSizes, PredicateWeights)): WmcEstimate = {
+    visit(or.l, params) + visit(or.r, params)
+  }
+
+  protected def visitAndNode(and: And, params: (DomainSizes, PredicateWeights)): WmcEstimate = {
+    val llwmcc = retrieveWmc(and.l, params)
+    if (llwmcc.extrapolated.isZero) WmcEstimate.zero
+    else llwmcc * retrieveWmc(and.r, params)
+  }
+
+  protected def visitRefNode(ref: Ref, params: (DomainSizes, PredicateWeights)): WmcEstimate = {
+    visit(ref.nnfNode, params)
+  }
+
+  protected def visitSmoothingNode(leaf: SmoothingNode, params: (DomainSizes, PredicateWeights)): WmcEstimate = {
+    WmcEstimate.exact(exactWmc.visitSmoothingNode(leaf, params))
+  }
+
+  protected def visitContradictionLeaf(leaf: ContradictionLeaf, params: (DomainSizes, PredicateWeights)): WmcEstimate = {
+    WmcEstimate.exact(exactWmc.visitContradictionLeaf(leaf, params))
+  }
+
+  protected def visitUnitLeaf(leaf: UnitLeaf, params: (DomainSizes, PredicateWeights)): WmcEstimate = {
+    WmcEstimate.exact(exactWmc.visitUnitLeaf(leaf, params))
+  }
+
+  protected def visitGroundingNode(leaf: GroundingNode, params: (DomainSizes, PredicateWeights)): WmcEstimate = {
+    WmcEstimate.exact(exactWmc.visitGroundingNode(leaf, params))
+  }
+
+  protected def visitFalse(params: (DomainSizes, PredicateWeights)): WmcEstimate = WmcEstimate.zero
+  protected def visitTrue(params: (DomainSizes, PredicateWeights)): WmcEstimate = WmcEstimate.one
+
+  private[this] object exactWmc extends LogDoubleWmc {
+    override def visitSmoothingNode(leaf: SmoothingNode, params: (DomainSizes, PredicateWeights)) = super.visitSmoothingNode(leaf, params)
+    override def visitContradictionLeaf(leaf: ContradictionLeaf, params: (DomainSizes, PredicateWeights)) = super.visitContradictionLeaf(leaf, params)
+    override def visitUnitLeaf(leaf: UnitLeaf, params: (DomainSizes, PredicateWeights)) = super.visitUnitLeaf(leaf, params)
+    override def visitGroundingNode(leaf: GroundingNode, params: (DomainSizes, PredicateWeights)) = super.visitGroundingNode(leaf, params)
+  }
+
+  private def retrieveWmc(node: NNFNode, params: (DomainSizes, PredicateWeights)): WmcEstimate = {
+    if (node.evalOrder == 0) visit(node, params)
+    else {
+      val key = WmcCache.pack(node.orderedDomains, params._1)
+      if (key < 0) visit(node, params)
+      else cache.getOrElseUpdate((node.id, key), visit(node, params))
+    }
+  }
+
+}
+
+object TruncatedWmc {
+
+  /**
+   * The relative error that the partition function may have when it is
+   * computed from the command line. Zero disables truncation.
+   */
+  @volatile var tolerance: Double = 0.0
+
+  /** Counting nodes over smaller domains are always summed exactly. */
+  final val MinTruncatedSize = 16
+
+  /** The number of intervals between the terms that are sampled first. */
+  final val NbSamples = 8
+
+  def apply(tolerance: Double) = new TruncatedWmc(tolerance)
+
+  /**
+   * The log of the sum of the nbTerms terms that follow a term with the
+   * given log, when each term is at most exp(logRatio) times the previous
+   * one.
+   */
+  def logGeometricTail(logTerm: Double, logRatio: Double, nbTerms: Int): Double = {
+    if (nbTerms == 0 || logTerm.isNegInfinity || logRatio.isNegInfinity) Double.NegativeInfinity
+    else if (logRatio == 0) logTerm + math.log(nbTerms)
+    else if (logRatio < 0) logTerm + logRatio + math.log(-math.expm1(nbTerms * logRatio)) - math.log(-math.expm1(logRatio))
+    else logTerm + logRatio + math.log(math.expm1(nbTerms * logRatio)) - math.log(math.expm1(logRatio))
+  }
+
+  private def isNonIncreasing(first: Double, next: Double): Boolean = {
+    // allow for rounding errors in the logs of the terms
+    next <= first + 1e-9 * (1 + math.abs(first))
+  }
+
+  private def sum(truncatedLogs: Array[Double], extrapolatedLogs: Array[Double]): WmcEstimate = {
+    WmcEstimate(LogDouble.fromLog(LogSumExp.sum(truncatedLogs)), LogDouble.fromLog(LogSumExp.sum(extrapolatedLogs)))
+  }
+
+  private def difference(a: LogDouble, b: LogDouble): LogDouble = {
+    if (a > b) a - b else LogDouble.zero
+  }
+
+}
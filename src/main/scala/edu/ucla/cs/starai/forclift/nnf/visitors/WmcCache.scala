@@ -0,0 +1,302 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf.visitors
+
+import scala.collection.mutable
+
+import edu.ucla.cs.starai.forclift.Domain
+import edu.ucla.cs.starai.forclift.inference.DomainSizes
+import edu.ucla.cs.starai.forclift.inference.PredicateWeights
+
+/**
+ * Cache of the weights of circuit nodes by the sizes of their domains, for
+ * the caching WMC visitors.
+ *
+ * A key is the id of a node and the sizes of its domains packed into a
+ * `Long`; nodes whose domain sizes do not fit are not cached. Keys and
+ * weights are kept in primitive arrays, so lookups do not allocate. The
+ * cache is 4-way set associative and grows until it reaches its memory
+ * budget, after which each set evicts with the CLOCK policy: an entry that
+ * was used since the hand last passed gets a second chance.
+ *
+ * Clearing the cache starts a new generation instead of erasing the arrays,
+ * so clearing is cheap even for large caches.
+ *
+ * The entries are only valid for the weights they were computed with.
+ * Evaluations take a cache from a global pool for as long as they run, see
+ * `WmcCache.withCache`, and later evaluations with the same weights get it
+ * back. Circuits that share nodes, such as the circuits of all marginals,
+ * then reuse each other's results. The caches of the pool share one memory
+ * budget.
+ */
+final class WmcCache(val maxBytes: Long = WmcCache.defaultMaxBytes) {
+
+  import WmcCache._
+
+  val maxEntries: Int = {
+    val budget = math.min(maxBytes / BytesPerEntry, 1 << 30)
+    math.max(Integer.highestOneBit(budget.toInt max 1), Ways)
+  }
+
+  private[this] var capacity = math.min(InitialEntries, maxEntries)
+  private[this] var nodeIds = new Array[Int](capacity)
+  private[this] var keys = new Array[Long](capacity)
+  private[this] var logValues = new Array[Double](capacity)
+  private[this] var signs = new Array[Boolean](capacity)
+  private[this] var referenced = new Array[Boolean](capacity)
+  // entries of other generations are empty
+  private[this] var generations = new Array[Int](capacity)
+  private[this] var hands = new Array[Byte](capacity / Ways)
+
+  private[this] var generation = 1
+  private[this] var weights: PredicateWeights = null
+  private[this] var count = 0
+
+  private[this] var _hits = 0L
+  private[this] var _misses = 0L
+  private[this] var _evictions = 0L
+
+  // whether the cache is in the pool, and grows within the budget of the pool
+  private[visitors] var pooled = false
+
+  def hits = _hits
+  def misses = _misses
+  def evictions = _evictions
+  def size = count
+
+  /** The memory taken by the entries of the cache, in bytes. */
+  def bytes: Long = capacity.toLong * BytesPerEntry
+
+  def hasWeights(predicateWeights: PredicateWeights) = {
+    (weights eq predicateWeights) || (weights != null && weights == predicateWeights)
+  }
+
+  def clear() {
+    generation += 1
+    if (generation == 0) {
+      // after wrapping around, old entries could look valid again
+      java.util.Arrays.fill(generations, 0)
+      generation = 1
+    }
+    count = 0
+  }
+
+  /**
+   * Clears the cache unless its entries were computed with weights that
+   * equal the given weights.
+   */
+  def useWeights(predicateWeights: PredicateWeights) {
+    if (!(weights eq predicateWeights)) {
+      if (!hasWeights(predicateWeights)) clear()
+      weights = predicateWeights
+    }
+  }
+
+  @inline private def setOf(nodeId: Int, key: Long, nbSets: Int): Int = {
+    val h = (key ^ (nodeId * 0x9E3779B97F4A7C15L)) * 0xC2B2AE3D27D4EB4FL
+    (h >>> 32).toInt & (nbSets - 1)
+  }
+
+  /** The index of the given key, or -1 when it is absent. */
+  def indexOf(nodeId: Int, key: Long): Int = {
+    val first = setOf(nodeId, key, capacity / Ways) * Ways
+    var i = first
+    while (i < first + Ways) {
+      if (generations(i) == generation && nodeIds(i) == nodeId && keys(i) == key) {
+        referenced(i) = true
+        _hits += 1
+        return i
+      }
+      i += 1
+    }
+    _misses += 1
+    -1
+  }
+
+  def logValue(index: Int): Double = logValues(index)
+
+  def isPositive(index: Int): Boolean = signs(index)
+
+  def put(nodeId: Int, key: Long, logValue: Double, positive: Boolean) {
+    if (count >= capacity / 2 && capacity < maxEntries && (!pooled || reserve(bytes))) grow()
+    if (!insert(nodeId, key, logValue, positive)) _evictions += 1
+  }
+
+  // returns false when an entry was evicted
+  private def insert(nodeId: Int, key: Long, logValue: Double, positive: Boolean): Boolean = {
+    val set = setOf(nodeId, key, capacity / Ways)
+    val first = set * Ways
+    var i = first
+    while (i < first + Ways) {
+      if (generations(i) != generation || (nodeIds(i) == nodeId && keys(i) == key)) {
+        if (generations(i) != generation) count += 1
+        store(i, nodeId, key, logValue, positive)
+        return true
+      }
+      i += 1
+    }
+    // the set is full: advance the hand to an entry that was not referenced
+    var hand = hands(set)
+    while (referenced(first + hand)) {
+      referenced(first + hand) = false
+      hand = ((hand + 1) % Ways).toByte
+    }
+    store(first + hand, nodeId, key, logValue, positive)
+    hands(set) = ((hand + 1) % Ways).toByte
+    false
+  }
+
+  @inline private def store(i: Int, nodeId: Int, key: Long, logValue: Double, positive: Boolean) {
+    generations(i) = generation
+    nodeIds(i) = nodeId
+    keys(i) = key
+    logValues(i) = logValue
+    signs(i) = positive
+    referenced(i) = false
+  }
+
+  private def grow() {
+    val oldNodeIds = nodeIds
+    val oldKeys = keys
+    val oldLogValues = logValues
+    val oldSigns = signs
+    val oldGenerations = generations
+    capacity *= 2
+    nodeIds = new Array[Int](capacity)
+    keys = new Array[Long](capacity)
+    logValues = new Array[Double](capacity)
+    signs = new Array[Boolean](capacity)
+    referenced = new Array[Boolean](capacity)
+    generations = new Array[Int](capacity)
+    hands = new Array[Byte](capacity / Ways)
+    count = 0
+    var i = 0
+    while (i < oldKeys.length) {
+      if (oldGenerations(i) == generation) {
+        if (!insert(oldNodeIds(i), oldKeys(i), oldLogValues(i), oldSigns(i))) _evictions += 1
+      }
+      i += 1
+    }
+  }
+
+  override def toString = {
+    s"WMC cache: $count entries (max $maxEntries), hits: ${_hits}, misses: ${_misses}, evictions: ${_evictions}"
+  }
+
+}
+
+object WmcCache {
+
+  final val Ways = 4
+
+  private final val InitialEntries = 1024
+
+  // node id, key, weight, sign, reference bit and generation
+  final val BytesPerEntry = 4 + 8 + 8 + 1 + 1 + 4
+
+  /**
+   * The memory budget of new caches, and of all caches in the pool
+   * together, in bytes.
+   */
+  @volatile var defaultMaxBytes: Long = 64L * 1024 * 1024
+
+  // the caches of finished evaluations, the most recently released last
+  private val idle = new mutable.ArrayBuffer[WmcCache]
+
+  // the memory taken by all caches in the pool, idle or in use
+  private var pooledBytes = 0L
+
+  /**
+   * Evaluates with a cache from the pool, holding only entries that were
+   * computed with the given weights. The cache is not used by any other
+   * evaluation until this one returns. When no idle cache has these weights,
+   * the least recently released idle cache is cleared and reused. Caches of
+   * an earlier memory budget are dropped.
+   */
+  def withCache[T](predicateWeights: PredicateWeights)(evaluate: WmcCache => T): T = {
+    val cache = acquire(predicateWeights)
+    try evaluate(cache) finally release(cache)
+  }
+
+  private def acquire(predicateWeights: PredicateWeights): WmcCache = synchronized {
+    for (cache <- idle if cache.maxBytes != defaultMaxBytes) pooledBytes -= cache.bytes
+    idle --= idle.filter { _.maxBytes != defaultMaxBytes }
+    val index = idle.lastIndexWhere { _.hasWeights(predicateWeights) }
+    val cache = {
+      if (index >= 0) idle.remove(index)
+      else if (idle.nonEmpty) idle.remove(0)
+      else {
+        val newCache = new WmcCache
+        newCache.pooled = true
+        pooledBytes += newCache.bytes
+        newCache
+      }
+    }
+    cache.useWeights(predicateWeights)
+    cache
+  }
+
+  private def release(cache: WmcCache): Unit = synchronized {
+    idle += cache
+  }
+
+  /**
+   * Drops the idle caches of the pool, so that later evaluations start from
+   * empty caches. Caches in use are kept.
+   */
+  def clearPool(): Unit = synchronized {
+    for (cache <- idle) pooledBytes -= cache.bytes
+    idle.clear()
+  }
+
+  /**
+   * Reserves the given memory for a cache of the pool to grow, dropping the
+   * least recently released idle caches when needed. Returns false when the
+   * budget does not allow it.
+   */
+  private def reserve(bytes: Long): Boolean = synchronized {
+    while (pooledBytes + bytes > defaultMaxBytes && idle.nonEmpty) {
+      pooledBytes -= idle.remove(0).bytes
+    }
+    if (pooledBytes + bytes > defaultMaxBytes) false
+    else {
+      pooledBytes += bytes
+      true
+    }
+  }
+
+  /**
+   * The given domain sizes packed into one key, or -1 when they do not fit
+   * in 63 bits.
+   */
+  def pack(domains: IndexedSeq[Domain], domainSizes: DomainSizes): Long = {
+    if (domains.isEmpty) 0L
+    else {
+      val bits = 63 / domains.size
+      var key = 0L
+      var i = 0
+      while (i < domains.size) {
+        val size = domainSizes(domains(i)).size
+        if (size >= (1L << bits)) return -1L
+        key = (key << bits) | size
+        i += 1
+      }
+      key
+    }
+  }
+
+}
@@ -16,6 +16,8 @@
 
 package edu.ucla.cs.starai.forclift.nnf.visitors
 
+import java.util.concurrent.RecursiveTask
+
 import scala.language.implicitConversions
 import edu.ucla.cs.starai.forclift.inference.DomainSizes
 import edu.ucla.cs.starai.forclift.inference.PredicateWeights
@@ -27,7 +29,6 @@ import edu.ucla.cs.starai.forclift.PositiveUnitClause
 import edu.ucla.cs.starai.forclift.constraints.Constraints
 import edu.ucla.cs.starai.forclift.propositional.C2DError
 import edu.ucla.cs.starai.forclift.util.LogDouble
-import edu.ucla.cs.starai.forclift.util.SoftMemCache
 import edu.ucla.cs.starai.forclift.Domain
 
 trait WmcVisitor {
@@ -36,14 +37,78 @@ trait WmcVisitor {
 
 object WmcVisitor {
 
+  /**
+   * The number of threads that evaluate one circuit. With more than one
+   * thread, circuits are evaluated by fork/join, see ParallelWmc.
+   */
+  @volatile var parallelism: Int = 1
+
   def apply(predicateWeights: PredicateWeights): WmcVisitor = {
     val hasNegativeWeight = predicateWeights.values.exists(w => w.negW < 0 || w.posW < 0)
     if (hasNegativeWeight) {
       //new SignLogDoubleWmc
-      new CachingSignLogDoubleWmc
+      if (parallelism > 1) new ParallelSignLogDoubleWmc(parallelism)
+      else new CachingSignLogDoubleWmc
     } else {
       //new LogDoubleWmc
-      new CachingLogDoubleWmc
+      if (parallelism > 1) new ParallelLogDoubleWmc(parallelism)
+      else new CachingLogDoubleWmc
+    }
+  }
+
+  private def sequential(predicateWeights: PredicateWeights): WmcVisitor = {
+    val hasNegativeWeight = predicateWeights.values.exists(w => w.negW < 0 || w.posW < 0)
+    if (hasNegativeWeight) new CachingSignLogDoubleWmc
+    else new CachingLogDoubleWmc
+  }
+
+  /**
+   * The weighted model counts of the given circuit for each of the given
+   * domain sizes, as in a sweep over a range or grid of domain sizes.
+   *
+   * The caching visitors and flat circuits cache the weight of a node by the
+   * sizes of its own domains, in a cache that later evaluations with the
+   * same weights get back, see WmcCache.withCache, so a node that does not
+   * depend on the domains that differ between two domain sizes is evaluated
+   * once for both. With more than one thread, the domain sizes are split
+   * into consecutive chunks that are evaluated in parallel, each on one
+   * thread, so that neighbouring domain sizes still share their results.
+   */
+  def sweep(nnf: NNFNode, domainSizes: IndexedSeq[DomainSizes], predicateWeights: PredicateWeights): IndexedSeq[SignLogDouble] = {
+    val flatCircuit = FlatCircuit.flatten(nnf).filter { _.supportsSigned(predicateWeights) }
+    def evaluate(chunk: IndexedSeq[DomainSizes]): IndexedSeq[SignLogDouble] = {
+      if (flatCircuit.nonEmpty) chunk.map { flatCircuit.get.wmc(_, predicateWeights) }
+      else {
+        val visitor = sequential(predicateWeights)
+        chunk.map { visitor.wmc(nnf, _, predicateWeights) }
+      }
+    }
+    if (parallelism <= 1 || domainSizes.size <= 1) evaluate(domainSizes)
+    else {
+      // more chunks than threads, to balance chunks of larger domain sizes
+      val nbChunks = math.min(domainSizes.size, 4 * parallelism)
+      val chunkSize = (domainSizes.size + nbChunks - 1) / nbChunks
+      val pool = ParallelWmc.pool(parallelism)
+      val tasks = domainSizes.grouped(chunkSize).toIndexedSeq.map { chunk =>
+        pool.submit(new RecursiveTask[IndexedSeq[SignLogDouble]] {
+          def compute = evaluate(chunk)
+        })
+      }
+      tasks.flatMap { _.join() }
+    }
+  }
+
+  /**
+   * The weighted model counts of the given circuit under each of the given
+   * weights. When all weights are non-negative, they are computed in one
+   * traversal by BatchLogDoubleWmc.
+   */
+  def wmc(nnf: NNFNode, domainSizes: DomainSizes, predicateWeights: IndexedSeq[PredicateWeights]): IndexedSeq[SignLogDouble] = {
+    val hasNegativeWeight = predicateWeights.exists { _.values.exists(w => w.negW < 0 || w.posW < 0) }
+    if (hasNegativeWeight || parallelism > 1) {
+      predicateWeights.map { weights => WmcVisitor(weights).wmc(nnf, domainSizes, weights) }
+    } else {
+      new BatchLogDoubleWmc(predicateWeights).wmc(nnf, domainSizes).map { logWmc => logWmc: SignLogDouble }
     }
   }
 
@@ -72,17 +137,15 @@ protected class LogDoubleWmc extends NnfVisitor[(DomainSizes, PredicateWeights),
   protected def visitExists(exists: CountingNode, params: (DomainSizes, PredicateWeights)): LogDouble = {
     val (domainSizes, predicateWeights) = params
     val maxSize = exists.domain.size(domainSizes, exists.excludedConstants)
-    var logWeight = zero
+    val childWeights = new Array[Double](maxSize + 1)
     for (nbTrue <- 0 to maxSize) {
       val newDomainSizes = (domainSizes
         + (exists.subdomain, nbTrue)
         + (exists.subdomain.complement, (maxSize - nbTrue)))
       val newParams = (newDomainSizes, predicateWeights)
-      val childWeight = visit(exists.child, newParams)
-      val binomialCoeff = Binomial.coeff(maxSize, nbTrue)
-      logWeight += binomialCoeff * childWeight
+      childWeights(nbTrue) = visit(exists.child, newParams).logToDouble
     }
-    logWeight
+    LogDouble.fromLog(Binomial.logSum(maxSize, childWeights, 0))
   }
 
   protected def visitForallNode(forall: IndependentPartialGroundingNode, params: (DomainSizes, PredicateWeights)): LogDouble = {
@@ -195,15 +258,20 @@ object NnfVisitorCache {
 
 protected class CachingLogDoubleWmc extends LogDoubleWmc {
 
-  import edu.ucla.cs.starai.forclift.util.LogDouble._
-  import NnfVisitorCache._
-
-  val cache = new SoftMemCache[Key, LogDouble]
-
+  // results of earlier calls with the same weights are reused, from a cache
+  // that the evaluation only holds while it runs
   override def wmc(nnf: NNFNode, domainSizes: DomainSizes, predicateWeights: PredicateWeights): SignLogDouble = {
-    cache.clear()
-    super.wmc(nnf, domainSizes, predicateWeights)
+    WmcCache.withCache(predicateWeights) { cache =>
+      new CachedLogDoubleWmc(cache).wmc(nnf, domainSizes, predicateWeights)
+    }
   }
+
+}
+
+// one evaluation of CachingLogDoubleWmc
+private[visitors] class CachedLogDoubleWmc(cache: WmcCache) extends LogDoubleWmc {
+
+  import edu.ucla.cs.starai.forclift.util.LogDouble._
   
   // only decomposition nodes can reduce the number of relevant domains!
 
@@ -232,17 +300,18 @@ protected class CachingLogDoubleWmc extends LogDoubleWmc {
       // there is no point in caching if the computation is O(1){
       return visit(node, params)
     }else {
-	    val domains: IndexedSeq[Domain] = node.orderedDomains
 	    val (domainSizes, predicateWeights) = params
-	    val key = new Key(node, domains.map(domainSizes(_).size))
-	    val result = cache.get(key)
-	    if (result.nonEmpty) {
-	      addHit()
-	      result.get
+	    val key = WmcCache.pack(node.orderedDomains, domainSizes)
+	    if (key < 0) {
+	      // the domain sizes do not fit in a key
+	      return visit(node, params)
+	    }
+	    val index = cache.indexOf(node.id, key)
+	    if (index >= 0) {
+	      fromLog(cache.logValue(index))
 	    }else {
-	      addMiss()
 	      val childWeight = visit(node, params)
-	      cache.update(key, childWeight)
+	      cache.put(node.id, key, childWeight.logToDouble, true)
 	      childWeight
 	    }
     }
@@ -250,6 +319,12 @@ protected class CachingLogDoubleWmc extends LogDoubleWmc {
 
 }
 
+/**
+ * Evaluates circuits under weights of any sign. Nodes that combine several
+ * terms, such as counting nodes, accumulate them in primitive locals with the
+ * kernels of SignLogDouble and allocate only their result. FlatCircuit avoids
+ * even those allocations and is preferred where it applies.
+ */
 protected class SignLogDoubleWmc extends NnfVisitor[(DomainSizes, PredicateWeights), SignLogDouble] with WmcVisitor {
 
   import edu.ucla.cs.starai.forclift.util.SignLogDouble._
@@ -271,27 +346,37 @@ protected class SignLogDoubleWmc extends NnfVisitor[(DomainSizes, PredicateWeigh
     if (maxSize < 1) one
     else {
       val groundChildWmc = visit(dr.groundChild, params)
-      // old inference, linear
-      var logWeight = groundChildWmc.pow(maxSize)
       val childchildWmc = visit(dr.mixedChild.child, params)
-      groundChildWmc.pow(maxSize) * childchildWmc.pow((maxSize * (maxSize - 1)) / 2)
+      val childchildExp = (maxSize * (maxSize - 1)) / 2
+      val groundLog = groundChildWmc.ld.logToDouble
+      val childchildLog = childchildWmc.ld.logToDouble
+      val groundPower = groundLog * maxSize
+      val childchildPower = childchildLog * childchildExp
+      fromSignAndLog(productSign(powSign(groundChildWmc.pos, groundLog, maxSize), groundPower,
+        powSign(childchildWmc.pos, childchildLog, childchildExp), childchildPower),
+        groundPower + childchildPower)
     }
   }
 
   protected def visitExists(exists: CountingNode, params: (DomainSizes, PredicateWeights)): SignLogDouble = {
     val (domainSizes, predicateWeights) = params
     val maxSize: Int = exists.domain.size(domainSizes, exists.excludedConstants)
-    var logWeight = zero;
+    var sumPos = true
+    var logWeight = Double.NegativeInfinity
     for (nbTrue <- 0 to maxSize) {
       val newDomainSizes = (domainSizes
         + (exists.subdomain, nbTrue)
         + (exists.subdomain.complement, (maxSize - nbTrue)));
       val newParams = (newDomainSizes, predicateWeights)
       val childWeight = visit(exists.child, newParams)
-      val binomialCoeff = Binomial.coeff(maxSize, nbTrue).toSignDouble
-      logWeight += binomialCoeff * childWeight
+      // binomial coefficients are positive
+      val term = Binomial.coeff(maxSize, nbTrue).logToDouble + childWeight.ld.logToDouble
+      val termPos = childWeight.pos || term.isNegInfinity
+      val newPos = sumSign(sumPos, logWeight, termPos, term)
+      logWeight = sumLog(sumPos, logWeight, termPos, term)
+      sumPos = newPos
     }
-    logWeight
+    fromSignAndLog(sumPos, logWeight)
   }
 
   protected def visitForallNode(forall: IndependentPartialGroundingNode, params: (DomainSizes, PredicateWeights)): SignLogDouble = {
@@ -309,7 +394,12 @@ protected class SignLogDoubleWmc extends NnfVisitor[(DomainSizes, PredicateWeigh
     val plus1lwmc = visit(ie.plus1, params)
     val plus2lwmc = visit(ie.plus2, params)
     val minlwmc = visit(ie.min, params)
-    plus1lwmc + plus2lwmc - minlwmc
+    val plus1Log = plus1lwmc.ld.logToDouble
+    val plus2Log = plus2lwmc.ld.logToDouble
+    val minLog = minlwmc.ld.logToDouble
+    val plusPos = sumSign(plus1lwmc.pos, plus1Log, plus2lwmc.pos, plus2Log)
+    val plusLog = sumLog(plus1lwmc.pos, plus1Log, plus2lwmc.pos, plus2Log)
+    fromSignAndLog(sumSign(plusPos, plusLog, minlwmc.neg, minLog), sumLog(plusPos, plusLog, minlwmc.neg, minLog))
   }
 
   protected def visitOrNode(or: Or, params: (DomainSizes, PredicateWeights)): SignLogDouble = {
@@ -371,16 +461,21 @@ protected class SignLogDoubleWmc extends NnfVisitor[(DomainSizes, PredicateWeigh
 
 protected class CachingSignLogDoubleWmc extends SignLogDoubleWmc {
 
-  import edu.ucla.cs.starai.forclift.util.SignLogDouble._
-  import NnfVisitorCache._
-
-  val cache = new SoftMemCache[Key, SignLogDouble]
-
+  // results of earlier calls with the same weights are reused, from a cache
+  // that the evaluation only holds while it runs
   override def wmc(nnf: NNFNode, domainSizes: DomainSizes, predicateWeights: PredicateWeights): SignLogDouble = {
-    cache.clear()
-    super.wmc(nnf, domainSizes, predicateWeights)
+    WmcCache.withCache(predicateWeights) { cache =>
+      new CachedSignLogDoubleWmc(cache).wmc(nnf, domainSizes, predicateWeights)
+    }
   }
 
+}
+
+// one evaluation of CachingSignLogDoubleWmc
+private[visitors] class CachedSignLogDoubleWmc(cache: WmcCache) extends SignLogDoubleWmc {
+
+  import edu.ucla.cs.starai.forclift.util.SignLogDouble._
+
   // only decomposition nodes can reduce the number of relevant domains!
   
   override protected def visitAndNode(and: And, params: (DomainSizes, PredicateWeights)): SignLogDouble = {
@@ -409,17 +504,18 @@ protected class CachingSignLogDoubleWmc extends SignLogDoubleWmc {
       // there is no point in caching if the computation is O(1)
       return visit(node, params)
     } else{
-	    val domains: IndexedSeq[Domain] = node.orderedDomains
 	    val (domainSizes, predicateWeights) = params
-	    val key = new Key(node, domains.map(domainSizes(_).size))
-	    val result = cache.get(key)
-	    if (result.nonEmpty) {
-	      addHit()
-	      result.get
+	    val key = WmcCache.pack(node.orderedDomains, domainSizes)
+	    if (key < 0) {
+	      // the domain sizes do not fit in a key
+	      return visit(node, params)
+	    }
+	    val index = cache.indexOf(node.id, key)
+	    if (index >= 0) {
+	      new SignLogDouble(cache.isPositive(index), LogDouble.fromLog(cache.logValue(index)))
 	    }else {
-	      addMiss()
 	      val childWeight = visit(node, params)
-	      cache.update(key, childWeight)
+	      cache.put(node.id, key, childWeight.ld.logToDouble, childWeight.pos)
 	      childWeight
 	    }
     }
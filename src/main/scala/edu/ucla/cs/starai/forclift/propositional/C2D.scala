@@ -21,6 +21,7 @@ import java.io.File
 import System._
 import edu.ucla.cs.starai.forclift.util.ExternalBinaries
 import breeze.math._
+import edu.ucla.cs.starai.forclift.util.LogSumExp
 import edu.ucla.cs.starai.forclift.util.SignLogDouble
 
 class C2DError(msg: String) extends Exception(msg)
@@ -142,46 +143,7 @@ class LogC2D extends AbstractC2D {
     }
   }
 
-  def propagate(cnf: DimacsCNF): SignLogDouble = {
-    //		println("Propagating weights")
-    val src = Source.fromFile(c2dInputFile + ".nnf")
-    val lines = src.getLines
-    val firstLine = lines.next
-    val weight = firstLine match {
-      case FirstLine(nbNodes, _, _) => {
-        var cache = new Array[SignLogDouble](nbNodes.toInt)
-        var lineIndex = 0
-        for (line <- lines) {
-          val prob = line match {
-            case Or(_, nbChildren, children) => {
-              children.split(" ").map { child => cache(child.toInt) }.reduceLeft { _ + _ }
-            }
-            case And(nbChildren, children) => {
-              children.split(" ").map { child => cache(child.toInt) }.reduceLeft { _ * _ }
-            }
-            case Leaf(l) => {
-              val variable = l.toInt
-              if (variable < 0) (cnf.weights(-variable)._2)
-              else if ((variable > 0)) (cnf.weights(variable)._1)
-              else throw new IllegalStateException
-            }
-            case False() => zero
-            case True() => one
-            case _ => {
-              throw new IllegalStateException(line + " did not parse.")
-            }
-          }
-          cache(lineIndex) = prob
-          lineIndex += 1
-        }
-        // debug (0 to cache.size zip cache) foreach { case(l,p) => println(l+": "+p)}
-        cache(lineIndex - 1)
-      }
-      case _ => throw new IllegalStateException(firstLine + " did not parse as " + FirstLine)
-    }
-    src.close
-    weight
-  }
+  def propagate(cnf: DimacsCNF): SignLogDouble = propagateWeights(cnf, 0)
 
   def propagateProbability(cnf: DimacsCNF, query: Int): SignLogDouble = {
     val Z = propagate(cnf)
@@ -189,39 +151,53 @@ class LogC2D extends AbstractC2D {
     qWeight - Z
   }
 
-  def propagateForQuery(cnf: DimacsCNF, query: Int): SignLogDouble = {
+  def propagateForQuery(cnf: DimacsCNF, query: Int): SignLogDouble = propagateWeights(cnf, query)
+
+  /**
+   * Propagates the weights through the circuit of c2d, where the negative
+   * literal of the query, unless it is 0, has weight zero. The weights of the
+   * nodes are kept as signs and logarithms of magnitudes in two arrays, so
+   * that propagation does not allocate a SignLogDouble per operation.
+   */
+  private def propagateWeights(cnf: DimacsCNF, query: Int): SignLogDouble = {
     //		println("Propagating weights")
     val src = Source.fromFile(c2dInputFile + ".nnf")
     val lines = src.getLines
     val firstLine = lines.next
     val weight = firstLine match {
       case FirstLine(nbNodes, _, _) => {
-        var cache = new Array[SignLogDouble](nbNodes.toInt)
+        val signs = new Array[Boolean](nbNodes.toInt)
+        val logs = new Array[Double](nbNodes.toInt)
         var lineIndex = 0
         for (line <- lines) {
-          val prob = line match {
-            case Or(_, nbChildren, children) => {
-              children.split(" ").map { child => cache(child.toInt) }.reduceLeft {_ + _}
-            }
-            case And(nbChildren, children) => {
-              children.split(" ").map { child => cache(child.toInt) }.reduceLeft {_ * _}
-            }
+          line match {
+            case Or(_, nbChildren, children) => combine(children, signs, logs, lineIndex, sum = true)
+            case And(nbChildren, children) => combine(children, signs, logs, lineIndex, sum = false)
             case Leaf(l) => {
               val variable = l.toInt
-              if (variable < 0 && query == variable.abs) zero
-              else if (variable < 0) (cnf.weights(-variable)._2)
-              else if ((variable > 0)) (cnf.weights(variable)._1)
-              else throw new IllegalStateException
+              val w = {
+                if (variable < 0 && query == variable.abs) zero
+                else if (variable < 0) (cnf.weights(-variable)._2)
+                else if ((variable > 0)) (cnf.weights(variable)._1)
+                else throw new IllegalStateException
+              }
+              signs(lineIndex) = w.pos
+              logs(lineIndex) = w.ld.logToDouble
+            }
+            case False() => {
+              signs(lineIndex) = true
+              logs(lineIndex) = Double.NegativeInfinity
+            }
+            case True() => {
+              signs(lineIndex) = true
+              logs(lineIndex) = 0.0
             }
-            case False() => zero
-            case True() => one
             case _ => throw new IllegalStateException(line + " did not parse.")
           }
-          cache(lineIndex) = prob
           lineIndex += 1
         }
         // debug (0 to cache.size zip cache) foreach { case(l,p) => println(l+": "+p)}
-        cache(lineIndex - 1)
+        fromSignAndLog(signs(lineIndex - 1), logs(lineIndex - 1))
       }
       case _ => throw new IllegalStateException(firstLine + " did not parse as " + FirstLine)
     }
@@ -229,4 +205,34 @@ class LogC2D extends AbstractC2D {
     weight
   }
 
+  // sums or multiplies the weights of the given children into the given node
+  private def combine(children: String, signs: Array[Boolean], logs: Array[Double], node: Int, sum: Boolean) {
+    val childIds = children.split(" ").map { _.toInt }
+    if (sum && childIds.forall { signs(_) }) {
+      // positive weights are summed with one exp per child
+      signs(node) = true
+      logs(node) = LogSumExp.sum(childIds.map { logs(_) })
+    } else combineSigned(childIds, signs, logs, node, sum)
+  }
+
+  private def combineSigned(childIds: Array[Int], signs: Array[Boolean], logs: Array[Double], node: Int, sum: Boolean) {
+    var pos = signs(childIds(0))
+    var log = logs(childIds(0))
+    var i = 1
+    while (i < childIds.length) {
+      val child = childIds(i)
+      if (sum) {
+        val newPos = sumSign(pos, log, signs(child), logs(child))
+        log = sumLog(pos, log, signs(child), logs(child))
+        pos = newPos
+      } else {
+        pos = productSign(pos, log, signs(child), logs(child))
+        log += logs(child)
+      }
+      i += 1
+    }
+    signs(node) = pos
+    logs(node) = log
+  }
+
 }
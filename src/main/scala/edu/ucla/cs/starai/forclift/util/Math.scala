@@ -248,10 +248,46 @@ object SignLogDouble{
    }
   
    def fromLog(d: Double) = new SignLogDouble(true, LogDouble.fromLog(d))
+
+   def fromSignAndLog(pos: Boolean, d: Double) = new SignLogDouble(pos, LogDouble.fromLog(d))
    
    val zero: SignLogDouble = 0
    val one: SignLogDouble = 1
    val NaN: SignLogDouble = new SignLogDouble(true, LogDouble.NaN)
+
+   // Kernels on signs and logarithms of magnitudes, for code that keeps
+   // signed weights in primitive locals or parallel arrays instead of
+   // allocating an instance for every operation. They follow the operators
+   // of SignLogDouble, including the sign of zero, which is positive.
+
+   /** The sign of the sum of two signed weights. */
+   def sumSign(aPos: Boolean, aLog: Double, bPos: Boolean, bLog: Double): Boolean = {
+     if (aLog.isNegInfinity) bPos || bLog.isNegInfinity || bLog.isNaN
+     else if (bLog.isNegInfinity) aPos || aLog.isNaN
+     else if (aPos == bPos) aPos || aLog.isNaN || bLog.isNaN
+     else if (aLog > bLog) aPos
+     else if (aLog < bLog) bPos
+     else true
+   }
+
+   /** The logarithm of the magnitude of the sum of two signed weights. */
+   def sumLog(aPos: Boolean, aLog: Double, bPos: Boolean, bLog: Double): Double = {
+     if (aLog.isNegInfinity) bLog
+     else if (bLog.isNegInfinity) aLog
+     else if (aPos == bPos) (LogDouble.fromLog(aLog) + LogDouble.fromLog(bLog)).logToDouble
+     else if (aLog > bLog) (LogDouble.fromLog(aLog) - LogDouble.fromLog(bLog)).logToDouble
+     else (LogDouble.fromLog(bLog) - LogDouble.fromLog(aLog)).logToDouble
+   }
+
+   /** The sign of the product of two signed weights. */
+   def productSign(aPos: Boolean, aLog: Double, bPos: Boolean, bLog: Double): Boolean = {
+     (aPos == bPos) || aLog.isNegInfinity || bLog.isNegInfinity || aLog.isNaN || bLog.isNaN
+   }
+
+   /** The sign of a signed weight to the given power. */
+   def powSign(pos: Boolean, log: Double, exp: Int): Boolean = {
+     pos || (exp % 2 == 0) || log.isNegInfinity || log.isNaN
+   }
 }
 
 
@@ -285,20 +321,145 @@ object KLD {
 
 }
 
+/**
+ * Sums of weights in log space with one `exp` per term instead of the `exp`
+ * and `log1p` of every LogDouble addition. Terms are scaled by the largest
+ * term seen so far and summed as plain doubles, which cannot overflow, and
+ * the logarithm is taken once at the end.
+ *
+ * An accumulator adds one term at a time, for loops whose terms come from
+ * recursive evaluations. It is mutable and belongs to a single loop.
+ */
+final class LogSumExp {
+
+  private[this] var max = Double.NegativeInfinity
+  private[this] var sum = 0.0
+
+  def reset() {
+    max = Double.NegativeInfinity
+    sum = 0.0
+  }
+
+  /** Adds the term with the given logarithm. */
+  def add(logTerm: Double) {
+    if (logTerm > max) {
+      // rescale the terms so far to the new maximum
+      sum = sum * math.exp(max - logTerm) + 1.0
+      max = logTerm
+    } else if (logTerm.isNaN) {
+      max = Double.NaN
+    } else if (!logTerm.isNegInfinity) {
+      sum += math.exp(logTerm - max)
+    }
+  }
+
+  /** The logarithm of the sum of the terms so far. */
+  def logSum: Double = if (max.isNegInfinity) max else max + math.log(sum)
+
+}
+
+object LogSumExp {
+
+  private final val BlockSize = 256
+
+  /**
+   * The logarithm of the sum of the terms with the given logarithms. The
+   * terms are summed in blocks: the maximum of a block is found in a first
+   * pass over it and the block is summed in a second pass while it is still
+   * in the processor cache.
+   */
+  def sum(logTerms: Array[Double], from: Int, until: Int): Double = {
+    var max = Double.NegativeInfinity
+    var sum = 0.0
+    var blockStart = from
+    while (blockStart < until) {
+      val blockEnd = math.min(blockStart + BlockSize, until)
+      var blockMax = Double.NegativeInfinity
+      var i = blockStart
+      while (i < blockEnd) {
+        if (logTerms(i) > blockMax || logTerms(i).isNaN) blockMax = logTerms(i)
+        i += 1
+      }
+      if (blockMax.isNaN) return Double.NaN
+      if (!blockMax.isNegInfinity) {
+        if (blockMax > max) {
+          sum *= math.exp(max - blockMax)
+          max = blockMax
+        }
+        i = blockStart
+        while (i < blockEnd) {
+          sum += math.exp(logTerms(i) - max)
+          i += 1
+        }
+      }
+      blockStart = blockEnd
+    }
+    if (max.isNegInfinity) max else max + math.log(sum)
+  }
+
+  def sum(logTerms: Array[Double]): Double = sum(logTerms, 0, logTerms.length)
+
+}
+
 object Binomial {
 
-  private[this] val factorialCache = new collection.mutable.ArrayBuffer[LogDouble] ++ List(LogDouble.one, LogDouble.one)
+  // Logarithms of factorials. The table is replaced rather than appended to,
+  // so that threads that evaluate in parallel can read it without locking,
+  // and it at least doubles when it grows, so that a sweep over increasing
+  // domain sizes copies it only a logarithmic number of times.
+  @volatile private[this] var logFactorials: Array[Double] = Array(0.0, 0.0)
 
-  def factorial(n: Int): LogDouble = {
-    if (n < factorialCache.length) factorialCache(n)
+  def logFactorial(n: Int): Double = {
+    val table = logFactorials
+    if (n < table.length) table(n)
+    else extendLogFactorials(n)
+  }
+
+  private[this] def extendLogFactorials(n: Int): Double = synchronized {
+    val table = logFactorials
+    if (n < table.length) table(n)
     else {
-      for (i <- factorialCache.length to n) {
-        factorialCache += (factorialCache(i - 1) * i)
+      val extended = java.util.Arrays.copyOf(table, math.max(n + 1, 2 * table.length))
+      for (i <- table.length until extended.length) {
+        extended(i) = extended(i - 1) + math.log(i)
       }
-      factorialCache.last
+      logFactorials = extended
+      extended(n)
     }
   }
 
-  def coeff(n: Int, k: Int): LogDouble = factorial(n) / factorial(k) / factorial(n - k)
+  def factorial(n: Int): LogDouble = LogDouble.fromLog(logFactorial(n))
+
+  def logCoeff(n: Int, k: Int): Double = logFactorial(n) - logFactorial(k) - logFactorial(n - k)
+
+  def coeff(n: Int, k: Int): LogDouble = LogDouble.fromLog(logCoeff(n, k))
+
+  /**
+   * The logarithm of the sum over k from 0 to n of the binomial coefficient
+   * of n and k times the term with logarithm `logTerms(offset + k)`, as in
+   * the sum of a counting node.
+   */
+  def logSum(n: Int, logTerms: Array[Double], offset: Int): Double = {
+    logFactorial(n)
+    val table = logFactorials
+    val logNFactorial = table(n)
+    var max = Double.NegativeInfinity
+    var k = 0
+    while (k <= n) {
+      val logTerm = logNFactorial - table(k) - table(n - k) + logTerms(offset + k)
+      if (logTerm > max || logTerm.isNaN) max = logTerm
+      k += 1
+    }
+    if (max.isNegInfinity || max.isNaN) max
+    else {
+      var sum = 0.0
+      k = 0
+      while (k <= n) {
+        sum += math.exp(logNFactorial - table(k) - table(n - k) + logTerms(offset + k) - max)
+        k += 1
+      }
+      max + math.log(sum)
+    }
+  }
 
 }
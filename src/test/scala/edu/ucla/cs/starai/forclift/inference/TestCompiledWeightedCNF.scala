@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.inference
+
+import org.junit.runner.RunWith
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.examples.models.FriendsSmokerModel
+
+@RunWith(classOf[JUnitRunner])
+class TestCompiledWeightedCNF extends FunSpec with Matchers {
+
+  describe("A compiled FriendsSmokerModel of size 10") {
+
+    val theory = new FriendsSmokerModel(10).theory
+    val compiled = theory.compiled
+    val person = theory.domainSizes.domains.head
+
+    it("reuses the circuit of the theory") {
+      compiled.smoothNnf should be theSameInstanceAs theory.smoothNnf
+    }
+
+    it("has the WMC of the theory under its own weights") {
+      compiled.logSmoothWmc(PredicateWeights.empty).logToDouble should be(121.80653199663033 +- 0.00001)
+    }
+
+    it("has the WMC of a copy of the theory with other weights") {
+      for (predicate <- theory.predicateWeights.predicates) {
+        val weights = theory.predicateWeights(predicate)
+        val newWeights = PredicateWeights.empty + (predicate, Weights(weights.posWDouble * 2, weights.negWDouble))
+        val reweighted = theory.copy(predicateWeights = theory.predicateWeights ++ newWeights)
+        val expected = reweighted.logSmoothWmc.logToDouble
+        compiled.logSmoothWmc(newWeights).logToDouble should be(expected +- 0.00001)
+      }
+    }
+
+    it("has the WMC of a larger domain") {
+      val newDomainSizes = DomainSizes.empty + (person, 100)
+      val expected = new FriendsSmokerModel(100).theory.logSmoothWmc.logToDouble
+      compiled.logSmoothWmc(newDomainSizes, PredicateWeights.empty).logToDouble should be(expected +- 0.00001)
+    }
+  }
+
+}
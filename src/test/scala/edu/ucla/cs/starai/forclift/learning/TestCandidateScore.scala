@@ -0,0 +1,364 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.learning
+
+import java.io._
+
+import scala.collection.JavaConverters._
+import scala.concurrent.Await
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.Future
+import scala.concurrent.duration.Duration
+
+import org.junit.runner.RunWith
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.languages.mln._
+
+@RunWith(classOf[JUnitRunner])
+class TestCandidateScore extends FunSpec with Matchers {
+
+  val structureStr =
+    """
+Advisedby(person,person)
+Tempadvisedby(person,person)
+
+0.819459      !Advisedby(a1,a2)   v !Tempadvisedby(a1,a3)
+"""
+
+  val trainingDBStr =
+    """
+Advisedby(Person309_1,Person378_1)
+Tempadvisedby(Person383_1,Person165_1)
+"""
+
+  val otherTrainingDBStr =
+    """
+Advisedby(Person1,Person2)
+Advisedby(Person3,Person2)
+Tempadvisedby(Person1,Person4)
+"""
+
+  val headerStr =
+    """
+Advisedby(person,person)
+Tempadvisedby(person,person)
+"""
+
+  val extendedStructureStr = structureStr + """
+0.5      Advisedby(a1,a2)   v !Tempadvisedby(a2,a1)
+"""
+
+  def writeDatabase(db: String): File = {
+    val file = File.createTempFile("candidate", ".db")
+    file.deleteOnExit()
+    val writer = new FileWriter(file)
+    writer.write(db)
+    writer.close()
+    file
+  }
+
+  describe("In-process candidate scoring") {
+
+    val dbFile = writeDatabase(trainingDBStr)
+    val score = CandidateScore.learn(structureStr, List(dbFile).asJava, false)
+
+    it("reports the objective of weight learning") {
+      val parser = new MLNParser
+      parser.setLearnModus(true)
+      val structure = parser.parseMLN(structureStr)
+      val db = parser.parseDB(trainingDBStr)
+      val learner = new LiftedLearning(structure, Seq(db))
+      val (_, negatedObjective) = learner.learnParameters()
+      score.logLikelihood should be(-negatedObjective +- 0.0001)
+    }
+
+    it("reports the circuit statistics") {
+      score.partitionCircuitSize should be > 0
+      score.queryCircuitSizes should not be empty
+      score.queryCircuitSizes.size should be(score.queryCircuitOrders.size)
+    }
+
+    it("returns a parsable learned model") {
+      val parser = new MLNParser
+      parser.setLearnModus(true)
+      parser.parseMLN(score.learnedModel).wformulas should not be empty
+    }
+
+    it("reports the time it took and the iterations of the optimizer") {
+      score.learnTime should be >= 0L
+      score.iterations should be > 0
+      score.gradientEvaluations should be > 0
+    }
+
+    it("reads back the record it writes") {
+      val file = File.createTempFile("candidate", ".result")
+      file.deleteOnExit()
+      score.write(file)
+      val read = CandidateScore.read(file)
+      read.logLikelihood should be(score.logLikelihood)
+      read.partitionCircuitSize should be(score.partitionCircuitSize)
+      read.queryCircuitSizes should be(score.queryCircuitSizes)
+      read.queryCircuitOrders should be(score.queryCircuitOrders)
+      read.iterations should be(score.iterations)
+      read.learnedWeights should be(score.learnedWeights)
+      read.learnedModel.trim should be(score.learnedModel.trim)
+    }
+  }
+
+  describe("Leave-one-out folds of a single candidate") {
+
+    val dbFiles = List(writeDatabase(trainingDBStr), writeDatabase(otherTrainingDBStr))
+    val learner = new CandidateLearner(structureStr, dbFiles.asJava, false)
+
+    it("score like a candidate learned on the fold only") {
+      for (leftOut <- 0 until 2) {
+        val foldScore = learner.learnAllBut(leftOut)
+        val fold = dbFiles.filterNot(_ == dbFiles(leftOut))
+        val separateScore = CandidateScore.learn(structureStr, fold.asJava, false)
+        foldScore.logLikelihood should be(separateScore.logLikelihood +- 0.0001)
+        foldScore.partitionCircuitSize should be(separateScore.partitionCircuitSize)
+      }
+    }
+
+    it("score like a candidate learned on all databases") {
+      val allScore = learner.learnAll()
+      allScore.logLikelihood should be(CandidateScore.learn(structureStr, dbFiles.asJava, false).logLikelihood +- 0.0001)
+    }
+  }
+
+  describe("Learning on all databases after learning a fold") {
+
+    def newLearner() = {
+      val parser = new MLNParser
+      parser.setLearnModus(true)
+      val structure = parser.parseMLN(structureStr)
+      val dbs = Seq(parser.parseDB(trainingDBStr), parser.parseDB(otherTrainingDBStr))
+      new LiftedLearning(structure, dbs)
+    }
+
+    it("trains on all databases again") {
+      val learner = newLearner()
+      learner.learnParameters(IndexedSeq(1))
+      learner.activeTrainDbIds should be(learner.dbs.trainDbIds)
+      val (_, negatedObjective) = learner.learnParameters()
+      val (_, expected) = newLearner().learnParameters()
+      negatedObjective should be(expected +- 0.0001)
+    }
+  }
+
+  describe("Racing a candidate with a bounded number of iterations") {
+
+    val dbFiles = List(writeDatabase(trainingDBStr), writeDatabase(otherTrainingDBStr))
+    val learner = new CandidateLearner(structureStr, dbFiles.asJava, false)
+    val partialScore = learner.learnAllBut(0, 1)
+    val finalScore = learner.learnAllBut(0)
+
+    it("does not overshoot the optimum") {
+      partialScore.logLikelihood should be <= (finalScore.logLikelihood + 0.0001)
+    }
+
+    it("continues the optimizer where the previous round stopped") {
+      def newLearner() = {
+        val parser = new MLNParser
+        parser.setLearnModus(true)
+        val structure = parser.parseMLN(structureStr)
+        new LiftedLearning(structure, Seq(parser.parseDB(trainingDBStr), parser.parseDB(otherTrainingDBStr)))
+      }
+      val learner = newLearner()
+      val start = learner.initialWeights(Map.empty)
+      val (round1, _) = learner.learnParameters(IndexedSeq(1), start, 1)
+      val (_, objective) = learner.learnParameters(IndexedSeq(1), round1, 1)
+      val (_, expected) = newLearner().learnParameters(IndexedSeq(1), start, 2)
+      objective should be(expected +- 1e-10)
+    }
+
+    it("continues to the optimum of unbounded learning") {
+      val fold = dbFiles.filterNot(_ == dbFiles(0))
+      finalScore.logLikelihood should be(CandidateScore.learn(structureStr, fold.asJava, false).logLikelihood +- 0.0001)
+    }
+  }
+
+  describe("Cancelling a candidate") {
+
+    val dbFiles = List(writeDatabase(trainingDBStr), writeDatabase(otherTrainingDBStr))
+    val learner = new CandidateLearner(structureStr, dbFiles.asJava, false)
+
+    it("stops learning without interrupting the thread") {
+      val token = new CancellationToken
+      token.cancel()
+      an[InterruptedException] should be thrownBy {
+        learner.learnAllBut(0, Int.MaxValue, token)
+      }
+      Thread.currentThread.isInterrupted should be(false)
+    }
+
+    it("does not affect later learning") {
+      val fold = dbFiles.filterNot(_ == dbFiles(0))
+      val score = learner.learnAllBut(0, Int.MaxValue, new CancellationToken)
+      score.logLikelihood should be(CandidateScore.learn(structureStr, fold.asJava, false).logLikelihood +- 0.0001)
+    }
+  }
+
+  describe("Warm-starting a candidate from the weights of its parent") {
+
+    val dbFiles = List(writeDatabase(trainingDBStr), writeDatabase(otherTrainingDBStr))
+    val parentScore = CandidateScore.learn(structureStr, dbFiles.asJava, false)
+
+    it("knows the learned weight of every formula") {
+      parentScore.learnedWeights should not be empty
+    }
+
+    it("knows the weights of formulas with reordered literals and renamed variables") {
+      val reorderedStr = """
+Advisedby(person,person)
+Tempadvisedby(person,person)
+
+0.1      !Tempadvisedby(x,z) v !Advisedby(x,y)
+"""
+      val parser = new MLNParser
+      parser.setLearnModus(true)
+      val learner = new LiftedLearning(parser.parseMLN(reorderedStr), Seq(parser.parseDB(trainingDBStr)))
+      learner.learnableClauses.map { _.weightKey }.toSet should be(parentScore.learnedWeights.keySet)
+    }
+
+    it("reaches the optimum of learning from scratch") {
+      val warmScore = new CandidateLearner(extendedStructureStr, dbFiles.asJava, false, None, parentScore.learnedWeights, true).learnAll()
+      val coldScore = CandidateScore.learn(extendedStructureStr, dbFiles.asJava, false)
+      warmScore.logLikelihood should be(coldScore.logLikelihood +- 0.0001)
+    }
+
+    it("reaches the optimum of learning from scratch when weight learning reads the weights from a file") {
+      val weightsFile = File.createTempFile("candidate", ".weights")
+      weightsFile.deleteOnExit()
+      val writer = new PrintWriter(weightsFile, "UTF-8")
+      for ((key, weight) <- parentScore.learnedWeights) writer.println(CandidateScore.weightLine(key, weight))
+      writer.close()
+      val resultFile = File.createTempFile("candidate", ".result")
+      resultFile.deleteOnExit()
+
+      val parser = new MLNParser
+      parser.setLearnModus(true)
+      val structure = parser.parseMLN(extendedStructureStr)
+      val dbs = List(trainingDBStr, otherTrainingDBStr).map { parser.parseDB(_) }
+      WeightLearning.learnWeights(structure, dbs, resultFile = Some(resultFile), initialWeights = CandidateScore.readWeights(weightsFile))
+
+      val coldScore = CandidateScore.learn(extendedStructureStr, dbFiles.asJava, false)
+      CandidateScore.read(resultFile).logLikelihood should be(coldScore.logLikelihood +- 0.0001)
+    }
+  }
+
+  describe("Candidates sharing a learning context") {
+
+    val dbFiles = List(writeDatabase(trainingDBStr), writeDatabase(otherTrainingDBStr))
+    val context = new CandidateLearningContext(headerStr)
+    val score = CandidateScore.learn(structureStr, dbFiles.asJava, false, context)
+    val missesBefore = context.nnfCache.missCount
+    val extendedScore = CandidateScore.learn(extendedStructureStr, dbFiles.asJava, false, context)
+
+    it("score like candidates learned on their own") {
+      score.logLikelihood should be(CandidateScore.learn(structureStr, dbFiles.asJava, false).logLikelihood +- 0.0001)
+      extendedScore.logLikelihood should be(CandidateScore.learn(extendedStructureStr, dbFiles.asJava, false).logLikelihood +- 0.0001)
+    }
+
+    it("reuse the circuits of earlier candidates") {
+      context.nnfCache.size should be > 0
+      context.nnfCache.hitCount should be > 0L
+      context.nnfCache.missCount should be > missesBefore
+    }
+
+    it("parse their own domains") {
+      val domains = context.newParser().domainMap.values.map { _._1 }
+      val otherDomains = context.newParser().domainMap.values.map { _._1 }
+      domains should not be empty
+      for (domain <- domains; otherDomain <- otherDomains) {
+        domain should not be theSameInstanceAs(otherDomain)
+      }
+    }
+
+    it("can learn in parallel") {
+      val parallelContext = new CandidateLearningContext(headerStr)
+      val scores = Future.sequence(List(structureStr, extendedStructureStr, structureStr, extendedStructureStr).map { structure =>
+        Future { CandidateScore.learn(structure, dbFiles.asJava, false, parallelContext) }
+      })
+      val List(score1, extendedScore1, score2, extendedScore2) = Await.result(scores, Duration.Inf)
+      score1.logLikelihood should be(score.logLikelihood +- 0.0001)
+      score2.logLikelihood should be(score.logLikelihood +- 0.0001)
+      extendedScore1.logLikelihood should be(extendedScore.logLikelihood +- 0.0001)
+      extendedScore2.logLikelihood should be(extendedScore.logLikelihood +- 0.0001)
+    }
+
+    it("keep a bounded number of circuits") {
+      val smallContext = new CandidateLearningContext(headerStr, 2)
+      val smallScore = CandidateScore.learn(extendedStructureStr, dbFiles.asJava, false, smallContext)
+      smallContext.nnfCache.size should be <= 2
+      smallScore.logLikelihood should be(extendedScore.logLikelihood +- 0.0001)
+    }
+  }
+
+  describe("Prefiltering candidates") {
+
+    it("accepts a liftable candidate and reports its circuit") {
+      val verdict = CandidatePrefilter.check(extendedStructureStr, Int.MaxValue, Int.MaxValue, 100000, 10000)
+      verdict.accepted should be(true)
+      verdict.circuitSize should be > 0
+    }
+
+    it("rejects a candidate whose circuit is too large") {
+      val verdict = CandidatePrefilter.check(extendedStructureStr, 1, Int.MaxValue, 100000, 10000)
+      verdict.accepted should be(false)
+    }
+
+    it("rejects a candidate that exceeds its compilation budget") {
+      val verdict = CandidatePrefilter.check(extendedStructureStr, Int.MaxValue, Int.MaxValue, 1, 10000)
+      verdict.accepted should be(false)
+      verdict.circuitSize should be(-1)
+      verdict.timedOut should be(false)
+    }
+
+    it("marks a rejection that ran out of time as timed out") {
+      Thread.currentThread.interrupt()
+      val verdict = try {
+        CandidatePrefilter.check(extendedStructureStr, Int.MaxValue, Int.MaxValue, 100000, 10000)
+      } finally {
+        Thread.interrupted()
+      }
+      verdict.accepted should be(false)
+      verdict.timedOut should be(true)
+    }
+
+    it("rejects a candidate that cannot be compiled without grounding") {
+      val transitiveStructureStr = structureStr + """
+0.5      !Advisedby(a1,a2) v !Advisedby(a2,a3) v Advisedby(a1,a3)
+"""
+      val verdict = CandidatePrefilter.check(transitiveStructureStr, Int.MaxValue, Int.MaxValue, 100000, 10000)
+      verdict.accepted should be(false)
+      verdict.reason should (be("not liftable") or startWith("Compilation takes more than"))
+    }
+
+    it("compiles the Skolemized partition function that learning compiles") {
+      val existentialStructureStr = structureStr + """
+exist a2 Advisedby(a1,a2).
+"""
+      val verdict = CandidatePrefilter.check(existentialStructureStr, Int.MaxValue, Int.MaxValue, 100000, 10000)
+      verdict.accepted should be(true)
+    }
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.learning
+
+import org.junit.runner.RunWith
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.languages.mln._
+
+@RunWith(classOf[JUnitRunner])
+class TestGradientWeightLearning extends FunSpec with Matchers {
+
+  describe("Weight learning with the gradient of the partition function") {
+
+    val structureStr = """
+Friends(person,person)
+Smokes(person)
+
+1.4 Friends(x,y) ^ Smokes(x) => Smokes(y)
+1.2 Smokes(x)
+"""
+
+    val dbStr = """
+Friends(Anna,Bob)
+Friends(Bob,Anna)
+Friends(Anna,Edward)
+Friends(Chris,Daniel)
+Smokes(Anna)
+Smokes(Edward)
+!Smokes(Chris)
+"""
+
+    def learner() = {
+      val parser = new MLNParser
+      parser.isLearnModus = true
+      val structure = parser.parseMLN(structureStr)
+      val db = parser.parseDB(dbStr)
+      new LiftedLearning(structure, Seq(db), verbose = false)
+    }
+
+    val gradientLearner = learner()
+    gradientLearner.learnParameters()
+
+    val queryLearner = learner()
+    queryLearner.zs
+    queryLearner.gradientFromPartitionFunction = false
+    queryLearner.learnParameters()
+
+    it("is used for a model without grounding or negative weights") {
+      gradientLearner.gradientFromPartitionFunction should be(true)
+    }
+
+    it("only compiles the query circuits when their statistics are requested") {
+      gradientLearner.learnableClauses.exists { _.hasQueryCircuits } should be(false)
+      gradientLearner.learnableClauses.forall { _.queryCircuits.nonEmpty } should be(true)
+    }
+
+    it("learns the weights of the query circuits") {
+      val expected = queryLearner.learnedWeights
+      gradientLearner.learnedWeights.keySet should be(expected.keySet)
+      for ((key, weight) <- gradientLearner.learnedWeights) {
+        weight should be(expected(key) +- 0.001)
+      }
+    }
+
+    it("has the likelihood of the query circuits") {
+      def logLikelihood(learner: LiftedLearning) = {
+        learner.trainDatabaseLikelihoods.map { _.likelihood }.reduce { _ * _ }.logToDouble
+      }
+      logLikelihood(gradientLearner) should be(logLikelihood(queryLearner) +- 0.001)
+    }
+  }
+
+}
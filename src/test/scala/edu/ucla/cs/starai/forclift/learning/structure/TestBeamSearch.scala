@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.learning.structure
+
+import java.io._
+import java.nio.file.Files
+
+import scala.collection.JavaConverters._
+
+import org.junit.runner.RunWith
+import org.scalatest.BeforeAndAfter
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.learning.structure.model._
+import edu.ucla.cs.starai.forclift.learning.structure.task.TaskExecutor
+import edu.ucla.cs.starai.forclift.learning.structure.util.Settings
+
+@RunWith(classOf[JUnitRunner])
+class TestBeamSearch extends FunSpec with Matchers with BeforeAndAfter {
+
+  // learners set the global settings, and the shared executor takes its
+  // threads from them when it is created
+  var restoreSettings: () => Unit = null
+
+  before {
+    restoreSettings = saveSettings()
+    TaskExecutor.shutdownInstance()
+  }
+
+  after {
+    TaskExecutor.shutdownInstance()
+    restoreSettings()
+  }
+
+  def saveSettings(): () => Unit = {
+    val normalizeLikelihood = Settings.getNormalizeLikelihood
+    val normalizeObjectiveFunction = Settings.getNormalizeObjectiveFunction
+    val searchStrategy = Settings.getSearchStrategy
+    val complexityPenalty = Settings.getComplexityPenalty
+    val maximumNumberOfClauses = Settings.getMaximumNumberOfClauses
+    val stepSize = Settings.getStepSize
+    val timeout = Settings.getTimeoutInSeconds
+    val numberOfAdditionalThreads = Settings.getNumberOfAdditionalThreads
+    val outputDirectory = Settings.getOutputDirectory
+    val inProcessScoring = Settings.getInProcessScoring
+    val racingIterations = Settings.getRacingIterations
+    val racingFraction = Settings.getRacingFraction
+    val scoreCacheDirectory = Settings.getScoreCacheDirectory
+    val beamWidth = Settings.getBeamWidth
+    val prefilterTimeout = Settings.getPrefilterTimeoutInMilliseconds
+    val prefilterCompilationSteps = Settings.getPrefilterCompilationSteps
+    val prefilterMaximumCircuitSize = Settings.getPrefilterMaximumCircuitSize
+    val prefilterMaximumCircuitOrder = Settings.getPrefilterMaximumCircuitOrder
+    val minimumCircuitSize = Model.getMinimumCircuitSize
+    val maximumCircuitSize = Model.getMaximumCircuitSize
+    val minimumLogLikelihood = Model.getMinimumLogLikelihood
+    val maximumLogLikelihood = Model.getMaximumLogLikelihood
+    () => {
+      Settings.setNormalizeLikelihood(normalizeLikelihood)
+      Settings.setNormalizeObjectiveFunction(normalizeObjectiveFunction)
+      Settings.setSearchStrategy(searchStrategy)
+      Settings.setComplexityPenalty(complexityPenalty)
+      Settings.setMaximumNumberOfClauses(maximumNumberOfClauses)
+      Settings.setStepSize(stepSize)
+      Settings.setTimeoutInSeconds(timeout)
+      Settings.setNumberOfAdditionalThreads(numberOfAdditionalThreads)
+      Settings.setOutputDirectory(outputDirectory)
+      Settings.setInProcessScoring(inProcessScoring)
+      Settings.setRacingIterations(racingIterations)
+      Settings.setRacingFraction(racingFraction)
+      Settings.setScoreCacheDirectory(scoreCacheDirectory)
+      Settings.setBeamWidth(beamWidth)
+      Settings.setPrefilterTimeoutInMilliseconds(prefilterTimeout)
+      Settings.setPrefilterCompilationSteps(prefilterCompilationSteps)
+      Settings.setPrefilterMaximumCircuitSize(prefilterMaximumCircuitSize)
+      Settings.setPrefilterMaximumCircuitOrder(prefilterMaximumCircuitOrder)
+      Model.setMinimumCircuitSize(minimumCircuitSize)
+      Model.setMaximumCircuitSize(maximumCircuitSize)
+      Model.setMinimumLogLikelihood(minimumLogLikelihood)
+      Model.setMaximumLogLikelihood(maximumLogLikelihood)
+    }
+  }
+
+  val headerStr =
+    """
+Advisedby(person,person)
+Tempadvisedby(person,person)
+"""
+
+  val formulasStr =
+    """
+!Advisedby(a1,a2) v !Tempadvisedby(a1,a3)
+Advisedby(a1,a2) v !Tempadvisedby(a2,a1)
+!Advisedby(a1,a2) v !Advisedby(a2,a1)
+"""
+
+  val trainingDBStrs = List(
+    """
+Advisedby(Person1,Person2)
+Advisedby(Person3,Person2)
+Tempadvisedby(Person4,Person1)
+""",
+    """
+Advisedby(Person5,Person6)
+Tempadvisedby(Person7,Person5)
+Tempadvisedby(Person8,Person7)
+""")
+
+  def writeDatabase(db: String): File = {
+    val file = File.createTempFile("beam", ".db")
+    file.deleteOnExit()
+    val writer = new FileWriter(file)
+    writer.write(db)
+    writer.close()
+    file
+  }
+
+  def learn(searchStrategy: Int, beamWidth: Int, maximumNumberOfClauses: Int = 3, scoreCacheDirectory: File = null): Model = {
+    val outputDirectory = Files.createTempDirectory("beam").toFile
+    outputDirectory.deleteOnExit()
+    val options = new StructureLearner.Options()
+      .searchStrategy(searchStrategy)
+      .complexityPenalty(0.0)
+      .maximumNumberOfClauses(maximumNumberOfClauses)
+      .stepSize(0.1)
+      .timeout(60)
+      .outputDirectory(outputDirectory)
+      .inProcessScoring(true)
+      .beamWidth(beamWidth)
+      .scoreCacheDirectory(scoreCacheDirectory)
+    val learner = new StructureLearner(trainingDBStrs.map(writeDatabase).asJava, headerStr, formulasStr, options)
+    learner.learn()
+  }
+
+  // learned by the first test that needs them
+  lazy val greedyModel = learn(Settings.GREEDY_SEARCH, 1)
+  lazy val beamModel = learn(Settings.BEAM_SEARCH, 1)
+
+  describe("Beam search") {
+
+    it("with a beam of width one learns the model of the greedy search") {
+      beamModel.getClauses.asScala.toSet should be(greedyModel.getClauses.asScala.toSet)
+      beamModel.getFinalLogLikelihood should be(greedyModel.getFinalLogLikelihood +- 0.001)
+    }
+
+    it("with a beam as wide as the candidates learns a model at least as good") {
+      // the path of the narrow beam only passes models that improve, which
+      // the wide beam extends as well
+      val wideModel = learn(Settings.BEAM_SEARCH, 3)
+      wideModel.getFinalScoreObject should not be (null)
+      wideModel.getFinalLogLikelihood should be >= beamModel.getFinalLogLikelihood - 0.001
+    }
+
+  }
+
+  describe("Checkpoints") {
+
+    def checkpointFiles(directory: File) =
+      directory.listFiles.filter { file => file.getName.startsWith("checkpoint-") && file.getName.endsWith(".txt") }
+
+    // replaces the single checkpoint in the directory
+    def writeCheckpoint(directory: File, lines: String*) {
+      val files = checkpointFiles(directory)
+      files should have size (1)
+      val writer = new FileWriter(files.head)
+      lines.foreach { line => writer.write(line + "\n") }
+      writer.close()
+    }
+
+    def cacheDirectory = {
+      val directory = Files.createTempDirectory("checkpoints").toFile
+      directory.deleteOnExit()
+      directory
+    }
+
+    val candidates = ClauseBuilder.buildClausesFromTheory(formulasStr).asScala
+
+    it("let the greedy search resume to the model of an uninterrupted run") {
+      val directory = cacheDirectory
+      learn(Settings.GREEDY_SEARCH, 1, 1, directory)
+      checkpointFiles(directory) should have size (1)
+      val resumedModel = learn(Settings.GREEDY_SEARCH, 1, 3, directory)
+      resumedModel.getClauses.asScala.toSet should be(greedyModel.getClauses.asScala.toSet)
+    }
+
+    it("are where the greedy search resumes") {
+      val directory = cacheDirectory
+      val firstModel = learn(Settings.GREEDY_SEARCH, 1, 1, directory)
+      val otherClause = candidates.find { !firstModel.getClauses.contains(_) }.get
+      writeCheckpoint(directory, "iteration 0", "clause " + otherClause)
+      val resumedModel = learn(Settings.GREEDY_SEARCH, 1, 1, directory)
+      resumedModel.getClauses.asScala.toSet should be(Set(otherClause))
+    }
+
+    it("let the beam search resume to the model of an uninterrupted run") {
+      val directory = cacheDirectory
+      val firstModel = learn(Settings.BEAM_SEARCH, 2, 3, directory)
+      checkpointFiles(directory) should have size (1)
+      val resumedModel = learn(Settings.BEAM_SEARCH, 2, 3, directory)
+      resumedModel.getClauses.asScala.toSet should be(firstModel.getClauses.asScala.toSet)
+    }
+
+    it("are where the beam search resumes") {
+      val directory = cacheDirectory
+      val firstModel = learn(Settings.BEAM_SEARCH, 2, 1, directory)
+      val otherClause = candidates.find { !firstModel.getClauses.contains(_) }.get
+      // an empty beam ends the search at the best model of the checkpoint
+      writeCheckpoint(directory, "iteration 0", "clause " + otherClause, "beam 0")
+      val resumedModel = learn(Settings.BEAM_SEARCH, 2, 1, directory)
+      resumedModel.getClauses.asScala.toSet should be(Set(otherClause))
+    }
+
+  }
+
+}
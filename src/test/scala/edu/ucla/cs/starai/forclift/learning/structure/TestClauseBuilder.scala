@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.learning.structure
+
+import org.junit.runner.RunWith
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.learning.structure.model._
+
+@RunWith(classOf[JUnitRunner])
+class TestClauseBuilder extends FunSpec with Matchers {
+
+  describe("Building clauses in canonical form") {
+
+    it("ignores the names of variables") {
+      val clause = ClauseBuilder.buildClauseFromString("workedUnder(-1,-2) v !actor(-1)")
+      val renamed = ClauseBuilder.buildClauseFromString("workedUnder(b,a) v !actor(b)")
+      clause should be(renamed)
+      clause.hashCode should be(renamed.hashCode)
+      clause.toString should be(renamed.toString)
+    }
+
+    it("ignores the order of literals") {
+      val clause = ClauseBuilder.buildClauseFromString("!movie(x,y) v !movie(x,z) v workedUnder(y,z)")
+      val reordered = ClauseBuilder.buildClauseFromString("workedUnder(a,b) v !movie(c,b) v !movie(c,a)")
+      clause should be(reordered)
+      clause.toString should be(reordered.toString)
+    }
+
+    it("distinguishes clauses that only agree on their literal patterns") {
+      val clause = ClauseBuilder.buildClauseFromString("!movie(x,y) v workedUnder(x,y)")
+      val swapped = ClauseBuilder.buildClauseFromString("!movie(x,y) v workedUnder(y,x)")
+      clause should not be (swapped)
+    }
+
+    it("deduplicates equivalent formulas of a theory") {
+      val theory = "!actor(a) v workedUnder(a,b)\nworkedUnder(x,y) v !actor(x)\nworkedUnder(x,y) v !actor(y)\n"
+      ClauseBuilder.buildClausesFromTheory(theory).size should be(2)
+    }
+
+  }
+
+  describe("Comparing models") {
+
+    it("considers models with equivalent clauses equal") {
+      val model = new Model
+      model.addTyping("actor(person)")
+      model.addClause(ClauseBuilder.buildClauseFromString("!actor(a) v workedUnder(a,b)"))
+      val otherModel = new Model
+      otherModel.addTyping("actor(person)")
+      otherModel.addClause(ClauseBuilder.buildClauseFromString("workedUnder(x,y) v !actor(x)"))
+      model should be(otherModel)
+      model.getFingerprint should be(otherModel.getFingerprint)
+    }
+
+    it("does not merge different models") {
+      val model = new Model
+      model.addClause(ClauseBuilder.buildClauseFromString("!actor(a) v workedUnder(a,b)"))
+      val otherModel = new Model
+      otherModel.addClause(ClauseBuilder.buildClauseFromString("!actor(a) v workedUnder(b,a)"))
+      model should not be (otherModel)
+      model.getFingerprint should not be (otherModel.getFingerprint)
+    }
+
+  }
+
+}
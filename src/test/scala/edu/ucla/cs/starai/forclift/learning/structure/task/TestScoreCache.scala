@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.ucla.cs.starai.forclift.learning.structure.task
+
+import java.io._
+import java.nio.file.Files
+
+import scala.collection.JavaConverters._
+import scala.io.Source
+
+import org.junit.runner.RunWith
+import org.scalatest.BeforeAndAfter
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.learning.structure.model._
+import edu.ucla.cs.starai.forclift.learning.structure.util.Settings
+
+@RunWith(classOf[JUnitRunner])
+class TestScoreCache extends FunSpec with Matchers with BeforeAndAfter {
+
+  var directory: File = null
+  var previousDirectory: File = null
+
+  before {
+    previousDirectory = Settings.getScoreCacheDirectory
+    directory = Files.createTempDirectory("scores").toFile
+    Settings.setScoreCacheDirectory(directory)
+  }
+
+  after {
+    Settings.setScoreCacheDirectory(previousDirectory)
+    directory.listFiles.foreach { _.delete() }
+    directory.delete()
+  }
+
+  def writeDatabase(db: String): File = {
+    val file = File.createTempFile("scores", ".db")
+    file.deleteOnExit()
+    val writer = new FileWriter(file)
+    writer.write(db)
+    writer.close()
+    file
+  }
+
+  def model: Model = {
+    val model = ModelBuilder.buildEmptyModelFromTheory("Friends(person,person)\nSmokes(person)\n")
+    model.addClause(ClauseBuilder.buildClauseFromString("!Friends(a1,a2) v !Smokes(a1) v Smokes(a2)"))
+    model
+  }
+
+  def score: Score = {
+    val score = new Score(model)
+    score.setLogLikelihood(-12.5)
+    score.setPartitionCircuitOrder(1)
+    score.setPartitionCircuitSize(42)
+    score.addQueryCircuitOrder(2)
+    score.addQueryCircuitSize(17)
+    score.setLearnedWeights(Map[String, java.lang.Double]("!Friends(a1,a2) v !Smokes(a1) v Smokes(a2)" -> 0.75).asJava)
+    score.addLineToLearnedModel("0.75 !Friends(a1,a2) v !Smokes(a1) v Smokes(a2)")
+    score.setCompilable(true)
+    score
+  }
+
+  val databases = List(writeDatabase("Friends(Anna,Bob)\nSmokes(Anna)\n")).asJava
+
+  def scoreFile: File = {
+    val files = directory.listFiles.filter { _.getName.startsWith("score-") }
+    files should have size (1)
+    files.head
+  }
+
+  def rewrite(file: File)(f: List[String] => List[String]) {
+    val source = Source.fromFile(file, "UTF-8")
+    val lines = try source.getLines.toList finally source.close()
+    val writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")
+    try f(lines).foreach { line => writer.write(line + "\n") } finally writer.close()
+  }
+
+  describe("ScoreCache") {
+
+    it("returns a stored score") {
+      ScoreCache.getInstance.put(score, databases, databases, null)
+      val cached = ScoreCache.getInstance.get(model, databases, databases, null)
+      cached should not be (null)
+      cached.isCached should be(true)
+      cached.isCompilable should be(true)
+      cached.getLogLikelihood should be(-12.5)
+      cached.getPartitionCircuitOrder should be(1)
+      cached.getPartitionCircuitSize should be(42)
+      cached.getQueryCircuitOrders.asScala should be(List(2))
+      cached.getQueryCircuitSizes.asScala should be(List(17))
+      cached.getLearnedWeights.asScala should be(Map("!Friends(a1,a2) v !Smokes(a1) v Smokes(a2)" -> 0.75))
+      cached.getLearnedModel.asScala should be(List("0.75 !Friends(a1,a2) v !Smokes(a1) v Smokes(a2)"))
+    }
+
+    it("does not return a score of other databases or initial weights") {
+      ScoreCache.getInstance.put(score, databases, databases, null)
+      val otherDatabases = List(writeDatabase("Friends(Anna,Bob)\n")).asJava
+      ScoreCache.getInstance.get(model, otherDatabases, otherDatabases, null) should be(null)
+      val initialWeights = Map[String, java.lang.Double]("!Friends(a1,a2) v !Smokes(a1) v Smokes(a2)" -> 1.0).asJava
+      ScoreCache.getInstance.get(model, databases, databases, initialWeights) should be(null)
+    }
+
+    it("does not store scores of models that did not compile") {
+      val failed = score
+      failed.setCompilable(false)
+      ScoreCache.getInstance.put(failed, databases, databases, null)
+      ScoreCache.getInstance.get(model, databases, databases, null) should be(null)
+    }
+
+    it("writes the log likelihood last") {
+      ScoreCache.getInstance.put(score, databases, databases, null)
+      val source = Source.fromFile(scoreFile, "UTF-8")
+      val lines = try source.getLines.toList finally source.close()
+      lines.last should startWith("logLikelihood ")
+      lines.count { _.startsWith("logLikelihood ") } should be(1)
+    }
+
+    it("rejects a truncated score") {
+      ScoreCache.getInstance.put(score, databases, databases, null)
+      rewrite(scoreFile) { _.init }
+      ScoreCache.getInstance.get(model, databases, databases, null) should be(null)
+    }
+
+    it("rejects a corrupt score") {
+      ScoreCache.getInstance.put(score, databases, databases, null)
+      rewrite(scoreFile) { _.map { line => if (line.startsWith("partitionCircuitSize ")) "partitionCircuitSize 4x" else line } }
+      ScoreCache.getInstance.get(model, databases, databases, null) should be(null)
+    }
+
+  }
+
+}
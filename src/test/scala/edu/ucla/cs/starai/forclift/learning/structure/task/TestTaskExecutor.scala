@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.ucla.cs.starai.forclift.learning.structure.task
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+import org.junit.runner.RunWith
+import org.scalatest.BeforeAndAfter
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.learning.CancellationToken
+
+@RunWith(classOf[JUnitRunner])
+class TestTaskExecutor extends FunSpec with Matchers with BeforeAndAfter {
+
+  var executor: TaskExecutor = null
+
+  before {
+    executor = new TaskExecutor(3)
+  }
+
+  after {
+    executor.shutdownNow()
+  }
+
+  def task(result: Int, delayInMilliseconds: Long) = new Callable[Integer] {
+    def call: Integer = {
+      Thread.sleep(delayInMilliseconds)
+      result
+    }
+  }
+
+  // records the results and keeps listening while the condition holds
+  class Recorder(keepListening: Integer => Boolean = _ => true) extends TaskExecutor.ResultListener[Integer] {
+    val results = new mutable.ArrayBuffer[Int]
+    def resultAvailable(result: Integer): Boolean = synchronized {
+      results += result
+      keepListening(result)
+    }
+  }
+
+  describe("Executing tasks") {
+
+    it("hands the results over in order of completion") {
+      val recorder = new Recorder
+      val tasks = List(task(0, 600), task(1, 0), task(2, 300))
+      executor.executeTasks(tasks.asJava, recorder) should be(true)
+      recorder.results should be(List(1, 2, 0))
+    }
+
+    it("skips failed tasks") {
+      val failing = new Callable[Integer] {
+        def call: Integer = throw new IllegalStateException("failed")
+      }
+      val recorder = new Recorder
+      executor.executeTasks(List(failing, task(1, 0)).asJava, recorder) should be(true)
+      recorder.results should be(List(1))
+    }
+
+    it("cancels the outstanding tasks once the listener stops listening") {
+      val started = new CountDownLatch(1)
+      val interrupted = new CountDownLatch(1)
+      val blocking = new Callable[Integer] {
+        def call: Integer = {
+          started.countDown()
+          try Thread.sleep(60000)
+          catch {
+            case e: InterruptedException =>
+              interrupted.countDown()
+              throw e
+          }
+          2
+        }
+      }
+      // finishes once the blocking task runs, so that there is one to cancel
+      val quick = new Callable[Integer] {
+        def call: Integer = {
+          started.await()
+          1
+        }
+      }
+      val recorder = new Recorder(_ => false)
+      executor.executeTasks(List(blocking, quick).asJava, recorder) should be(false)
+      recorder.results should be(List(1))
+      interrupted.await(10, TimeUnit.SECONDS) should be(true)
+    }
+  }
+
+  describe("Task timeouts") {
+
+    it("run the monitor of a task once its timeout has passed") {
+      val token = new CancellationToken
+      executor.scheduleTimeout(new TaskMonitor(token), 50, TimeUnit.MILLISECONDS)
+      val deadline = System.currentTimeMillis + 10000
+      while (!token.isCancelled && System.currentTimeMillis < deadline) Thread.sleep(10)
+      token.isCancelled should be(true)
+    }
+
+    it("do not run the monitor of a task that finished in time") {
+      val token = new CancellationToken
+      val timeout = executor.scheduleTimeout(new TaskMonitor(token), 300, TimeUnit.MILLISECONDS)
+      timeout.cancel(false) should be(true)
+      Thread.sleep(600)
+      token.isCancelled should be(false)
+    }
+  }
+
+}
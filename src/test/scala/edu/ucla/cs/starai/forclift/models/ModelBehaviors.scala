@@ -20,16 +20,37 @@ import org.scalatest.Spec
 import org.scalatest.Matchers
 import org.scalatest.FunSpec
 import org.scalactic.TripleEqualsSupport.Spread
+import org.scalatest.Tag
 import org.scalatest.tagobjects.Slow
 
+import edu.ucla.cs.starai.forclift.nnf.visitors.WmcEvaluators
+
 trait ModelBehaviours extends FunSpec with Matchers {
 
+  /**
+   * Every evaluator of the compiled circuit, see WmcEvaluators, gives the
+   * correct WMC or cannot evaluate the model.
+   */
+  def evaluatedModel(model: StringModel, correctLogWmc: Spread[Double], tags: Tag*) {
+
+    for ((name, evaluate) <- WmcEvaluators.all) {
+      it(s"should have the correct lifted WMC by $name", tags: _*) {
+        val wmc = evaluate(model.theory)
+        assume(wmc.nonEmpty, s"$name cannot evaluate the model")
+        wmc.get should be(correctLogWmc)
+      }
+    }
+
+  }
+
   def slowBigModel(model: StringModel, correctLogWmc: Spread[Double]) {
 
     it("should have the correct lifted WMC", Slow) {
       model.theory.logSmoothWmc.logToDouble should be(correctLogWmc)
     }
 
+    it should behave like evaluatedModel(model, correctLogWmc, Slow)
+
   }
   
   def bigModel(model: StringModel, correctLogWmc: Spread[Double]) {
@@ -38,6 +59,8 @@ trait ModelBehaviours extends FunSpec with Matchers {
       model.theory.logSmoothWmc.logToDouble should be(correctLogWmc)
     }
 
+    it should behave like evaluatedModel(model, correctLogWmc)
+
   }
 
   def smallModel(model: StringModel, correctLogWmc: Spread[Double]) {
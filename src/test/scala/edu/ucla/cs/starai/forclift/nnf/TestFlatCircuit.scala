@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf
+
+import org.junit.runner.RunWith
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.examples.models.FriendsSmokerModel
+import edu.ucla.cs.starai.forclift.inference.DomainSizes
+import edu.ucla.cs.starai.forclift.inference.Weights
+import edu.ucla.cs.starai.forclift.nnf.visitors.WmcCache
+import edu.ucla.cs.starai.forclift.nnf.visitors.WmcVisitor
+
+@RunWith(classOf[JUnitRunner])
+class TestFlatCircuit extends FunSpec with Matchers {
+
+  describe("A flattened FriendsSmokerModel of size 100") {
+
+    val theory = new FriendsSmokerModel(100).theory
+    val flatCircuit = FlatCircuit.flatten(theory.smoothNnf)
+
+    it("can be flattened") {
+      flatCircuit should not be empty
+      flatCircuit.get.supports(theory.predicateWeights) should be(true)
+    }
+
+    it("has the correct WMC for other domain sizes") {
+      val smaller = new FriendsSmokerModel(10).theory
+      val wmc = flatCircuit.get.wmc(smaller.domainSizes, theory.predicateWeights)
+      val visitorWmc = smaller.wmcVisitor.wmc(smaller.smoothNnf, smaller.domainSizes, smaller.predicateWeights)
+      wmc.logToDouble should be(visitorWmc.logToDouble +- 0.00001)
+    }
+
+    it("fails like the visitor without the size of a domain") {
+      a[NoSuchElementException] should be thrownBy {
+        theory.wmcVisitor.wmc(theory.smoothNnf, DomainSizes.empty, theory.predicateWeights)
+      }
+      a[NoSuchElementException] should be thrownBy {
+        flatCircuit.get.wmc(DomainSizes.empty, theory.predicateWeights)
+      }
+    }
+  }
+
+  describe("A flattened FriendsSmokerModel of size 10 with evidence") {
+
+    val theory = new FriendsSmokerModel(10, List("guy", "luc", "bert"), List("friends(guy,luc)", "smokes(luc)")).theory
+    val flatCircuit = FlatCircuit.flatten(theory.smoothNnf)
+
+    it("has the correct WMC") {
+      val wmc = flatCircuit.get.wmc(theory.domainSizes, theory.predicateWeights)
+      wmc.logToDouble should be(119.89286177478779 +- 0.00001)
+    }
+
+    it("agrees with the visitor") {
+      // neither reuses the results of the other
+      WmcCache.clearPool()
+      val wmc = flatCircuit.get.wmc(theory.domainSizes, theory.predicateWeights)
+      WmcCache.clearPool()
+      val visitorWmc = theory.wmcVisitor.wmc(theory.smoothNnf, theory.domainSizes, theory.predicateWeights)
+      wmc.logToDouble should be(visitorWmc.logToDouble +- 0.00001)
+    }
+  }
+
+  describe("A flattened FriendsSmokerModel of size 10 with a negative weight") {
+
+    val theory = new FriendsSmokerModel(10).theory
+    val smokes = theory.vocabularyPredicates.find { _.name.name == "smokes" }.get
+    val weights = theory.predicateWeights + (smokes, Weights(-0.5, 1))
+    val flatCircuit = FlatCircuit.flatten(theory.smoothNnf)
+
+    it("is evaluated with signed weights") {
+      flatCircuit.get.supports(weights) should be(false)
+      flatCircuit.get.supportsSigned(weights) should be(true)
+    }
+
+    it("agrees with the signed visitor") {
+      val visitorWmc = WmcVisitor(weights).wmc(theory.smoothNnf, theory.domainSizes, weights)
+      // do not reuse the weights that the visitor cached
+      WmcCache.clearPool()
+      val wmc = flatCircuit.get.wmc(theory.domainSizes, weights)
+      wmc.pos should be(visitorWmc.pos)
+      wmc.ld.logToDouble should be(visitorWmc.ld.logToDouble +- 0.00001)
+    }
+  }
+
+}
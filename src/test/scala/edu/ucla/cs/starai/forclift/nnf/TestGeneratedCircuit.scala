@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf
+
+import javax.tools.ToolProvider
+
+import org.junit.runner.RunWith
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.examples.models.FriendsSmokerModel
+
+@RunWith(classOf[JUnitRunner])
+class TestGeneratedCircuit extends FunSpec with Matchers {
+
+  def hasCompiler = ToolProvider.getSystemJavaCompiler != null
+
+  describe("The generated source of a FriendsSmokerModel") {
+
+    val flatCircuit = FlatCircuit.flatten(new FriendsSmokerModel(10).theory.smoothNnf).get
+    val source = GeneratedCircuit.source(flatCircuit, "Circuit0")
+
+    it("has a method for every node") {
+      for (node <- 0 until flatCircuit.nbNodes) {
+        source should include(s"static double e$node(Circuit0 v)")
+      }
+    }
+  }
+
+  describe("A FriendsSmokerModel generated with few nodes per class") {
+
+    val theory = new FriendsSmokerModel(10).theory
+    val flatCircuit = FlatCircuit.flatten(theory.smoothNnf).get
+
+    it("splits the node methods over several classes") {
+      val source = GeneratedCircuit.source(flatCircuit, "Circuit0", 3)
+      for (part <- 0 until (flatCircuit.nbNodes + 2) / 3) {
+        source should include(s"final class Circuit0_$part {")
+      }
+    }
+
+    it("agrees with the flat circuit") {
+      assume(hasCompiler)
+      val generatedCircuit = GeneratedCircuit.generate(flatCircuit, 3)
+      generatedCircuit should not be empty
+      val wmc = generatedCircuit.get.wmc(theory.domainSizes, theory.predicateWeights)
+      wmc.logToDouble should be(flatCircuit.wmc(theory.domainSizes, theory.predicateWeights).logToDouble +- 0.00001)
+    }
+  }
+
+  describe("A generated FriendsSmokerModel of size 100") {
+
+    val theory = new FriendsSmokerModel(100).theory
+    lazy val generatedCircuit = FlatCircuit.flatten(theory.smoothNnf).flatMap { GeneratedCircuit.generate(_) }
+
+    it("has the correct WMC for other domain sizes") {
+      assume(hasCompiler)
+      val smaller = new FriendsSmokerModel(10).theory
+      val wmc = generatedCircuit.get.wmc(smaller.domainSizes, theory.predicateWeights)
+      wmc.logToDouble should be(smaller.logSmoothWmc.logToDouble +- 0.00001)
+    }
+  }
+
+  describe("A generated FriendsSmokerModel of size 10 with evidence") {
+
+    val theory = new FriendsSmokerModel(10, List("guy", "luc", "bert"), List("friends(guy,luc)", "smokes(luc)")).theory
+    lazy val generatedCircuit = FlatCircuit.flatten(theory.smoothNnf).flatMap { GeneratedCircuit.generate(_) }
+
+    it("agrees with the visitor") {
+      assume(hasCompiler)
+      val wmc = generatedCircuit.get.wmc(theory.domainSizes, theory.predicateWeights)
+      wmc.logToDouble should be(theory.logSmoothWmc.logToDouble +- 0.00001)
+    }
+  }
+
+}
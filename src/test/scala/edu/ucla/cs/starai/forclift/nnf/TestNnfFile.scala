@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf
+
+import java.io.File
+
+import org.junit.runner.RunWith
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.compiler.Compiler
+import edu.ucla.cs.starai.forclift.examples.models._
+import edu.ucla.cs.starai.forclift.inference.CompiledWeightedCNF
+import edu.ucla.cs.starai.forclift.inference.PredicateWeights
+import edu.ucla.cs.starai.forclift.inference.WeightedCNF
+
+@RunWith(classOf[JUnitRunner])
+class TestNnfFile extends FunSpec with Matchers {
+
+  def saved(theory: WeightedCNF): File = {
+    val file = File.createTempFile("forclift", ".nnf")
+    file.deleteOnExit()
+    theory.compiled.save(file)
+    file
+  }
+
+  def nodes(root: NNFNode): List[NNFNode] = {
+    val visited = new java.util.IdentityHashMap[NNFNode, Unit]
+    def children(node: NNFNode): List[NNFNode] = node match {
+      case ref: Ref => List(ref.nnfNode)
+      case and: And => List(and.l, and.r)
+      case or: Or => List(or.l, or.r)
+      case ie: InclusionExclusion => List(ie.plus1, ie.plus2, ie.min)
+      case forall: IndependentPartialGroundingNode => List(forall.child)
+      case exists: CountingNode => List(exists.child)
+      case dr: DomainRecursionNode => List(dr.mixedChild, dr.groundChild)
+      case _ => Nil
+    }
+    def visit(node: NNFNode): List[NNFNode] = {
+      if (node == null || visited.containsKey(node)) Nil
+      else {
+        visited.put(node, ())
+        node :: children(node).flatMap(visit)
+      }
+    }
+    visit(root)
+  }
+
+  def nodeKinds(root: NNFNode): Set[Class[_]] = nodes(root).map { _.getClass }.toSet
+
+  describe("A saved FriendsSmokerModel circuit") {
+
+    val theory = new FriendsSmokerModel(10).theory
+    val file = saved(theory)
+
+    it("is not empty") {
+      file.length should be > 0L
+    }
+
+    it("loads into a fresh parse of the same model") {
+      val fresh = new FriendsSmokerModel(10).theory
+      val domainsBefore = fresh.domainSizes.domains.map { d => (d, d.knownConstants.toList) }.toMap
+      val loaded = CompiledWeightedCNF.load(file, fresh)
+      loaded.smoothNnf.size should be(theory.smoothNnf.size)
+      loaded.logSmoothWmc(PredicateWeights.empty).logToDouble should be(fresh.logSmoothWmc.logToDouble +- 0.00001)
+      fresh.domainSizes.domains.map { d => (d, d.knownConstants.toList) }.toMap should be(domainsBefore)
+    }
+
+    it("loads into a parse of the same model with a larger domain") {
+      val larger = new FriendsSmokerModel(20).theory
+      val loaded = CompiledWeightedCNF.load(file, larger)
+      loaded.logSmoothWmc(PredicateWeights.empty).logToDouble should be(larger.logSmoothWmc.logToDouble +- 0.00001)
+    }
+
+    it("does not load into another theory") {
+      val other = new FriendsSmokerModel(10, List("guy", "luc", "bert"), List("friends(guy,luc)", "smokes(luc)")).theory
+      an[IllegalArgumentException] should be thrownBy {
+        CompiledWeightedCNF.load(file, other)
+      }
+    }
+
+    it("numbers later splits of a domain after its loaded subdomains") {
+      val fresh = new FriendsSmokerModel(10).theory
+      val loaded = CompiledWeightedCNF.load(file, fresh)
+      val counted = nodes(loaded.smoothNnf).collect { case exists: CountingNode => exists }
+      counted should not be empty
+      for (exists <- counted) {
+        exists.domain.nbSplits should be >= exists.subdomain.subScript.trim.toInt
+      }
+    }
+
+    it("can be flattened") {
+      CompiledWeightedCNF.load(file, theory).flatSmoothNnf should not be empty
+    }
+
+    it("can be saved again") {
+      val again = File.createTempFile("friendsmoker", ".nnf")
+      again.deleteOnExit()
+      CompiledWeightedCNF.load(file, theory).save(again)
+      val fresh = new FriendsSmokerModel(10).theory
+      val reloaded = CompiledWeightedCNF.load(again, fresh)
+      reloaded.logSmoothWmc(PredicateWeights.empty).logToDouble should be(fresh.logSmoothWmc.logToDouble +- 0.00001)
+    }
+  }
+
+  describe("Saved circuits") {
+
+    val groundedModel = () => new WeightedCNFModel {
+      compilerBuilder = Compiler.Builder.defaultWithGrounding
+      def theoryString = """
+domain D 3
+predicate f(D,D) 1.2 1
+!f(X,Y) v !f(Y,Z) v f(X,Z)
+"""
+    }
+
+    val models: List[(String, () => StringModel)] = List(
+      ("FriendsSmokerModel with evidence", () => new FriendsSmokerModel(10, List("guy", "luc"), List("friends(guy,luc)", "!smokes(luc)"))),
+      ("SymmetricFriendsSmokerModel", () => new SymmetricFriendsSmokerModel(5)),
+      ("DummyInclusionExclusionModel", () => new DummyInclusionExclusionModel(4)),
+      ("a transitive model compiled with grounding", groundedModel))
+
+    val kinds = models.map {
+      case (name, model) =>
+        val theory = model().theory
+        val file = saved(theory)
+        it(s"of a $name load into a fresh parse") {
+          val fresh = model().theory
+          val loaded = CompiledWeightedCNF.load(file, fresh)
+          loaded.logSmoothWmc(PredicateWeights.empty).logToDouble should be(fresh.logSmoothWmc.logToDouble +- 0.00001)
+        }
+        nodeKinds(theory.smoothNnf)
+    }.reduce { _ ++ _ }
+
+    it("cover every kind of first-order node") {
+      kinds should contain(classOf[DomainRecursionNode])
+      kinds should contain(classOf[InclusionExclusion])
+      kinds should contain(classOf[IndependentPartialGroundingNode])
+      kinds should contain(classOf[GroundingNode])
+    }
+  }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf
+
+import org.junit.runner.RunWith
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.examples.models.FriendsSmokerModel
+import edu.ucla.cs.starai.forclift.inference.Weights
+
+@RunWith(classOf[JUnitRunner])
+class TestWmcGradient extends FunSpec with Matchers {
+
+  describe("The gradient of a FriendsSmokerModel of size 100") {
+
+    val theory = new FriendsSmokerModel(100).theory
+    val flatCircuit = FlatCircuit.flatten(theory.smoothNnf).get
+
+    it("can be computed") {
+      WmcGradient.supports(flatCircuit) should be(true)
+    }
+  }
+
+  describe("The gradient of a FriendsSmokerModel of size 10") {
+
+    val theory = new FriendsSmokerModel(10).theory
+    val flatCircuit = FlatCircuit.flatten(theory.smoothNnf).get
+    val gradient = WmcGradient(flatCircuit, theory.domainSizes, theory.predicateWeights)
+
+    it("covers all predicates") {
+      gradient.predicates should not be empty
+    }
+
+    it("expects every grounding to be either true or false") {
+      for (predicate <- gradient.predicates) {
+        val nbGroundings = math.pow(10, predicate.arity)
+        val expected = gradient.expectedTrueGroundings(predicate) + gradient.expectedFalseGroundings(predicate)
+        expected should be(nbGroundings +- 0.000001 * nbGroundings)
+      }
+    }
+
+    it("agrees with finite differences of the WMC") {
+      val h = 0.00001
+      for (predicate <- gradient.predicates) {
+        val weights = theory.predicateWeights(predicate)
+        def logWmc(scale: Double) = {
+          val scaled = Weights(weights.posWDouble * math.exp(scale), weights.negWDouble)
+          flatCircuit.wmc(theory.domainSizes, theory.predicateWeights + (predicate, scaled)).logToDouble
+        }
+        val derivative = (logWmc(h) - logWmc(-h)) / (2 * h)
+        val expectedTrue = gradient.expectedTrueGroundings(predicate)
+        expectedTrue should be(derivative +- (0.001 * math.abs(derivative) + 0.001))
+      }
+    }
+
+    it("gives marginals between zero and one") {
+      for (predicate <- gradient.predicates) {
+        gradient.marginal(predicate) should (be >= 0.0 and be <= 1.0)
+      }
+    }
+  }
+
+}
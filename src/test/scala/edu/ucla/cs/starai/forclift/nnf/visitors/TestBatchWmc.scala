@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf.visitors
+
+import org.junit.runner.RunWith
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.examples.models.FriendsSmokerModel
+import edu.ucla.cs.starai.forclift.inference.WeightsFromExp
+
+@RunWith(classOf[JUnitRunner])
+class TestBatchWmc extends FunSpec with Matchers {
+
+  describe("Batched evaluation of FriendsSmokerModel of size 10") {
+
+    val theory = new FriendsSmokerModel(10, List("guy", "luc", "bert"), List("friends(guy,luc)", "smokes(luc)")).theory
+    val nnf = theory.smoothNnf
+    val predicate = theory.predicateWeights.predicates.head
+    val weights = IndexedSeq(
+      theory.predicateWeights,
+      theory.predicateWeights.update(predicate, WeightsFromExp(2, 1)),
+      theory.predicateWeights.update(predicate, WeightsFromExp(0.5, 3)))
+
+    it("agrees with evaluating each weight function separately") {
+      val batchWmc = WmcVisitor.wmc(nnf, theory.domainSizes, weights)
+      batchWmc.size should be(3)
+      for ((wmc, w) <- batchWmc.zip(weights)) {
+        val expected = WmcVisitor(w).wmc(nnf, theory.domainSizes, w)
+        wmc.logToDouble should be(expected.logToDouble +- 0.00001)
+      }
+    }
+
+    it("has the correct WMC for the original weights") {
+      val batchWmc = WmcVisitor.wmc(nnf, theory.domainSizes, weights)
+      batchWmc.head.logToDouble should be(119.89286177478779 +- 0.00001)
+    }
+  }
+
+}
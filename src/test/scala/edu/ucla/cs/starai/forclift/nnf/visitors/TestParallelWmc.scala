@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf.visitors
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinPool
+
+import org.junit.runner.RunWith
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.examples.models.FriendsSmokerModel
+
+@RunWith(classOf[JUnitRunner])
+class TestParallelWmc extends FunSpec with Matchers {
+
+  describe("Parallel evaluation of FriendsSmokerModel of size 100") {
+
+    val theory = new FriendsSmokerModel(100).theory
+    val nnf = theory.smoothNnf
+    val correctLogWmc = new CachingLogDoubleWmc().wmc(nnf, theory.domainSizes, theory.predicateWeights).logToDouble +- 0.00001
+
+    def withThreshold[T](threshold: Double)(body: => T): T = {
+      val oldThreshold = ParallelWmc.threshold
+      ParallelWmc.threshold = threshold
+      try body finally ParallelWmc.threshold = oldThreshold
+    }
+
+    it("matches the sequential WMC when every node is forked") {
+      withThreshold(0) {
+        val wmc = new ParallelLogDoubleWmc(4).wmc(nnf, theory.domainSizes, theory.predicateWeights)
+        wmc.logToDouble should be(correctLogWmc)
+      }
+    }
+
+    it("matches the sequential WMC with signed weights") {
+      withThreshold(0) {
+        val wmc = new ParallelSignLogDoubleWmc(4).wmc(nnf, theory.domainSizes, theory.predicateWeights)
+        wmc.logToDouble should be(correctLogWmc)
+      }
+    }
+
+    it("can be evaluated repeatedly by the same visitor") {
+      val visitor = new ParallelLogDoubleWmc(2)
+      val first = visitor.wmc(nnf, theory.domainSizes, theory.predicateWeights)
+      val second = visitor.wmc(nnf, theory.domainSizes, theory.predicateWeights)
+      second.logToDouble should be(first.logToDouble +- 0.00001)
+    }
+
+    it("evaluates in its own pool when called from another fork/join pool") {
+      withThreshold(0) {
+        val otherPool = new ForkJoinPool(1)
+        try {
+          val wmc = otherPool.submit(new Callable[Double] {
+            def call = new ParallelLogDoubleWmc(4).wmc(nnf, theory.domainSizes, theory.predicateWeights).logToDouble
+          }).get
+          wmc should be(correctLogWmc)
+        } finally {
+          otherPool.shutdown()
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.ucla.cs.starai.forclift.nnf.visitors
+
+import org.junit.runner.RunWith
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.inference.Weights
+import edu.ucla.cs.starai.forclift.languages.mln.MLNParser
+import edu.ucla.cs.starai.forclift.nnf.FlatCircuit
+
+@RunWith(classOf[JUnitRunner])
+class TestSignLogDoubleWmc extends FunSpec with Matchers {
+
+  describe("A Skolemized existential MLN with a negative weight") {
+
+    val mln = (new MLNParser).parseMLN("""
+elmts = {E1,E2,E3}
+p(elmts)
+
+1 EXIST x p(x)
+""")
+    val theory = mln.toWeightedCNFWithoutSplitting(skolemize = true)
+    val nnf = theory.smoothNnf
+    val p = theory.vocabularyPredicates.find { _.name.name == "p" }.get
+    val weights = theory.predicateWeights + (p, Weights(-3, 1))
+
+    // worlds where some p(x) holds weigh e, the world where none does weighs 1,
+    // so the WMC is e * ((-3 + 1)^3 - 1) + 1
+    val correctLogWmc = math.log(9 * math.E - 1) +- 0.00001
+
+    it("has a Skolem predicate with a negative weight") {
+      val skolemPredicates = theory.predicateWeights.predicates.filter { predicate =>
+        val name = predicate.name.name
+        name.startsWith("sef_") || name.startsWith("zef_")
+      }
+      skolemPredicates should not be empty
+      skolemPredicates.exists { predicate =>
+        val w = theory.predicateWeights(predicate)
+        w.posW < 0 || w.negW < 0
+      } should be(true)
+    }
+
+    val evaluators = List(
+      ("the signed visitor", () => new SignLogDoubleWmc().wmc(nnf, theory.domainSizes, weights)),
+      ("the caching signed visitor", () => new CachingSignLogDoubleWmc().wmc(nnf, theory.domainSizes, weights)),
+      ("the parallel signed visitor", () => new ParallelSignLogDoubleWmc(2).wmc(nnf, theory.domainSizes, weights)),
+      ("the flat circuit", () => FlatCircuit.flatten(nnf).get.wmc(theory.domainSizes, weights)))
+
+    for ((name, evaluate) <- evaluators) {
+      it(s"has a negative WMC under $name") {
+        val wmc = evaluate()
+        wmc.pos should be(false)
+        wmc.ld.logToDouble should be(correctLogWmc)
+      }
+    }
+  }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf.visitors
+
+import org.junit.runner.RunWith
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.examples.models.FriendsSmokerModel
+import edu.ucla.cs.starai.forclift.examples.models.WeightedCNFModel
+
+@RunWith(classOf[JUnitRunner])
+class TestTruncatedWmc extends FunSpec with Matchers {
+
+  describe("The truncated WMC of a FriendsSmokerModel of size 100") {
+
+    val theory = new FriendsSmokerModel(100).theory
+    lazy val exact = new LogDoubleWmc().wmc(theory.smoothNnf, theory.domainSizes, theory.predicateWeights).logToDouble
+
+    it("is exact without tolerance") {
+      val estimate = theory.logSmoothWmcEstimate(0)
+      estimate.truncated.logToDouble should be(exact +- 0.00001)
+      estimate.extrapolated.logToDouble should be(exact +- 0.00001)
+    }
+
+    it("skips terms and estimates the exact WMC within the tolerance") {
+      val tolerance = 0.01
+      val visitor = TruncatedWmc(tolerance)
+      val estimate = visitor.wmc(theory.smoothNnf, theory.domainSizes, theory.predicateWeights)
+      visitor.skippedTerms should be > 0L
+      estimate.relativeError should be <= tolerance
+      estimate.truncated.logToDouble should be <= (exact + 0.00001)
+      estimate.extrapolated.logToDouble should be >= (exact - 0.00001)
+      math.expm1(exact - estimate.truncated.logToDouble) should be <= tolerance
+    }
+
+    it("evaluates fewer terms than an exact evaluation") {
+      val exactVisitor = TruncatedWmc(0)
+      exactVisitor.wmc(theory.smoothNnf, theory.domainSizes, theory.predicateWeights)
+      val visitor = TruncatedWmc(0.01)
+      visitor.wmc(theory.smoothNnf, theory.domainSizes, theory.predicateWeights)
+      visitor.evaluatedTerms should be < exactVisitor.evaluatedTerms
+    }
+  }
+
+  describe("The truncated WMC of a model whose counts are bimodal") {
+
+    // a weight of 2 for every pair of groundings of p that are both true or
+    // both false makes the counts of p dominate at both ends of its domain
+    val theory = new WeightedCNFModel {
+      def theoryString = """
+domain D 20
+predicate p(D) 1 1
+predicate s(D,D) 2 1
+predicate t(D,D) 2 1
+!s(X,Y) v p(X)
+!s(X,Y) v p(Y)
+s(X,Y) v !p(X) v !p(Y)
+!t(X,Y) v !p(X)
+!t(X,Y) v !p(Y)
+t(X,Y) v p(X) v p(Y)
+"""
+    }.theory
+    lazy val exact = new LogDoubleWmc().wmc(theory.smoothNnf, theory.domainSizes, theory.predicateWeights).logToDouble
+
+    it("estimates the exact WMC within the tolerance") {
+      val tolerance = 0.01
+      val estimate = theory.logSmoothWmcEstimate(tolerance)
+      estimate.relativeError should be <= tolerance
+      estimate.truncated.logToDouble should be <= (exact + 0.00001)
+      math.expm1(exact - estimate.truncated.logToDouble) should be <= tolerance
+    }
+
+    it("evaluates no more terms than an exact evaluation") {
+      val exactVisitor = TruncatedWmc(0)
+      exactVisitor.wmc(theory.smoothNnf, theory.domainSizes, theory.predicateWeights)
+      val visitor = TruncatedWmc(0.01)
+      visitor.wmc(theory.smoothNnf, theory.domainSizes, theory.predicateWeights)
+      visitor.evaluatedTerms should be <= exactVisitor.evaluatedTerms
+    }
+  }
+
+  describe("A geometric tail") {
+
+    it("sums its terms") {
+      val logTail = TruncatedWmc.logGeometricTail(math.log(8), math.log(0.5), 3)
+      math.exp(logTail) should be((4.0 + 2.0 + 1.0) +- 0.0000001)
+    }
+
+    it("is empty without terms") {
+      TruncatedWmc.logGeometricTail(math.log(8), math.log(0.5), 0) should be(Double.NegativeInfinity)
+    }
+
+    it("sums equal terms") {
+      val logTail = TruncatedWmc.logGeometricTail(math.log(3), 0, 4)
+      math.exp(logTail) should be(12.0 +- 0.0000001)
+    }
+  }
+
+}
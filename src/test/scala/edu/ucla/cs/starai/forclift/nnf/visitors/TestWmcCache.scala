@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf.visitors
+
+import org.junit.runner.RunWith
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.examples.models.FriendsSmokerModel
+import edu.ucla.cs.starai.forclift.examples.models.WeightedCNFModel
+import edu.ucla.cs.starai.forclift.inference.CNFCircuit
+import edu.ucla.cs.starai.forclift.inference.EquiprobableAtoms
+import edu.ucla.cs.starai.forclift.inference.MarginalCircuits
+import edu.ucla.cs.starai.forclift.inference.PredicateWeights
+import edu.ucla.cs.starai.forclift.inference.WeightsFromExp
+
+@RunWith(classOf[JUnitRunner])
+class TestWmcCache extends FunSpec with Matchers {
+
+  describe("A WmcCache") {
+
+    it("counts hits and misses") {
+      val cache = new WmcCache
+      cache.indexOf(1, 42L) should be(-1)
+      cache.put(1, 42L, 3.5, true)
+      val index = cache.indexOf(1, 42L)
+      index should be >= 0
+      cache.logValue(index) should be(3.5)
+      cache.isPositive(index) should be(true)
+      cache.indexOf(2, 42L) should be(-1)
+      cache.hits should be(1)
+      cache.misses should be(2)
+    }
+
+    it("forgets its entries when cleared") {
+      val cache = new WmcCache
+      cache.put(1, 42L, 3.5, false)
+      cache.clear()
+      cache.indexOf(1, 42L) should be(-1)
+      cache.size should be(0)
+    }
+
+    it("stays within its memory budget") {
+      val cache = new WmcCache(1024 * WmcCache.BytesPerEntry)
+      for (key <- 0 until 10000) cache.put(1, key, key, true)
+      cache.maxEntries should be(1024)
+      cache.size should be <= 1024
+      cache.evictions should be >= (10000L - 1024)
+    }
+
+    it("is cleared when the weights change") {
+      val weights = new FriendsSmokerModel(3).theory.predicateWeights
+      val cache = new WmcCache
+      cache.useWeights(weights)
+      cache.put(1, 42L, 3.5, true)
+      cache.useWeights(new PredicateWeights(weights.self))
+      cache.indexOf(1, 42L) should be >= 0
+      cache.useWeights(weights.update(weights.predicates.head, WeightsFromExp(2, 3)))
+      cache.indexOf(1, 42L) should be(-1)
+    }
+
+    it("grows until it reaches its memory budget") {
+      val cache = new WmcCache(1 << 20)
+      for (key <- 0 until 10000) cache.put(1, key, key, true)
+      cache.evictions should be < 1000L
+    }
+  }
+
+  describe("The pool of caches") {
+
+    val weights = new FriendsSmokerModel(3).theory.predicateWeights
+
+    def withMaxBytes[T](maxBytes: Long)(body: => T): T = {
+      val oldMaxBytes = WmcCache.defaultMaxBytes
+      WmcCache.defaultMaxBytes = maxBytes
+      try body finally WmcCache.defaultMaxBytes = oldMaxBytes
+    }
+
+    it("gives a released cache back to the next evaluation with the same weights") {
+      val first = WmcCache.withCache(weights) { cache => cache }
+      WmcCache.withCache(weights) { cache =>
+        cache should be theSameInstanceAs first
+      }
+    }
+
+    it("reuses the least recently released cache for other weights") {
+      WmcCache.clearPool()
+      val otherWeights = weights.update(weights.predicates.head, WeightsFromExp(2, 3))
+      val thirdWeights = weights.update(weights.predicates.head, WeightsFromExp(3, 2))
+      val (first, second) = WmcCache.withCache(weights) { first =>
+        WmcCache.withCache(otherWeights) { second => (first, second) }
+      }
+      // the cache of the inner evaluation was released first
+      WmcCache.withCache(thirdWeights) { cache =>
+        cache should be theSameInstanceAs second
+      }
+      WmcCache.withCache(weights) { cache =>
+        cache should be theSameInstanceAs first
+      }
+    }
+
+    it("gives nested evaluations their own cache") {
+      WmcCache.withCache(weights) { outer =>
+        WmcCache.withCache(weights) { inner =>
+          inner should not be theSameInstanceAs(outer)
+        }
+      }
+    }
+
+    it("shares one memory budget between the caches in use") {
+      withMaxBytes(4096 * WmcCache.BytesPerEntry) {
+        WmcCache.withCache(weights) { outer =>
+          for (key <- 0 until 10000) outer.put(1, key, key, true)
+          WmcCache.withCache(weights) { inner =>
+            for (key <- 0 until 10000) inner.put(1, key, key, true)
+            inner.size should be < inner.maxEntries
+            outer.bytes should be(WmcCache.defaultMaxBytes)
+            inner.evictions should be > 0L
+          }
+        }
+      }
+    }
+  }
+
+  describe("Cached evaluation of FriendsSmokerModel of size 100") {
+
+    val theory = new FriendsSmokerModel(100).theory
+    lazy val exact = new LogDoubleWmc().wmc(theory.smoothNnf, theory.domainSizes, theory.predicateWeights).logToDouble
+
+    it("is correct with a small memory budget") {
+      val expected = exact
+      val oldMaxBytes = WmcCache.defaultMaxBytes
+      WmcCache.defaultMaxBytes = 16 * WmcCache.BytesPerEntry
+      try {
+        val wmc = WmcVisitor(theory.predicateWeights).wmc(theory.smoothNnf, theory.domainSizes, theory.predicateWeights)
+        wmc.logToDouble should be(expected +- 0.00001)
+      } finally WmcCache.defaultMaxBytes = oldMaxBytes
+    }
+
+    it("reuses the results of an earlier evaluation with the same weights") {
+      val visitor = WmcVisitor(theory.predicateWeights)
+      visitor.wmc(theory.smoothNnf, theory.domainSizes, theory.predicateWeights)
+      val misses = WmcCache.withCache(theory.predicateWeights) { _.misses }
+      val wmc = WmcVisitor(theory.predicateWeights).wmc(theory.smoothNnf, theory.domainSizes, theory.predicateWeights)
+      wmc.logToDouble should be(exact +- 0.00001)
+      WmcCache.withCache(theory.predicateWeights) { _.misses } should be(misses)
+    }
+  }
+
+  describe("The marginals of a theory with a part that the query does not touch") {
+
+    val theory = new WeightedCNFModel {
+      def theoryString = """
+domain Person 10
+domain Animal 10
+predicate smokes(Person) 1 2
+predicate friends(Person,Person) 3 1
+predicate barks(Animal) 1 2
+predicate likes(Animal,Animal) 3 1
+!friends(X,Y) v !smokes(X) v smokes(Y)
+!likes(X,Y) v !barks(X) v barks(Y)
+"""
+    }.theory
+    val weights = theory.predicateWeights
+    val compiler = theory.compilerBuilder(theory.domainSizes.toInts)
+    val z = new CNFCircuit(compiler, theory.cnf)
+    val queryClass = new EquiprobableAtoms(theory).coshatteredFgCAtoms.find {
+      _.atom.predicate.name.name == "smokes"
+    }.get
+    lazy val circuit = new MarginalCircuits(compiler, z, queryClass, theory.domainSizes)
+
+    // the misses of evaluating the query circuit with the pooled cache
+    def queryMisses(): Long = {
+      val before = WmcCache.withCache(weights) { _.misses }
+      circuit.clearQueryCache
+      circuit.cacheQueryWmc(weights)
+      WmcCache.withCache(weights) { _.misses } - before
+    }
+
+    it("reuse the results of the partition function for the untouched part") {
+      WmcCache.clearPool()
+      z.clearCache
+      z.cacheWmc(theory.domainSizes, weights)
+      val sharedMisses = queryMisses()
+      val sharedMarginal = circuit.marginal
+
+      WmcCache.clearPool()
+      val isolatedMisses = queryMisses()
+
+      sharedMisses should be < isolatedMisses
+      circuit.marginal.logToDouble should be(sharedMarginal.logToDouble +- 0.00001)
+    }
+  }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf.visitors
+
+import org.junit.runner.RunWith
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+import edu.ucla.cs.starai.forclift.examples.models.FriendsSmokerModel
+
+@RunWith(classOf[JUnitRunner])
+class TestWmcSweep extends FunSpec with Matchers {
+
+  describe("A sweep over the domain sizes of FriendsSmokerModel") {
+
+    val theory = new FriendsSmokerModel(100).theory
+    val person = theory.domainSizes.domains.head
+    val grid = theory.domainSizesGrid(person -> (1 to 100))
+
+    def withParallelism[T](parallelism: Int)(body: => T): T = {
+      val oldParallelism = WmcVisitor.parallelism
+      WmcVisitor.parallelism = parallelism
+      try body finally WmcVisitor.parallelism = oldParallelism
+    }
+
+    it("has one grid point per domain size") {
+      theory.domainSizes.domains should have size 1
+      grid.map { _(person).size } should be(1 to 100)
+    }
+
+    it("has the correct WMC for every domain size") {
+      val wmcs = withParallelism(1) { theory.logSmoothWmc(grid) }
+      for (size <- Seq(1, 10, 100)) {
+        val expected = new FriendsSmokerModel(size).theory.logSmoothWmc.logToDouble
+        wmcs(size - 1).logToDouble should be(expected +- 0.00001)
+      }
+    }
+
+    it("matches the sequential sweep when run in parallel") {
+      val sequential = withParallelism(1) { theory.logSmoothWmc(grid) }
+      val parallel = withParallelism(4) { theory.logSmoothWmc(grid) }
+      for ((s, p) <- sequential zip parallel) {
+        p.logToDouble should be(s.logToDouble +- 0.00001)
+      }
+    }
+  }
+
+}
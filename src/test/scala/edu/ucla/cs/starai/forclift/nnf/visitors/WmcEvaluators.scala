@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.nnf.visitors
+
+import javax.tools.ToolProvider
+
+import edu.ucla.cs.starai.forclift.inference.DomainSizes
+import edu.ucla.cs.starai.forclift.inference.PredicateWeights
+import edu.ucla.cs.starai.forclift.inference.WeightedCNF
+import edu.ucla.cs.starai.forclift.nnf.FlatCircuit
+import edu.ucla.cs.starai.forclift.nnf.GeneratedCircuit
+import edu.ucla.cs.starai.forclift.nnf.WmcGradient
+
+/**
+ * Every way to evaluate the smooth circuit of a theory, by name, for tests
+ * that compare them on the same models. An evaluator returns the log of the
+ * weighted model count, or None when it cannot evaluate the theory.
+ */
+object WmcEvaluators {
+
+  type Evaluator = WeightedCNF => Option[Double]
+
+  private def hasNegativeWeight(theory: WeightedCNF) = {
+    theory.predicateWeights.values.exists { w => w.negWDouble < 0 || w.posWDouble < 0 }
+  }
+
+  private def visit(theory: WeightedCNF, visitor: WmcVisitor) = {
+    Some(visitor.wmc(theory.smoothNnf, theory.domainSizes, theory.predicateWeights).logToDouble)
+  }
+
+  private def flat(theory: WeightedCNF) = {
+    FlatCircuit.flatten(theory.smoothNnf).filter { _.supportsSigned(theory.predicateWeights) }
+  }
+
+  // do not reuse the results of other evaluators
+  private def isolated(evaluator: Evaluator): Evaluator = { theory =>
+    WmcCache.clearPool()
+    evaluator(theory)
+  }
+
+  val all: List[(String, Evaluator)] = List(
+    ("the visitor", { theory =>
+      visit(theory, if (hasNegativeWeight(theory)) new SignLogDoubleWmc else new LogDoubleWmc)
+    }),
+    ("the caching visitor", { theory =>
+      visit(theory, if (hasNegativeWeight(theory)) new CachingSignLogDoubleWmc else new CachingLogDoubleWmc)
+    }),
+    ("the parallel visitor", { theory =>
+      visit(theory, if (hasNegativeWeight(theory)) new ParallelSignLogDoubleWmc(4) else new ParallelLogDoubleWmc(4))
+    }),
+    ("the flat circuit", { theory =>
+      flat(theory).map { _.wmc(theory.domainSizes, theory.predicateWeights).logToDouble }
+    }),
+    ("the gradient", { theory =>
+      flat(theory).filter { circuit => WmcGradient.supports(circuit) && circuit.supports(theory.predicateWeights) }.map {
+        WmcGradient(_, theory.domainSizes, theory.predicateWeights).logWmc.logToDouble
+      }
+    }),
+    ("the generated circuit", { theory =>
+      if (ToolProvider.getSystemJavaCompiler == null) None
+      else flat(theory).filter { _.supports(theory.predicateWeights) }.flatMap { GeneratedCircuit.generate(_) }.map {
+        _.wmc(theory.domainSizes, theory.predicateWeights).logToDouble
+      }
+    }),
+    ("the compiled theory", { theory =>
+      Some(theory.compiled.logSmoothWmc(DomainSizes.empty, PredicateWeights.empty).logToDouble)
+    }),
+    ("a sweep", { theory =>
+      Some(theory.logSmoothWmc(IndexedSeq(DomainSizes.empty)).head.logToDouble)
+    }),
+    ("the truncated visitor without tolerance", { theory =>
+      if (hasNegativeWeight(theory)) None
+      else Some(theory.logSmoothWmcEstimate(0).truncated.logToDouble)
+    })).map { case (name, evaluator) => (name, isolated(evaluator)) }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.ucla.cs.starai.forclift.propositional
+
+import java.io.File
+import java.io.FileWriter
+
+import org.junit.runner.RunWith
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class TestLogC2D extends FunSpec with Matchers {
+
+  // the smooth circuit that c2d compiles x1 v x2 into
+  val nnf = """nnf 8 8 2
+L 1
+L -1
+L 2
+L -2
+O 2 2 2 3
+A 2 0 4
+A 2 1 2
+O 1 2 5 6
+"""
+
+  def withCircuit[T](body: LogC2D => T): T = {
+    val c2d = new LogC2D
+    val file = File.createTempFile("forclift", ".cnf")
+    c2d.c2dInputFile = file.getPath
+    val writer = new FileWriter(c2d.c2dInputFile + ".nnf")
+    try writer.write(nnf) finally writer.close()
+    try body(c2d) finally {
+      c2d.cleanup()
+      file.delete()
+    }
+  }
+
+  def cnf(w1: Double, nw1: Double, w2: Double, nw2: Double) = DimacsCNF(List(
+    PLine(2, 1),
+    ClauseLine(List(1, 2)),
+    WeightLine(1, w1, nw1),
+    WeightLine(2, w2, nw2)))
+
+  describe("Propagating weights through a c2d circuit") {
+
+    it("sums positive weights") {
+      // 2 * (1 + 0.5) + 3 * 1
+      val wmc = withCircuit { _.propagate(cnf(2, 3, 1, 0.5)) }
+      wmc.pos should be(true)
+      wmc.ld.logToDouble should be(math.log(6) +- 0.00001)
+    }
+
+    it("keeps the signs of negative weights") {
+      // 2 * (-1 + 0.5) + 3 * -1
+      val wmc = withCircuit { _.propagate(cnf(2, 3, -1, 0.5)) }
+      wmc.pos should be(false)
+      wmc.ld.logToDouble should be(math.log(4) +- 0.00001)
+    }
+
+    it("gives the negative literal of the query weight zero") {
+      // 2 * (-1 + 0.5)
+      val wmc = withCircuit { _.propagateForQuery(cnf(2, 3, -1, 0.5), 1) }
+      wmc.pos should be(false)
+      wmc.ld.logToDouble should be(math.log(1) +- 0.00001)
+    }
+
+    it("cancels weights that sum to zero") {
+      // 2 * (-1 + 1) + 0 * -1
+      val wmc = withCircuit { _.propagate(cnf(2, 0, -1, 1)) }
+      wmc.isZero should be(true)
+      wmc.pos should be(true)
+    }
+  }
+
+}
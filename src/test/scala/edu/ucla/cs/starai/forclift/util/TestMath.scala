@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Guy Van den Broeck and Wannes Meert (UCLA and KU Leuven)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucla.cs.starai.forclift.util
+
+import org.junit.runner.RunWith
+import org.scalatest.FunSpec
+import org.scalatest.Matchers
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class TestMath extends FunSpec with Matchers {
+
+  val random = new scala.util.Random(42)
+  val logTerms = Array.fill(1000)(random.nextDouble * 200 - 100) ++ Array(Double.NegativeInfinity)
+
+  def logDoubleSum(logTerms: Seq[Double]) = logTerms.map { LogDouble.fromLog(_) }.foldLeft(LogDouble.zero) { _ + _ }.logToDouble
+
+  describe("LogSumExp") {
+
+    it("agrees with LogDouble addition") {
+      val accumulator = new LogSumExp
+      logTerms.foreach { accumulator.add(_) }
+      accumulator.logSum should be(logDoubleSum(logTerms) +- 0.000001)
+    }
+
+    it("agrees with LogDouble addition in blocks") {
+      LogSumExp.sum(logTerms) should be(logDoubleSum(logTerms) +- 0.000001)
+      LogSumExp.sum(logTerms, 10, 20) should be(logDoubleSum(logTerms.slice(10, 20)) +- 0.000001)
+    }
+
+    it("sums nothing to zero") {
+      new LogSumExp().logSum should be(Double.NegativeInfinity)
+      LogSumExp.sum(Array(Double.NegativeInfinity)) should be(Double.NegativeInfinity)
+    }
+  }
+
+  describe("Binomial") {
+
+    it("has log factorials") {
+      Binomial.logFactorial(2000) should be((1 to 2000).map { math.log(_) }.sum +- 0.000001)
+      Binomial.factorial(5).toDouble should be(120.0 +- 0.000001)
+    }
+
+    it("has binomial coefficients") {
+      Binomial.coeff(10, 3).toDouble should be(120.0 +- 0.000001)
+      Binomial.logCoeff(1000, 0) should be(0.0 +- 0.000001)
+    }
+
+    it("sums binomial coefficients times terms") {
+      // the sum over k of (n choose k) is 2^n
+      val n = 3000
+      Binomial.logSum(n, new Array[Double](n + 1), 0) should be(n * math.log(2) +- 0.000001)
+      val sum = logDoubleSum((0 to 100).map { k => Binomial.logCoeff(100, k) + logTerms(k) })
+      Binomial.logSum(100, logTerms, 0) should be(sum +- 0.000001)
+    }
+  }
+
+}